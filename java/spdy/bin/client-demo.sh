@@ -4,7 +4,7 @@
 source `pwd`/bin/setup.sh
 
 # Run client demo
-$JAVA_HOME/bin/java \
-  -Xbootclasspath/p:`pwd`/libs/$NPN_JAR \
+$JAVA_HOME/bin/java $JAVA_OPTS \
+  $JAVA_NPN_OPTS \
   -cp `pwd`/build/libs/spdy.jar \
   com.example.spdy.ClientDemo
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+# Init
+source `pwd`/bin/setup.sh
+
+# Run load test (e.g. JAVA_OPTS="-Dprotocol=spdy -DrequestsPerSecond=2000")
+$JAVA_HOME/bin/java $JAVA_OPTS \
+  $JAVA_NPN_OPTS \
+  -cp `pwd`/build/libs/spdy.jar \
+  com.example.spdy.LoadTest
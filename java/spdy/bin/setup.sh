@@ -1,41 +1,45 @@
-# Determine Java version
-JAVA_VERSION=`$JAVA_HOME/bin/java -version 2>&1 | grep "java version" | awk '{ print $3 }' | sed -e 's/"//g'`
-if [ `echo $JAVA_VERSION | sed -e 's/_.*//'` != "1.7.0" ]; then
-  echo "Java 1.7.0 required"
-  exit 1
-fi
-
-# Determine build
-JAVA_BUILD=`echo $JAVA_VERSION | sed -e 's/1.7.0_//'`
+# Determine Java version (e.g. 1.7.0_45, 1.8.0_392, 17.0.9)
+JAVA_VERSION=`$JAVA_HOME/bin/java -version 2>&1 | grep " version " | awk '{ print $3 }' | sed -e 's/"//g'`
 
-# Determine correct NPN JAR
+# Java 1.7.0 needs the NPN JAR for its build on the boot classpath, anything newer
+# negotiates with the JDK's built-in ALPN (Java 8 needs 8u252 or later for that)
 NPN_JAR=""
-if [ $JAVA_BUILD -eq 9 ]; then
-  NPN_JAR="npn-boot-1.1.3.v20130313.jar"
-elif [ $JAVA_BUILD -eq 10 ]; then
-  NPN_JAR="npn-boot-1.1.3.v20130313.jar"
-elif [ $JAVA_BUILD -eq 11 ]; then
-  NPN_JAR="npn-boot-1.1.3.v20130313.jar"
-elif [ $JAVA_BUILD -eq 13 ]; then
-  NPN_JAR="npn-boot-1.1.4.v20130313.jar"
-elif [ $JAVA_BUILD -eq 15 ]; then
-  NPN_JAR="npn-boot-1.1.5.v20130313.jar"
-elif [ $JAVA_BUILD -eq 17 ]; then
-  NPN_JAR="npn-boot-1.1.5.v20130313.jar"
-elif [ $JAVA_BUILD -eq 21 ]; then
-  NPN_JAR="npn-boot-1.1.5.v20130313.jar"
-elif [ $JAVA_BUILD -eq 25 ]; then
-  NPN_JAR="npn-boot-1.1.5.v20130313.jar"
-elif [ $JAVA_BUILD -eq 40 ]; then
-  NPN_JAR="npn-boot-1.1.6.v20130911.jar"
-elif [ $JAVA_BUILD -eq 45 ]; then
-  NPN_JAR="npn-boot-1.1.6.v20130911.jar"
-else
-  echo "Unsupported Java version $JAVA_VERSION"
-  exit 2
+JAVA_NPN_OPTS=""
+if [ `echo $JAVA_VERSION | sed -e 's/_.*//'` = "1.7.0" ]; then
+
+  # Determine build
+  JAVA_BUILD=`echo $JAVA_VERSION | sed -e 's/1.7.0_//'`
+
+  # Determine correct NPN JAR
+  if [ $JAVA_BUILD -eq 9 ]; then
+    NPN_JAR="npn-boot-1.1.3.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 10 ]; then
+    NPN_JAR="npn-boot-1.1.3.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 11 ]; then
+    NPN_JAR="npn-boot-1.1.3.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 13 ]; then
+    NPN_JAR="npn-boot-1.1.4.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 15 ]; then
+    NPN_JAR="npn-boot-1.1.5.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 17 ]; then
+    NPN_JAR="npn-boot-1.1.5.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 21 ]; then
+    NPN_JAR="npn-boot-1.1.5.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 25 ]; then
+    NPN_JAR="npn-boot-1.1.5.v20130313.jar"
+  elif [ $JAVA_BUILD -eq 40 ]; then
+    NPN_JAR="npn-boot-1.1.6.v20130911.jar"
+  elif [ $JAVA_BUILD -eq 45 ]; then
+    NPN_JAR="npn-boot-1.1.6.v20130911.jar"
+  else
+    echo "Unsupported Java version $JAVA_VERSION"
+    exit 2
+  fi
+
+  JAVA_NPN_OPTS="-Xbootclasspath/p:`pwd`/libs/$NPN_JAR"
 fi
 
 # Dump environment vars
 echo "JAVA_HOME=$JAVA_HOME"
 echo "JAVA_VERSION=$JAVA_VERSION"
-echo "NPN_JAR=$NPN_JAR"
+echo "NPN_JAR=${NPN_JAR:-none (ALPN)}"
@@ -0,0 +1,68 @@
+package com.example.spdy.benchmark;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.Client;
+import com.example.spdy.Server;
+import com.example.spdy.client.ClientConfig;
+import com.example.spdy.server.ServerConfig;
+import com.example.spdy.transport.LocalTransport;
+import org.jboss.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests from {@link Client} to {@link Server} and back, TLS and negotiation
+ * included, over in-VM channels so no time goes to sockets. Run with {@code -prof gc}
+ * for allocations per request.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LocalRoundTripBenchmark
+{
+  @Param({HTTP_2, SPDY_3, HTTP_1_1})
+  public String protocol;
+
+  private Server _server;
+  private Client _client;
+
+  @Setup
+  public void setUp()
+  {
+    org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+
+    LocalTransport transport = new LocalTransport();
+    _server = new Server(new ServerConfig(), transport, null);
+    _server.start(DEFAULT_SERVER_PORT);
+
+    ClientConfig config = new ClientConfig();
+    config.setTransport(transport);
+    config.setProtocols(Collections.singletonList(protocol));
+    _client = new Client(URI.create("https://localhost:" + DEFAULT_SERVER_PORT), config);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    _client.shutdown();
+    _server.stop();
+  }
+
+  @Benchmark
+  public HttpResponse get() throws Exception
+  {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    HttpHeaders.setHeader(request, SPDY_STREAM_ID, _client.getNextSpdyStreamId());
+    HttpHeaders.setHeader(request, HttpHeaders.Names.HOST, "localhost");
+    return _client.execute(request).get();
+  }
+}
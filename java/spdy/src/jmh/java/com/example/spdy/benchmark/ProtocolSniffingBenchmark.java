@@ -0,0 +1,63 @@
+package com.example.spdy.benchmark;
+
+import com.example.spdy.server.ProtocolSniffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link com.example.spdy.server.InitialProtocolSelectionHandler} takes to tell
+ * what a new connection speaks, from its first bytes.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProtocolSniffingBenchmark
+{
+  @Param({"tls", "http", "h2c", "spdy", "partial"})
+  public String preface;
+
+  private ChannelBuffer _buf;
+
+  @Setup
+  public void setUp()
+  {
+    if ("tls".equals(preface))
+    {
+      // Record header of a ClientHello
+      _buf = ChannelBuffers.wrappedBuffer(new byte[]{0x16, 0x03, 0x01, 0x02, 0x00, 0x01, 0x00, 0x01, (byte) 0xfc});
+    }
+    else if ("http".equals(preface))
+    {
+      _buf = ChannelBuffers.copiedBuffer("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n", CharsetUtil.US_ASCII);
+    }
+    else if ("h2c".equals(preface))
+    {
+      _buf = ChannelBuffers.copiedBuffer("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n", CharsetUtil.US_ASCII);
+    }
+    else if ("spdy".equals(preface))
+    {
+      // SETTINGS control frame header
+      _buf = ChannelBuffers.wrappedBuffer(new byte[]{(byte) 0x80, 0x03, 0x00, 0x04, 0x00, 0x00, 0x00, 0x0c});
+    }
+    else
+    {
+      // A prefix of the h2c preface, which has to be compared all the way through
+      _buf = ChannelBuffers.copiedBuffer("PRI * HTTP/2", CharsetUtil.US_ASCII);
+    }
+  }
+
+  @Benchmark
+  public ProtocolSniffer.Result sniff()
+  {
+    return ProtocolSniffer.sniff(_buf);
+  }
+}
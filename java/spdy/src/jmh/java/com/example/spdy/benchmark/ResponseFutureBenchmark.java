@@ -0,0 +1,40 @@
+package com.example.spdy.benchmark;
+
+import com.example.spdy.client.HttpResponseFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a response future alone: completing it, then getting the response.
+ *
+ * The client's lookup of a future by stream ID happens inside its pipeline, so it's
+ * measured along with the rest of a request by {@link LocalRoundTripBenchmark}.
+ *
+ * Run with {@code -t} to see how it holds up with many threads issuing requests.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResponseFutureBenchmark
+{
+  private static final HttpResponse RESPONSE = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+  @Benchmark
+  public HttpResponse completeAndGet() throws Exception
+  {
+    HttpResponseFuture future = new HttpResponseFuture();
+    future.setResponse(RESPONSE);
+    future.complete();
+    return future.get();
+  }
+}
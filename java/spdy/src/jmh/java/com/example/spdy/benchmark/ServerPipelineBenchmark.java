@@ -0,0 +1,248 @@
+package com.example.spdy.benchmark;
+
+import com.example.spdy.server.AsyncRequestDispatcher;
+import com.example.spdy.server.HelloWorldHandler;
+import com.example.spdy.server.ServerConfig;
+import com.example.spdy.server.ServerPipelineFactory;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdySynStreamFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyFrameEncoder;
+import org.jboss.netty.handler.codec.spdy.SpdySynStreamFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole request / response cycles through the server's HTTP/1.1 or spdy/3 stack, as
+ * built by {@link ServerPipelineFactory}, with bytes fed in and taken out in memory.
+ *
+ * Each write completes as soon as it reaches the end of the pipeline, as it would once
+ * on the socket; the stack waits on that before sending a body or finishing a stream.
+ * Every iteration starts and ends by checking that a whole response comes out.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServerPipelineBenchmark
+{
+  private static final byte[] HTTP_REQUEST =
+          "GET / HTTP/1.1\r\nHost: localhost\r\nUser-Agent: benchmark\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+
+  // spdy/3 framing, which Netty keeps to itself
+  private static final int SPDY_HEADER_LENGTH = 8;
+  private static final int SPDY_SYN_REPLY_FRAME = 2;
+  private static final int SPDY_RST_STREAM_FRAME = 3;
+  private static final int SPDY_FLAG_FIN = 0x01;
+
+  @Param({"http", "spdy"})
+  public String protocol;
+
+  private ServerPipelineFactory _pipelineFactory;
+  private DecoderEmbedder<Object> _server;
+  /** Encodes the client's side of a spdy/3 session */
+  private EncoderEmbedder<ChannelBuffer> _spdyClient;
+  /** Decodes the server's HTTP/1.1 responses, to check them */
+  private DecoderEmbedder<Object> _httpResponseDecoder;
+  private int _streamId;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception
+  {
+    Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+    _pipelineFactory = new ServerPipelineFactory(new ServerConfig(), null);
+
+    List<ChannelHandler> finalHandlers = new ArrayList<ChannelHandler>();
+    finalHandlers.add(new AsyncRequestDispatcher(new HelloWorldHandler()));
+    ChannelPipeline stack = Channels.pipeline();
+    if ("spdy".equals(protocol))
+    {
+      _pipelineFactory.addSpdyHandlers(stack, finalHandlers);
+      _spdyClient = new EncoderEmbedder<ChannelBuffer>(new SpdyFrameEncoder(SpdyVersion.SPDY_3));
+      _streamId = 1;
+    }
+    else
+    {
+      _pipelineFactory.addHttpHandlers(stack, finalHandlers);
+      _httpResponseDecoder = new DecoderEmbedder<Object>(new HttpResponseDecoder());
+    }
+
+    // The embedder collects whatever reaches its sink, so the real stack goes in ahead of it
+    _server = new DecoderEmbedder<Object>(new SimpleChannelUpstreamHandler());
+    ChannelPipeline pipeline = _server.getPipeline();
+    String placeholder = pipeline.getNames().get(0);
+    for (Map.Entry<String, ChannelHandler> entry : stack.toMap().entrySet())
+    {
+      pipeline.addBefore(placeholder, entry.getKey(), entry.getValue());
+    }
+    pipeline.remove(placeholder);
+    pipeline.addFirst("writeCompleter", new WriteCompleter());
+    _server.pollAll();
+
+    checkResponse();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown()
+  {
+    checkResponse();
+
+    _server.finish();
+    if (_spdyClient != null)
+    {
+      _spdyClient.finish();
+    }
+    else
+    {
+      _httpResponseDecoder.finish();
+    }
+    _pipelineFactory.releaseExternalResources();
+  }
+
+  @Benchmark
+  public void requestResponse(Blackhole blackhole)
+  {
+    // The response, already encoded
+    blackhole.consume(send());
+  }
+
+  /** Sends a request, and fails unless a whole response comes back */
+  private void checkResponse()
+  {
+    Object[] written = send();
+    boolean complete = _spdyClient == null ? isCompleteHttpResponse(written) : isCompleteSpdyResponse(written);
+    if (!complete)
+    {
+      throw new IllegalStateException("Incomplete " + protocol + " response");
+    }
+  }
+
+  private boolean isCompleteHttpResponse(Object[] written)
+  {
+    for (Object encoded : written)
+    {
+      _httpResponseDecoder.offer(encoded);
+    }
+
+    boolean ok = false;
+    boolean last = false;
+    for (Object decoded : _httpResponseDecoder.pollAll())
+    {
+      if (decoded instanceof HttpResponse)
+      {
+        ok = ((HttpResponse) decoded).getStatus().getCode() == 200;
+        last = !((HttpResponse) decoded).isChunked();
+      }
+      else if (decoded instanceof HttpChunk)
+      {
+        last = ((HttpChunk) decoded).isLast();
+      }
+    }
+    return ok && last;
+  }
+
+  /**
+   * Walks the frame headers only: the header blocks can't be decompressed without having
+   * seen every earlier response on the session.
+   */
+  private static boolean isCompleteSpdyResponse(Object[] written)
+  {
+    ChannelBuffer frames = ChannelBuffers.dynamicBuffer();
+    for (Object encoded : written)
+    {
+      frames.writeBytes((ChannelBuffer) encoded);
+    }
+
+    boolean synReply = false;
+    boolean last = false;
+    while (frames.readableBytes() >= SPDY_HEADER_LENGTH)
+    {
+      int offset = frames.readerIndex();
+      boolean control = (frames.getByte(offset) & 0x80) != 0;
+      int flags = frames.getUnsignedByte(offset + 4);
+      int length = frames.getUnsignedMedium(offset + 5);
+      if (control)
+      {
+        int type = frames.getUnsignedShort(offset + 2);
+        if (type == SPDY_RST_STREAM_FRAME)
+        {
+          return false;
+        }
+        if (type == SPDY_SYN_REPLY_FRAME)
+        {
+          synReply = true;
+        }
+      }
+      last |= (flags & SPDY_FLAG_FIN) != 0;
+      frames.skipBytes(SPDY_HEADER_LENGTH + length);
+    }
+    return synReply && last;
+  }
+
+  /** @return What the server wrote back */
+  private Object[] send()
+  {
+    if (_spdyClient == null)
+    {
+      _server.offer(ChannelBuffers.wrappedBuffer(HTTP_REQUEST));
+    }
+    else
+    {
+      SpdySynStreamFrame synStream = new DefaultSpdySynStreamFrame(_streamId, 0, (byte) 0);
+      _streamId += 2;
+      synStream.setLast(true);
+      synStream.headers().set(":method", "GET");
+      synStream.headers().set(":path", "/");
+      synStream.headers().set(":version", "HTTP/1.1");
+      synStream.headers().set(":host", "localhost");
+      synStream.headers().set(":scheme", "https");
+      synStream.headers().set("user-agent", "benchmark");
+      _spdyClient.offer(synStream);
+      for (Object encoded : _spdyClient.pollAll())
+      {
+        _server.offer(encoded);
+      }
+    }
+
+    return _server.pollAll();
+  }
+
+  /** Completes each write as it leaves the pipeline, which the embedder doesn't */
+  private static class WriteCompleter implements ChannelDownstreamHandler
+  {
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      ctx.sendDownstream(e);
+      if (e instanceof MessageEvent)
+      {
+        e.getFuture().setSuccess();
+      }
+    }
+  }
+}
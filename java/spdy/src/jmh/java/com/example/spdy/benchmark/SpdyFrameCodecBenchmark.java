@@ -0,0 +1,111 @@
+package com.example.spdy.benchmark;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.spdy.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding spdy/3 frames, in memory, with header blocks of various sizes.
+ *
+ * The encoder and decoder share a compression context across frames, as they do on a
+ * real session, so each iteration starts a fresh pair.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpdyFrameCodecBenchmark
+{
+  @Param({"4", "16", "64"})
+  public int headerCount;
+
+  @Param({"16", "256"})
+  public int headerValueSize;
+
+  private EncoderEmbedder<ChannelBuffer> _encoder;
+  private DecoderEmbedder<Object> _decoder;
+  private String _headerValue;
+  private ChannelBuffer _data;
+  private int _streamId;
+
+  @Setup(Level.Iteration)
+  public void setUp()
+  {
+    _encoder = new EncoderEmbedder<ChannelBuffer>(new SpdyFrameEncoder(SpdyVersion.SPDY_3));
+    _decoder = new DecoderEmbedder<Object>(new SpdyFrameDecoder(SpdyVersion.SPDY_3));
+
+    char[] value = new char[headerValueSize];
+    Arrays.fill(value, 'x');
+    _headerValue = new String(value);
+    _data = ChannelBuffers.wrappedBuffer(new byte[1024]);
+    _streamId = 1;
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown()
+  {
+    _encoder.finish();
+    _decoder.finish();
+  }
+
+  @Benchmark
+  public void encodeSynStream(Blackhole blackhole)
+  {
+    _encoder.offer(newSynStream());
+    blackhole.consume(_encoder.pollAll());
+  }
+
+  @Benchmark
+  public void encodeDecodeSynStream(Blackhole blackhole)
+  {
+    _encoder.offer(newSynStream());
+    for (Object encoded : _encoder.pollAll())
+    {
+      _decoder.offer(encoded);
+    }
+    blackhole.consume(_decoder.pollAll());
+  }
+
+  @Benchmark
+  public void encodeDecodeData(Blackhole blackhole)
+  {
+    SpdyDataFrame frame = new DefaultSpdyDataFrame(1);
+    frame.setData(_data.duplicate());
+    _encoder.offer(frame);
+    for (Object encoded : _encoder.pollAll())
+    {
+      _decoder.offer(encoded);
+    }
+    blackhole.consume(_decoder.pollAll());
+  }
+
+  private SpdySynStreamFrame newSynStream()
+  {
+    SpdySynStreamFrame frame = new DefaultSpdySynStreamFrame(_streamId, 0, (byte) 0);
+    _streamId += 2;
+    frame.setLast(true);
+
+    SpdyHeaders headers = frame.headers();
+    headers.set(":method", "GET");
+    headers.set(":path", "/");
+    headers.set(":version", "HTTP/1.1");
+    headers.set(":host", "localhost");
+    headers.set(":scheme", "https");
+    for (int i = 0; i < headerCount; i++)
+    {
+      headers.set("x-header-" + i, _headerValue);
+    }
+    return frame;
+  }
+}
@@ -1,36 +1,58 @@
 package com.example.spdy;
 
 import com.example.spdy.api.Constants;
+import com.example.spdy.client.ClientConfig;
 import com.example.spdy.client.ClientPipelineFactory;
 import com.example.spdy.client.HandshakeListener;
 import com.example.spdy.client.HttpResponseFuture;
-import com.example.spdy.npn.SimpleClientProvider;
+import com.example.spdy.client.RequestTiming;
+import com.example.spdy.client.RequestTimingStats;
+import com.example.spdy.client.ResponseStream;
+import com.example.spdy.client.StreamScheduler;
+import com.example.spdy.client.StreamingResponseDispatcher;
+import com.example.spdy.client.StreamingResponseHandler;
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.npn.ProtocolNegotiator;
 import org.apache.log4j.Logger;
-import org.eclipse.jetty.npn.NextProtoNego;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.SpdyHttpHeaders;
+import org.jboss.netty.handler.codec.spdy.SpdySynReplyFrame;
 import org.jboss.netty.handler.ssl.SslHandler;
 
 import javax.net.ssl.SSLEngine;
-import java.net.InetSocketAddress;
+import java.net.ConnectException;
+import java.net.SocketAddress;
 import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * An asynchronous NPN-enabled HTTPS / SPDY client
+ * An asynchronous ALPN- (or NPN-) enabled HTTPS / SPDY / HTTP/2 client
  *
- * For SPDY, each stream must have a unique, monotonically increasing, and odd ID.
- * Use {@link com.example.spdy.Client#getNextSpdyStreamId()} from a Client user perspective
- * to generate a valid ID.
+ * With {@link ClientConfig#setPlaintextSpdy(boolean)}, it instead speaks spdy/3
+ * directly over TCP, for trusted networks where TLS is pure overhead.
  *
- * There should be a unique stream ID per concurrent request.
+ * For SPDY and HTTP/2, the client numbers each request's stream itself, as it's sent. Requests
+ * beyond the server's concurrent stream limit wait, most urgent first, for a stream to
+ * finish (see {@link StreamScheduler}). A request's priority, 0 (highest) to 7 (lowest),
+ * goes in the {@link Constants#SPDY_STREAM_PRIORITY} header, and is also set on its
+ * SPDY SYN_STREAM.
+ *
+ * Over SPDY and HTTP/2, {@link #stream} sends a request and receives its response a piece
+ * at a time, paced by flow control, for bodies too big to hold in memory.
+ *
+ * Call {@link #prewarm()} before sending traffic to connect, handshake and warm up ahead of
+ * the first real request, rather than during it.
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
@@ -42,11 +64,16 @@ public class Client
   private enum Protocol
   {
     HTTPS,
-    SPDY;
+    SPDY,
+    HTTP2;
 
     static Protocol fromNegotiated(String protocol)
     {
-      if (Constants.SPDY_3.equals(protocol))
+      if (Constants.HTTP_2.equals(protocol))
+      {
+        return HTTP2;
+      }
+      else if (Constants.SPDY_3.equals(protocol))
       {
         return SPDY;
       }
@@ -64,41 +91,121 @@ public class Client
   /** The base server URI */
   private final URI _baseUri;
   /** The server address */
-  private final InetSocketAddress _remoteAddress;
+  private final SocketAddress _remoteAddress;
   /** Generates client channels */
   private final ClientBootstrap _clientBootstrap;
+  /** Builds client pipelines, and owns the handshake executor */
+  private final ClientPipelineFactory _pipelineFactory;
   /** A persistent channel (used for SPDY) */
   private final AtomicReference<Channel> _channel;
   /** Enforces mutual exclusion when manipulating this client's channel(s) */
   private final ReentrantLock _lock;
-  /** A mapping of SPDY stream ID to uncompleted future */
+  /** A mapping of SPDY (or HTTP/2) stream, see {@link #streamKey}, to uncompleted future */
   private final ConcurrentMap<String, HttpResponseFuture> _spdyFutures;
   /** A mapping of channel to uncompleted future (HTTPS uses many channels for concurrency) */
   private final ChannelLocal<HttpResponseFuture> _httpsFutures;
-  /** The next safe SPDY stream ID to use over _channel */
+  /** Stream IDs for callers that still set them, see {@link #getNextSpdyStreamId()} */
   private final AtomicInteger _nextSpdyStreamId;
+  /** Request phase histograms, or null if requests aren't being timed */
+  private final RequestTimingStats _timingStats;
+  /** HTTPS connections opened by {@link #prewarm()}, waiting for their request */
+  private final Queue<Channel> _idleChannels;
+  /** How many connections to open, and requests to send, when prewarming */
+  private final int _prewarmConnections;
+  private final int _prewarmRequests;
+  private final String _prewarmPath;
+  /** Whether {@link #prewarm()} has finished */
+  private volatile boolean _warm;
 
   public Client(URI baseUri)
+  {
+    this(baseUri, new ClientConfig());
+  }
+
+  public Client(URI baseUri, ClientConfig config)
   {
     // Address
     _baseUri = baseUri;
-    _remoteAddress = new InetSocketAddress(_baseUri.getHost(), _baseUri.getPort());
+    _remoteAddress = config.getTransport().getRemoteAddress(_baseUri.getHost(), _baseUri.getPort());
 
     // Netty
-    _clientBootstrap = new ClientBootstrap(
-            new NioClientSocketChannelFactory(
-                    Executors.newCachedThreadPool(),
-                    Executors.newCachedThreadPool()));
-    _clientBootstrap.setPipelineFactory(new ClientPipelineFactory());
+    _clientBootstrap = new ClientBootstrap(config.getTransport().newClientChannelFactory());
+    _pipelineFactory = new ClientPipelineFactory(config);
+    _clientBootstrap.setPipelineFactory(_pipelineFactory);
+    _clientBootstrap.setOption("tcpNoDelay", true);
 
     // Channel and futures
     _channel = new AtomicReference<Channel>();
     _spdyFutures = new ConcurrentHashMap<String, HttpResponseFuture>();
     _httpsFutures = new ChannelLocal<HttpResponseFuture>(true);
+    _idleChannels = new ConcurrentLinkedQueue<Channel>();
 
     // Misc
     _nextSpdyStreamId = new AtomicInteger(1);
     _lock = new ReentrantLock();
+    _timingStats = config.isRequestTiming() ? new RequestTimingStats() : null;
+    _prewarmConnections = config.getPrewarmConnections();
+    _prewarmRequests = config.getPrewarmRequests();
+    _prewarmPath = config.getPrewarmPath();
+  }
+
+  /**
+   * Gets ready for traffic, so the first real requests don't pay for it: sends
+   * {@link ClientConfig#getPrewarmRequests()} synthetic GETs, one at a time, to get the
+   * codecs compiled, then opens {@link ClientConfig#getPrewarmConnections()} connections
+   * and completes their handshakes.
+   *
+   * SPDY and HTTP/2 multiplex every request over one connection, so only that one is
+   * opened. HTTPS connections carry one request each, so they're kept until requests
+   * come along to use them.
+   *
+   * @throws Exception
+   *  If a connection or synthetic request failed, in which case the client isn't warm
+   */
+  public void prewarm() throws Exception
+  {
+    long startNanos = System.nanoTime();
+
+    for (int i = 0; i < _prewarmRequests; i++)
+    {
+      HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, _prewarmPath);
+      HttpHeaders.setHeader(request, HttpHeaders.Names.HOST, _baseUri.getHost());
+      execute(request).get();
+    }
+
+    _lock.lock();
+    try
+    {
+      while (_idleChannels.size() < _prewarmConnections)
+      {
+        if (_channel.get() != null && _channel.get().isConnected())
+        {
+          break; // the SPDY / HTTP/2 connection, which is all we need
+        }
+
+        Channel channel = connect(null);
+        if (getNegotiatedProtocol(channel) != Protocol.HTTPS)
+        {
+          break;
+        }
+        addIdleChannel(channel);
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+
+    _warm = true;
+    LOG.info(String.format("Warmed up %s with %d requests and %d spare connections in %dms",
+                           _baseUri, _prewarmRequests, _idleChannels.size(),
+                           TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+  }
+
+  /** @return Whether {@link #prewarm()} has finished, i.e. the first real request won't wait to connect */
+  public boolean isWarm()
+  {
+    return _warm;
   }
 
   /**
@@ -111,78 +218,212 @@ public class Client
    * @throws Exception
    *  If there were any errors during execution
    */
-  public Future<HttpResponse> execute(HttpRequest httpRequest) throws Exception
+  public HttpResponseFuture execute(final HttpRequest httpRequest) throws Exception
   {
-    Channel channel = getChannel();
+    final RequestTiming timing = _timingStats == null ? null : new RequestTiming();
 
-    final HttpResponseFuture future = new HttpResponseFuture();
+    final Channel channel = getChannel(timing);
 
-    // Record future in protocol-appropriate data structure
-    switch (getNegotiatedProtocol(channel))
+    final HttpResponseFuture future = new HttpResponseFuture(timing);
+
+    if (timing != null)
+    {
+      timing.setQueuedNanos(System.nanoTime());
+    }
+
+    // Record future in protocol-appropriate data structure, and send
+    Protocol protocol = getNegotiatedProtocol(channel);
+    int priority = takePriority(httpRequest, protocol);
+    switch (protocol)
     {
       case SPDY:
-        String streamId = HttpHeaders.getHeader(httpRequest, Constants.SPDY_STREAM_ID);
-        if (streamId == null)
+      case HTTP2:
+        // The codecs take headers out of the request as they encode it, so keep them in case it has to be sent again
+        final List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        for (Map.Entry<String, String> header : httpRequest.headers())
         {
-          throw new IllegalArgumentException("Must specify SPDY stream ID");
+          headers.add(new AbstractMap.SimpleImmutableEntry<String, String>(header));
         }
-        _spdyFutures.put(streamId, future);
+        final int contentIndex = httpRequest.getContent().readerIndex();
+        channel.getPipeline().get(StreamScheduler.class).submit(priority, new StreamScheduler.StreamWriter()
+        {
+          /** The stream it was last sent on, in case it was refused and is being sent again */
+          private String _lastStreamKey;
+
+          @Override
+          public ChannelFuture write(int streamId) throws Exception
+          {
+            if (_lastStreamKey != null)
+            {
+              _spdyFutures.remove(_lastStreamKey, future);
+              httpRequest.headers().clear();
+              for (Map.Entry<String, String> header : headers)
+              {
+                httpRequest.headers().add(header.getKey(), header.getValue());
+              }
+              httpRequest.getContent().readerIndex(contentIndex);
+            }
+            String key = streamKey(channel, streamId);
+            _lastStreamKey = key;
+            HttpHeaders.setHeader(httpRequest, Constants.SPDY_STREAM_ID, streamId);
+            _spdyFutures.put(key, future);
+            return Client.write(channel, httpRequest, timing);
+          }
+
+          @Override
+          public void fail(Throwable cause)
+          {
+            if (_lastStreamKey == null || _spdyFutures.remove(_lastStreamKey, future))
+            {
+              future.setError(cause);
+              future.complete();
+            }
+          }
+        });
         break;
       case HTTPS:
         _httpsFutures.setIfAbsent(channel, future);
+        write(channel, httpRequest, timing);
         break;
     }
 
-    channel.write(httpRequest);
-
     return future;
   }
 
+  /**
+   * Sends an HTTP request over the persistent SPDY or HTTP/2 connection without aggregating
+   * either body: the request's body is written through the returned stream, and the response
+   * is handed to {@code handler} as it arrives. Requests aren't timed.
+   *
+   * @throws IllegalStateException If the connection is HTTPS
+   */
+  public ResponseStream stream(HttpRequest httpRequest, StreamingResponseHandler handler) throws Exception
+  {
+    Channel channel = getChannel(null);
+    Protocol protocol = getNegotiatedProtocol(channel);
+    if (protocol == Protocol.HTTPS)
+    {
+      releaseChannel(channel);
+      throw new IllegalStateException("Only SPDY and HTTP/2 requests can be streamed");
+    }
+
+    int priority = takePriority(httpRequest, protocol);
+    return channel.getPipeline().get(StreamingResponseDispatcher.class).submit(channel, httpRequest, priority, handler);
+  }
+
+  /** @return The write's future, having noted when it started and finished */
+  private static ChannelFuture write(Channel channel, HttpRequest httpRequest, final RequestTiming timing)
+  {
+    if (timing == null)
+    {
+      return channel.write(httpRequest);
+    }
+
+    timing.setWriteStartNanos(System.nanoTime());
+    ChannelFuture written = channel.write(httpRequest);
+    written.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture written) throws Exception
+      {
+        timing.setWrittenNanos(System.nanoTime());
+      }
+    });
+    return written;
+  }
+
+  /**
+   * Takes the priority out of the {@link Constants#SPDY_STREAM_PRIORITY} header, and for
+   * spdy/3 puts it where the encoder sets it on the SYN_STREAM.
+   *
+   * @return 0 (highest) to 7 (lowest)
+   */
+  private static int takePriority(HttpRequest httpRequest, Protocol protocol)
+  {
+    String header = httpRequest.headers().get(Constants.SPDY_STREAM_PRIORITY);
+    httpRequest.headers().remove(Constants.SPDY_STREAM_PRIORITY);
+    int priority = header == null
+        ? Constants.DEFAULT_STREAM_PRIORITY
+        : Math.max(Constants.HIGHEST_STREAM_PRIORITY,
+                   Math.min(Constants.LOWEST_STREAM_PRIORITY, Integer.parseInt(header.trim())));
+    if (protocol == Protocol.SPDY)
+    {
+      SpdyHttpHeaders.setPriority(httpRequest, (byte) priority);
+    }
+    return priority;
+  }
+
+  /**
+   * @return Whether the SPDY / HTTP/2 connection is open, i.e. a request won't have to
+   *  wait to connect
+   */
+  public boolean isConnected()
+  {
+    Channel channel = _channel.get();
+    return channel != null && channel.isConnected();
+  }
+
   /** Disconnects client */
   public void shutdown()
   {
+    Channel idle;
+    while ((idle = _idleChannels.poll()) != null)
+    {
+      Channels.close(idle);
+    }
     _clientBootstrap.releaseExternalResources();
+    _pipelineFactory.releaseExternalResources();
     LOG.info("Shutdown client to " + _baseUri);
   }
 
-  /** @return The next odd, monotonically increasing stream ID */
+  /**
+   * @return
+   *  Histograms of where requests' time went, per host and protocol, or null unless
+   *  {@link ClientConfig#setRequestTiming(boolean)}
+   */
+  public RequestTimingStats getTimingStats()
+  {
+    return _timingStats;
+  }
+
+  /**
+   * @return The next odd, monotonically increasing stream ID. Not needed any more, as the
+   *  client numbers streams as it sends them, replacing any {@link Constants#SPDY_STREAM_ID} header.
+   */
   public int getNextSpdyStreamId()
   {
     return _nextSpdyStreamId.getAndAdd(2);
   }
 
   /** @return A protocol-appropriate channel on which to write */
-  private Channel getChannel() throws Exception
+  private Channel getChannel(RequestTiming timing) throws Exception
   {
     _lock.lock();
 
     try
     {
-      Channel channel = null;
+      if (timing != null)
+      {
+        timing.setLockAcquiredNanos(System.nanoTime());
+      }
 
       // Short circuit if we're already connected
-      if (_channel.get() != null && _channel.get().isWritable())
+      if (_channel.get() != null && _channel.get().isConnected())
       {
         return _channel.get();
       }
 
-      // Connect
-      CountDownLatch connected = new CountDownLatch(1);
-      _clientBootstrap.connect(_remoteAddress).addListener(new HandshakeListener(_channel, connected));
-      connected.await();
-      channel = _channel.get();
-
-      switch (getNegotiatedProtocol(channel))
+      // Or if a connection was opened ahead of time
+      Channel idle;
+      while ((idle = _idleChannels.poll()) != null)
       {
-        case HTTPS:
-          // immediately remove from reference so we can connect again
-          _channel.set(null);
+        if (idle.isConnected())
+        {
+          return idle;
+        }
       }
 
-      // Add future handler
-      channel.getPipeline().addLast("futureHandler", new FutureHandler(this));
-
-      return channel;
+      return connect(timing);
     }
     finally
     {
@@ -190,6 +431,79 @@ public class Client
     }
   }
 
+  /** @return A new connection, handshaken and negotiated. Hold the lock. */
+  private Channel connect(RequestTiming timing) throws Exception
+  {
+    // Connect
+    _channel.set(null);
+    CountDownLatch connected = new CountDownLatch(1);
+    HandshakeListener handshakeListener = new HandshakeListener(_channel, connected);
+    if (timing != null)
+    {
+      timing.setConnectStartNanos(System.nanoTime());
+    }
+    _clientBootstrap.connect(_remoteAddress).addListener(handshakeListener);
+    connected.await();
+    Channel channel = _channel.get();
+    if (channel == null)
+    {
+      throw new ConnectException("Could not connect to " + _remoteAddress);
+    }
+    if (timing != null)
+    {
+      timing.setConnectedNanos(handshakeListener.getConnectedNanos());
+      timing.setHandshakeDoneNanos(handshakeListener.getHandshakeDoneNanos());
+      timing.setNegotiatedNanos(handshakeListener.getNegotiatedNanos());
+    }
+
+    switch (getNegotiatedProtocol(channel))
+    {
+      case HTTPS:
+        // immediately remove from reference so we can connect again
+        _channel.set(null);
+    }
+
+    // Add future handler
+    channel.getPipeline().addLast("futureHandler", new FutureHandler(this));
+    if (_timingStats != null)
+    {
+      addFirstByteHandler(channel.getPipeline(), getNegotiatedProtocol(channel));
+    }
+
+    return channel;
+  }
+
+  /** Keeps a prewarmed HTTPS connection for a later request, unless the server closes it first */
+  private void addIdleChannel(final Channel channel)
+  {
+    _idleChannels.add(channel);
+    channel.getCloseFuture().addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        _idleChannels.remove(channel);
+      }
+    });
+  }
+
+  /** Notes when responses start to arrive, after the frame or message decoding but before any aggregation */
+  private void addFirstByteHandler(ChannelPipeline pipeline, Protocol protocol)
+  {
+    switch (protocol)
+    {
+      case SPDY:
+        pipeline.addAfter("spdySessionHandler", "firstByteHandler", new FirstByteHandler(this));
+        break;
+      case HTTP2:
+        pipeline.addAfter("http2SessionHandler", "firstByteHandler", new FirstByteHandler(this));
+        break;
+      case HTTPS:
+        pipeline.addAfter("httpCodec", "firstByteHandler", new FirstByteHandler(this));
+        break;
+    }
+  }
+
   /** Signals that this channel is done being used */
   private void releaseChannel(Channel channel) throws Exception
   {
@@ -199,16 +513,36 @@ public class Client
         Channels.close(channel);
         break;
       default:
-        // do nothing, SPDY can re-use channel
+        // do nothing, SPDY and HTTP/2 can re-use channel
     }
   }
 
-  /** @return The NPN-negotiated protocol as an enum */
+  /** Adds a successful request's timings to the histograms */
+  private void recordTiming(HttpResponseFuture future, Protocol protocol)
+  {
+    if (future.getTiming() != null)
+    {
+      _timingStats.record(_baseUri.getHost() + ":" + _baseUri.getPort(), protocol.name(), future.getTiming());
+    }
+  }
+
+  /** @return Identifies a stream among every connection's, as each numbers its own from 1 */
+  private static String streamKey(Channel channel, Object streamId)
+  {
+    return channel.getId() + "/" + streamId;
+  }
+
+  /** @return The ALPN- or NPN-negotiated protocol as an enum */
   private static Protocol getNegotiatedProtocol(Channel channel)
   {
-    SSLEngine engine = channel.getPipeline().get(SslHandler.class).getEngine();
-    SimpleClientProvider provider = (SimpleClientProvider) NextProtoNego.get(engine);
-    return Protocol.fromNegotiated(provider.getSelectedProtocol());
+    SslHandler sslHandler = channel.getPipeline().get(SslHandler.class);
+    if (sslHandler == null)
+    {
+      return Protocol.SPDY; // plain-text SPDY, nothing negotiated
+    }
+
+    SSLEngine engine = sslHandler.getEngine();
+    return Protocol.fromNegotiated(ProtocolNegotiator.getInstance().getSelectedProtocol(engine));
   }
 
   /** Completes a Client's futures */
@@ -226,9 +560,11 @@ public class Client
     {
       HttpResponse httpResponse = (HttpResponse) e.getMessage();
 
-      switch (getNegotiatedProtocol(ctx.getChannel()))
+      Protocol protocol = getNegotiatedProtocol(ctx.getChannel());
+      switch (protocol)
       {
         case SPDY:
+        case HTTP2:
 
           String streamId = HttpHeaders.getHeader(httpResponse, Constants.SPDY_STREAM_ID);
           if (streamId == null)
@@ -236,10 +572,10 @@ public class Client
             throw new IllegalStateException("Stream ID not present in response");
           }
 
-          HttpResponseFuture spdyFuture = _client._spdyFutures.get(streamId);
+          HttpResponseFuture spdyFuture = _client._spdyFutures.remove(streamKey(ctx.getChannel(), streamId));
           spdyFuture.setResponse(httpResponse);
           spdyFuture.complete();
-          _client._spdyFutures.remove(streamId);
+          _client.recordTiming(spdyFuture, protocol);
           break;
 
         case HTTPS:
@@ -247,6 +583,7 @@ public class Client
           HttpResponseFuture httpsFuture = _client._httpsFutures.get(ctx.getChannel());
           httpsFuture.setResponse(httpResponse);
           httpsFuture.complete();
+          _client.recordTiming(httpsFuture, protocol);
           break;
       }
 
@@ -259,13 +596,18 @@ public class Client
       switch (getNegotiatedProtocol(ctx.getChannel()))
       {
         case SPDY:
+        case HTTP2:
 
-          for (HttpResponseFuture future : _client._spdyFutures.values())
+          // Only this connection's streams, as the others carry on
+          String prefix = streamKey(ctx.getChannel(), "");
+          for (Map.Entry<String, HttpResponseFuture> entry : _client._spdyFutures.entrySet())
           {
-            future.setError(e.getCause());
-            future.complete();
+            if (entry.getKey().startsWith(prefix) && _client._spdyFutures.remove(entry.getKey(), entry.getValue()))
+            {
+              entry.getValue().setError(e.getCause());
+              entry.getValue().complete();
+            }
           }
-          _client._spdyFutures.clear();
           break;
 
         case HTTPS:
@@ -284,4 +626,42 @@ public class Client
       _client.releaseChannel(ctx.getChannel());
     }
   }
+
+  /** Records when the first part of each response arrives */
+  private static class FirstByteHandler extends SimpleChannelUpstreamHandler
+  {
+    private final Client _client;
+
+    FirstByteHandler(Client client)
+    {
+      _client = client;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      Object message = e.getMessage();
+
+      HttpResponseFuture future = null;
+      if (message instanceof SpdySynReplyFrame)
+      {
+        future = _client._spdyFutures.get(streamKey(ctx.getChannel(), ((SpdySynReplyFrame) message).getStreamId()));
+      }
+      else if (message instanceof Http2Frame && ((Http2Frame) message).getType() == Http2Frame.HEADERS)
+      {
+        future = _client._spdyFutures.get(streamKey(ctx.getChannel(), ((Http2Frame) message).getStreamId()));
+      }
+      else if (message instanceof HttpResponse)
+      {
+        future = _client._httpsFutures.get(ctx.getChannel());
+      }
+
+      if (future != null && future.getTiming() != null)
+      {
+        future.getTiming().setFirstByteNanos(System.nanoTime());
+      }
+
+      ctx.sendUpstream(e);
+    }
+  }
 }
@@ -2,6 +2,7 @@ package com.example.spdy;
 
 import static com.example.spdy.api.Constants.*;
 
+import com.example.spdy.client.ClientConfig;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
@@ -35,7 +36,10 @@ public class ClientDemo
     final int port = customPort == null ? DEFAULT_SERVER_PORT : Integer.parseInt(customPort);
 
     // Client
-    final Client client = new Client(URI.create(String.format("https://localhost:%d", port)));
+    ClientConfig config = new ClientConfig();
+    config.setPlaintextSpdy(Boolean.getBoolean(PROP_PLAINTEXT_SPDY));
+    String scheme = config.isPlaintextSpdy() ? "http" : "https";
+    final Client client = new Client(URI.create(String.format("%s://localhost:%d", scheme, port)), config);
 
     List<Future<HttpResponse>> futures = new ArrayList<Future<HttpResponse>>();
 
@@ -0,0 +1,125 @@
+package com.example.spdy;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.client.ClientConfig;
+import com.example.spdy.client.LoadGenerator;
+import com.example.spdy.client.LoadGeneratorConfig;
+import com.example.spdy.server.ServerConfig;
+import com.example.spdy.transport.LocalTransport;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import java.net.URI;
+import java.util.Collections;
+
+/**
+ * Puts a server under load with a {@link LoadGenerator}, once per payload size, and
+ * reports throughput, errors and latency percentiles for each.
+ *
+ * e.g. to compare https with spdy/3 at a fixed rate:
+ *
+ * <pre>
+ *   java -Dprotocol=https -DrequestsPerSecond=2000 com.example.spdy.LoadTest
+ *   java -Dprotocol=spdy -DrequestsPerSecond=2000 com.example.spdy.LoadTest
+ * </pre>
+ *
+ * With {@code -Dtransport=local}, it starts its own server and talks to it over in-VM
+ * channels instead of sockets.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class LoadTest
+{
+  private static final Logger LOG = Logger.getLogger(LoadTest.class);
+
+  public static void main(String[] args) throws Exception
+  {
+    // Logger (the client's own logging is quiet, so it doesn't slow things down)
+    ConsoleAppender console = new ConsoleAppender();
+    PatternLayout layout = new PatternLayout("%d{yyyy-MM-dd HH:mm:ss} %-5p %c{1}:%L - %m%n");
+    console.setLayout(layout);
+    console.activateOptions();
+    Logger.getRootLogger().addAppender(console);
+    Logger.getRootLogger().setLevel(Level.WARN);
+    LOG.setLevel(Level.INFO);
+
+    // Port
+    String customPort = System.getProperty(PROP_PORT);
+    final int port = customPort == null ? DEFAULT_SERVER_PORT : Integer.parseInt(customPort);
+
+    // Client, offering only the protocol asked for, if any
+    ClientConfig config = new ClientConfig();
+    config.setPlaintextSpdy(Boolean.getBoolean(PROP_PLAINTEXT_SPDY));
+    config.setRequestTiming(Boolean.getBoolean(PROP_REQUEST_TIMING));
+    config.setPrewarmConnections(Integer.getInteger(PROP_PREWARM_CONNECTIONS, DEFAULT_PREWARM_CONNECTIONS));
+    config.setPrewarmRequests(Integer.getInteger(PROP_PREWARM_REQUESTS, DEFAULT_PREWARM_REQUESTS));
+    config.setPrewarmPath(System.getProperty(PROP_PREWARM_PATH, DEFAULT_PREWARM_PATH));
+    String protocol = System.getProperty(PROP_PROTOCOL);
+    if ("https".equals(protocol))
+    {
+      protocol = HTTP_1_1;
+    }
+    else if ("spdy".equals(protocol))
+    {
+      protocol = SPDY_3;
+    }
+    if (protocol != null)
+    {
+      config.setProtocols(Collections.singletonList(protocol));
+    }
+    String scheme = config.isPlaintextSpdy() ? "http" : "https";
+
+    // In-VM channels only reach a server in this VM, so start one
+    Server server = null;
+    if (config.getTransport() instanceof LocalTransport)
+    {
+      server = new Server(ServerConfig.fromSystemProperties(), config.getTransport(), null);
+      server.start(port);
+    }
+
+    Client client = new Client(URI.create(String.format("%s://localhost:%d", scheme, port)), config);
+    if (Boolean.getBoolean(PROP_PREWARM))
+    {
+      client.prewarm();
+      LOG.info("Client is warm");
+    }
+
+    LoadGeneratorConfig loadConfig = LoadGeneratorConfig.fromSystemProperties();
+    String protocols = (config.isPlaintextSpdy() ? "plain-text " + SPDY_3 : config.getProtocols().toString())
+        + " over " + config.getTransport();
+    for (String payloadSize : System.getProperty(PROP_PAYLOAD_SIZES, DEFAULT_PAYLOAD_SIZES).split(","))
+    {
+      loadConfig.setPayloadSize(Integer.parseInt(payloadSize.trim()));
+      LOG.info(String.format("%s to localhost:%d, %d byte payloads, %d concurrent, %s, for %ds after %ds warm-up",
+                             protocols,
+                             port,
+                             loadConfig.getPayloadSize(),
+                             loadConfig.getConcurrency(),
+                             loadConfig.getRequestsPerSecond() > 0
+                                 ? loadConfig.getRequestsPerSecond() + " requests/s"
+                                 : "closed loop",
+                             loadConfig.getDurationMillis() / 1000,
+                             loadConfig.getWarmupMillis() / 1000));
+
+      LoadGenerator generator = new LoadGenerator(client, "localhost", loadConfig);
+      generator.run();
+      LOG.info(generator.getSummary());
+    }
+
+    // Where the time went, warm-up included
+    if (client.getTimingStats() != null)
+    {
+      LOG.info("Request phases (us):\n" + client.getTimingStats());
+    }
+
+    // We're done
+    client.shutdown();
+    if (server != null)
+    {
+      server.stop();
+    }
+  }
+}
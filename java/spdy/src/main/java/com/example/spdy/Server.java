@@ -1,27 +1,103 @@
 package com.example.spdy;
 
+import static com.example.spdy.api.Constants.DEFAULT_BACKLOG;
 import static com.example.spdy.api.Constants.DEFAULT_SERVER_PORT;
+import static com.example.spdy.api.Constants.PROP_BACKLOG;
 import static com.example.spdy.api.Constants.PROP_PORT;
+import static com.example.spdy.api.Constants.PROP_PROXY_UPSTREAM;
+import static com.example.spdy.api.Constants.PROP_STREAMING;
 
+import com.example.spdy.server.AsyncRequestHandler;
+import com.example.spdy.server.ByteCountingHandler;
+import com.example.spdy.server.ProxyConfig;
+import com.example.spdy.server.ProxyHandler;
+import com.example.spdy.server.ServerConfig;
 import com.example.spdy.server.ServerPipelineFactory;
+import com.example.spdy.server.StreamingRequestHandler;
+import com.example.spdy.transport.Transport;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-
-import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
+import org.jboss.netty.channel.Channel;
 
 /**
  * A server that supports HTTP, HTTPS, and SPDY
  *
+ * Run {@link #main(String[])} for a standalone server, or {@link #start(int)} one inside
+ * another program (e.g. on the in-VM transport, next to its clients).
+ *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
 public class Server
 {
   private static final Logger LOG = Logger.getLogger(Server.class);
 
+  private final Transport _transport;
+  private final ServerBootstrap _bootstrap;
+  private final ServerPipelineFactory _pipelineFactory;
+  private Channel _serverChannel;
+
+  /**
+   * @param streamingHandler
+   *  Handles request bodies as they arrive, or null to aggregate them and say hello
+   */
+  public Server(ServerConfig config, Transport transport, StreamingRequestHandler streamingHandler)
+  {
+    this(config, transport, null, streamingHandler);
+  }
+
+  /**
+   * @param requestHandler
+   *  Answers aggregated requests, or null to say hello. Released when the server stops, if
+   *  it has resources to release.
+   * @param streamingHandler
+   *  Handles request bodies as they arrive instead, or null to aggregate them. Released
+   *  likewise (e.g. a {@link ProxyHandler}).
+   */
+  public Server(ServerConfig config,
+                Transport transport,
+                AsyncRequestHandler requestHandler,
+                StreamingRequestHandler streamingHandler)
+  {
+    _transport = transport;
+    _bootstrap = new ServerBootstrap(transport.newServerChannelFactory());
+    _pipelineFactory = new ServerPipelineFactory(config, requestHandler, streamingHandler);
+    _bootstrap.setPipelineFactory(_pipelineFactory);
+    _bootstrap.setOption("backlog", Integer.getInteger(PROP_BACKLOG, DEFAULT_BACKLOG));
+    _bootstrap.setOption("reuseAddress", true);
+    _bootstrap.setOption("child.tcpNoDelay", true);
+  }
+
+  /** Starts listening */
+  public void start(int port)
+  {
+    _serverChannel = _bootstrap.bind(_transport.getLocalAddress(port));
+    LOG.info("Listening on " + port + " using " + _transport);
+  }
+
+  /** Stops listening, lets requests in flight finish, then releases server resources */
+  public void stop()
+  {
+    _serverChannel.close().awaitUninterruptibly();
+    try
+    {
+      _pipelineFactory.drain(_pipelineFactory.getConfig().getDrainTimeoutMillis());
+    }
+    catch (InterruptedException e)
+    {
+      LOG.warn("Interrupted while draining connections");
+    }
+    _bootstrap.releaseExternalResources();
+    _pipelineFactory.releaseExternalResources();
+    LOG.info("Shutdown server complete");
+  }
+
+  public ServerPipelineFactory getPipelineFactory()
+  {
+    return _pipelineFactory;
+  }
+
   public static void main(String[] args)
   {
     // Logger
@@ -36,24 +112,31 @@ public class Server
     int port = customPort == null ? DEFAULT_SERVER_PORT : Integer.parseInt(customPort);
 
     // Configure server
-    final ServerBootstrap bootstrap = new ServerBootstrap(
-            new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
-                                              Executors.newCachedThreadPool()));
-    bootstrap.setPipelineFactory(new ServerPipelineFactory());
+    // Stream request bodies to a handler that just counts them, rather than saying hello,
+    // or on to a backend
+    StreamingRequestHandler streamingHandler = null;
+    if (System.getProperty(PROP_PROXY_UPSTREAM) != null)
+    {
+      streamingHandler = new ProxyHandler(ProxyConfig.fromSystemProperties());
+    }
+    else if (Boolean.getBoolean(PROP_STREAMING))
+    {
+      streamingHandler = new ByteCountingHandler();
+    }
+    final Server server = new Server(ServerConfig.fromSystemProperties(), Transport.fromSystemProperties(),
+                                     streamingHandler);
+
+    // Start server
+    server.start(port);
 
-    // Release server resources on shutdown
+    // Let requests in flight finish, then release server resources on shutdown
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
     {
       @Override
       public void run()
       {
-        bootstrap.releaseExternalResources();
-        LOG.info("Shutdown server complete");
+        server.stop();
       }
     }));
-
-    // Start server
-    bootstrap.bind(new InetSocketAddress(port));
-    LOG.info("Listening on " + port);
   }
 }
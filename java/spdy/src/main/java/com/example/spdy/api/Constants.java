@@ -8,6 +8,7 @@ package com.example.spdy.api;
 public final class Constants
 {
   // Protocols
+  public static final String HTTP_2 = "h2";
   public static final String SPDY_3 = "spdy/3";
   public static final String HTTP_1_1 = "http/1.1";
   public static final String SSL_PROTOCOL = "TLS";
@@ -19,8 +20,140 @@ public final class Constants
   public static final String SERVER_KEYSTORE_RESOURCE_NAME = "server_keystore.jks";
   public static final String SERVER_KEYSTORE_TYPE = "JKS";
   public static final String SERVER_KEYSTORE_SECRET = "secret";
+  public static final String PROP_SNIFF_TIMEOUT_MILLIS = "sniffTimeoutMillis";
+  public static final long DEFAULT_SNIFF_TIMEOUT_MILLIS = 10000;
+  public static final String PROP_STREAMING = "streaming";
+
+  // Timeouts and connection limits
+  public static final String PROP_READ_TIMEOUT_MILLIS = "readTimeoutMillis";
+  public static final long DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+  public static final String PROP_WRITE_TIMEOUT_MILLIS = "writeTimeoutMillis";
+  public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 30000;
+  public static final String PROP_HANDSHAKE_TIMEOUT_MILLIS = "handshakeTimeoutMillis";
+  public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+  public static final String PROP_MAX_CONNECTIONS = "maxConnections";
+  public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+  public static final String PROP_MAX_CONNECTIONS_PER_ADDRESS = "maxConnectionsPerAddress";
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 100;
+  public static final String PROP_DRAIN_TIMEOUT_MILLIS = "drainTimeoutMillis";
+  public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30000;
+
+  // Buffered request content
+  public static final String PROP_MAX_BUFFERED_BYTES = "maxBufferedBytes";
+  public static final long DEFAULT_MAX_BUFFERED_BYTES = Runtime.getRuntime().maxMemory() / 4;
+  public static final String PROP_MAX_CONNECTION_BUFFERED_BYTES = "maxConnectionBufferedBytes";
+  public static final long DEFAULT_MAX_CONNECTION_BUFFERED_BYTES = 8 * 1024 * 1024;
+  public static final String PROP_MAX_STREAM_BUFFERED_BYTES = "maxStreamBufferedBytes";
+  public static final int DEFAULT_MAX_STREAM_BUFFERED_BYTES = 1024 * 1024;
+
+  // Load shedding
+  public static final String PROP_MIN_CONCURRENCY_LIMIT = "minConcurrencyLimit";
+  public static final int DEFAULT_MIN_CONCURRENCY_LIMIT = 20;
+  public static final String PROP_INITIAL_CONCURRENCY_LIMIT = "initialConcurrencyLimit";
+  public static final int DEFAULT_INITIAL_CONCURRENCY_LIMIT = 0;
+  public static final String PROP_MAX_CONCURRENCY_LIMIT = "maxConcurrencyLimit";
+  public static final int DEFAULT_MAX_CONCURRENCY_LIMIT = 1000;
+
+  // Per-client rate limits
+  public static final String PROP_CLIENT_REQUESTS_PER_SECOND = "clientRequestsPerSecond";
+  public static final double DEFAULT_CLIENT_REQUESTS_PER_SECOND = 0;
+  public static final String PROP_CLIENT_REQUEST_BURST = "clientRequestBurst";
+  public static final int DEFAULT_CLIENT_REQUEST_BURST = 100;
+  public static final String PROP_CLIENT_BYTES_PER_SECOND = "clientBytesPerSecond";
+  public static final long DEFAULT_CLIENT_BYTES_PER_SECOND = 0;
+  public static final String PROP_CLIENT_BYTE_BURST = "clientByteBurst";
+  public static final long DEFAULT_CLIENT_BYTE_BURST = 16 * 1024 * 1024;
+  public static final String PROP_MAX_RATE_LIMITED_CLIENTS = "maxRateLimitedClients";
+  public static final int DEFAULT_MAX_RATE_LIMITED_CLIENTS = 100000;
+  public static final String PROP_RATE_LIMIT_KEY_HEADER = "rateLimitKeyHeader";
+
+  // Response compression
+  public static final String PROP_COMPRESSION_LEVEL = "compressionLevel";
+  public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  public static final String PROP_MIN_COMPRESS_SIZE = "minCompressSize";
+  public static final int DEFAULT_MIN_COMPRESS_SIZE = 1024;
+  public static final String PROP_COMPRESSION_CACHE_BYTES = "compressionCacheBytes";
+  public static final long DEFAULT_COMPRESSION_CACHE_BYTES = 16 * 1024 * 1024;
+
+  // Write coalescing
+  public static final String PROP_WRITE_COALESCING_BYTES = "writeCoalescingBytes";
+  public static final int DEFAULT_WRITE_COALESCING_BYTES = 16 * 1024;
+
+  // SPDY / HTTP/2 session SETTINGS
+  public static final String PROP_MAX_CONCURRENT_STREAMS = "maxConcurrentStreams";
+  public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+  public static final String PROP_INITIAL_WINDOW_SIZE = "initialWindowSize";
+  public static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+  public static final String PROP_CONNECTION_WINDOW_SIZE = "connectionWindowSize";
+  public static final int DEFAULT_CONNECTION_WINDOW_SIZE = 1024 * 1024;
+  public static final String PROP_MIN_WINDOW_SIZE = "minWindowSize";
+  public static final int DEFAULT_MIN_WINDOW_SIZE = 16 * 1024;
+  public static final String PROP_WINDOW_TUNING_MILLIS = "windowTuningMillis";
+  public static final long DEFAULT_WINDOW_TUNING_MILLIS = 1000;
+
+  // Request tracing
+  public static final String PROP_REQUEST_TRACING = "requestTracing";
+  public static final boolean DEFAULT_REQUEST_TRACING = true;
+  public static final String PROP_SLOW_REQUEST_MILLIS = "slowRequestMillis";
+  public static final long DEFAULT_SLOW_REQUEST_MILLIS = 1000;
+
+  // Reverse proxy
+  public static final String PROP_PROXY_UPSTREAM = "proxyUpstream";
+  public static final String PROP_PROXY_CONNECTIONS = "proxyConnections";
+  public static final int DEFAULT_PROXY_CONNECTIONS = 4;
+  public static final String PROP_PROXY_PLAINTEXT_SPDY = "proxyPlaintextSpdy";
+  public static final String PROP_PROXY_TIMEOUT_MILLIS = "proxyTimeoutMillis";
+  public static final long DEFAULT_PROXY_TIMEOUT_MILLIS = 30000;
+  public static final String PROP_PROXY_HEALTH_CHECK_PATH = "proxyHealthCheckPath";
+  public static final String DEFAULT_PROXY_HEALTH_CHECK_PATH = "/";
+  public static final String PROP_PROXY_HEALTH_CHECK_MILLIS = "proxyHealthCheckMillis";
+  public static final long DEFAULT_PROXY_HEALTH_CHECK_MILLIS = 5000;
+
+  // Transport
+  public static final String PROP_TRANSPORT = "transport";
+  public static final String PROP_IO_THREADS = "ioThreads";
+  public static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+  public static final String PROP_BACKLOG = "backlog";
+  public static final int DEFAULT_BACKLOG = 1024;
+
+
+  // SSL handshakes
+  public static final String PROP_HANDSHAKE_THREADS = "handshakeThreads";
+  public static final int DEFAULT_HANDSHAKE_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final String PROP_HANDSHAKE_QUEUE_SIZE = "handshakeQueueSize";
+  public static final int DEFAULT_HANDSHAKE_QUEUE_SIZE = 1024;
+
+  // Client
+  public static final String PROP_PLAINTEXT_SPDY = "plaintextSpdy";
+  public static final String PROP_PROTOCOL = "protocol";
+  public static final String PROP_REQUEST_TIMING = "requestTiming";
+  public static final String PROP_PREWARM = "prewarm";
+  public static final String PROP_PREWARM_CONNECTIONS = "prewarmConnections";
+  public static final int DEFAULT_PREWARM_CONNECTIONS = 1;
+  public static final String PROP_PREWARM_REQUESTS = "prewarmRequests";
+  public static final int DEFAULT_PREWARM_REQUESTS = 0;
+  public static final String PROP_PREWARM_PATH = "prewarmPath";
+  public static final String DEFAULT_PREWARM_PATH = "/";
+
+  // Load generator
+  public static final String PROP_CONCURRENCY = "concurrency";
+  public static final int DEFAULT_CONCURRENCY = 16;
+  public static final String PROP_REQUESTS_PER_SECOND = "requestsPerSecond";
+  public static final double DEFAULT_REQUESTS_PER_SECOND = 0;
+  public static final String PROP_DURATION_SECONDS = "durationSeconds";
+  public static final long DEFAULT_DURATION_SECONDS = 30;
+  public static final String PROP_WARMUP_SECONDS = "warmupSeconds";
+  public static final long DEFAULT_WARMUP_SECONDS = 5;
+  public static final String PROP_PAYLOAD_SIZES = "payloadSizes";
+  public static final String DEFAULT_PAYLOAD_SIZES = "0";
+  public static final String PROP_REQUEST_TIMEOUT_MILLIS = "requestTimeoutMillis";
+  public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10000;
+  public static final String PROP_PATH = "path";
 
   // Headers
   public static final String SPDY_STREAM_ID = "X-SPDY-Stream-ID";
   public static final String SPDY_STREAM_PRIORITY = "X-SPDY-Stream-Priority";
+  public static final int HIGHEST_STREAM_PRIORITY = 0;
+  public static final int LOWEST_STREAM_PRIORITY = 7;
+  public static final int DEFAULT_STREAM_PRIORITY = 3;
 }
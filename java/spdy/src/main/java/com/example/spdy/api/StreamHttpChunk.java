@@ -0,0 +1,35 @@
+package com.example.spdy.api;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+
+/**
+ * A piece of a SPDY or HTTP/2 request body, tagged with the stream it belongs to.
+ *
+ * Unlike a plain {@link DefaultHttpChunk}, the last chunk of a stream may carry data.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamHttpChunk extends DefaultHttpChunk
+{
+  private final int _streamId;
+  private final boolean _last;
+
+  public StreamHttpChunk(int streamId, ChannelBuffer content, boolean last)
+  {
+    super(content);
+    _streamId = streamId;
+    _last = last;
+  }
+
+  public int getStreamId()
+  {
+    return _streamId;
+  }
+
+  @Override
+  public boolean isLast()
+  {
+    return _last;
+  }
+}
@@ -0,0 +1,101 @@
+package com.example.spdy.client;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.transport.Transport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tunables for a {@link com.example.spdy.Client}
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ClientConfig
+{
+  /** Speak spdy/3 directly over TCP, skipping TLS and NPN (trusted networks only) */
+  private boolean _plaintextSpdy = false;
+  /** Protocols offered during ALPN / NPN, most preferred first */
+  private List<String> _protocols = Arrays.asList(HTTP_2, SPDY_3, HTTP_1_1);
+  /** Record each request's {@link RequestTiming}, and histograms of them per host and protocol */
+  private boolean _requestTiming = false;
+  /** Where channels come from */
+  private Transport _transport = Transport.fromSystemProperties();
+  /** Connections {@link com.example.spdy.Client#prewarm()} opens (only one for SPDY and HTTP/2, which share it) */
+  private int _prewarmConnections = DEFAULT_PREWARM_CONNECTIONS;
+  /** Synthetic requests {@link com.example.spdy.Client#prewarm()} sends, to get the code paths compiled */
+  private int _prewarmRequests = DEFAULT_PREWARM_REQUESTS;
+  /** What the synthetic requests GET */
+  private String _prewarmPath = DEFAULT_PREWARM_PATH;
+
+  public boolean isPlaintextSpdy()
+  {
+    return _plaintextSpdy;
+  }
+
+  public void setPlaintextSpdy(boolean plaintextSpdy)
+  {
+    _plaintextSpdy = plaintextSpdy;
+  }
+
+  public List<String> getProtocols()
+  {
+    return _protocols;
+  }
+
+  public void setProtocols(List<String> protocols)
+  {
+    _protocols = protocols;
+  }
+
+  public boolean isRequestTiming()
+  {
+    return _requestTiming;
+  }
+
+  public void setRequestTiming(boolean requestTiming)
+  {
+    _requestTiming = requestTiming;
+  }
+
+  public Transport getTransport()
+  {
+    return _transport;
+  }
+
+  public void setTransport(Transport transport)
+  {
+    _transport = transport;
+  }
+
+  public int getPrewarmConnections()
+  {
+    return _prewarmConnections;
+  }
+
+  public void setPrewarmConnections(int prewarmConnections)
+  {
+    _prewarmConnections = prewarmConnections;
+  }
+
+  public int getPrewarmRequests()
+  {
+    return _prewarmRequests;
+  }
+
+  public void setPrewarmRequests(int prewarmRequests)
+  {
+    _prewarmRequests = prewarmRequests;
+  }
+
+  public String getPrewarmPath()
+  {
+    return _prewarmPath;
+  }
+
+  public void setPrewarmPath(String prewarmPath)
+  {
+    _prewarmPath = prewarmPath;
+  }
+}
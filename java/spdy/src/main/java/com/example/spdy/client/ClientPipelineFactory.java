@@ -1,29 +1,69 @@
 package com.example.spdy.client;
 
-import static com.example.spdy.api.Constants.SSL_PROTOCOL;
+import static com.example.spdy.api.Constants.*;
 
+import com.example.spdy.codec.StreamingSpdyHttpDecoder;
+import com.example.spdy.codec.StreamingSpdyHttpEncoder;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2FrameDecoder;
+import com.example.spdy.http2.Http2FrameEncoder;
+import com.example.spdy.http2.Http2HttpCodec;
+import com.example.spdy.http2.Http2SessionHandler;
+import com.example.spdy.npn.ProtocolNegotiator;
 import com.example.spdy.npn.SimpleClientProvider;
-import org.eclipse.jetty.npn.NextProtoNego;
+import com.example.spdy.ssl.HandshakeExecutor;
+import com.example.spdy.ssl.HandshakeOffloadHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.spdy.SpdyFrameCodec;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+import org.jboss.netty.handler.codec.spdy.SpdyVersion;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.ExternalResourceReleasable;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
+import java.util.List;
 
 /**
- * Constructs the initial state of the pipeline, to be augmented after NPN
+ * Constructs the initial state of the pipeline, to be augmented after ALPN / NPN
+ *
+ * In plain-text SPDY mode there is nothing to negotiate, and the SPDY stack is
+ * installed straight away.
+ *
+ * Owns the pool that TLS handshakes run on, so call {@link #releaseExternalResources()}
+ * when done with it.
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
-public class ClientPipelineFactory implements ChannelPipelineFactory
+public class ClientPipelineFactory implements ChannelPipelineFactory, ExternalResourceReleasable
 {
   private final SSLContext _sslContext;
+  private final HandshakeExecutor _handshakeExecutor;
+  private final boolean _plaintextSpdy;
+  private final List<String> _protocols;
 
   public ClientPipelineFactory()
   {
+    this(new ClientConfig());
+  }
+
+  public ClientPipelineFactory(ClientConfig config)
+  {
+    this(config, new HandshakeExecutor("client-handshake", DEFAULT_HANDSHAKE_THREADS, DEFAULT_HANDSHAKE_QUEUE_SIZE));
+  }
+
+  public ClientPipelineFactory(ClientConfig config, HandshakeExecutor handshakeExecutor)
+  {
+    _handshakeExecutor = handshakeExecutor;
+    _plaintextSpdy = config.isPlaintextSpdy();
+    _protocols = config.getProtocols();
+
     try
     {
       _sslContext = SSLContext.getInstance(SSL_PROTOCOL);
@@ -34,23 +74,87 @@ public class ClientPipelineFactory implements ChannelPipelineFactory
       throw new RuntimeException(e);
     }
   }
+
   @Override
   public ChannelPipeline getPipeline() throws Exception
   {
     ChannelPipeline pipeline = Channels.pipeline();
 
+    if (_plaintextSpdy)
+    {
+      addSpdyHandlers(pipeline);
+      return pipeline;
+    }
+
     // SSL
     SSLEngine engine = _sslContext.createSSLEngine();
     engine.setUseClientMode(true);
 
-    // NPN
-    NextProtoNego.put(engine, new SimpleClientProvider());
-    NextProtoNego.debug = true;
+    // ALPN or NPN
+    ProtocolNegotiator.getInstance().register(engine, new SimpleClientProvider(_protocols));
 
-    // Initial pipeline state (just SSL and NPN)
+    // Initial pipeline state (just SSL and negotiation, handshake runs on the handshake executor)
+    pipeline.addLast("handshakeOffloadHandler", new HandshakeOffloadHandler(_handshakeExecutor));
     pipeline.addLast("ssl", new SslHandler(engine));
     pipeline.addLast("negotiationHandler", new SecureClientProtocolSelectionHandler());
 
     return pipeline;
   }
+
+  /**
+   * Adds the client spdy/3 codec and session stack, with a {@link StreamScheduler} and a
+   * {@link StreamingResponseDispatcher}. Responses are aggregated, up to 1MB, unless streamed.
+   */
+  static void addSpdyHandlers(ChannelPipeline pipeline)
+  {
+    StreamScheduler scheduler = new StreamScheduler();
+    StreamingResponseDispatcher dispatcher = new StreamingResponseDispatcher();
+    pipeline.addLast("spdyFrameCodec", new SpdyFrameCodec(SpdyVersion.SPDY_3));
+    pipeline.addLast("streamRefusals", scheduler.getRefusalHandler());
+    pipeline.addLast("windowUpdateGate", new WindowUpdateGate(false));
+    pipeline.addLast("spdySessionHandler", new SpdySessionHandler(SpdyVersion.SPDY_3, false));
+    pipeline.addLast("streamScheduler", scheduler);
+    pipeline.addLast("streamResets", dispatcher.getResetHandler());
+    pipeline.addLast("spdyHttpEncoder", new StreamingSpdyHttpEncoder(SpdyVersion.SPDY_3));
+    pipeline.addLast("spdyHttpDecoder", new StreamingSpdyHttpDecoder(SpdyVersion.SPDY_3, 1024 * 1024, false));
+    pipeline.addLast("streamDispatcher", dispatcher);
+  }
+
+  /**
+   * Adds the client HTTP/2 codec and session stack, with a {@link StreamScheduler} and a
+   * {@link StreamingResponseDispatcher}. Responses are aggregated, up to 1MB, unless streamed.
+   */
+  static void addHttp2Handlers(ChannelPipeline pipeline)
+  {
+    StreamScheduler scheduler = new StreamScheduler();
+    StreamingResponseDispatcher dispatcher = new StreamingResponseDispatcher();
+    pipeline.addLast("http2Decoder", new Http2FrameDecoder(false, Http2Frame.DEFAULT_MAX_FRAME_SIZE, 64 * 1024));
+    pipeline.addLast("http2Encoder", new Http2FrameEncoder());
+    pipeline.addLast("streamRefusals", scheduler.getRefusalHandler());
+    pipeline.addLast("windowUpdateGate", new WindowUpdateGate(true));
+    pipeline.addLast("http2SessionHandler", new Http2SessionHandler(false, 100, Http2Frame.DEFAULT_WINDOW_SIZE, 16 * 1024));
+    pipeline.addLast("streamScheduler", scheduler);
+    pipeline.addLast("streamResets", dispatcher.getResetHandler());
+    pipeline.addLast("http2HttpCodec", new Http2HttpCodec(false, 1024 * 1024, 16 * 1024));
+    pipeline.addLast("streamDispatcher", dispatcher);
+  }
+
+  /** Adds the client HTTP/1.1 codec stack */
+  static void addHttpHandlers(ChannelPipeline pipeline)
+  {
+    pipeline.addLast("httpCodec", new HttpClientCodec());
+    pipeline.addLast("httpAggregator", new HttpChunkAggregator(1024 * 1024));
+  }
+
+  /** @return The pool running TLS handshakes, and its metrics */
+  public HandshakeExecutor getHandshakeExecutor()
+  {
+    return _handshakeExecutor;
+  }
+
+  @Override
+  public void releaseExternalResources()
+  {
+    _handshakeExecutor.releaseExternalResources();
+  }
 }
@@ -10,7 +10,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Performs an SSL handshake
+ * Performs an SSL handshake (if there is SSL), then hands over the connected channel
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
@@ -20,6 +20,9 @@ public class HandshakeListener implements ChannelFutureListener
 
   private final AtomicReference<Channel> _channel;
   private final CountDownLatch _connected;
+  private volatile long _connectedNanos;
+  private volatile long _handshakeDoneNanos;
+  private volatile long _negotiatedNanos;
 
   public HandshakeListener(AtomicReference<Channel> channel, CountDownLatch connected)
   {
@@ -32,15 +35,35 @@ public class HandshakeListener implements ChannelFutureListener
   {
     if (future.isSuccess())
     {
+      _connectedNanos = System.nanoTime();
       LOG.info("Connected to server");
 
-      // Do handshake
+      // Plain-text, nothing to shake hands about
       SslHandler sslHandler = future.getChannel().getPipeline().get(SslHandler.class);
+      if (sslHandler == null)
+      {
+        _channel.set(future.getChannel());
+        _connected.countDown();
+        return;
+      }
+
+      // Do handshake
       sslHandler.handshake().addListener(new ChannelFutureListener()
       {
         @Override
         public void operationComplete(ChannelFuture future) throws Exception
         {
+          _handshakeDoneNanos = System.nanoTime();
+
+          // Set up the negotiated protocol's handlers before anyone writes to the channel
+          SecureClientProtocolSelectionHandler selectionHandler =
+              future.getChannel().getPipeline().get(SecureClientProtocolSelectionHandler.class);
+          if (future.isSuccess() && selectionHandler != null)
+          {
+            selectionHandler.configure(future.getChannel().getPipeline());
+          }
+          _negotiatedNanos = System.nanoTime();
+
           _channel.set(future.getChannel());
           _connected.countDown();
         }
@@ -49,6 +72,25 @@ public class HandshakeListener implements ChannelFutureListener
     else
     {
       LOG.error("Could not connect to server");
+      _connected.countDown();
     }
   }
+
+  /** @return When the TCP connection was established, or 0 if it wasn't */
+  public long getConnectedNanos()
+  {
+    return _connectedNanos;
+  }
+
+  /** @return When the TLS handshake finished, or 0 if there wasn't one */
+  public long getHandshakeDoneNanos()
+  {
+    return _handshakeDoneNanos;
+  }
+
+  /** @return When the negotiated protocol's handlers were in place, or 0 if there was no negotiation */
+  public long getNegotiatedNanos()
+  {
+    return _negotiatedNanos;
+  }
 }
@@ -1,29 +1,57 @@
 package com.example.spdy.client;
 
+import org.apache.log4j.Logger;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * TODO: Description
+ * The response to a {@link com.example.spdy.Client} request, and (if the client records
+ * them) its {@link RequestTiming}
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
 public class HttpResponseFuture implements Future<HttpResponse>
 {
+  private static final Logger LOG = Logger.getLogger(HttpResponseFuture.class);
+
+  /** Told when the response arrives, or the request fails or is cancelled */
+  public interface Listener
+  {
+    /** Called on the thread that completed the future, or straight away if it already had */
+    void operationComplete(HttpResponseFuture future);
+  }
+
   private final CountDownLatch _latch = new CountDownLatch(1);
   private final AtomicBoolean _isCancelled = new AtomicBoolean(false);
   private final AtomicReference<HttpResponse> _response = new AtomicReference<HttpResponse>();
   private final AtomicReference<Throwable> _error = new AtomicReference<Throwable>();
+  private final RequestTiming _timing;
+  /** Guarded by this, and null once they've been told */
+  private List<Listener> _listeners = new ArrayList<Listener>();
+
+  public HttpResponseFuture()
+  {
+    this(null);
+  }
+
+  /** @param timing Where to record this request's timestamps, or null not to */
+  public HttpResponseFuture(RequestTiming timing)
+  {
+    _timing = timing;
+  }
 
   @Override
   public boolean cancel(boolean mayInterruptIfRunning)
   {
     _error.set(new InterruptedException());
-    _latch.countDown();
     _isCancelled.set(true);
+    _latch.countDown();
+    notifyListeners();
     return true;
   }
 
@@ -73,6 +101,59 @@ public class HttpResponseFuture implements Future<HttpResponse>
 
   public void complete()
   {
+    if (_timing != null)
+    {
+      _timing.setCompletedNanos(System.nanoTime());
+    }
     _latch.countDown();
+    notifyListeners();
+  }
+
+  public void addListener(Listener listener)
+  {
+    synchronized (this)
+    {
+      if (_listeners != null)
+      {
+        _listeners.add(listener);
+        return;
+      }
+    }
+    tell(listener);
+  }
+
+  private void notifyListeners()
+  {
+    List<Listener> listeners;
+    synchronized (this)
+    {
+      listeners = _listeners;
+      _listeners = null;
+    }
+    if (listeners != null)
+    {
+      for (Listener listener : listeners)
+      {
+        tell(listener);
+      }
+    }
+  }
+
+  private void tell(Listener listener)
+  {
+    try
+    {
+      listener.operationComplete(this);
+    }
+    catch (Exception e)
+    {
+      LOG.warn("Response listener failed", e);
+    }
+  }
+
+  /** @return When each phase of the request happened, or null if the client isn't recording that */
+  public RequestTiming getTiming()
+  {
+    return _timing;
   }
 }
@@ -0,0 +1,138 @@
+package com.example.spdy.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values (e.g. latencies in microseconds), safe to record into
+ * from many threads at once.
+ *
+ * Values are bucketed log-linearly: exactly below 128, and above that with 64 buckets per
+ * power of two, so percentiles are within about 1.6% of the true value. The buckets cover
+ * every long, so nothing is ever clamped.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(indexOf(Long.MAX_VALUE) + 1);
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _sum = new AtomicLong();
+  private final AtomicLong _max = new AtomicLong();
+
+  public void record(long value)
+  {
+    if (value < 0)
+    {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+
+    _counts.incrementAndGet(indexOf(value));
+    _count.incrementAndGet();
+    _sum.addAndGet(value);
+
+    long max = _max.get();
+    while (value > max && !_max.compareAndSet(max, value))
+    {
+      max = _max.get();
+    }
+  }
+
+  /** Adds all of another histogram's values to this one */
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < _counts.length(); i++)
+    {
+      long count = other._counts.get(i);
+      if (count > 0)
+      {
+        _counts.addAndGet(i, count);
+      }
+    }
+    _count.addAndGet(other._count.get());
+    _sum.addAndGet(other._sum.get());
+
+    long max = _max.get();
+    while (other._max.get() > max && !_max.compareAndSet(max, other._max.get()))
+    {
+      max = _max.get();
+    }
+  }
+
+  public long getCount()
+  {
+    return _count.get();
+  }
+
+  public long getMax()
+  {
+    return _max.get();
+  }
+
+  public double getMean()
+  {
+    long count = _count.get();
+    return count == 0 ? 0 : (double) _sum.get() / count;
+  }
+
+  /**
+   * @param percentile
+   *  From 0 to 100
+   * @return
+   *  The largest value that percentile of values are at or under (to within bucket accuracy)
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long count = _count.get();
+    if (count == 0)
+    {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < _counts.length(); i++)
+    {
+      seen += _counts.get(i);
+      if (seen >= rank)
+      {
+        return Math.min(highestValueAt(i), _max.get());
+      }
+    }
+    return _max.get();
+  }
+
+  /** @return e.g. "p50=120 p99=480 p99.9=1210 max=3020" */
+  @Override
+  public String toString()
+  {
+    return String.format("p50=%d p99=%d p99.9=%d max=%d",
+                         getValueAtPercentile(50),
+                         getValueAtPercentile(99),
+                         getValueAtPercentile(99.9),
+                         getMax());
+  }
+
+  /** Exact below SUB_BUCKETS; above, the top SUB_BUCKET_BITS bits of the value, offset by how far they're shifted */
+  private static int indexOf(long value)
+  {
+    int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+    return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  private static long highestValueAt(int index)
+  {
+    if (index < SUB_BUCKETS)
+    {
+      return index;
+    }
+
+    int shift = index / HALF_SUB_BUCKETS - 1;
+    long top = index - (long) shift * HALF_SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
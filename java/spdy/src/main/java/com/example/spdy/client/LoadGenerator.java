@@ -0,0 +1,262 @@
+package com.example.spdy.client;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.Client;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests through a {@link Client} for a while, and measures how it went.
+ *
+ * With no target rate, each of the {@link LoadGeneratorConfig#getConcurrency()} workers
+ * sends its next request as soon as the last one's answered (a closed loop), so the
+ * latencies are service times.
+ *
+ * With a target rate, requests are scheduled ahead of time, at fixed intervals, and each
+ * one's latency is measured from when it <em>should</em> have been sent (an open loop).
+ * Otherwise a server stall would hold back the requests that would have seen it, and
+ * they'd never be counted (coordinated omission). If all workers are busy, scheduled
+ * requests wait for one, and that wait counts too; the time from actually sending is
+ * reported separately as the service time.
+ *
+ * Latencies are in microseconds, of successful requests only. Requests that fail, time out
+ * or get a 4xx / 5xx are counted as errors.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class LoadGenerator
+{
+  private static final Logger LOG = Logger.getLogger(LoadGenerator.class);
+
+  private final Client _client;
+  private final String _host;
+  private final LoadGeneratorConfig _config;
+  private final byte[] _payload;
+  /** Between scheduled requests, or 0 in a closed loop */
+  private final long _intervalNanos;
+
+  /** From the scheduled start, or from sending in a closed loop */
+  private final LatencyHistogram _responseTimes = new LatencyHistogram();
+  /** From actually sending */
+  private final LatencyHistogram _serviceTimes = new LatencyHistogram();
+  private final AtomicLong _scheduled = new AtomicLong();
+  private final AtomicLong _completed = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> _errors = new ConcurrentHashMap<String, AtomicLong>();
+
+  private long _startNanos;
+  private long _measureStartNanos;
+  private long _endNanos;
+  private long _finishNanos;
+
+  /**
+   * @param client
+   *  What to send requests with, already pointed at the server
+   * @param host
+   *  The Host header to send
+   */
+  public LoadGenerator(Client client, String host, LoadGeneratorConfig config)
+  {
+    _client = client;
+    _host = host;
+    _config = config;
+    _payload = new byte[config.getPayloadSize()];
+    _intervalNanos = config.getRequestsPerSecond() > 0 ? (long) (1e9 / config.getRequestsPerSecond()) : 0;
+  }
+
+  /** Sends requests through the warm-up and for the configured duration, and returns when they're all done */
+  public void run() throws InterruptedException
+  {
+    _startNanos = System.nanoTime();
+    _measureStartNanos = _startNanos + TimeUnit.MILLISECONDS.toNanos(_config.getWarmupMillis());
+    _endNanos = _measureStartNanos + TimeUnit.MILLISECONDS.toNanos(_config.getDurationMillis());
+
+    ExecutorService workers = Executors.newFixedThreadPool(_config.getConcurrency());
+    for (int i = 0; i < _config.getConcurrency(); i++)
+    {
+      workers.execute(new Worker());
+    }
+    workers.shutdown();
+    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    _finishNanos = System.nanoTime();
+  }
+
+  /** @return Latencies of successful requests, from when they were scheduled (or sent, in a closed loop) */
+  public LatencyHistogram getResponseTimes()
+  {
+    return _responseTimes;
+  }
+
+  /** @return Latencies of successful requests, from when they were sent */
+  public LatencyHistogram getServiceTimes()
+  {
+    return _serviceTimes;
+  }
+
+  /** @return Measured requests, successful or not */
+  public long getCompleted()
+  {
+    return _completed.get();
+  }
+
+  /** @return Measured failures, by kind (e.g. "timeout", "status 503") */
+  public Map<String, Long> getErrors()
+  {
+    Map<String, Long> errors = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : _errors.entrySet())
+    {
+      errors.put(entry.getKey(), entry.getValue().get());
+    }
+    return errors;
+  }
+
+  /** @return Successful requests per second, over the measured period */
+  public double getThroughput()
+  {
+    double seconds = (_finishNanos - _measureStartNanos) / 1e9;
+    return seconds > 0 ? _responseTimes.getCount() / seconds : 0;
+  }
+
+  /** @return A few lines on throughput, errors and latencies */
+  public String getSummary()
+  {
+    StringBuilder summary = new StringBuilder();
+    long errors = _completed.get() - _responseTimes.getCount();
+    summary.append(String.format("%d requests, %.1f/s, %d errors (%.2f%%)",
+                                 _completed.get(),
+                                 getThroughput(),
+                                 errors,
+                                 _completed.get() == 0 ? 0.0 : 100.0 * errors / _completed.get()));
+    if (errors > 0)
+    {
+      summary.append(' ').append(getErrors());
+    }
+
+    if (_intervalNanos > 0)
+    {
+      summary.append(String.format("%n  response time (us, from schedule at %.1f/s): %s",
+                                   _config.getRequestsPerSecond(), _responseTimes));
+      summary.append(String.format("%n  service time (us): %s", _serviceTimes));
+    }
+    else
+    {
+      summary.append(String.format("%n  latency (us, %d outstanding): %s", _config.getConcurrency(), _responseTimes));
+    }
+    return summary.toString();
+  }
+
+  private HttpRequest newRequest()
+  {
+    HttpMethod method = _payload.length > 0 ? HttpMethod.POST : HttpMethod.GET;
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, _config.getPath());
+    HttpHeaders.setHeader(request, HttpHeaders.Names.HOST, _host);
+    if (_payload.length > 0)
+    {
+      request.setContent(ChannelBuffers.wrappedBuffer(_payload));
+      HttpHeaders.setContentLength(request, _payload.length);
+    }
+    return request;
+  }
+
+  /** Sends one request at a time, until the end */
+  private class Worker implements Runnable
+  {
+    @Override
+    public void run()
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        long intended;
+        if (_intervalNanos > 0)
+        {
+          intended = _startNanos + _scheduled.getAndIncrement() * _intervalNanos;
+          if (intended - _endNanos >= 0)
+          {
+            return;
+          }
+
+          long wait;
+          while ((wait = intended - System.nanoTime()) > 0)
+          {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        else
+        {
+          intended = System.nanoTime();
+          if (intended - _endNanos >= 0)
+          {
+            return;
+          }
+        }
+
+        send(intended);
+      }
+    }
+
+    private void send(long intended)
+    {
+      long sent = System.nanoTime();
+      String error = null;
+      try
+      {
+        Future<HttpResponse> future = _client.execute(newRequest());
+        HttpResponse response = future.get(_config.getRequestTimeoutMillis(), TimeUnit.MILLISECONDS);
+        if (response == null)
+        {
+          error = "timeout";
+        }
+        else if (response.getStatus().getCode() >= 400)
+        {
+          error = "status " + response.getStatus().getCode();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (ExecutionException e)
+      {
+        error = e.getCause().getClass().getSimpleName();
+      }
+      catch (Exception e)
+      {
+        LOG.debug("Could not send request", e);
+        error = e.getClass().getSimpleName();
+      }
+      long done = System.nanoTime();
+
+      // Warming up
+      if (intended - _measureStartNanos < 0)
+      {
+        return;
+      }
+
+      _completed.incrementAndGet();
+      if (error == null)
+      {
+        _responseTimes.record(TimeUnit.NANOSECONDS.toMicros(done - intended));
+        _serviceTimes.record(TimeUnit.NANOSECONDS.toMicros(done - sent));
+      }
+      else
+      {
+        AtomicLong count = _errors.get(error);
+        if (count == null)
+        {
+          _errors.putIfAbsent(error, new AtomicLong());
+          count = _errors.get(error);
+        }
+        count.incrementAndGet();
+      }
+    }
+  }
+}
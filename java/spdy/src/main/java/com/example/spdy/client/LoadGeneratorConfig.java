@@ -0,0 +1,116 @@
+package com.example.spdy.client;
+
+import static com.example.spdy.api.Constants.*;
+
+/**
+ * Tunables for a {@link LoadGenerator}
+ *
+ * Defaults live in {@link com.example.spdy.api.Constants}, and each may be overridden
+ * by the matching system property via {@link #fromSystemProperties()}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class LoadGeneratorConfig
+{
+  /** Most requests outstanding at once */
+  private int _concurrency = DEFAULT_CONCURRENCY;
+  /** Requests to start per second, on schedule whether or not earlier ones are done (0 to send as fast as responses come back) */
+  private double _requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+  /** How long to measure for */
+  private long _durationMillis = DEFAULT_DURATION_SECONDS * 1000;
+  /** How long to send requests for, unmeasured, beforehand */
+  private long _warmupMillis = DEFAULT_WARMUP_SECONDS * 1000;
+  /** Bytes of request body to POST (0 to GET instead) */
+  private int _payloadSize = 0;
+  /** How long to wait for a response before counting it an error */
+  private long _requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+  /** What to request */
+  private String _path = "/";
+
+  /** @return A config with defaults overridden by any system properties that are set */
+  public static LoadGeneratorConfig fromSystemProperties()
+  {
+    LoadGeneratorConfig config = new LoadGeneratorConfig();
+    config.setConcurrency(Integer.getInteger(PROP_CONCURRENCY, DEFAULT_CONCURRENCY));
+    String requestsPerSecond = System.getProperty(PROP_REQUESTS_PER_SECOND);
+    if (requestsPerSecond != null)
+    {
+      config.setRequestsPerSecond(Double.parseDouble(requestsPerSecond));
+    }
+    config.setDurationMillis(Long.getLong(PROP_DURATION_SECONDS, DEFAULT_DURATION_SECONDS) * 1000);
+    config.setWarmupMillis(Long.getLong(PROP_WARMUP_SECONDS, DEFAULT_WARMUP_SECONDS) * 1000);
+    config.setRequestTimeoutMillis(Long.getLong(PROP_REQUEST_TIMEOUT_MILLIS, DEFAULT_REQUEST_TIMEOUT_MILLIS));
+    config.setPath(System.getProperty(PROP_PATH, "/"));
+    return config;
+  }
+
+  public int getConcurrency()
+  {
+    return _concurrency;
+  }
+
+  public void setConcurrency(int concurrency)
+  {
+    _concurrency = concurrency;
+  }
+
+  public double getRequestsPerSecond()
+  {
+    return _requestsPerSecond;
+  }
+
+  public void setRequestsPerSecond(double requestsPerSecond)
+  {
+    _requestsPerSecond = requestsPerSecond;
+  }
+
+  public long getDurationMillis()
+  {
+    return _durationMillis;
+  }
+
+  public void setDurationMillis(long durationMillis)
+  {
+    _durationMillis = durationMillis;
+  }
+
+  public long getWarmupMillis()
+  {
+    return _warmupMillis;
+  }
+
+  public void setWarmupMillis(long warmupMillis)
+  {
+    _warmupMillis = warmupMillis;
+  }
+
+  public int getPayloadSize()
+  {
+    return _payloadSize;
+  }
+
+  public void setPayloadSize(int payloadSize)
+  {
+    _payloadSize = payloadSize;
+  }
+
+  public long getRequestTimeoutMillis()
+  {
+    return _requestTimeoutMillis;
+  }
+
+  public void setRequestTimeoutMillis(long requestTimeoutMillis)
+  {
+    _requestTimeoutMillis = requestTimeoutMillis;
+  }
+
+  public String getPath()
+  {
+    return _path;
+  }
+
+  public void setPath(String path)
+  {
+    _path = path;
+  }
+}
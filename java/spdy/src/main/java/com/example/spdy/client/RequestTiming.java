@@ -0,0 +1,177 @@
+package com.example.spdy.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each phase of one {@link com.example.spdy.Client} request started and ended, from
+ * {@link System#nanoTime()}, for working out where the time went.
+ *
+ * Phases that didn't happen (e.g. connecting, when an open SPDY or HTTP/2 connection was
+ * reused) are 0. The timestamps are filled in by the client as the request progresses,
+ * and are all set once its future is done.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RequestTiming
+{
+  private final long _startNanos = System.nanoTime();
+  private volatile long _lockAcquiredNanos;
+  private volatile long _connectStartNanos;
+  private volatile long _connectedNanos;
+  private volatile long _handshakeDoneNanos;
+  private volatile long _negotiatedNanos;
+  private volatile long _queuedNanos;
+  private volatile long _writeStartNanos;
+  private volatile long _writtenNanos;
+  private volatile long _firstByteNanos;
+  private volatile long _completedNanos;
+
+  /** @return Waiting for other requests to be done with the client's connection lock */
+  public long getLockWaitNanos()
+  {
+    return between(_startNanos, _lockAcquiredNanos);
+  }
+
+  /** @return From holding the lock to having a usable connection (connecting, handshaking and negotiating, if needed) */
+  public long getConnectionWaitNanos()
+  {
+    return between(_lockAcquiredNanos, _queuedNanos);
+  }
+
+  /** @return Waiting for a SPDY or HTTP/2 stream, behind the server's concurrent stream limit */
+  public long getStreamWaitNanos()
+  {
+    return between(_queuedNanos, _writeStartNanos);
+  }
+
+  /** @return Opening the TCP connection */
+  public long getConnectNanos()
+  {
+    return between(_connectStartNanos, _connectedNanos);
+  }
+
+  /** @return The TLS handshake, including ALPN / NPN */
+  public long getHandshakeNanos()
+  {
+    return between(_connectedNanos, _handshakeDoneNanos);
+  }
+
+  /** @return Setting up the negotiated protocol's handlers */
+  public long getNegotiationNanos()
+  {
+    return between(_handshakeDoneNanos, _negotiatedNanos);
+  }
+
+  /** @return Writing the request out */
+  public long getWriteNanos()
+  {
+    return between(_writeStartNanos, _writtenNanos);
+  }
+
+  /** @return From the request being written to the start of the response */
+  public long getTimeToFirstByteNanos()
+  {
+    return between(_writtenNanos, _firstByteNanos);
+  }
+
+  /** @return From the start of the response to all of it */
+  public long getTransferNanos()
+  {
+    return between(_firstByteNanos, _completedNanos);
+  }
+
+  /** @return From calling execute() to the future being done */
+  public long getTotalNanos()
+  {
+    return between(_startNanos, _completedNanos);
+  }
+
+  public void setLockAcquiredNanos(long lockAcquiredNanos)
+  {
+    _lockAcquiredNanos = lockAcquiredNanos;
+  }
+
+  public void setConnectStartNanos(long connectStartNanos)
+  {
+    _connectStartNanos = connectStartNanos;
+  }
+
+  public void setConnectedNanos(long connectedNanos)
+  {
+    _connectedNanos = connectedNanos;
+  }
+
+  public void setHandshakeDoneNanos(long handshakeDoneNanos)
+  {
+    _handshakeDoneNanos = handshakeDoneNanos;
+  }
+
+  public void setNegotiatedNanos(long negotiatedNanos)
+  {
+    _negotiatedNanos = negotiatedNanos;
+  }
+
+  public void setQueuedNanos(long queuedNanos)
+  {
+    _queuedNanos = queuedNanos;
+  }
+
+  public void setWriteStartNanos(long writeStartNanos)
+  {
+    _writeStartNanos = writeStartNanos;
+  }
+
+  public void setWrittenNanos(long writtenNanos)
+  {
+    _writtenNanos = writtenNanos;
+  }
+
+  /** Only the first call counts */
+  public void setFirstByteNanos(long firstByteNanos)
+  {
+    if (_firstByteNanos == 0)
+    {
+      _firstByteNanos = firstByteNanos;
+    }
+  }
+
+  public void setCompletedNanos(long completedNanos)
+  {
+    _completedNanos = completedNanos;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("total=%dus lockWait=%dus connectionWait=%dus (connect=%dus handshake=%dus negotiation=%dus)"
+                             + " streamWait=%dus write=%dus ttfb=%dus transfer=%dus",
+                         micros(getTotalNanos()),
+                         micros(getLockWaitNanos()),
+                         micros(getConnectionWaitNanos()),
+                         micros(getConnectNanos()),
+                         micros(getHandshakeNanos()),
+                         micros(getNegotiationNanos()),
+                         micros(getStreamWaitNanos()),
+                         micros(getWriteNanos()),
+                         micros(getTimeToFirstByteNanos()),
+                         micros(getTransferNanos()));
+  }
+
+  /**
+   * @return Nanos from one timestamp to the other, or 0 if either didn't happen. Also 0 if
+   *  they're out of order, e.g. when an in-VM peer answers before the write has completed.
+   */
+  private static long between(long fromNanos, long toNanos)
+  {
+    if (fromNanos == 0 || toNanos == 0)
+    {
+      return 0;
+    }
+    return Math.max(0, toNanos - fromNanos);
+  }
+
+  private static long micros(long nanos)
+  {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
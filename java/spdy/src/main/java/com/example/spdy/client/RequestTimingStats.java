@@ -0,0 +1,150 @@
+package com.example.spdy.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histograms of each {@link RequestTiming} phase, in microseconds, per host and protocol
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RequestTimingStats
+{
+  private final ConcurrentMap<String, Histograms> _histograms = new ConcurrentHashMap<String, Histograms>();
+
+  /** Adds a successful request's timings */
+  public void record(String host, String protocol, RequestTiming timing)
+  {
+    String key = host + " " + protocol;
+    Histograms histograms = _histograms.get(key);
+    if (histograms == null)
+    {
+      _histograms.putIfAbsent(key, new Histograms());
+      histograms = _histograms.get(key);
+    }
+    histograms.record(timing);
+  }
+
+  /** @return The histograms so far, by "host protocol" */
+  public Map<String, Histograms> getHistograms()
+  {
+    return new TreeMap<String, Histograms>(_histograms);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Histograms> entry : getHistograms().entrySet())
+    {
+      builder.append(entry.getKey()).append(":\n").append(entry.getValue()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /** One host and protocol's phases. Connect and handshake only count requests that opened a connection. */
+  public static class Histograms
+  {
+    private final LatencyHistogram _total = new LatencyHistogram();
+    private final LatencyHistogram _lockWait = new LatencyHistogram();
+    private final LatencyHistogram _connectionWait = new LatencyHistogram();
+    private final LatencyHistogram _connect = new LatencyHistogram();
+    private final LatencyHistogram _handshake = new LatencyHistogram();
+    private final LatencyHistogram _streamWait = new LatencyHistogram();
+    private final LatencyHistogram _write = new LatencyHistogram();
+    private final LatencyHistogram _timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram _transfer = new LatencyHistogram();
+
+    void record(RequestTiming timing)
+    {
+      _total.record(micros(timing.getTotalNanos()));
+      _lockWait.record(micros(timing.getLockWaitNanos()));
+      _connectionWait.record(micros(timing.getConnectionWaitNanos()));
+      if (timing.getConnectNanos() > 0)
+      {
+        _connect.record(micros(timing.getConnectNanos()));
+        _handshake.record(micros(timing.getHandshakeNanos()));
+      }
+      _streamWait.record(micros(timing.getStreamWaitNanos()));
+      _write.record(micros(timing.getWriteNanos()));
+      _timeToFirstByte.record(micros(timing.getTimeToFirstByteNanos()));
+      _transfer.record(micros(timing.getTransferNanos()));
+    }
+
+    public LatencyHistogram getTotal()
+    {
+      return _total;
+    }
+
+    public LatencyHistogram getLockWait()
+    {
+      return _lockWait;
+    }
+
+    public LatencyHistogram getConnectionWait()
+    {
+      return _connectionWait;
+    }
+
+    public LatencyHistogram getConnect()
+    {
+      return _connect;
+    }
+
+    public LatencyHistogram getHandshake()
+    {
+      return _handshake;
+    }
+
+    public LatencyHistogram getStreamWait()
+    {
+      return _streamWait;
+    }
+
+    public LatencyHistogram getWrite()
+    {
+      return _write;
+    }
+
+    public LatencyHistogram getTimeToFirstByte()
+    {
+      return _timeToFirstByte;
+    }
+
+    public LatencyHistogram getTransfer()
+    {
+      return _transfer;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("  total           %s (%d requests)%n"
+                               + "  lock wait       %s%n"
+                               + "  connection wait %s%n"
+                               + "  connect         %s (%d connections)%n"
+                               + "  handshake       %s%n"
+                               + "  stream wait     %s%n"
+                               + "  write           %s%n"
+                               + "  first byte      %s%n"
+                               + "  transfer        %s",
+                           _total, _total.getCount(),
+                           _lockWait,
+                           _connectionWait,
+                           _connect, _connect.getCount(),
+                           _handshake,
+                           _streamWait,
+                           _write,
+                           _timeToFirstByte,
+                           _transfer);
+    }
+
+    private static long micros(long nanos)
+    {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+  }
+}
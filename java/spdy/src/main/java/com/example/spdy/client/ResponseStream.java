@@ -0,0 +1,431 @@
+package com.example.spdy.client;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+import org.jboss.netty.handler.codec.spdy.SpdyStreamStatus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One request whose body is sent, and whose response is received, a piece at a time over
+ * a SPDY or HTTP/2 connection, handing the response to a {@link StreamingResponseHandler}.
+ *
+ * The request goes out once the {@link StreamScheduler} gives it a stream, and anything
+ * written to its body before then waits here. Each write's future completes once the
+ * piece has been sent, which the server's flow control windows pace, so a producer can
+ * wait on them to keep pace with the server.
+ *
+ * Suspending a stream stops the server from sending more of the response, by holding back
+ * its WINDOW_UPDATEs (see {@link WindowUpdateGate}). Whatever was already in flight is
+ * queued here, which is at most one flow control window. Cancelling it resets the stream.
+ *
+ * A stream the server refuses fails, rather than being sent again, as its body is gone.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ResponseStream
+{
+  private static final Logger LOG = Logger.getLogger(ResponseStream.class);
+
+  private final StreamingResponseDispatcher _dispatcher;
+  private final Channel _channel;
+  private final HttpRequest _request;
+  private final StreamingResponseHandler _handler;
+  private final WindowUpdateGate _gate;
+  private final StreamScheduler.StreamWriter _writer = new Writer();
+
+  /** Taken while writing the body, so what's taken from the queue goes out in order */
+  private final ReentrantLock _writeLock = new ReentrantLock();
+
+  // All of the below are guarded by this
+  /** Writes of the body not yet passed on, as the request hasn't been sent */
+  private final Queue<MessageEvent> _body = new ArrayDeque<MessageEvent>();
+  private int _streamId;
+  /** Whether the request's head has been written, so its body may follow */
+  private boolean _sent;
+  /** Whether nothing more will be added to the body */
+  private boolean _ended;
+  /** Whether the whole response has been received */
+  private boolean _complete;
+  /** Why it failed or was cancelled */
+  private Throwable _failure;
+
+  /** Chunks that arrived while suspended, only touched by the I/O thread */
+  private final Queue<HttpChunk> _pending = new ArrayDeque<HttpChunk>();
+  private volatile boolean _suspended;
+
+  private final Runnable _drain = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      drain();
+    }
+  };
+
+  ResponseStream(StreamingResponseDispatcher dispatcher,
+                 Channel channel,
+                 HttpRequest request,
+                 StreamingResponseHandler handler,
+                 WindowUpdateGate gate)
+  {
+    _dispatcher = dispatcher;
+    _channel = channel;
+    _request = request;
+    _handler = handler;
+    _gate = gate;
+  }
+
+  public Channel getChannel()
+  {
+    return _channel;
+  }
+
+  public HttpRequest getRequest()
+  {
+    return _request;
+  }
+
+  /** @return The stream ID, or 0 if the request hasn't been sent yet */
+  public synchronized int getStreamId()
+  {
+    return _streamId;
+  }
+
+  public boolean isSuspended()
+  {
+    return _suspended;
+  }
+
+  /** Adds the next piece of the request's body */
+  public ChannelFuture write(ChannelBuffer content)
+  {
+    return write(content, false);
+  }
+
+  /** Ends the request's body */
+  public ChannelFuture finish()
+  {
+    return write(ChannelBuffers.EMPTY_BUFFER, true);
+  }
+
+  private ChannelFuture write(ChannelBuffer content, boolean last)
+  {
+    ChannelFuture future = Channels.future(_channel);
+    synchronized (this)
+    {
+      if (_failure != null)
+      {
+        return Channels.failedFuture(_channel, _failure);
+      }
+      if (_ended)
+      {
+        throw new IllegalStateException("The request's body has already ended");
+      }
+      if (!last && !content.readable())
+      {
+        // An empty chunk would be taken for the last
+        return Channels.succeededFuture(_channel);
+      }
+      _body.add(new DownstreamMessageEvent(_channel, future, last ? HttpChunk.LAST_CHUNK : new DefaultHttpChunk(content),
+                                           null));
+      _ended = last;
+    }
+    flush();
+    return future;
+  }
+
+  /** Stops delivery of the response's body, and asks the server to stop sending it, until {@link #resume()} */
+  public void suspend()
+  {
+    if (_suspended)
+    {
+      return;
+    }
+    _suspended = true;
+    int streamId = getStreamId();
+    if (streamId != 0)
+    {
+      _gate.suspend(streamId);
+    }
+  }
+
+  /** Delivers anything queued while suspended, and lets the server send again. May be called from any thread. */
+  public void resume()
+  {
+    if (!_suspended)
+    {
+      return;
+    }
+    _suspended = false;
+    _channel.getPipeline().execute(_drain);
+    int streamId = getStreamId();
+    if (streamId != 0)
+    {
+      _gate.resume(streamId);
+    }
+  }
+
+  /** Resets the stream, if it's been sent, and drops the rest of the response. Its handler isn't told. */
+  public void cancel()
+  {
+    end(new CancellationException("Cancelled"), false, true);
+  }
+
+  StreamScheduler.StreamWriter getWriter()
+  {
+    return _writer;
+  }
+
+  /** The response's head has arrived, on the I/O thread */
+  void received(HttpResponse response)
+  {
+    if (isEnded())
+    {
+      return;
+    }
+    try
+    {
+      _handler.responseReceived(this, response);
+      if (!response.isChunked())
+      {
+        // Small enough to have come in one piece
+        if (response.getContent().readable())
+        {
+          _handler.contentReceived(this, response.getContent());
+        }
+        complete();
+      }
+    }
+    catch (Exception e)
+    {
+      end(e, true, true);
+    }
+  }
+
+  /** The next piece of the response's body has arrived, on the I/O thread */
+  void received(HttpChunk chunk)
+  {
+    if (_suspended || !_pending.isEmpty())
+    {
+      _pending.add(chunk);
+    }
+    else
+    {
+      deliver(chunk);
+    }
+  }
+
+  /** The stream failed, e.g. it was reset or the connection closed */
+  void fail(Throwable cause)
+  {
+    end(cause, true, false);
+  }
+
+  /** Delivers whatever queued up while the stream was suspended, on the I/O thread */
+  private void drain()
+  {
+    HttpChunk chunk;
+    while (!_suspended && (chunk = _pending.poll()) != null)
+    {
+      deliver(chunk);
+    }
+  }
+
+  private void deliver(HttpChunk chunk)
+  {
+    if (isEnded())
+    {
+      _pending.clear();
+      return;
+    }
+    try
+    {
+      if (chunk.getContent().readable())
+      {
+        _handler.contentReceived(this, chunk.getContent());
+      }
+      if (chunk.isLast())
+      {
+        complete();
+      }
+    }
+    catch (Exception e)
+    {
+      end(e, true, true);
+    }
+  }
+
+  private void complete() throws Exception
+  {
+    int streamId;
+    synchronized (this)
+    {
+      if (_failure != null || _complete)
+      {
+        return;
+      }
+      _complete = true;
+      streamId = _streamId;
+    }
+    _dispatcher.remove(streamId, this);
+    _gate.release(streamId);
+    _handler.responseComplete(this);
+  }
+
+  /** @return Whether the response has been received, or the stream has failed */
+  private synchronized boolean isEnded()
+  {
+    return _complete || _failure != null;
+  }
+
+  /**
+   * Fails what's left of the request and response
+   *
+   * @param tell Whether to tell the handler
+   * @param reset Whether to reset the stream, if it's been sent
+   */
+  private void end(Throwable cause, boolean tell, boolean reset)
+  {
+    int streamId;
+    List<MessageEvent> dropped;
+    synchronized (this)
+    {
+      if (_failure != null || _complete)
+      {
+        return;
+      }
+      _failure = cause;
+      streamId = _streamId;
+      dropped = new ArrayList<MessageEvent>(_body);
+      _body.clear();
+    }
+
+    if (streamId != 0)
+    {
+      _dispatcher.remove(streamId, this);
+      _gate.release(streamId);
+      if (reset)
+      {
+        Channels.write(_channel, resetFrame(streamId));
+      }
+    }
+    for (MessageEvent e : dropped)
+    {
+      e.getFuture().setFailure(cause);
+    }
+    if (tell)
+    {
+      try
+      {
+        _handler.responseFailed(this, cause);
+      }
+      catch (Exception e)
+      {
+        LOG.warn("Streaming response handler failed", e);
+      }
+    }
+  }
+
+  private Object resetFrame(int streamId)
+  {
+    if (_channel.getPipeline().get(SpdySessionHandler.class) != null)
+    {
+      return new DefaultSpdyRstStreamFrame(streamId, SpdyStreamStatus.CANCEL);
+    }
+    return Http2Frame.rstStream(streamId, Http2Exception.CANCEL);
+  }
+
+  /** Passes on what of the body may be written now */
+  private void flush()
+  {
+    _writeLock.lock();
+    try
+    {
+      MessageEvent e;
+      while ((e = nextWrite()) != null)
+      {
+        _channel.getPipeline().sendDownstream(e);
+      }
+    }
+    finally
+    {
+      _writeLock.unlock();
+    }
+  }
+
+  /** @return The next piece of the body, tagged with its stream, once the request has been sent */
+  private synchronized MessageEvent nextWrite()
+  {
+    if (!_sent)
+    {
+      return null;
+    }
+    MessageEvent e = _body.poll();
+    if (e == null)
+    {
+      return null;
+    }
+    HttpChunk chunk = (HttpChunk) e.getMessage();
+    return new DownstreamMessageEvent(_channel, e.getFuture(),
+                                      new StreamHttpChunk(_streamId, chunk.getContent(), chunk.isLast()), null);
+  }
+
+  /** Sends the request once it has a stream */
+  private class Writer implements StreamScheduler.StreamWriter
+  {
+    @Override
+    public ChannelFuture write(int streamId) throws Exception
+    {
+      synchronized (ResponseStream.this)
+      {
+        if (_failure != null)
+        {
+          throw new IOException("Stream failed before it was sent", _failure);
+        }
+        if (_streamId != 0)
+        {
+          throw new IOException("Stream " + _streamId + " was refused, and its body can't be sent again");
+        }
+        _streamId = streamId;
+      }
+
+      _dispatcher.open(streamId, ResponseStream.this);
+      HttpHeaders.setHeader(_request, SPDY_STREAM_ID, streamId);
+      ChannelFuture written = _channel.write(_request);
+      synchronized (ResponseStream.this)
+      {
+        _sent = true;
+      }
+      flush();
+      return written;
+    }
+
+    @Override
+    public void fail(Throwable cause)
+    {
+      ResponseStream.this.fail(cause);
+    }
+  }
+}
@@ -2,20 +2,17 @@ package com.example.spdy.client;
 
 import static com.example.spdy.api.Constants.*;
 
-import com.example.spdy.npn.SimpleClientProvider;
+import com.example.spdy.npn.ProtocolNegotiator;
 import org.apache.log4j.Logger;
-import org.eclipse.jetty.npn.NextProtoNego;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpClientCodec;
-import org.jboss.netty.handler.codec.spdy.SpdyFrameCodec;
-import org.jboss.netty.handler.codec.spdy.SpdyHttpCodec;
-import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
-import org.jboss.netty.handler.codec.spdy.SpdyVersion;
 import org.jboss.netty.handler.ssl.SslHandler;
 
 /**
- * Builds pipeline for the appropriate protocol after NPN
+ * Builds pipeline for the appropriate protocol after ALPN / NPN
+ *
+ * The pipeline is built as soon as the handshake completes (see {@link HandshakeListener}),
+ * so requests can be written before the server says anything, or else on the first
+ * upstream event once the protocol is known.
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
@@ -23,37 +20,58 @@ public class SecureClientProtocolSelectionHandler extends SimpleChannelUpstreamH
 {
   private static final Logger LOG = Logger.getLogger(SecureClientProtocolSelectionHandler.class);
 
+  private boolean _configured;
+
   @Override
   public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
   {
-    SslHandler handler = ctx.getPipeline().get(SslHandler.class);
-    SimpleClientProvider provider = (SimpleClientProvider) NextProtoNego.get(handler.getEngine());
+    if (configure(ctx.getPipeline()))
+    {
+      ctx.sendUpstream(e);
+    }
+    else
+    {
+      LOG.info("Negotiating...");
+    }
+  }
 
-    if (SPDY_3.equals(provider.getSelectedProtocol()))
+  /**
+   * Adds the negotiated protocol's handlers and removes this one, if negotiation is done.
+   *
+   * @return Whether the pipeline is configured
+   */
+  public synchronized boolean configure(ChannelPipeline pipeline)
+  {
+    if (_configured)
     {
-      LOG.info("Negotiated spdy/3");
+      return true;
+    }
 
-      ChannelPipeline pipeline = ctx.getPipeline();
-      pipeline.addLast("spdyFrameCodec", new SpdyFrameCodec(SpdyVersion.SPDY_3));
-      pipeline.addLast("spdySessionHandler", new SpdySessionHandler(SpdyVersion.SPDY_3, false));
-      pipeline.addLast("spdyHttpCodec", new SpdyHttpCodec(SpdyVersion.SPDY_3, 1024 * 1024));
-      pipeline.addLast("httpAggregator", new HttpChunkAggregator(1024 * 1024));
-      pipeline.remove(this);
-      ctx.sendUpstream(e);
+    SslHandler handler = pipeline.get(SslHandler.class);
+    String protocol = ProtocolNegotiator.getInstance().getSelectedProtocol(handler.getEngine());
+
+    if (HTTP_2.equals(protocol))
+    {
+      LOG.info("Negotiated h2");
+      ClientPipelineFactory.addHttp2Handlers(pipeline);
     }
-    else if (HTTP_1_1.equals(provider.getSelectedProtocol()))
+    else if (SPDY_3.equals(protocol))
+    {
+      LOG.info("Negotiated spdy/3");
+      ClientPipelineFactory.addSpdyHandlers(pipeline);
+    }
+    else if (HTTP_1_1.equals(protocol))
     {
       LOG.info("Negotiated http/1.1");
-
-      ChannelPipeline pipeline = ctx.getPipeline();
-      pipeline.addLast("httpCodec", new HttpClientCodec());
-      pipeline.addLast("httpAggregator", new HttpChunkAggregator(1024 * 1024));
-      pipeline.remove(this);
-      ctx.sendUpstream(e);
+      ClientPipelineFactory.addHttpHandlers(pipeline);
     }
     else
     {
-      LOG.info("Negotiating...");
+      return false;
     }
+
+    pipeline.remove(this);
+    _configured = true;
+    return true;
   }
 }
@@ -0,0 +1,434 @@
+package com.example.spdy.client;
+
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.spdy.*;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds back requests beyond the server's SETTINGS_MAX_CONCURRENT_STREAMS on one SPDY or
+ * HTTP/2 connection, and sends them highest priority first (0, as in SPDY) as streams
+ * finish. Requests of the same priority go in the order they came.
+ *
+ * Stream IDs are handed out as requests are sent, rather than when they're submitted, as
+ * they have to reach the server in increasing order.
+ *
+ * A stream the server refuses (REFUSED_STREAM, e.g. when it's shedding load) wasn't
+ * processed, so its request goes back in the queue, up to {@link #MAX_REFUSALS} times. The
+ * refusal also lowers our own limit to the streams still open, which then grows back by
+ * one per completed stream, up to the server's.
+ *
+ * Goes just above the session handler, where it sees the server's SETTINGS and the end
+ * of each stream, with its {@link #getRefusalHandler() refusal handler} just below. That
+ * has to see a refusal before the session handler fails the stream's unsent DATA.
+ *
+ * Netty's SPDY session handler also takes a DATA frame it had to split for flow control
+ * failing as a reason to end the whole session, which is what a refusal does to the rest
+ * of it. So the session handler is given DATA futures whose failures only go on to the
+ * request's own.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamScheduler extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler
+{
+  /** Times a request may be refused before it fails */
+  public static final int MAX_REFUSALS = 3;
+
+  /** Sends one request, once there's a stream for it */
+  public interface StreamWriter
+  {
+    /** Writes the request as stream {@code streamId}. Called in stream ID order, and again if it's refused. */
+    ChannelFuture write(int streamId) throws Exception;
+
+    /** The request won't be sent or answered, e.g. because its write failed or the connection closed */
+    void fail(Throwable cause);
+  }
+
+  /** Taken while handing out stream IDs and writing, so they go out in order */
+  private final ReentrantLock _sendLock = new ReentrantLock();
+  private final ChannelUpstreamHandler _refusalHandler = new RefusalHandler();
+
+  // All of the below are guarded by this
+  private final PriorityQueue<Pending> _pending = new PriorityQueue<Pending>();
+  private final Map<Integer, Pending> _open = new HashMap<Integer, Pending>();
+  private int _maxConcurrentStreams = Integer.MAX_VALUE;
+  private int _streamLimit = Integer.MAX_VALUE;
+  private int _nextStreamId = 1;
+  private long _sequence;
+  private boolean _closed;
+  /** Whether the server has sent GOAWAY, so it won't take any more streams */
+  private boolean _goingAway;
+
+  /**
+   * Sends a request now if there's a stream free, or else once there is and nothing more
+   * urgent is waiting.
+   *
+   * @param priority 0 (highest) to 7 (lowest)
+   */
+  public void submit(int priority, StreamWriter writer)
+  {
+    synchronized (this)
+    {
+      if (!_closed)
+      {
+        _pending.add(new Pending(priority, _sequence++, writer));
+        writer = null;
+      }
+    }
+    if (writer != null)
+    {
+      writer.fail(new ClosedChannelException());
+      return;
+    }
+    sendPending();
+  }
+
+  /** @return The handler to go just below the session handler */
+  public ChannelUpstreamHandler getRefusalHandler()
+  {
+    return _refusalHandler;
+  }
+
+  /** @return Requests waiting for a stream */
+  public synchronized int getPendingCount()
+  {
+    return _pending.size();
+  }
+
+  /** @return Streams open */
+  public synchronized int getOpenCount()
+  {
+    return _open.size();
+  }
+
+  /** @return The server's limit on open streams */
+  public synchronized int getMaxConcurrentStreams()
+  {
+    return _maxConcurrentStreams;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+
+    if (msg instanceof SpdySettingsFrame)
+    {
+      int maxConcurrentStreams = ((SpdySettingsFrame) msg).getValue(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS);
+      if (maxConcurrentStreams >= 0)
+      {
+        setMaxConcurrentStreams(maxConcurrentStreams);
+      }
+    }
+    else if (msg instanceof SpdyRstStreamFrame)
+    {
+      streamClosed(((SpdyRstStreamFrame) msg).getStreamId(), false);
+    }
+    else if (msg instanceof SpdyGoAwayFrame)
+    {
+      goingAway();
+    }
+    else if (msg instanceof SpdySynReplyFrame && ((SpdySynReplyFrame) msg).isLast())
+    {
+      streamClosed(((SpdySynReplyFrame) msg).getStreamId(), true);
+    }
+    else if (msg instanceof SpdyHeadersFrame && ((SpdyHeadersFrame) msg).isLast())
+    {
+      streamClosed(((SpdyHeadersFrame) msg).getStreamId(), true);
+    }
+    else if (msg instanceof SpdyDataFrame && ((SpdyDataFrame) msg).isLast())
+    {
+      streamClosed(((SpdyDataFrame) msg).getStreamId(), true);
+    }
+    else if (msg instanceof Http2Frame)
+    {
+      Http2Frame frame = (Http2Frame) msg;
+      if (frame.getType() == Http2Frame.SETTINGS)
+      {
+        long maxConcurrentStreams = frame.getSetting(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS);
+        if (maxConcurrentStreams >= 0)
+        {
+          setMaxConcurrentStreams((int) Math.min(maxConcurrentStreams, Integer.MAX_VALUE));
+        }
+      }
+      else if (frame.getType() == Http2Frame.RST_STREAM)
+      {
+        streamClosed(frame.getStreamId(), false);
+      }
+      else if (frame.getType() == Http2Frame.GOAWAY)
+      {
+        goingAway();
+      }
+      else if (frame.isEndStream())
+      {
+        streamClosed(frame.getStreamId(), true);
+      }
+    }
+
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    Object msg = e instanceof MessageEvent ? ((MessageEvent) e).getMessage() : null;
+    if (msg instanceof SpdyDataFrame)
+    {
+      MessageEvent write = (MessageEvent) e;
+      e = new DownstreamMessageEvent(write.getChannel(), new DataFuture(write.getFuture()),
+                                     write.getMessage(), write.getRemoteAddress());
+    }
+    ctx.sendDownstream(e);
+
+    // A stream we reset, e.g. as its response is no longer wanted, is done with
+    if (msg instanceof SpdyRstStreamFrame)
+    {
+      streamClosed(((SpdyRstStreamFrame) msg).getStreamId(), false);
+    }
+    else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM)
+    {
+      streamClosed(((Http2Frame) msg).getStreamId(), false);
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    List<Pending> abandoned;
+    synchronized (this)
+    {
+      _closed = true;
+      abandoned = new ArrayList<Pending>(_pending);
+      abandoned.addAll(_open.values());
+      _pending.clear();
+      _open.clear();
+    }
+    for (Pending pending : abandoned)
+    {
+      pending._writer.fail(new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  private void setMaxConcurrentStreams(int maxConcurrentStreams)
+  {
+    synchronized (this)
+    {
+      _maxConcurrentStreams = maxConcurrentStreams;
+    }
+    sendPending();
+  }
+
+  /** @return Whether the server has sent GOAWAY, so the connection is on its way out */
+  public synchronized boolean isGoingAway()
+  {
+    return _goingAway;
+  }
+
+  private synchronized void goingAway()
+  {
+    _goingAway = true;
+  }
+
+  /** @param completed Whether the server answered, rather than the stream being reset */
+  private void streamClosed(int streamId, boolean completed)
+  {
+    synchronized (this)
+    {
+      if (_open.remove(streamId) != null && completed && _streamLimit < _maxConcurrentStreams)
+      {
+        _streamLimit++;
+      }
+    }
+    // Also sends any refused requests, now the session handler has let go of their streams
+    sendPending();
+  }
+
+  /** Fails the request, unless it's already been refused and queued again */
+  private void writeFailed(Pending pending, int streamId, Throwable cause)
+  {
+    synchronized (this)
+    {
+      if (_open.get(streamId) != pending)
+      {
+        return;
+      }
+      _open.remove(streamId);
+    }
+    pending._writer.fail(cause);
+    sendPending();
+  }
+
+  /**
+   * Queues the request again, unless it has been refused too often. It's sent once the
+   * refusal has been through the session handler.
+   */
+  private void streamRefused(int streamId)
+  {
+    Pending pending;
+    synchronized (this)
+    {
+      pending = _open.remove(streamId);
+      if (pending == null)
+      {
+        return;
+      }
+      _streamLimit = Math.max(1, _open.size());
+      if (++pending._refusals <= MAX_REFUSALS && !_closed)
+      {
+        _pending.add(pending);
+        pending = null;
+      }
+    }
+    if (pending != null)
+    {
+      pending._writer.fail(new IOException("Stream refused " + pending._refusals + " times"));
+    }
+  }
+
+  /** Sends what there are streams for, most urgent first */
+  private void sendPending()
+  {
+    _sendLock.lock();
+    try
+    {
+      Pending pending;
+      while ((pending = nextSendable()) != null)
+      {
+        send(pending);
+      }
+    }
+    finally
+    {
+      _sendLock.unlock();
+    }
+  }
+
+  /** @return The most urgent request, with a stream ID, if there's room for it */
+  private synchronized Pending nextSendable()
+  {
+    if (_closed || _pending.isEmpty() || _open.size() >= Math.min(_maxConcurrentStreams, _streamLimit))
+    {
+      return null;
+    }
+    Pending pending = _pending.poll();
+    pending._streamId = _nextStreamId;
+    _nextStreamId += 2;
+    _open.put(pending._streamId, pending);
+    return pending;
+  }
+
+  private void send(final Pending pending)
+  {
+    final int streamId = pending._streamId;
+    ChannelFuture future;
+    try
+    {
+      future = pending._writer.write(streamId);
+    }
+    catch (Exception e)
+    {
+      synchronized (this)
+      {
+        _open.remove(streamId);
+      }
+      pending._writer.fail(e);
+      return;
+    }
+
+    future.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        if (!future.isSuccess())
+        {
+          writeFailed(pending, streamId, future.getCause());
+        }
+      }
+    });
+  }
+
+  /** Takes refused requests back, before the session handler fails what's left of them */
+  private class RefusalHandler extends SimpleChannelUpstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      Object msg = e.getMessage();
+      if (msg instanceof SpdyRstStreamFrame
+          && SpdyStreamStatus.REFUSED_STREAM.equals(((SpdyRstStreamFrame) msg).getStatus()))
+      {
+        streamRefused(((SpdyRstStreamFrame) msg).getStreamId());
+      }
+      else if (msg instanceof Http2Frame
+          && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM
+          && ((Http2Frame) msg).getErrorCode() == Http2Exception.REFUSED_STREAM)
+      {
+        streamRefused(((Http2Frame) msg).getStreamId());
+      }
+      super.messageReceived(ctx, e);
+    }
+  }
+
+  /** Passes a SPDY DATA frame's result on, but only tells its own listeners of success */
+  private static class DataFuture extends DefaultChannelFuture
+  {
+    private final ChannelFuture _future;
+
+    DataFuture(ChannelFuture future)
+    {
+      super(future.getChannel(), false);
+      _future = future;
+    }
+
+    @Override
+    public boolean setSuccess()
+    {
+      super.setSuccess();
+      return _future.setSuccess();
+    }
+
+    @Override
+    public boolean setFailure(Throwable cause)
+    {
+      return _future.setFailure(cause);
+    }
+  }
+
+  /** A request waiting for a stream */
+  private static class Pending implements Comparable<Pending>
+  {
+    private final int _priority;
+    private final long _sequence;
+    private final StreamWriter _writer;
+    private int _streamId;
+    private int _refusals;
+
+    Pending(int priority, long sequence, StreamWriter writer)
+    {
+      _priority = priority;
+      _sequence = sequence;
+      _writer = writer;
+    }
+
+    @Override
+    public int compareTo(Pending other)
+    {
+      if (_priority != other._priority)
+      {
+        return _priority < other._priority ? -1 : 1;
+      }
+      return _sequence < other._sequence ? -1 : (_sequence == other._sequence ? 0 : 1);
+    }
+  }
+}
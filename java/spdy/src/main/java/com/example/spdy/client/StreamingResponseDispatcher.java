@@ -0,0 +1,162 @@
+package com.example.spdy.client;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.codec.StreamingSpdyHttpDecoder;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2HttpCodec;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.spdy.SpdyRstStreamFrame;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands the responses of {@link ResponseStream}s to their handlers as they arrive, and
+ * passes everything else, i.e. aggregated responses, on up.
+ *
+ * Goes just above the HTTP decoding of a SPDY or HTTP/2 client connection, which streams
+ * the responses it's told to. Its {@link #getResetHandler() reset handler} goes below
+ * that, and fails a stream the server resets. The connection closing fails them all.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamingResponseDispatcher extends SimpleChannelUpstreamHandler
+{
+  private final ChannelUpstreamHandler _resetHandler = new ResetHandler();
+
+  /** Streams whose response hasn't all been delivered yet */
+  private final ConcurrentMap<Integer, ResponseStream> _streams = new ConcurrentHashMap<Integer, ResponseStream>();
+
+  /** @return The handler to go below the HTTP decoding */
+  public ChannelUpstreamHandler getResetHandler()
+  {
+    return _resetHandler;
+  }
+
+  /**
+   * Sends a request on {@code channel}, whose pipeline this is in, once the
+   * {@link StreamScheduler} has a stream for it.
+   *
+   * @param priority 0 (highest) to 7 (lowest)
+   */
+  public ResponseStream submit(Channel channel, HttpRequest request, int priority, StreamingResponseHandler handler)
+  {
+    request.setChunked(true);
+    ResponseStream stream = new ResponseStream(this, channel, request, handler,
+                                               channel.getPipeline().get(WindowUpdateGate.class));
+    channel.getPipeline().get(StreamScheduler.class).submit(priority, stream.getWriter());
+    return stream;
+  }
+
+  /** Has the response to stream {@code streamId} streamed to {@code stream}; called before its request is sent */
+  void open(int streamId, ResponseStream stream)
+  {
+    _streams.put(streamId, stream);
+    ChannelPipeline pipeline = stream.getChannel().getPipeline();
+    StreamingSpdyHttpDecoder spdyDecoder = pipeline.get(StreamingSpdyHttpDecoder.class);
+    if (spdyDecoder != null)
+    {
+      spdyDecoder.streamResponse(streamId);
+    }
+    else
+    {
+      pipeline.get(Http2HttpCodec.class).streamResponse(streamId);
+    }
+  }
+
+  /** The stream's response is done with */
+  void remove(int streamId, ResponseStream stream)
+  {
+    _streams.remove(streamId, stream);
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+
+    if (msg instanceof HttpResponse && ((HttpResponse) msg).headers().contains(SPDY_STREAM_ID))
+    {
+      ResponseStream stream = _streams.get(Integer.parseInt(((HttpResponse) msg).headers().get(SPDY_STREAM_ID)));
+      if (stream != null)
+      {
+        stream.received((HttpResponse) msg);
+        return;
+      }
+    }
+    else if (msg instanceof StreamHttpChunk)
+    {
+      ResponseStream stream = _streams.get(((StreamHttpChunk) msg).getStreamId());
+      if (stream != null)
+      {
+        stream.received((StreamHttpChunk) msg);
+      }
+      return;
+    }
+    else if (msg instanceof SpdyRstStreamFrame || msg instanceof Http2Frame)
+    {
+      // A reset the decoders passed up, which the reset handler has already seen
+      return;
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    failAll(new ClosedChannelException());
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    failAll(e.getCause());
+    ctx.sendUpstream(e);
+  }
+
+  private void failAll(Throwable cause)
+  {
+    List<ResponseStream> streams = new ArrayList<ResponseStream>(_streams.values());
+    _streams.clear();
+    for (ResponseStream stream : streams)
+    {
+      stream.fail(cause);
+    }
+  }
+
+  /** Fails the streams the server resets */
+  private class ResetHandler extends SimpleChannelUpstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      Object msg = e.getMessage();
+      int streamId = 0;
+      if (msg instanceof SpdyRstStreamFrame)
+      {
+        streamId = ((SpdyRstStreamFrame) msg).getStreamId();
+      }
+      else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM)
+      {
+        streamId = ((Http2Frame) msg).getStreamId();
+      }
+
+      ResponseStream stream = streamId == 0 ? null : _streams.get(streamId);
+      if (stream != null)
+      {
+        stream.fail(new IOException("Stream reset by peer"));
+      }
+      super.messageReceived(ctx, e);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.example.spdy.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Receives a response's head as soon as it arrives, then its body a chunk at a time.
+ *
+ * Callbacks for one response happen in order, on the connection's I/O thread, apart from
+ * {@link #responseFailed} which may come from any thread. To stop the body for a while,
+ * call {@link ResponseStream#suspend()} and later {@link ResponseStream#resume()}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public interface StreamingResponseHandler
+{
+  /** The status line and headers have arrived; the body follows if {@code response} is chunked */
+  void responseReceived(ResponseStream stream, HttpResponse response) throws Exception;
+
+  /** The next piece of the body, only valid for the duration of the call */
+  void contentReceived(ResponseStream stream, ChannelBuffer content) throws Exception;
+
+  /** The whole body has been received */
+  void responseComplete(ResponseStream stream) throws Exception;
+
+  /**
+   * The response won't complete, e.g. because the stream was refused or reset, or the
+   * connection closed. Not called for a stream {@link ResponseStream#cancel() cancelled} here.
+   */
+  void responseFailed(ResponseStream stream, Throwable cause);
+}
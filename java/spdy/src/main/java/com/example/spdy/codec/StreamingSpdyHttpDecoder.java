@@ -0,0 +1,137 @@
+package com.example.spdy.codec;
+
+import com.example.spdy.api.StreamHttpChunk;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.spdy.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link SpdyHttpDecoder} that passes message bodies up as they arrive.
+ *
+ * On a server, a request with a body is sent up as soon as its SYN_STREAM arrives, marked
+ * chunked, and its DATA frames follow as {@link StreamHttpChunk}s. On a client, the same
+ * goes for the responses of streams it's been told to {@link #streamResponse(int) stream};
+ * other responses are aggregated as usual. A RST_STREAM for a message being streamed is
+ * passed up too. Trailing headers are dropped.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamingSpdyHttpDecoder extends SpdyHttpDecoder implements ChannelDownstreamHandler
+{
+  private final boolean _server;
+
+  /** Streams whose body is being passed up */
+  private final Set<Integer> _streaming = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  /** Client streams whose response is to be streamed, once it starts */
+  private final Set<Integer> _streamedResponses = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  /** Streams every request body */
+  public StreamingSpdyHttpDecoder(SpdyVersion spdyVersion)
+  {
+    // Nothing is aggregated, so the limit only matters to the superclass
+    this(spdyVersion, Integer.MAX_VALUE, true);
+  }
+
+  /**
+   * @param maxContentLength Largest body to aggregate
+   * @param server Whether to stream every request body, rather than chosen responses
+   */
+  public StreamingSpdyHttpDecoder(SpdyVersion spdyVersion, int maxContentLength, boolean server)
+  {
+    super(spdyVersion, maxContentLength, new HashMap<Integer, HttpMessage>());
+    _server = server;
+  }
+
+  /** Streams the body of the response to client stream {@code streamId}; call before sending its request */
+  public void streamResponse(int streamId)
+  {
+    _streamedResponses.add(streamId);
+  }
+
+  @Override
+  protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception
+  {
+    if (msg instanceof SpdyDataFrame && _streaming.contains(((SpdyDataFrame) msg).getStreamId()))
+    {
+      SpdyDataFrame frame = (SpdyDataFrame) msg;
+      if (frame.isLast())
+      {
+        _streaming.remove(frame.getStreamId());
+      }
+      return new StreamHttpChunk(frame.getStreamId(), frame.getData(), frame.isLast());
+    }
+    else if (msg instanceof SpdyHeadersFrame && _streaming.contains(((SpdyHeadersFrame) msg).getStreamId()))
+    {
+      SpdyHeadersFrame frame = (SpdyHeadersFrame) msg;
+      if (frame.isLast())
+      {
+        _streaming.remove(frame.getStreamId());
+        return new StreamHttpChunk(frame.getStreamId(), ChannelBuffers.EMPTY_BUFFER, true);
+      }
+      return null;
+    }
+    else if (msg instanceof SpdyRstStreamFrame)
+    {
+      int streamId = ((SpdyRstStreamFrame) msg).getStreamId();
+      _streamedResponses.remove(streamId);
+      if (_streaming.remove(streamId))
+      {
+        return msg;
+      }
+    }
+
+    Object decoded = super.decode(ctx, channel, msg);
+
+    // The superclass holds on to a message with a body, to aggregate it; take it back
+    int streamId = 0;
+    if (msg instanceof SpdySynStreamFrame && _server)
+    {
+      streamId = ((SpdySynStreamFrame) msg).getStreamId();
+    }
+    else if (msg instanceof SpdySynReplyFrame && _streamedResponses.remove(((SpdySynReplyFrame) msg).getStreamId()))
+    {
+      streamId = ((SpdySynReplyFrame) msg).getStreamId();
+    }
+
+    if (decoded == null && streamId != 0)
+    {
+      HttpMessage message = removeMessage(streamId);
+      if (message != null && (_server ? message instanceof HttpRequest : message instanceof HttpResponse))
+      {
+        message.setChunked(true);
+        _streaming.add(streamId);
+        return message;
+      }
+      else if (message != null)
+      {
+        putMessage(streamId, message);
+      }
+    }
+    return decoded;
+  }
+
+  /** Forgets the streams we reset */
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof SpdyRstStreamFrame)
+    {
+      int streamId = ((SpdyRstStreamFrame) ((MessageEvent) e).getMessage()).getStreamId();
+      _streaming.remove(streamId);
+      _streamedResponses.remove(streamId);
+    }
+    ctx.sendDownstream(e);
+  }
+}
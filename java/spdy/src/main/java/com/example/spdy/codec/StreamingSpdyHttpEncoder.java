@@ -0,0 +1,57 @@
+package com.example.spdy.codec;
+
+import com.example.spdy.api.StreamHttpChunk;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyDataFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyDataFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyHttpEncoder;
+import org.jboss.netty.handler.codec.spdy.SpdyVersion;
+
+import java.net.SocketAddress;
+
+/**
+ * A {@link SpdyHttpEncoder} that writes {@link StreamHttpChunk}s to the stream they say.
+ *
+ * Plain {@link HttpChunk}s go to the stream of the last message written, so only one
+ * chunked message can be written at a time; tagged ones can be interleaved.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamingSpdyHttpEncoder extends SpdyHttpEncoder
+{
+  public StreamingSpdyHttpEncoder(SpdyVersion spdyVersion)
+  {
+    super(spdyVersion);
+  }
+
+  @Override
+  protected void writeChunk(ChannelHandlerContext ctx,
+                            ChannelFuture future,
+                            int streamId,
+                            HttpChunk chunk,
+                            SocketAddress remoteAddress)
+  {
+    if (!(chunk instanceof StreamHttpChunk))
+    {
+      super.writeChunk(ctx, future, streamId, chunk, remoteAddress);
+      return;
+    }
+
+    streamId = ((StreamHttpChunk) chunk).getStreamId();
+    if (chunk.isLast() && chunk.getContent().readable())
+    {
+      // The superclass would drop the content of a last chunk
+      SpdyDataFrame frame = new DefaultSpdyDataFrame(streamId);
+      frame.setData(chunk.getContent());
+      frame.setLast(true);
+      Channels.write(ctx, future, frame, remoteAddress);
+    }
+    else
+    {
+      super.writeChunk(ctx, future, streamId, chunk, remoteAddress);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.example.spdy.codec;
+
+import com.example.spdy.http2.Http2Frame;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyWindowUpdateFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyWindowUpdateFrame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds back the stream-level WINDOW_UPDATEs the session handler sends for suspended
+ * streams, so the peer runs out of window and stops sending.
+ *
+ * Sits between the frame codec and the session handler, which carries on as if its
+ * updates went out. On resume the withheld credit is sent as one update. Connection
+ * level updates always go through, so other streams aren't held up.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class WindowUpdateGate implements ChannelDownstreamHandler, LifeCycleAwareChannelHandler
+{
+  private final boolean _http2;
+
+  /** Withheld credit of each suspended stream, guarded by this */
+  private final Map<Integer, Integer> _withheld = new HashMap<Integer, Integer>();
+  private volatile ChannelHandlerContext _ctx;
+
+  /** @param http2 Whether the frames are HTTP/2 rather than SPDY */
+  public WindowUpdateGate(boolean http2)
+  {
+    _http2 = http2;
+  }
+
+  public synchronized void suspend(int streamId)
+  {
+    if (!_withheld.containsKey(streamId))
+    {
+      _withheld.put(streamId, 0);
+    }
+  }
+
+  public void resume(int streamId)
+  {
+    Integer credit;
+    synchronized (this)
+    {
+      credit = _withheld.remove(streamId);
+    }
+
+    ChannelHandlerContext ctx = _ctx;
+    if (credit != null && credit > 0 && ctx != null)
+    {
+      Object frame = _http2
+          ? Http2Frame.windowUpdate(streamId, credit)
+          : new DefaultSpdyWindowUpdateFrame(streamId, credit);
+      Channels.write(ctx, Channels.future(ctx.getChannel()), frame);
+    }
+  }
+
+  /** Forgets a stream that's finished, along with any credit withheld for it */
+  public synchronized void release(int streamId)
+  {
+    _withheld.remove(streamId);
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (e instanceof MessageEvent)
+    {
+      Object msg = ((MessageEvent) e).getMessage();
+      int streamId = 0;
+      int increment = 0;
+
+      if (msg instanceof SpdyWindowUpdateFrame)
+      {
+        streamId = ((SpdyWindowUpdateFrame) msg).getStreamId();
+        increment = ((SpdyWindowUpdateFrame) msg).getDeltaWindowSize();
+      }
+      else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.WINDOW_UPDATE)
+      {
+        streamId = ((Http2Frame) msg).getStreamId();
+        increment = ((Http2Frame) msg).getWindowIncrement();
+      }
+
+      if (streamId != 0 && withhold(streamId, increment))
+      {
+        e.getFuture().setSuccess();
+        return;
+      }
+    }
+
+    ctx.sendDownstream(e);
+  }
+
+  private synchronized boolean withhold(int streamId, int increment)
+  {
+    Integer credit = _withheld.get(streamId);
+    if (credit == null)
+    {
+      return false;
+    }
+    _withheld.put(streamId, credit + increment);
+    return true;
+  }
+
+  @Override
+  public void beforeAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = ctx;
+  }
+
+  @Override
+  public void afterAdd(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void beforeRemove(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void afterRemove(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = null;
+  }
+}
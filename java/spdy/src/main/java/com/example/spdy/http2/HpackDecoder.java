@@ -0,0 +1,180 @@
+package com.example.spdy.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) against one connection's dynamic table.
+ *
+ * The dynamic table never grows past our advertised SETTINGS_HEADER_TABLE_SIZE, and a
+ * block that decodes to more than the max header list size is refused, so a peer can't
+ * make us hold more than a bounded amount of header state.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HpackDecoder
+{
+  private final HpackDynamicTable _dynamicTable;
+  private final int _maxTableSize;
+  private final int _maxHeaderListSize;
+
+  /**
+   * @param maxTableSize Our SETTINGS_HEADER_TABLE_SIZE; the encoder may not use more
+   * @param maxHeaderListSize Our SETTINGS_MAX_HEADER_LIST_SIZE
+   */
+  public HpackDecoder(int maxTableSize, int maxHeaderListSize)
+  {
+    _dynamicTable = new HpackDynamicTable(maxTableSize);
+    _maxTableSize = maxTableSize;
+    _maxHeaderListSize = maxHeaderListSize;
+  }
+
+  /** Decodes one complete header block, consuming it */
+  public List<HpackHeader> decode(int streamId, ChannelBuffer in) throws Http2Exception
+  {
+    List<HpackHeader> headers = new ArrayList<HpackHeader>();
+    int headerListSize = 0;
+    boolean headerSeen = false;
+
+    while (in.readable())
+    {
+      int b = in.getUnsignedByte(in.readerIndex());
+      HpackHeader header;
+
+      if ((b & 0x80) != 0)
+      {
+        // Indexed header field
+        header = getIndexed(readInteger(in, 7));
+      }
+      else if ((b & 0x40) != 0)
+      {
+        // Literal with incremental indexing
+        header = readLiteral(in, 6);
+        _dynamicTable.add(header);
+      }
+      else if ((b & 0x20) != 0)
+      {
+        // Dynamic table size update, only allowed before the first header
+        if (headerSeen)
+        {
+          throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update after headers");
+        }
+        int maxSize = readInteger(in, 5);
+        if (maxSize > _maxTableSize)
+        {
+          throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                                   "Table size " + maxSize + " exceeds limit " + _maxTableSize);
+        }
+        _dynamicTable.setMaxSize(maxSize);
+        continue;
+      }
+      else
+      {
+        // Literal without indexing (0000) or never indexed (0001)
+        header = readLiteral(in, 4);
+      }
+
+      headerSeen = true;
+      headerListSize += header.size();
+      if (headerListSize <= _maxHeaderListSize)
+      {
+        headers.add(header);
+      }
+    }
+
+    if (headerListSize > _maxHeaderListSize)
+    {
+      // The whole block was decoded so the table is still in sync; only the stream has to go
+      throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId,
+                               "Header list exceeds " + _maxHeaderListSize + " bytes");
+    }
+    return headers;
+  }
+
+  private HpackHeader getIndexed(int index) throws Http2Exception
+  {
+    if (index == 0)
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Index 0");
+    }
+    if (index <= HpackStaticTable.LENGTH)
+    {
+      return HpackStaticTable.get(index);
+    }
+    if (index - HpackStaticTable.LENGTH > _dynamicTable.length())
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Index " + index + " out of range");
+    }
+    return _dynamicTable.get(index - HpackStaticTable.LENGTH);
+  }
+
+  private HpackHeader readLiteral(ChannelBuffer in, int prefixBits) throws Http2Exception
+  {
+    int nameIndex = readInteger(in, prefixBits);
+    String name = nameIndex == 0 ? readString(in) : getIndexed(nameIndex).getName();
+    return new HpackHeader(name, readString(in));
+  }
+
+  private String readString(ChannelBuffer in) throws Http2Exception
+  {
+    if (!in.readable())
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+    }
+    boolean huffman = (in.getUnsignedByte(in.readerIndex()) & 0x80) != 0;
+    int length = readInteger(in, 7);
+    if (length > in.readableBytes())
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+    }
+    if (length > _maxHeaderListSize)
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String length " + length + " too large");
+    }
+
+    if (huffman)
+    {
+      return HpackHuffman.decode(in, length);
+    }
+
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++)
+    {
+      chars[i] = (char) in.readUnsignedByte();
+    }
+    return new String(chars);
+  }
+
+  /** Reads an N-bit prefix integer (RFC 7541, section 5.1) */
+  private static int readInteger(ChannelBuffer in, int prefixBits) throws Http2Exception
+  {
+    int max = (1 << prefixBits) - 1;
+    int value = in.readUnsignedByte() & max;
+    if (value < max)
+    {
+      return value;
+    }
+
+    for (int shift = 0; shift <= 28; shift += 7)
+    {
+      if (!in.readable())
+      {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated integer");
+      }
+      int b = in.readUnsignedByte();
+      long next = value + ((long) (b & 0x7f) << shift);
+      if (next > Integer.MAX_VALUE)
+      {
+        break;
+      }
+      value = (int) next;
+      if ((b & 0x80) == 0)
+      {
+        return value;
+      }
+    }
+    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow");
+  }
+}
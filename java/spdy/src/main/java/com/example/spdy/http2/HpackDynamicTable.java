@@ -0,0 +1,139 @@
+package com.example.spdy.http2;
+
+/**
+ * An HPACK dynamic table: newest entry first, oldest evicted once the size limit is hit.
+ *
+ * Entries live in a ring buffer, so adding and evicting don't shift anything, and the
+ * total size never exceeds {@link #getMaxSize()}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+class HpackDynamicTable
+{
+  private HpackHeader[] _entries;
+  private int _head; // Next slot to write
+  private int _length;
+  private int _size;
+  private int _maxSize;
+
+  HpackDynamicTable(int maxSize)
+  {
+    _entries = new HpackHeader[Math.max(1, maxSize / HpackHeader.ENTRY_OVERHEAD)];
+    _maxSize = maxSize;
+  }
+
+  int length()
+  {
+    return _length;
+  }
+
+  int size()
+  {
+    return _size;
+  }
+
+  int getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  /** @param index From 1 (newest) to {@link #length()} (oldest) */
+  HpackHeader get(int index)
+  {
+    if (index < 1 || index > _length)
+    {
+      throw new IndexOutOfBoundsException("Dynamic table index " + index + " of " + _length);
+    }
+    return _entries[slot(index)];
+  }
+
+  /** @return The index of an entry with this name and value, or -1 */
+  int indexOf(String name, String value)
+  {
+    for (int i = 1; i <= _length; i++)
+    {
+      HpackHeader header = _entries[slot(i)];
+      if (header.getName().equals(name) && header.getValue().equals(value))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return The index of the newest entry with this name, or -1 */
+  int indexOfName(String name)
+  {
+    for (int i = 1; i <= _length; i++)
+    {
+      if (_entries[slot(i)].getName().equals(name))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Adds an entry, evicting as needed; an entry larger than the table just empties it */
+  void add(HpackHeader header)
+  {
+    int size = header.size();
+    if (size > _maxSize)
+    {
+      clear();
+      return;
+    }
+
+    while (_size + size > _maxSize)
+    {
+      evict();
+    }
+
+    if (_length == _entries.length)
+    {
+      HpackHeader[] entries = new HpackHeader[_entries.length * 2];
+      for (int i = 0; i < _length; i++)
+      {
+        entries[_length - 1 - i] = _entries[slot(i + 1)];
+      }
+      _entries = entries;
+      _head = _length;
+    }
+
+    _entries[_head] = header;
+    _head = (_head + 1) % _entries.length;
+    _length++;
+    _size += size;
+  }
+
+  void setMaxSize(int maxSize)
+  {
+    _maxSize = maxSize;
+    while (_size > _maxSize)
+    {
+      evict();
+    }
+  }
+
+  void clear()
+  {
+    while (_length > 0)
+    {
+      evict();
+    }
+  }
+
+  private void evict()
+  {
+    int oldest = slot(_length);
+    _size -= _entries[oldest].size();
+    _entries[oldest] = null;
+    _length--;
+  }
+
+  private int slot(int index)
+  {
+    int slot = _head - index;
+    return slot < 0 ? slot + _entries.length : slot;
+  }
+}
@@ -0,0 +1,149 @@
+package com.example.spdy.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encodes header lists into HPACK header blocks (RFC 7541) for one connection.
+ *
+ * Exact matches in either table are sent as a single index. Other headers are added to
+ * the dynamic table so repeats on later streams cost a byte or two, except for
+ * credentials and cookies, which are sent never-indexed. Strings are Huffman-coded
+ * when that is shorter.
+ *
+ * Not thread safe: header blocks must be encoded and written in the same order.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HpackEncoder
+{
+  private static final Set<String> SENSITIVE_HEADERS = new HashSet<String>(Arrays.asList(
+      "authorization", "proxy-authorization", "cookie", "set-cookie"));
+
+  private final HpackDynamicTable _dynamicTable;
+  /** Smallest table size set since the last header block, or -1 */
+  private int _pendingMinSize = -1;
+
+  public HpackEncoder()
+  {
+    _dynamicTable = new HpackDynamicTable(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+  }
+
+  /**
+   * Applies the peer's SETTINGS_HEADER_TABLE_SIZE, signalled at the start of the next block.
+   * We never use more than the default, however much the peer offers.
+   */
+  public void setMaxTableSize(int maxSize)
+  {
+    maxSize = Math.min(maxSize, Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+    if (maxSize == _dynamicTable.getMaxSize() && _pendingMinSize < 0)
+    {
+      return;
+    }
+    _pendingMinSize = _pendingMinSize < 0 ? maxSize : Math.min(_pendingMinSize, maxSize);
+    _dynamicTable.setMaxSize(maxSize);
+  }
+
+  /** Starts a header block, emitting any pending table size update */
+  public void begin(ChannelBuffer out)
+  {
+    if (_pendingMinSize >= 0)
+    {
+      if (_pendingMinSize < _dynamicTable.getMaxSize())
+      {
+        writeInteger(out, 0x20, 5, _pendingMinSize);
+      }
+      writeInteger(out, 0x20, 5, _dynamicTable.getMaxSize());
+      _pendingMinSize = -1;
+    }
+  }
+
+  /** Encodes one header; name must already be lower case */
+  public void encode(ChannelBuffer out, String name, String value)
+  {
+    int index = HpackStaticTable.indexOf(name, value);
+    if (index < 0)
+    {
+      int dynamicIndex = _dynamicTable.indexOf(name, value);
+      if (dynamicIndex > 0)
+      {
+        index = dynamicIndex + HpackStaticTable.LENGTH;
+      }
+    }
+    if (index > 0)
+    {
+      writeInteger(out, 0x80, 7, index);
+      return;
+    }
+
+    int nameIndex = HpackStaticTable.indexOfName(name);
+    if (nameIndex < 0)
+    {
+      int dynamicIndex = _dynamicTable.indexOfName(name);
+      nameIndex = dynamicIndex > 0 ? dynamicIndex + HpackStaticTable.LENGTH : 0;
+    }
+
+    HpackHeader header = new HpackHeader(name, value);
+    if (SENSITIVE_HEADERS.contains(name))
+    {
+      writeInteger(out, 0x10, 4, nameIndex);
+    }
+    else if (header.size() > _dynamicTable.getMaxSize() / 2)
+    {
+      // Would just flush everything else out of the table
+      writeInteger(out, 0x00, 4, nameIndex);
+    }
+    else
+    {
+      writeInteger(out, 0x40, 6, nameIndex);
+      _dynamicTable.add(header);
+    }
+
+    if (nameIndex == 0)
+    {
+      writeString(out, name);
+    }
+    writeString(out, value);
+  }
+
+  private static void writeString(ChannelBuffer out, String s)
+  {
+    int huffmanLength = HpackHuffman.encodedLength(s);
+    if (huffmanLength < s.length())
+    {
+      writeInteger(out, 0x80, 7, huffmanLength);
+      HpackHuffman.encode(s, out);
+    }
+    else
+    {
+      writeInteger(out, 0x00, 7, s.length());
+      for (int i = 0; i < s.length(); i++)
+      {
+        out.writeByte(s.charAt(i));
+      }
+    }
+  }
+
+  /** Writes an N-bit prefix integer (RFC 7541, section 5.1) */
+  private static void writeInteger(ChannelBuffer out, int mask, int prefixBits, int value)
+  {
+    int max = (1 << prefixBits) - 1;
+    if (value < max)
+    {
+      out.writeByte(mask | value);
+      return;
+    }
+
+    out.writeByte(mask | max);
+    value -= max;
+    while (value >= 0x80)
+    {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+}
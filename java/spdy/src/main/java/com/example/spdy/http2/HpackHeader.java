@@ -0,0 +1,45 @@
+package com.example.spdy.http2;
+
+/**
+ * A header name and value, as held by the HPACK tables.
+ *
+ * Names and values are ISO-8859-1 strings, like everywhere else in Netty's HTTP codec.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HpackHeader
+{
+  /** Per-entry overhead counted towards a table's size (RFC 7541, section 4.1) */
+  public static final int ENTRY_OVERHEAD = 32;
+
+  private final String _name;
+  private final String _value;
+
+  public HpackHeader(String name, String value)
+  {
+    _name = name;
+    _value = value;
+  }
+
+  public String getName()
+  {
+    return _name;
+  }
+
+  public String getValue()
+  {
+    return _value;
+  }
+
+  /** @return The size this entry counts for in a dynamic table */
+  public int size()
+  {
+    return _name.length() + _value.length() + ENTRY_OVERHEAD;
+  }
+
+  @Override
+  public String toString()
+  {
+    return _name + ": " + _value;
+  }
+}
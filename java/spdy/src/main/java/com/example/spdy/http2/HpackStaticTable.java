@@ -0,0 +1,114 @@
+package com.example.spdy.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HPACK static table (RFC 7541, appendix A), indexed from 1.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+final class HpackStaticTable
+{
+  private static final HpackHeader[] ENTRIES = {
+      new HpackHeader(":authority", ""),
+      new HpackHeader(":method", "GET"),
+      new HpackHeader(":method", "POST"),
+      new HpackHeader(":path", "/"),
+      new HpackHeader(":path", "/index.html"),
+      new HpackHeader(":scheme", "http"),
+      new HpackHeader(":scheme", "https"),
+      new HpackHeader(":status", "200"),
+      new HpackHeader(":status", "204"),
+      new HpackHeader(":status", "206"),
+      new HpackHeader(":status", "304"),
+      new HpackHeader(":status", "400"),
+      new HpackHeader(":status", "404"),
+      new HpackHeader(":status", "500"),
+      new HpackHeader("accept-charset", ""),
+      new HpackHeader("accept-encoding", "gzip, deflate"),
+      new HpackHeader("accept-language", ""),
+      new HpackHeader("accept-ranges", ""),
+      new HpackHeader("accept", ""),
+      new HpackHeader("access-control-allow-origin", ""),
+      new HpackHeader("age", ""),
+      new HpackHeader("allow", ""),
+      new HpackHeader("authorization", ""),
+      new HpackHeader("cache-control", ""),
+      new HpackHeader("content-disposition", ""),
+      new HpackHeader("content-encoding", ""),
+      new HpackHeader("content-language", ""),
+      new HpackHeader("content-length", ""),
+      new HpackHeader("content-location", ""),
+      new HpackHeader("content-range", ""),
+      new HpackHeader("content-type", ""),
+      new HpackHeader("cookie", ""),
+      new HpackHeader("date", ""),
+      new HpackHeader("etag", ""),
+      new HpackHeader("expect", ""),
+      new HpackHeader("expires", ""),
+      new HpackHeader("from", ""),
+      new HpackHeader("host", ""),
+      new HpackHeader("if-match", ""),
+      new HpackHeader("if-modified-since", ""),
+      new HpackHeader("if-none-match", ""),
+      new HpackHeader("if-range", ""),
+      new HpackHeader("if-unmodified-since", ""),
+      new HpackHeader("last-modified", ""),
+      new HpackHeader("link", ""),
+      new HpackHeader("location", ""),
+      new HpackHeader("max-forwards", ""),
+      new HpackHeader("proxy-authenticate", ""),
+      new HpackHeader("proxy-authorization", ""),
+      new HpackHeader("range", ""),
+      new HpackHeader("referer", ""),
+      new HpackHeader("refresh", ""),
+      new HpackHeader("retry-after", ""),
+      new HpackHeader("server", ""),
+      new HpackHeader("set-cookie", ""),
+      new HpackHeader("strict-transport-security", ""),
+      new HpackHeader("transfer-encoding", ""),
+      new HpackHeader("user-agent", ""),
+      new HpackHeader("vary", ""),
+      new HpackHeader("via", ""),
+      new HpackHeader("www-authenticate", "")
+  };
+
+  /** Number of entries; dynamic table indexes start after this */
+  static final int LENGTH = ENTRIES.length;
+
+  // First index for each name, and index for each exact name and value
+  private static final Map<String, Integer> NAME_INDEX = new HashMap<String, Integer>();
+  private static final Map<String, Integer> FIELD_INDEX = new HashMap<String, Integer>();
+  static
+  {
+    for (int i = ENTRIES.length; i >= 1; i--)
+    {
+      HpackHeader header = ENTRIES[i - 1];
+      NAME_INDEX.put(header.getName(), i);
+      FIELD_INDEX.put(header.getName() + '\0' + header.getValue(), i);
+    }
+  }
+
+  private HpackStaticTable() {}
+
+  /** @param index From 1 to {@link #LENGTH} */
+  static HpackHeader get(int index)
+  {
+    return ENTRIES[index - 1];
+  }
+
+  /** @return The index of an entry with this name and value, or -1 */
+  static int indexOf(String name, String value)
+  {
+    Integer index = FIELD_INDEX.get(name + '\0' + value);
+    return index == null ? -1 : index;
+  }
+
+  /** @return The index of the first entry with this name, or -1 */
+  static int indexOfName(String name)
+  {
+    Integer index = NAME_INDEX.get(name);
+    return index == null ? -1 : index;
+  }
+}
@@ -0,0 +1,57 @@
+package com.example.spdy.http2;
+
+/**
+ * An HTTP/2 connection or stream error, carrying the error code to send to the peer.
+ *
+ * A stream ID of 0 means the whole connection is in error (GOAWAY), otherwise just
+ * that stream is (RST_STREAM).
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2Exception extends Exception
+{
+  private static final long serialVersionUID = 1L;
+
+  // Error codes
+  public static final int NO_ERROR = 0x0;
+  public static final int PROTOCOL_ERROR = 0x1;
+  public static final int INTERNAL_ERROR = 0x2;
+  public static final int FLOW_CONTROL_ERROR = 0x3;
+  public static final int STREAM_CLOSED = 0x5;
+  public static final int FRAME_SIZE_ERROR = 0x6;
+  public static final int REFUSED_STREAM = 0x7;
+  public static final int CANCEL = 0x8;
+  public static final int COMPRESSION_ERROR = 0x9;
+  public static final int ENHANCE_YOUR_CALM = 0xb;
+
+  private final int _errorCode;
+  private final int _streamId;
+
+  public Http2Exception(int errorCode, String message)
+  {
+    this(errorCode, 0, message);
+  }
+
+  public Http2Exception(int errorCode, int streamId, String message)
+  {
+    super(message);
+    _errorCode = errorCode;
+    _streamId = streamId;
+  }
+
+  public int getErrorCode()
+  {
+    return _errorCode;
+  }
+
+  /** @return The stream in error, or 0 if it's the whole connection */
+  public int getStreamId()
+  {
+    return _streamId;
+  }
+
+  public boolean isConnectionError()
+  {
+    return _streamId == 0;
+  }
+}
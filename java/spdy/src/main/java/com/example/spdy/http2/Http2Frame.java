@@ -0,0 +1,211 @@
+package com.example.spdy.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A single HTTP/2 frame: type, flags, stream ID and payload.
+ *
+ * Decoded HEADERS frames have padding and priority fields already stripped, and any
+ * CONTINUATION frames folded in, so their payload is a complete HPACK header block.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2Frame
+{
+  // Frame types
+  public static final int DATA = 0x0;
+  public static final int HEADERS = 0x1;
+  public static final int PRIORITY = 0x2;
+  public static final int RST_STREAM = 0x3;
+  public static final int SETTINGS = 0x4;
+  public static final int PUSH_PROMISE = 0x5;
+  public static final int PING = 0x6;
+  public static final int GOAWAY = 0x7;
+  public static final int WINDOW_UPDATE = 0x8;
+  public static final int CONTINUATION = 0x9;
+
+  // Flags
+  public static final int FLAG_END_STREAM = 0x1;
+  public static final int FLAG_ACK = 0x1;
+  public static final int FLAG_END_HEADERS = 0x4;
+  public static final int FLAG_PADDED = 0x8;
+  public static final int FLAG_PRIORITY = 0x20;
+  /**
+   * Not a wire flag: marks HEADERS on a stream the session handler refused or already
+   * reset. The block must still be decoded to keep HPACK state in sync, then dropped.
+   */
+  public static final int FLAG_DISCARD = 0x100;
+
+  // Settings
+  public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  public static final int SETTINGS_ENABLE_PUSH = 0x2;
+  public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  /** Frame header: 24-bit length, type, flags, 31-bit stream ID */
+  public static final int HEADER_LENGTH = 9;
+  /** Initial SETTINGS_MAX_FRAME_SIZE, and initial flow-control window */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  public static final int DEFAULT_WINDOW_SIZE = 65535;
+  public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+  /** What a client sends before anything else */
+  public static final byte[] CONNECTION_PREFACE = {
+      'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+      '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+  };
+
+  private final int _type;
+  private final int _flags;
+  private final int _streamId;
+  private final ChannelBuffer _payload;
+  private final int _length;
+
+  public Http2Frame(int type, int flags, int streamId, ChannelBuffer payload)
+  {
+    this(type, flags, streamId, payload, payload.readableBytes());
+  }
+
+  /** @param length The frame's length on the wire, including any padding */
+  public Http2Frame(int type, int flags, int streamId, ChannelBuffer payload, int length)
+  {
+    _type = type;
+    _flags = flags;
+    _streamId = streamId;
+    _payload = payload;
+    _length = length;
+  }
+
+  public static Http2Frame data(int streamId, ChannelBuffer data, boolean endStream)
+  {
+    return new Http2Frame(DATA, endStream ? FLAG_END_STREAM : 0, streamId, data);
+  }
+
+  public static Http2Frame headers(int streamId, ChannelBuffer headerBlock, boolean endStream)
+  {
+    return new Http2Frame(HEADERS, endStream ? FLAG_END_STREAM | FLAG_END_HEADERS : FLAG_END_HEADERS,
+                          streamId, headerBlock);
+  }
+
+  public static Http2Frame rstStream(int streamId, int errorCode)
+  {
+    ChannelBuffer payload = ChannelBuffers.buffer(4);
+    payload.writeInt(errorCode);
+    return new Http2Frame(RST_STREAM, 0, streamId, payload);
+  }
+
+  /** @param settings Alternating setting identifiers and values */
+  public static Http2Frame settings(int... settings)
+  {
+    ChannelBuffer payload = ChannelBuffers.buffer(settings.length / 2 * 6);
+    for (int i = 0; i + 1 < settings.length; i += 2)
+    {
+      payload.writeShort(settings[i]);
+      payload.writeInt(settings[i + 1]);
+    }
+    return new Http2Frame(SETTINGS, 0, 0, payload);
+  }
+
+  public static Http2Frame settingsAck()
+  {
+    return new Http2Frame(SETTINGS, FLAG_ACK, 0, ChannelBuffers.EMPTY_BUFFER);
+  }
+
+  public static Http2Frame ping(ChannelBuffer opaqueData, boolean ack)
+  {
+    return new Http2Frame(PING, ack ? FLAG_ACK : 0, 0, opaqueData);
+  }
+
+  public static Http2Frame goAway(int lastStreamId, int errorCode)
+  {
+    ChannelBuffer payload = ChannelBuffers.buffer(8);
+    payload.writeInt(lastStreamId);
+    payload.writeInt(errorCode);
+    return new Http2Frame(GOAWAY, 0, 0, payload);
+  }
+
+  public static Http2Frame windowUpdate(int streamId, int increment)
+  {
+    ChannelBuffer payload = ChannelBuffers.buffer(4);
+    payload.writeInt(increment);
+    return new Http2Frame(WINDOW_UPDATE, 0, streamId, payload);
+  }
+
+  public int getType()
+  {
+    return _type;
+  }
+
+  public int getFlags()
+  {
+    return _flags;
+  }
+
+  public boolean hasFlag(int flag)
+  {
+    return (_flags & flag) != 0;
+  }
+
+  public boolean isEndStream()
+  {
+    return (_type == DATA || _type == HEADERS) && hasFlag(FLAG_END_STREAM);
+  }
+
+  public int getStreamId()
+  {
+    return _streamId;
+  }
+
+  public ChannelBuffer getPayload()
+  {
+    return _payload;
+  }
+
+  /** @return The length on the wire, which is what DATA frames count against flow control */
+  public int getLength()
+  {
+    return _length;
+  }
+
+  /** @return The value of a setting in this SETTINGS frame, or -1 if absent */
+  public long getSetting(int id)
+  {
+    long value = -1;
+    for (int i = _payload.readerIndex(); i + 6 <= _payload.writerIndex(); i += 6)
+    {
+      if (_payload.getUnsignedShort(i) == id)
+      {
+        value = _payload.getUnsignedInt(i + 2);
+      }
+    }
+    return value;
+  }
+
+  /** @return The error code of a RST_STREAM or GOAWAY frame */
+  public int getErrorCode()
+  {
+    return _payload.getInt(_payload.readerIndex() + (_type == GOAWAY ? 4 : 0));
+  }
+
+  /** @return The last stream ID of a GOAWAY frame */
+  public int getLastStreamId()
+  {
+    return _payload.getInt(_payload.readerIndex()) & 0x7fffffff;
+  }
+
+  /** @return The increment of a WINDOW_UPDATE frame */
+  public int getWindowIncrement()
+  {
+    return _payload.getInt(_payload.readerIndex()) & 0x7fffffff;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Http2Frame(type=" + _type + ", flags=" + _flags + ", streamId=" + _streamId
+        + ", length=" + _payload.readableBytes() + ")";
+  }
+}
@@ -0,0 +1,243 @@
+package com.example.spdy.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import static com.example.spdy.http2.Http2Frame.*;
+
+/**
+ * Decodes bytes into {@link Http2Frame}s.
+ *
+ * On the server side, the client connection preface is verified and dropped first.
+ * Padding and priority fields are stripped, and a HEADERS frame followed by
+ * CONTINUATION frames comes out as one HEADERS frame holding the whole header block.
+ * Unknown frame types are ignored, as the spec requires.
+ *
+ * Protocol violations are raised as {@link Http2Exception}s for the session handler.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2FrameDecoder extends FrameDecoder
+{
+  private final int _maxFrameSize;
+  private final int _maxHeaderBlockSize;
+
+  private boolean _prefaceExpected;
+
+  // A HEADERS frame waiting for its CONTINUATION frames
+  private int _headersStreamId;
+  private int _headersFlags;
+  private ChannelBuffer _headerBlock;
+
+  /**
+   * @param server Whether to expect the client connection preface
+   * @param maxFrameSize Our SETTINGS_MAX_FRAME_SIZE
+   * @param maxHeaderBlockSize Upper bound on a header block spread over CONTINUATION frames
+   */
+  public Http2FrameDecoder(boolean server, int maxFrameSize, int maxHeaderBlockSize)
+  {
+    _prefaceExpected = server;
+    _maxFrameSize = maxFrameSize;
+    _maxHeaderBlockSize = maxHeaderBlockSize;
+  }
+
+  @Override
+  protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception
+  {
+    if (_prefaceExpected)
+    {
+      int length = Math.min(buffer.readableBytes(), CONNECTION_PREFACE.length);
+      for (int i = 0; i < length; i++)
+      {
+        if (buffer.getByte(buffer.readerIndex() + i) != CONNECTION_PREFACE[i])
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+      }
+      if (length < CONNECTION_PREFACE.length)
+      {
+        return null;
+      }
+      buffer.skipBytes(CONNECTION_PREFACE.length);
+      _prefaceExpected = false;
+    }
+
+    while (buffer.readableBytes() >= HEADER_LENGTH)
+    {
+      int offset = buffer.readerIndex();
+      int length = buffer.getUnsignedMedium(offset);
+      int type = buffer.getUnsignedByte(offset + 3);
+      int flags = buffer.getUnsignedByte(offset + 4);
+      int streamId = buffer.getInt(offset + 5) & 0x7fffffff;
+
+      if (length > _maxFrameSize)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+      }
+      if (buffer.readableBytes() < HEADER_LENGTH + length)
+      {
+        return null;
+      }
+      buffer.skipBytes(HEADER_LENGTH);
+
+      if (_headerBlock != null && (type != CONTINUATION || streamId != _headersStreamId))
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION for stream " + _headersStreamId);
+      }
+
+      Http2Frame frame = decodeFrame(type, flags, streamId, buffer, length);
+      if (frame != null)
+      {
+        return frame;
+      }
+    }
+
+    return null;
+  }
+
+  /** @return The frame, or null if it was consumed without producing one */
+  private Http2Frame decodeFrame(int type, int flags, int streamId, ChannelBuffer buffer, int length)
+      throws Http2Exception
+  {
+    switch (type)
+    {
+      case DATA:
+        requireStream(type, streamId);
+        // Padding counts towards flow control, so remember the whole length
+        return new Http2Frame(type, flags & FLAG_END_STREAM, streamId, readPadded(buffer, flags, length, 0), length);
+
+      case HEADERS:
+        requireStream(type, streamId);
+        ChannelBuffer block = readPadded(buffer, flags, length, (flags & FLAG_PRIORITY) != 0 ? 5 : 0);
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+          return new Http2Frame(type, flags & (FLAG_END_STREAM | FLAG_END_HEADERS), streamId, block);
+        }
+        _headersStreamId = streamId;
+        _headersFlags = flags & FLAG_END_STREAM;
+        _headerBlock = ChannelBuffers.dynamicBuffer(Math.max(256, block.readableBytes() * 2));
+        _headerBlock.writeBytes(block);
+        return null;
+
+      case CONTINUATION:
+        if (_headerBlock == null)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        if (_headerBlock.readableBytes() + length > _maxHeaderBlockSize)
+        {
+          throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block exceeds " + _maxHeaderBlockSize + " bytes");
+        }
+        _headerBlock.writeBytes(buffer, length);
+        if ((flags & FLAG_END_HEADERS) == 0)
+        {
+          return null;
+        }
+        Http2Frame headers = new Http2Frame(HEADERS, _headersFlags | FLAG_END_HEADERS, _headersStreamId, _headerBlock);
+        _headerBlock = null;
+        return headers;
+
+      case PRIORITY:
+        requireStream(type, streamId);
+        requireLength(type, length, 5);
+        buffer.skipBytes(length);
+        return null; // Priorities are advisory, and we don't use them
+
+      case RST_STREAM:
+        requireStream(type, streamId);
+        requireLength(type, length, 4);
+        return new Http2Frame(type, 0, streamId, buffer.readBytes(length));
+
+      case SETTINGS:
+        requireConnection(type, streamId);
+        if ((flags & FLAG_ACK) != 0 ? length != 0 : length % 6 != 0)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        return new Http2Frame(type, flags & FLAG_ACK, 0, buffer.readBytes(length));
+
+      case PUSH_PROMISE:
+        // We never enable push
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE received");
+
+      case PING:
+        requireConnection(type, streamId);
+        requireLength(type, length, 8);
+        return new Http2Frame(type, flags & FLAG_ACK, 0, buffer.readBytes(length));
+
+      case GOAWAY:
+        requireConnection(type, streamId);
+        if (length < 8)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "GOAWAY of " + length + " bytes");
+        }
+        Http2Frame goAway = new Http2Frame(type, 0, 0, buffer.readBytes(8));
+        buffer.skipBytes(length - 8); // Debug data
+        return goAway;
+
+      case WINDOW_UPDATE:
+        requireLength(type, length, 4);
+        Http2Frame windowUpdate = new Http2Frame(type, 0, streamId, buffer.readBytes(length));
+        if (windowUpdate.getWindowIncrement() == 0)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Zero window increment");
+        }
+        return windowUpdate;
+
+      default:
+        buffer.skipBytes(length);
+        return null;
+    }
+  }
+
+  private static ChannelBuffer readPadded(ChannelBuffer buffer, int flags, int length, int skip)
+      throws Http2Exception
+  {
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0)
+    {
+      if (length < 1)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Missing pad length");
+      }
+      padding = buffer.readUnsignedByte();
+      length--;
+    }
+    if (padding + skip > length)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+    }
+
+    buffer.skipBytes(skip);
+    ChannelBuffer payload = buffer.readBytes(length - skip - padding);
+    buffer.skipBytes(padding);
+    return payload;
+  }
+
+  private static void requireStream(int type, int streamId) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame type " + type + " on stream 0");
+    }
+  }
+
+  private static void requireConnection(int type, int streamId) throws Http2Exception
+  {
+    if (streamId != 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame type " + type + " on stream " + streamId);
+    }
+  }
+
+  private static void requireLength(int type, int length, int expected) throws Http2Exception
+  {
+    if (length != expected)
+    {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame type " + type + " of " + length + " bytes");
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.example.spdy.http2;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+/**
+ * Encodes {@link Http2Frame}s, prefixing the payload with the 9-byte frame header.
+ *
+ * The payload is wrapped rather than copied. Anything else (e.g. the client connection
+ * preface) passes through unchanged.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2FrameEncoder extends OneToOneEncoder
+{
+  @Override
+  protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception
+  {
+    if (!(msg instanceof Http2Frame))
+    {
+      return msg;
+    }
+
+    Http2Frame frame = (Http2Frame) msg;
+    ChannelBuffer payload = frame.getPayload();
+
+    ChannelBuffer header = ChannelBuffers.buffer(Http2Frame.HEADER_LENGTH);
+    header.writeMedium(payload.readableBytes());
+    header.writeByte(frame.getType());
+    header.writeByte(frame.getFlags() & 0xff);
+    header.writeInt(frame.getStreamId());
+
+    return payload.readable() ? ChannelBuffers.wrappedBuffer(header, payload) : header;
+  }
+}
@@ -0,0 +1,422 @@
+package com.example.spdy.http2;
+
+import com.example.spdy.api.Constants;
+import com.example.spdy.api.StreamHttpChunk;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Translates between HTTP/2 streams and Netty's HTTP messages, like SpdyHttpCodec
+ * does for SPDY.
+ *
+ * Inbound, each stream's HEADERS and DATA are aggregated into one {@link HttpRequest}
+ * (server) or {@link HttpResponse} (client). Outbound, messages become a HEADERS frame
+ * and, if there's content, DATA frames; chunked messages are followed by
+ * {@link HttpChunk}s for the same stream.
+ *
+ * In streaming mode, a request with a body is instead sent up as soon as its HEADERS
+ * arrive, marked chunked, followed by a {@link StreamHttpChunk} per DATA frame. A
+ * RST_STREAM for such a request is passed up too. A client can do the same with the
+ * responses of streams it's told to {@link #streamResponse(int) stream}. Outbound,
+ * {@link StreamHttpChunk}s go to the stream they say, so several chunked messages can
+ * be written at once.
+ *
+ * The stream ID travels in the same header as for SPDY ({@link Constants#SPDY_STREAM_ID}),
+ * so handlers and clients don't need to care which of the two they're speaking.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2HttpCodec extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler
+{
+  /** Headers that are meaningless or forbidden in HTTP/2 */
+  private static final Set<String> EXCLUDED_HEADERS = new HashSet<String>(Arrays.asList(
+      "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "te"));
+  private static final String EXCLUDED_PREFIX = "x-spdy-";
+
+  private final boolean _server;
+  private final int _maxContentLength;
+  private final boolean _streaming;
+  private final HpackDecoder _decoder;
+  private final HpackEncoder _encoder;
+
+  /** Messages being received, only touched by the I/O thread */
+  private final Map<Integer, HttpMessage> _messages = new HashMap<Integer, HttpMessage>();
+  /** Streams whose body is being passed up as it arrives */
+  private final Set<Integer> _bodies = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  /** Client streams whose response is to be passed up as it arrives, once it starts */
+  private final Set<Integer> _streamedResponses = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  /** The stream to which outbound {@link HttpChunk}s belong */
+  private volatile int _currentStreamId;
+
+  /**
+   * @param server Whether this is the server end of the connection
+   * @param maxContentLength Largest request or response body we'll aggregate
+   * @param maxHeaderListSize Our SETTINGS_MAX_HEADER_LIST_SIZE
+   */
+  public Http2HttpCodec(boolean server, int maxContentLength, int maxHeaderListSize)
+  {
+    this(server, maxContentLength, maxHeaderListSize, false);
+  }
+
+  /**
+   * @param server Whether this is the server end of the connection
+   * @param maxContentLength Largest request or response body we'll aggregate
+   * @param maxHeaderListSize Our SETTINGS_MAX_HEADER_LIST_SIZE
+   * @param streaming Whether to pass request bodies up as they arrive, instead of aggregating them
+   */
+  public Http2HttpCodec(boolean server, int maxContentLength, int maxHeaderListSize, boolean streaming)
+  {
+    _server = server;
+    _maxContentLength = maxContentLength;
+    _streaming = streaming && server;
+    _decoder = new HpackDecoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE, maxHeaderListSize);
+    _encoder = new HpackEncoder();
+  }
+
+  /** Streams the body of the response to client stream {@code streamId}; call before sending its request */
+  public void streamResponse(int streamId)
+  {
+    _streamedResponses.add(streamId);
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    if (!(e.getMessage() instanceof Http2Frame))
+    {
+      super.messageReceived(ctx, e);
+      return;
+    }
+
+    Http2Frame frame = (Http2Frame) e.getMessage();
+    int streamId = frame.getStreamId();
+
+    switch (frame.getType())
+    {
+      case Http2Frame.HEADERS:
+        // Always decode, even for a discarded stream, to keep the HPACK tables in sync
+        List<HpackHeader> headers = _decoder.decode(streamId, frame.getPayload());
+        if (frame.hasFlag(Http2Frame.FLAG_DISCARD))
+        {
+          return;
+        }
+
+        if (_bodies.contains(streamId))
+        {
+          // Trailers, which we don't pass on
+          if (frame.isEndStream())
+          {
+            _bodies.remove(streamId);
+            Channels.fireMessageReceived(ctx, new StreamHttpChunk(streamId, ChannelBuffers.EMPTY_BUFFER, true),
+                                         e.getRemoteAddress());
+          }
+          return;
+        }
+
+        HttpMessage message = _messages.get(streamId);
+        boolean streamed = _streaming || _streamedResponses.remove(streamId);
+        if (message == null && streamed && !frame.isEndStream())
+        {
+          message = createMessage(streamId, headers);
+          message.setChunked(true);
+          _bodies.add(streamId);
+          Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+          return;
+        }
+        else if (message == null)
+        {
+          message = createMessage(streamId, headers);
+          _messages.put(streamId, message);
+        }
+        else
+        {
+          addTrailers(streamId, message, headers);
+        }
+
+        if (frame.isEndStream())
+        {
+          complete(ctx, e, streamId);
+        }
+        break;
+
+      case Http2Frame.DATA:
+        if (_bodies.contains(streamId))
+        {
+          if (frame.isEndStream())
+          {
+            _bodies.remove(streamId);
+          }
+          Channels.fireMessageReceived(ctx, new StreamHttpChunk(streamId, frame.getPayload(), frame.isEndStream()),
+                                       e.getRemoteAddress());
+          return;
+        }
+
+        message = _messages.get(streamId);
+        if (message == null)
+        {
+          return;
+        }
+
+        ChannelBuffer content = message.getContent();
+        if (content.readableBytes() + frame.getPayload().readableBytes() > _maxContentLength)
+        {
+          _messages.remove(streamId);
+          throw new Http2Exception(Http2Exception.CANCEL, streamId, "Content exceeds " + _maxContentLength + " bytes");
+        }
+        if (content == ChannelBuffers.EMPTY_BUFFER)
+        {
+          content = ChannelBuffers.dynamicBuffer(ctx.getChannel().getConfig().getBufferFactory());
+          message.setContent(content);
+        }
+        content.writeBytes(frame.getPayload());
+
+        if (frame.isEndStream())
+        {
+          complete(ctx, e, streamId);
+        }
+        break;
+
+      case Http2Frame.RST_STREAM:
+        _messages.remove(streamId);
+        _streamedResponses.remove(streamId);
+        if (_bodies.remove(streamId))
+        {
+          ctx.sendUpstream(e);
+        }
+        break;
+
+      case Http2Frame.SETTINGS:
+        long headerTableSize = frame.getSetting(Http2Frame.SETTINGS_HEADER_TABLE_SIZE);
+        if (headerTableSize >= 0)
+        {
+          synchronized (_encoder)
+          {
+            _encoder.setMaxTableSize((int) Math.min(headerTableSize, Integer.MAX_VALUE));
+          }
+        }
+        break;
+    }
+  }
+
+  private HttpMessage createMessage(int streamId, List<HpackHeader> headers) throws Http2Exception
+  {
+    String method = null;
+    String path = null;
+    String authority = null;
+    String status = null;
+    List<HpackHeader> regular = new ArrayList<HpackHeader>(headers.size());
+
+    for (HpackHeader header : headers)
+    {
+      String name = header.getName();
+      if (name.startsWith(":"))
+      {
+        if (!regular.isEmpty())
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Pseudo-header after regular header");
+        }
+        if (":method".equals(name))
+        {
+          method = header.getValue();
+        }
+        else if (":path".equals(name))
+        {
+          path = header.getValue();
+        }
+        else if (":authority".equals(name))
+        {
+          authority = header.getValue();
+        }
+        else if (":status".equals(name))
+        {
+          status = header.getValue();
+        }
+      }
+      else
+      {
+        validate(streamId, name);
+        regular.add(header);
+      }
+    }
+
+    HttpMessage message;
+    if (_server)
+    {
+      if (method == null || path == null)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Missing :method or :path");
+      }
+      message = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(method), path);
+      if (authority != null)
+      {
+        HttpHeaders.setHost(message, authority);
+      }
+    }
+    else
+    {
+      if (status == null)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Missing :status");
+      }
+      try
+      {
+        message = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(Integer.parseInt(status)));
+      }
+      catch (NumberFormatException e)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Invalid :status " + status);
+      }
+    }
+
+    for (HpackHeader header : regular)
+    {
+      message.headers().add(header.getName(), header.getValue());
+    }
+    message.headers().set(Constants.SPDY_STREAM_ID, streamId);
+    return message;
+  }
+
+  private static void addTrailers(int streamId, HttpMessage message, List<HpackHeader> headers) throws Http2Exception
+  {
+    for (HpackHeader header : headers)
+    {
+      if (header.getName().startsWith(":"))
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Pseudo-header in trailers");
+      }
+      validate(streamId, header.getName());
+      message.headers().add(header.getName(), header.getValue());
+    }
+  }
+
+  private static void validate(int streamId, String name) throws Http2Exception
+  {
+    for (int i = 0; i < name.length(); i++)
+    {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z')
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Upper case header name " + name);
+      }
+    }
+    if ("connection".equals(name))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Connection-specific header " + name);
+    }
+  }
+
+  private void complete(ChannelHandlerContext ctx, MessageEvent e, int streamId)
+  {
+    HttpMessage message = _messages.remove(streamId);
+    HttpHeaders.setContentLength(message, message.getContent().readableBytes());
+    Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (!(e instanceof MessageEvent))
+    {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    MessageEvent me = (MessageEvent) e;
+    Object msg = me.getMessage();
+
+    if (msg instanceof HttpMessage)
+    {
+      writeMessage(ctx, me, (HttpMessage) msg);
+    }
+    else if (msg instanceof HttpChunk)
+    {
+      HttpChunk chunk = (HttpChunk) msg;
+      int streamId = chunk instanceof StreamHttpChunk ? ((StreamHttpChunk) chunk).getStreamId() : _currentStreamId;
+      // n.b. trailing headers are dropped: HEADERS can't be queued behind flow-controlled DATA
+      Http2Frame data = Http2Frame.data(streamId, chunk.getContent(), chunk.isLast());
+      ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(), data, me.getRemoteAddress()));
+    }
+    else
+    {
+      if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM)
+      {
+        // Nothing more will be passed up for a stream we reset
+        _bodies.remove(((Http2Frame) msg).getStreamId());
+        _streamedResponses.remove(((Http2Frame) msg).getStreamId());
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+
+  private void writeMessage(ChannelHandlerContext ctx, MessageEvent me, HttpMessage message)
+  {
+    String streamIdHeader = message.headers().get(Constants.SPDY_STREAM_ID);
+    if (streamIdHeader == null)
+    {
+      me.getFuture().setFailure(new IllegalArgumentException("Must specify stream ID"));
+      return;
+    }
+    int streamId = Integer.parseInt(streamIdHeader);
+
+    Channel channel = me.getChannel();
+    ChannelBuffer content = message.getContent();
+    boolean endStream = !message.isChunked() && !content.readable();
+
+    ChannelBuffer block = ChannelBuffers.dynamicBuffer(256, channel.getConfig().getBufferFactory());
+    synchronized (_encoder)
+    {
+      // Header blocks must hit the wire in the order they were encoded
+      _encoder.begin(block);
+      if (message instanceof HttpRequest)
+      {
+        HttpRequest request = (HttpRequest) message;
+        _encoder.encode(block, ":method", request.getMethod().getName());
+        _encoder.encode(block, ":scheme", ctx.getPipeline().get(SslHandler.class) == null ? "http" : "https");
+        String host = HttpHeaders.getHost(request);
+        if (host != null)
+        {
+          _encoder.encode(block, ":authority", host);
+        }
+        _encoder.encode(block, ":path", request.getUri());
+      }
+      else
+      {
+        _encoder.encode(block, ":status", String.valueOf(((HttpResponse) message).getStatus().getCode()));
+      }
+
+      for (Map.Entry<String, String> header : message.headers())
+      {
+        String name = header.getKey().toLowerCase(Locale.ENGLISH);
+        if (!EXCLUDED_HEADERS.contains(name) && !name.startsWith(EXCLUDED_PREFIX))
+        {
+          _encoder.encode(block, name, header.getValue());
+        }
+      }
+
+      Http2Frame headers = Http2Frame.headers(streamId, block, endStream);
+      ctx.sendDownstream(new DownstreamMessageEvent(channel, endStream ? me.getFuture() : Channels.future(channel),
+                                                    headers, me.getRemoteAddress()));
+    }
+
+    if (message.isChunked())
+    {
+      _currentStreamId = streamId;
+      if (content.readable())
+      {
+        Channels.write(ctx, Channels.future(channel), Http2Frame.data(streamId, content, false));
+      }
+      me.getFuture().setSuccess();
+    }
+    else if (content.readable())
+    {
+      ctx.sendDownstream(new DownstreamMessageEvent(channel, me.getFuture(), Http2Frame.data(streamId, content, true),
+                                                    me.getRemoteAddress()));
+    }
+  }
+}
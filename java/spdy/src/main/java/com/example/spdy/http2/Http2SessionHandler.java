@@ -0,0 +1,839 @@
+package com.example.spdy.http2;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.example.spdy.http2.Http2Frame.*;
+
+/**
+ * Manages the streams within an HTTP/2 connection, like Netty's SpdySessionHandler
+ * does for SPDY.
+ *
+ * Sends the connection preface and our SETTINGS, acknowledges the peer's SETTINGS and
+ * PINGs, tracks stream state, and refuses streams beyond our concurrency limit.
+ *
+ * Flow control works in both directions. Outbound DATA frames wait in a per-stream
+ * queue until both the stream and connection windows allow them, and are split to the
+ * peer's max frame size. Inbound DATA is consumed as soon as it's read (the codec
+ * above aggregates it), so we send WINDOW_UPDATE once a window falls below half.
+ *
+ * Our own SETTINGS may be changed mid-connection by writing a new SETTINGS frame, whose
+ * concurrency limit and initial window take effect here as it goes out, and the
+ * connection's receive window by {@link #setConnectionReceiveWindow(int)}.
+ *
+ * {@link Http2Exception}s from here or the frame decoder are turned into RST_STREAM
+ * for stream errors, or GOAWAY and close for connection errors. DATA the peer sent on a
+ * stream before seeing our RST_STREAM is dropped quietly, though it still counts against
+ * the connection window.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2SessionHandler extends SimpleChannelUpstreamHandler
+    implements ChannelDownstreamHandler, LifeCycleAwareChannelHandler
+{
+  private static final Logger LOG = Logger.getLogger(Http2SessionHandler.class);
+
+  private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+  private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+  /** How many of the streams we last reset to remember, to ignore what the peer had already sent on them */
+  private static final int MAX_RECENTLY_RESET = 1024;
+
+  /** One stream's state, guarded by the handler */
+  private static class Stream
+  {
+    int _sendWindow;
+    int _receiveWindow;
+    boolean _localClosed;
+    boolean _remoteClosed;
+    final Deque<MessageEvent> _pending = new ArrayDeque<MessageEvent>();
+
+    Stream(int sendWindow, int receiveWindow)
+    {
+      _sendWindow = sendWindow;
+      _receiveWindow = receiveWindow;
+    }
+  }
+
+  private final boolean _server;
+  private final int _maxHeaderListSize;
+  private volatile ChannelHandlerContext _ctx;
+
+  // All of the below are guarded by this
+  private final Map<Integer, Stream> _streams = new HashMap<Integer, Stream>();
+  /** Streams we've reset or refused lately, oldest first */
+  private final Set<Integer> _recentlyReset = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>()
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest)
+    {
+      return size() > MAX_RECENTLY_RESET;
+    }
+  });
+  /** For each SETTINGS sent but not yet acknowledged, how much it shrank the initial window by */
+  private final Deque<Integer> _unackedShrinks = new ArrayDeque<Integer>();
+  private int _maxConcurrentStreams;
+  private int _initialReceiveWindow;
+  private int _connectionReceiveWindow;
+  /** How far a stream may overrun its window, as the peer may not have seen a smaller one yet */
+  private int _receiveWindowSlack;
+  private int _sendWindow = DEFAULT_WINDOW_SIZE;
+  private int _receiveWindow = DEFAULT_WINDOW_SIZE;
+  private int _initialSendWindow = DEFAULT_WINDOW_SIZE;
+  private int _maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+  private int _remoteMaxConcurrentStreams = Integer.MAX_VALUE;
+  private int _lastRemoteStreamId;
+  private int _lastLocalStreamId;
+  private boolean _prefaceSent;
+  private boolean _sentGoAway;
+  private boolean _receivedGoAway;
+
+  /**
+   * @param server Whether this is the server end of the connection
+   * @param maxConcurrentStreams Streams the peer may have open at once
+   * @param initialReceiveWindow Our SETTINGS_INITIAL_WINDOW_SIZE
+   * @param maxHeaderListSize Our SETTINGS_MAX_HEADER_LIST_SIZE
+   */
+  public Http2SessionHandler(boolean server, int maxConcurrentStreams, int initialReceiveWindow, int maxHeaderListSize)
+  {
+    this(server, maxConcurrentStreams, initialReceiveWindow, maxHeaderListSize, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param connectionReceiveWindow How much DATA the peer may send on the whole connection before we've consumed it
+   */
+  public Http2SessionHandler(boolean server, int maxConcurrentStreams, int initialReceiveWindow, int maxHeaderListSize,
+                             int connectionReceiveWindow)
+  {
+    _server = server;
+    _maxConcurrentStreams = maxConcurrentStreams;
+    _initialReceiveWindow = initialReceiveWindow;
+    _maxHeaderListSize = maxHeaderListSize;
+    _connectionReceiveWindow = connectionReceiveWindow;
+  }
+
+  /**
+   * Resizes the connection's receive window. A bigger one is granted straight away, while
+   * a smaller one takes effect as the peer uses up what it already has.
+   */
+  public void setConnectionReceiveWindow(int window)
+  {
+    ChannelHandlerContext ctx = _ctx;
+    synchronized (this)
+    {
+      _connectionReceiveWindow = window;
+      if (ctx == null || !_prefaceSent || _receiveWindow >= window)
+      {
+        return;
+      }
+      int increment = window - _receiveWindow;
+      _receiveWindow = window;
+      Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.windowUpdate(0, increment));
+    }
+  }
+
+  @Override
+  public void beforeAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = ctx;
+  }
+
+  @Override
+  public void afterAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    // Usually added once the protocol is known, i.e. well after channelConnected
+    Channel channel = ctx.getChannel();
+    if (channel != null && channel.isConnected())
+    {
+      sendPreface(ctx);
+    }
+  }
+
+  @Override
+  public void beforeRemove(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void afterRemove(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = null;
+  }
+
+  @Override
+  public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    sendPreface(ctx);
+    super.channelConnected(ctx, e);
+  }
+
+  private void sendPreface(ChannelHandlerContext ctx)
+  {
+    synchronized (this)
+    {
+      if (_prefaceSent)
+      {
+        return;
+      }
+      _prefaceSent = true;
+
+      Channel channel = ctx.getChannel();
+      if (!_server)
+      {
+        Channels.write(ctx, Channels.future(channel), ChannelBuffers.wrappedBuffer(CONNECTION_PREFACE));
+      }
+
+      Http2Frame settings = _server
+          ? Http2Frame.settings(SETTINGS_MAX_CONCURRENT_STREAMS, _maxConcurrentStreams,
+                                SETTINGS_INITIAL_WINDOW_SIZE, _initialReceiveWindow,
+                                SETTINGS_MAX_HEADER_LIST_SIZE, _maxHeaderListSize)
+          : Http2Frame.settings(SETTINGS_ENABLE_PUSH, 0,
+                                SETTINGS_MAX_CONCURRENT_STREAMS, _maxConcurrentStreams,
+                                SETTINGS_INITIAL_WINDOW_SIZE, _initialReceiveWindow,
+                                SETTINGS_MAX_HEADER_LIST_SIZE, _maxHeaderListSize);
+      Channels.write(ctx, Channels.future(channel), settings);
+      // The peer may send against the default window until it has seen ours
+      int shrink = Math.max(0, DEFAULT_WINDOW_SIZE - _initialReceiveWindow);
+      _receiveWindowSlack += shrink;
+      _unackedShrinks.add(shrink);
+
+      if (_connectionReceiveWindow > _receiveWindow)
+      {
+        Channels.write(ctx, Channels.future(channel),
+                       Http2Frame.windowUpdate(0, _connectionReceiveWindow - _receiveWindow));
+        _receiveWindow = _connectionReceiveWindow;
+      }
+    }
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    if (!(e.getMessage() instanceof Http2Frame))
+    {
+      super.messageReceived(ctx, e);
+      return;
+    }
+
+    Http2Frame frame = (Http2Frame) e.getMessage();
+    try
+    {
+      switch (frame.getType())
+      {
+        case DATA:
+          if (onData(ctx, frame))
+          {
+            super.messageReceived(ctx, e);
+          }
+          break;
+
+        case HEADERS:
+          Http2Frame headers = onHeaders(ctx, frame);
+          Channels.fireMessageReceived(ctx, headers, e.getRemoteAddress());
+          break;
+
+        case RST_STREAM:
+          onRstStream(frame);
+          super.messageReceived(ctx, e);
+          break;
+
+        case SETTINGS:
+          if (!frame.hasFlag(FLAG_ACK))
+          {
+            onSettings(ctx, frame);
+            super.messageReceived(ctx, e); // The codec cares about the header table size
+          }
+          else
+          {
+            onSettingsAck();
+          }
+          break;
+
+        case PING:
+          if (!frame.hasFlag(FLAG_ACK))
+          {
+            Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.ping(frame.getPayload(), true));
+          }
+          break;
+
+        case GOAWAY:
+          onGoAway(frame);
+          super.messageReceived(ctx, e);
+          break;
+
+        case WINDOW_UPDATE:
+          onWindowUpdate(ctx, frame);
+          break;
+      }
+    }
+    catch (Http2Exception ex)
+    {
+      onError(ctx, ex);
+    }
+  }
+
+  /** @return Whether to pass the DATA frame on */
+  private synchronized boolean onData(ChannelHandlerContext ctx, Http2Frame frame) throws Http2Exception
+  {
+    int streamId = frame.getStreamId();
+    int length = frame.getLength();
+
+    // The connection window counts every DATA frame, even ones we then throw away
+    _receiveWindow -= length;
+    if (_receiveWindow < 0)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+    }
+    if (_receiveWindow < _connectionReceiveWindow / 2)
+    {
+      int increment = _connectionReceiveWindow - _receiveWindow;
+      _receiveWindow = _connectionReceiveWindow;
+      Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.windowUpdate(0, increment));
+    }
+
+    Stream stream = _streams.get(streamId);
+    if (stream == null && _recentlyReset.contains(streamId))
+    {
+      // Sent before the peer saw our RST_STREAM, so ignored (RFC 9113 section 5.4.2)
+      return false;
+    }
+    if (stream == null || stream._remoteClosed)
+    {
+      if (isIdle(streamId))
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+      }
+      if (!_sentGoAway)
+      {
+        throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream " + streamId);
+      }
+      return false;
+    }
+
+    stream._receiveWindow -= length;
+    if (stream._receiveWindow < -_receiveWindowSlack)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream receive window exceeded");
+    }
+
+    if (frame.isEndStream())
+    {
+      stream._remoteClosed = true;
+      removeIfClosed(streamId, stream);
+    }
+    else if (stream._receiveWindow < _initialReceiveWindow / 2)
+    {
+      int increment = _initialReceiveWindow - stream._receiveWindow;
+      stream._receiveWindow = _initialReceiveWindow;
+      Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.windowUpdate(streamId, increment));
+    }
+
+    return true;
+  }
+
+  /** @return The frame to pass on, marked {@link Http2Frame#FLAG_DISCARD} if the stream is refused */
+  private synchronized Http2Frame onHeaders(ChannelHandlerContext ctx, Http2Frame frame) throws Http2Exception
+  {
+    int streamId = frame.getStreamId();
+    Stream stream = _streams.get(streamId);
+    boolean discard = false;
+
+    if (stream != null)
+    {
+      if (stream._remoteClosed)
+      {
+        throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS on half-closed stream " + streamId);
+      }
+    }
+    else if (isRemoteInitiated(streamId) && streamId > _lastRemoteStreamId)
+    {
+      _lastRemoteStreamId = streamId;
+      if (_sentGoAway)
+      {
+        discard = true;
+      }
+      else if (countRemoteStreams() >= _maxConcurrentStreams)
+      {
+        LOG.warn("Refusing stream " + streamId + ", " + _maxConcurrentStreams + " already open");
+        Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.rstStream(streamId, Http2Exception.REFUSED_STREAM));
+        _recentlyReset.add(streamId);
+        discard = true;
+      }
+      else
+      {
+        stream = new Stream(_initialSendWindow, _initialReceiveWindow);
+        _streams.put(streamId, stream);
+      }
+    }
+    else if (isIdle(streamId))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on idle stream " + streamId);
+    }
+    else
+    {
+      discard = true; // Closed or reset, possibly by us while this was in flight
+    }
+
+    if (stream != null && frame.isEndStream())
+    {
+      stream._remoteClosed = true;
+      removeIfClosed(streamId, stream);
+    }
+
+    return discard
+        ? new Http2Frame(HEADERS, frame.getFlags() | FLAG_DISCARD, streamId, frame.getPayload())
+        : frame;
+  }
+
+  private synchronized void onRstStream(Http2Frame frame)
+  {
+    Stream stream = _streams.remove(frame.getStreamId());
+    if (stream != null)
+    {
+      failPending(stream, new Http2Exception(frame.getErrorCode(), frame.getStreamId(), "Stream reset by peer"));
+    }
+  }
+
+  private synchronized void onSettings(ChannelHandlerContext ctx, Http2Frame frame) throws Http2Exception
+  {
+    long initialWindow = frame.getSetting(SETTINGS_INITIAL_WINDOW_SIZE);
+    if (initialWindow > MAX_WINDOW_SIZE)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Initial window size " + initialWindow);
+    }
+    long maxFrameSize = frame.getSetting(SETTINGS_MAX_FRAME_SIZE);
+    if (maxFrameSize >= 0 && (maxFrameSize < DEFAULT_MAX_FRAME_SIZE || maxFrameSize > MAX_FRAME_SIZE_LIMIT))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Max frame size " + maxFrameSize);
+    }
+    long enablePush = frame.getSetting(SETTINGS_ENABLE_PUSH);
+    if (enablePush > 1)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Enable push " + enablePush);
+    }
+
+    if (maxFrameSize >= 0)
+    {
+      _maxSendFrameSize = (int) maxFrameSize;
+    }
+    long maxConcurrentStreams = frame.getSetting(SETTINGS_MAX_CONCURRENT_STREAMS);
+    if (maxConcurrentStreams >= 0)
+    {
+      _remoteMaxConcurrentStreams = (int) Math.min(maxConcurrentStreams, Integer.MAX_VALUE);
+    }
+    if (initialWindow >= 0)
+    {
+      int delta = (int) initialWindow - _initialSendWindow;
+      _initialSendWindow = (int) initialWindow;
+      for (Map.Entry<Integer, Stream> entry : _streams.entrySet())
+      {
+        Stream stream = entry.getValue();
+        if ((long) stream._sendWindow + delta > MAX_WINDOW_SIZE)
+        {
+          throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream " + entry.getKey() + " window overflow");
+        }
+        stream._sendWindow += delta;
+      }
+    }
+
+    Channels.write(ctx, Channels.future(ctx.getChannel()), Http2Frame.settingsAck());
+    flushAll(ctx);
+  }
+
+  /** The peer has applied our oldest outstanding SETTINGS */
+  private synchronized void onSettingsAck()
+  {
+    Integer shrink = _unackedShrinks.poll();
+    if (shrink != null)
+    {
+      _receiveWindowSlack -= shrink;
+    }
+  }
+
+  /** Applies SETTINGS of our own as they're sent; guarded by this */
+  private void onLocalSettings(Http2Frame frame)
+  {
+    long maxConcurrentStreams = frame.getSetting(SETTINGS_MAX_CONCURRENT_STREAMS);
+    if (maxConcurrentStreams >= 0)
+    {
+      _maxConcurrentStreams = (int) Math.min(maxConcurrentStreams, Integer.MAX_VALUE);
+    }
+
+    int shrink = 0;
+    long initialWindow = frame.getSetting(SETTINGS_INITIAL_WINDOW_SIZE);
+    if (initialWindow >= 0 && initialWindow <= MAX_WINDOW_SIZE)
+    {
+      int delta = (int) initialWindow - _initialReceiveWindow;
+      _initialReceiveWindow = (int) initialWindow;
+      for (Stream stream : _streams.values())
+      {
+        stream._receiveWindow += delta;
+      }
+      // Until the peer acknowledges, it may still be sending against the old, bigger window
+      shrink = Math.max(0, -delta);
+      _receiveWindowSlack += shrink;
+    }
+    _unackedShrinks.add(shrink);
+  }
+
+  private synchronized void onGoAway(Http2Frame frame)
+  {
+    _receivedGoAway = true;
+    int lastStreamId = frame.getLastStreamId();
+    LOG.info("GOAWAY received, last stream " + lastStreamId + ", error " + frame.getErrorCode());
+
+    // Streams we started after lastStreamId were never processed, and never will be
+    for (Integer streamId : _streams.keySet().toArray(new Integer[0]))
+    {
+      if (!isRemoteInitiated(streamId) && streamId > lastStreamId)
+      {
+        failPending(_streams.remove(streamId),
+                    new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Stream refused by GOAWAY"));
+      }
+    }
+  }
+
+  private synchronized void onWindowUpdate(ChannelHandlerContext ctx, Http2Frame frame) throws Http2Exception
+  {
+    int streamId = frame.getStreamId();
+    int increment = frame.getWindowIncrement();
+
+    if (streamId == 0)
+    {
+      if ((long) _sendWindow + increment > MAX_WINDOW_SIZE)
+      {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+      }
+      _sendWindow += increment;
+      flushAll(ctx);
+      return;
+    }
+
+    Stream stream = _streams.get(streamId);
+    if (stream == null)
+    {
+      if (isIdle(streamId))
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+      }
+      return; // Recently closed
+    }
+    if ((long) stream._sendWindow + increment > MAX_WINDOW_SIZE)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+    }
+    stream._sendWindow += increment;
+    flush(ctx, streamId, stream);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    if (e.getCause() instanceof Http2Exception)
+    {
+      onError(ctx, (Http2Exception) e.getCause());
+    }
+    else
+    {
+      super.exceptionCaught(ctx, e);
+    }
+  }
+
+  private void onError(ChannelHandlerContext ctx, Http2Exception ex)
+  {
+    Channel channel = ctx.getChannel();
+    if (ex.isConnectionError())
+    {
+      LOG.warn("HTTP/2 connection error from " + channel.getRemoteAddress() + ": " + ex.getMessage());
+      int lastStreamId;
+      synchronized (this)
+      {
+        _sentGoAway = true;
+        lastStreamId = _lastRemoteStreamId;
+      }
+      ChannelFuture future = Channels.future(channel);
+      future.addListener(ChannelFutureListener.CLOSE);
+      Channels.write(ctx, future, Http2Frame.goAway(lastStreamId, ex.getErrorCode()));
+    }
+    else
+    {
+      LOG.debug("HTTP/2 stream error: " + ex.getMessage());
+      synchronized (this)
+      {
+        Stream stream = _streams.remove(ex.getStreamId());
+        if (stream != null)
+        {
+          failPending(stream, ex);
+        }
+        _recentlyReset.add(ex.getStreamId());
+      }
+      Channels.write(ctx, Channels.future(channel), Http2Frame.rstStream(ex.getStreamId(), ex.getErrorCode()));
+      Channels.fireMessageReceived(ctx, Http2Frame.rstStream(ex.getStreamId(), ex.getErrorCode()));
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    synchronized (this)
+    {
+      for (Stream stream : _streams.values())
+      {
+        failPending(stream, new ClosedChannelException());
+      }
+      _streams.clear();
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (e instanceof ChannelStateEvent && isCloseRequest((ChannelStateEvent) e))
+    {
+      sendGoAway(ctx, (ChannelStateEvent) e);
+      return;
+    }
+
+    if (!(e instanceof MessageEvent) || !(((MessageEvent) e).getMessage() instanceof Http2Frame))
+    {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    MessageEvent me = (MessageEvent) e;
+    Http2Frame frame = (Http2Frame) me.getMessage();
+    int streamId = frame.getStreamId();
+
+    synchronized (this)
+    {
+      switch (frame.getType())
+      {
+        case HEADERS:
+          // HEADERS are never queued: they must reach the wire in the order they were HPACK-encoded
+          Stream stream = _streams.get(streamId);
+          if (stream == null)
+          {
+            if (isRemoteInitiated(streamId) || streamId <= _lastLocalStreamId)
+            {
+              me.getFuture().setFailure(new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "Stream " + streamId + " is closed"));
+              // Still send it, so the peer's HPACK state matches ours
+              ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), Channels.future(me.getChannel()), frame, me.getRemoteAddress()));
+              return;
+            }
+            if (_receivedGoAway || countLocalStreams() >= _remoteMaxConcurrentStreams)
+            {
+              me.getFuture().setFailure(new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Stream " + streamId + " refused"));
+              ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), Channels.future(me.getChannel()), frame, me.getRemoteAddress()));
+              ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), Channels.future(me.getChannel()),
+                                                            Http2Frame.rstStream(streamId, Http2Exception.CANCEL), null));
+              return;
+            }
+            _lastLocalStreamId = streamId;
+            stream = new Stream(_initialSendWindow, _initialReceiveWindow);
+            _streams.put(streamId, stream);
+          }
+          if (frame.isEndStream())
+          {
+            stream._localClosed = true;
+            removeIfClosed(streamId, stream);
+          }
+          ctx.sendDownstream(e);
+          break;
+
+        case DATA:
+          stream = _streams.get(streamId);
+          if (stream == null || stream._localClosed)
+          {
+            me.getFuture().setFailure(new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "Stream " + streamId + " is closed"));
+            return;
+          }
+          stream._pending.add(me);
+          if (frame.isEndStream())
+          {
+            stream._localClosed = true;
+          }
+          flush(ctx, streamId, stream);
+          break;
+
+        case RST_STREAM:
+          stream = _streams.remove(streamId);
+          if (stream != null)
+          {
+            failPending(stream, new Http2Exception(frame.getErrorCode(), streamId, "Stream reset"));
+          }
+          _recentlyReset.add(streamId);
+          ctx.sendDownstream(e);
+          break;
+
+        case GOAWAY:
+          // e.g. a graceful shutdown; new streams from the peer are now ignored
+          _sentGoAway = true;
+          ctx.sendDownstream(e);
+          break;
+
+        case SETTINGS:
+          if (!frame.hasFlag(FLAG_ACK))
+          {
+            onLocalSettings(frame);
+          }
+          ctx.sendDownstream(e);
+          break;
+
+        default:
+          ctx.sendDownstream(e);
+      }
+    }
+  }
+
+  /** Writes as much of a stream's pending DATA as the windows allow; guarded by this */
+  private void flush(ChannelHandlerContext ctx, int streamId, Stream stream)
+  {
+    while (!stream._pending.isEmpty())
+    {
+      MessageEvent me = stream._pending.peek();
+      Http2Frame frame = (Http2Frame) me.getMessage();
+      ChannelBuffer data = frame.getPayload();
+      int length = data.readableBytes();
+
+      if (length == 0)
+      {
+        stream._pending.poll();
+        ctx.sendDownstream(me);
+        continue;
+      }
+
+      int allowed = Math.min(Math.min(_sendWindow, stream._sendWindow), _maxSendFrameSize);
+      if (allowed <= 0)
+      {
+        return;
+      }
+
+      if (length <= allowed)
+      {
+        stream._pending.poll();
+        _sendWindow -= length;
+        stream._sendWindow -= length;
+        ctx.sendDownstream(me);
+      }
+      else
+      {
+        // Send what fits now; the rest stays queued behind it
+        ChannelBuffer slice = data.readSlice(allowed);
+        _sendWindow -= allowed;
+        stream._sendWindow -= allowed;
+        Channels.write(ctx, Channels.future(me.getChannel()), Http2Frame.data(streamId, slice, false));
+      }
+    }
+
+    removeIfClosed(streamId, stream);
+  }
+
+  /** Guarded by this */
+  private void flushAll(ChannelHandlerContext ctx)
+  {
+    for (Map.Entry<Integer, Stream> entry : new ArrayList<Map.Entry<Integer, Stream>>(_streams.entrySet()))
+    {
+      if (_sendWindow <= 0)
+      {
+        return;
+      }
+      flush(ctx, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void sendGoAway(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+  {
+    int lastStreamId;
+    synchronized (this)
+    {
+      if (_sentGoAway || !ctx.getChannel().isConnected())
+      {
+        ctx.sendDownstream(e);
+        return;
+      }
+      _sentGoAway = true;
+      lastStreamId = _lastRemoteStreamId;
+    }
+
+    ChannelFuture future = Channels.future(ctx.getChannel());
+    future.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        ctx.sendDownstream(e);
+      }
+    });
+    Channels.write(ctx, future, Http2Frame.goAway(lastStreamId, Http2Exception.NO_ERROR));
+  }
+
+  /** Guarded by this */
+  private void removeIfClosed(int streamId, Stream stream)
+  {
+    if (stream._localClosed && stream._remoteClosed && stream._pending.isEmpty())
+    {
+      _streams.remove(streamId);
+    }
+  }
+
+  private static void failPending(Stream stream, Throwable cause)
+  {
+    MessageEvent me;
+    while ((me = stream._pending.poll()) != null)
+    {
+      me.getFuture().setFailure(cause);
+    }
+  }
+
+  private boolean isRemoteInitiated(int streamId)
+  {
+    return _server == ((streamId & 1) == 1);
+  }
+
+  /** @return Whether a stream ID has not been used yet; guarded by this */
+  private boolean isIdle(int streamId)
+  {
+    return isRemoteInitiated(streamId) ? streamId > _lastRemoteStreamId : streamId > _lastLocalStreamId;
+  }
+
+  private int countRemoteStreams()
+  {
+    int count = 0;
+    for (Integer streamId : _streams.keySet())
+    {
+      if (isRemoteInitiated(streamId))
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private int countLocalStreams()
+  {
+    return _streams.size() - countRemoteStreams();
+  }
+
+  private static boolean isCloseRequest(ChannelStateEvent e)
+  {
+    switch (e.getState())
+    {
+      case OPEN:
+      case CONNECTED:
+      case BOUND:
+        return Boolean.FALSE.equals(e.getValue()) || e.getValue() == null;
+      default:
+        return false;
+    }
+  }
+}
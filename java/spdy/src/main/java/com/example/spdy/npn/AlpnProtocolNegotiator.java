@@ -0,0 +1,130 @@
+package com.example.spdy.npn;
+
+import static com.example.spdy.api.Constants.*;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * Negotiates via the JDK's built-in ALPN.
+ *
+ * We still build for Java 7, so the ALPN methods (and the BiFunction the server-side
+ * selector implements) are looked up reflectively, once.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+class AlpnProtocolNegotiator extends ProtocolNegotiator
+{
+  private static final Logger LOG = Logger.getLogger(AlpnProtocolNegotiator.class);
+
+  private static final Class<?> BI_FUNCTION;
+  private static final Method SET_PROTOCOL_SELECTOR; // SSLEngine#setHandshakeApplicationProtocolSelector
+  private static final Method GET_APPLICATION_PROTOCOL; // SSLEngine#getApplicationProtocol
+  private static final Method SET_APPLICATION_PROTOCOLS; // SSLParameters#setApplicationProtocols
+  static
+  {
+    Class<?> biFunction = null;
+    Method setProtocolSelector = null;
+    Method getApplicationProtocol = null;
+    Method setApplicationProtocols = null;
+    try
+    {
+      biFunction = Class.forName("java.util.function.BiFunction");
+      setProtocolSelector = SSLEngine.class.getMethod("setHandshakeApplicationProtocolSelector", biFunction);
+      getApplicationProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+      setApplicationProtocols = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+    }
+    catch (Exception e)
+    {
+      LOG.debug("JDK has no ALPN support: " + e);
+    }
+    BI_FUNCTION = biFunction;
+    SET_PROTOCOL_SELECTOR = setProtocolSelector;
+    GET_APPLICATION_PROTOCOL = getApplicationProtocol;
+    SET_APPLICATION_PROTOCOLS = setApplicationProtocols;
+  }
+
+  static boolean isAvailable()
+  {
+    return SET_PROTOCOL_SELECTOR != null && GET_APPLICATION_PROTOCOL != null && SET_APPLICATION_PROTOCOLS != null;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "ALPN";
+  }
+
+  @Override
+  public void register(SSLEngine engine, final SimpleServerProvider provider)
+  {
+    // (engine, client's protocols) -> our choice, or null to carry on without ALPN
+    Object selector = Proxy.newProxyInstance(BI_FUNCTION.getClassLoader(), new Class<?>[] { BI_FUNCTION },
+                                             new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        if (!"apply".equals(method.getName()))
+        {
+          return method.invoke(this, args); // toString, hashCode, etc.
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> offered = (List<String>) args[1];
+        for (String protocol : provider.protocols())
+        {
+          if (offered.contains(protocol))
+          {
+            provider.protocolSelected(protocol);
+            return protocol;
+          }
+        }
+        provider.unsupported();
+        return null;
+      }
+    });
+
+    invoke(SET_PROTOCOL_SELECTOR, engine, selector);
+  }
+
+  @Override
+  public void register(SSLEngine engine, SimpleClientProvider provider)
+  {
+    // The server chooses, so all we do is offer
+    SSLParameters parameters = engine.getSSLParameters();
+    List<String> protocols = provider.protocols();
+    invoke(SET_APPLICATION_PROTOCOLS, parameters, (Object) protocols.toArray(new String[protocols.size()]));
+    engine.setSSLParameters(parameters);
+  }
+
+  @Override
+  public String getSelectedProtocol(SSLEngine engine)
+  {
+    // null until the handshake is done, then "" if the peer didn't do ALPN
+    String protocol = (String) invoke(GET_APPLICATION_PROTOCOL, engine);
+    if (protocol == null)
+    {
+      return null;
+    }
+    return protocol.isEmpty() ? HTTP_1_1 : protocol;
+  }
+
+  private static Object invoke(Method method, Object target, Object... args)
+  {
+    try
+    {
+      return method.invoke(target, args);
+    }
+    catch (Exception e)
+    {
+      throw new IllegalStateException("Could not call " + method.getName(), e);
+    }
+  }
+}
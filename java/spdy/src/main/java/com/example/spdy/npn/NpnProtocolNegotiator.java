@@ -0,0 +1,57 @@
+package com.example.spdy.npn;
+
+import org.eclipse.jetty.npn.NextProtoNego;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Negotiates via NPN, which only works with the npn-boot JAR on the boot classpath.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+class NpnProtocolNegotiator extends ProtocolNegotiator
+{
+  NpnProtocolNegotiator()
+  {
+    NextProtoNego.debug = true;
+  }
+
+  /** @return Whether NextProtoNego came from the boot classpath, i.e. the JDK will call it */
+  static boolean isAvailable()
+  {
+    return NextProtoNego.class.getClassLoader() == null;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "NPN";
+  }
+
+  @Override
+  public void register(SSLEngine engine, SimpleServerProvider provider)
+  {
+    NextProtoNego.put(engine, provider);
+  }
+
+  @Override
+  public void register(SSLEngine engine, SimpleClientProvider provider)
+  {
+    NextProtoNego.put(engine, provider);
+  }
+
+  @Override
+  public String getSelectedProtocol(SSLEngine engine)
+  {
+    NextProtoNego.Provider provider = NextProtoNego.get(engine);
+    if (provider instanceof SimpleServerProvider)
+    {
+      return ((SimpleServerProvider) provider).getSelectedProtocol();
+    }
+    if (provider instanceof SimpleClientProvider)
+    {
+      return ((SimpleClientProvider) provider).getSelectedProtocol();
+    }
+    return null;
+  }
+}
@@ -0,0 +1,59 @@
+package com.example.spdy.npn;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Negotiates the application protocol during the TLS handshake.
+ *
+ * The JDK's built-in ALPN is used when it's there (Java 9+, or 8u252+), so no boot
+ * classpath tricks are needed. Otherwise we fall back to NPN via Jetty's
+ * {@link org.eclipse.jetty.npn.NextProtoNego}, which needs the npn-boot JAR matching
+ * the (1.7.0) JDK.
+ *
+ * Either way, {@link SimpleServerProvider} and {@link SimpleClientProvider} decide
+ * what is offered and selected.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public abstract class ProtocolNegotiator
+{
+  private static final Logger LOG = Logger.getLogger(ProtocolNegotiator.class);
+
+  private static final ProtocolNegotiator INSTANCE;
+  static
+  {
+    if (AlpnProtocolNegotiator.isAvailable())
+    {
+      INSTANCE = new AlpnProtocolNegotiator();
+    }
+    else
+    {
+      if (!NpnProtocolNegotiator.isAvailable())
+      {
+        LOG.warn("Neither ALPN nor the NPN boot JAR is available, protocol negotiation will not complete");
+      }
+      INSTANCE = new NpnProtocolNegotiator();
+    }
+    LOG.info("Using " + INSTANCE.getName() + " for protocol negotiation");
+  }
+
+  /** @return ALPN if the JDK supports it, else NPN */
+  public static ProtocolNegotiator getInstance()
+  {
+    return INSTANCE;
+  }
+
+  /** @return "ALPN" or "NPN" */
+  public abstract String getName();
+
+  /** Has the server-mode engine select a protocol using provider */
+  public abstract void register(SSLEngine engine, SimpleServerProvider provider);
+
+  /** Has the client-mode engine offer, or select from, the provider's protocols */
+  public abstract void register(SSLEngine engine, SimpleClientProvider provider);
+
+  /** @return The negotiated protocol, or null if that's not known yet */
+  public abstract String getSelectedProtocol(SSLEngine engine);
+}
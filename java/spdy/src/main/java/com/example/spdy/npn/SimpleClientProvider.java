@@ -4,19 +4,33 @@ import static com.example.spdy.api.Constants.*;
 
 import org.eclipse.jetty.npn.NextProtoNego;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Client-side protocol negotiation via NPN
+ * Client-side protocol negotiation via NPN or ALPN
  *
- * Supports spdy/3 and http/1.1 over SSL
+ * Supports h2, spdy/3 and http/1.1 over SSL, in that order of preference, unless told
+ * to offer fewer (e.g. only http/1.1, to compare it with spdy/3)
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
 public class SimpleClientProvider implements NextProtoNego.ClientProvider
 {
+  private final List<String> _protocols;
   private String _protocol = null;
 
+  public SimpleClientProvider()
+  {
+    this(Arrays.asList(HTTP_2, SPDY_3, HTTP_1_1));
+  }
+
+  /** @param protocols The protocols to offer, most preferred first */
+  public SimpleClientProvider(List<String> protocols)
+  {
+    _protocols = protocols;
+  }
+
   @Override
   public boolean supports()
   {
@@ -34,16 +48,26 @@ public class SimpleClientProvider implements NextProtoNego.ClientProvider
   {
     String protocol = null;
 
-    if (protocols.contains(SPDY_3))
-      protocol = SPDY_3;
-    else if (protocols.contains(HTTP_1_1))
-      protocol = HTTP_1_1;
+    for (String supported : protocols())
+    {
+      if (protocols.contains(supported))
+      {
+        protocol = supported;
+        break;
+      }
+    }
 
     _protocol = protocol;
 
     return protocol;
   }
 
+  /** @return The protocols we speak, most preferred first (what ALPN offers) */
+  public List<String> protocols()
+  {
+    return _protocols;
+  }
+
   /** @return The protocol selected via NPN */
   public String getSelectedProtocol()
   {
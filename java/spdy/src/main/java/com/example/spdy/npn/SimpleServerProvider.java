@@ -8,9 +8,9 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * Server-side protocol negotiation via NPN
+ * Server-side protocol negotiation via NPN or ALPN
  *
- * Supports spdy/3 and http/1.1 over SSL
+ * Supports h2, spdy/3 and http/1.1 over SSL, in that order of preference
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
@@ -27,7 +27,7 @@ public class SimpleServerProvider implements NextProtoNego.ServerProvider
   @Override
   public List<String> protocols()
   {
-    return Arrays.asList(SPDY_3, HTTP_1_1);
+    return Arrays.asList(HTTP_2, SPDY_3, HTTP_1_1);
 //    return Arrays.asList(HTTP_1_1); // only HTTP
   }
 
@@ -0,0 +1,469 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.*;
+import org.jboss.netty.handler.timeout.TimeoutException;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands whole requests to an {@link AsyncRequestHandler}, and writes each response once
+ * its {@link ResponsePromise} is completed, from whatever thread that happens on.
+ *
+ * Responses get their request's stream ID and priority. HTTP/1.1 ones go out in the
+ * order their requests came, a chunked one having the connection to itself until its
+ * body ends. SPDY and HTTP/2 ones go out as soon as they're ready, their bodies'
+ * chunks tagged with the stream (see {@link StreamHttpChunk}) so that several can be
+ * written at once, taking turns.
+ *
+ * Its {@link #getResetHandler() reset handler} goes below the HTTP decoding, which
+ * swallows resets of streams it's still aggregating, and cancels a reset stream's
+ * promise. The connection closing cancels them all.
+ *
+ * A request's content stays on the {@link ContentBudgetHandler}'s books until its
+ * response has been written, or cancelled, rather than just until it's been handed over.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class AsyncRequestDispatcher extends SimpleChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(AsyncRequestDispatcher.class);
+
+  private final AsyncRequestHandler _handler;
+  private final ChannelUpstreamHandler _resetHandler = new ResetHandler();
+
+  /** Taken while writing, so what's taken from the queues goes out in order */
+  private final ReentrantLock _writeLock = new ReentrantLock();
+  private volatile ChannelHandlerContext _ctx;
+  private volatile ContentBudgetHandler _budget;
+
+  // All of the below are guarded by this
+  /** SPDY / HTTP/2 requests not yet completely answered */
+  private final Map<Integer, ResponsePromise> _streams = new HashMap<Integer, ResponsePromise>();
+  /** HTTP/1.1: every request not yet answered, in order; SPDY / HTTP/2: responses ready to go */
+  private final Deque<ResponsePromise> _queue = new ArrayDeque<ResponsePromise>();
+  /** HTTP/1.1: the chunked response whose body is being written */
+  private ResponsePromise _writing;
+  /** SPDY / HTTP/2: the chunked responses whose bodies are being written, in turn */
+  private final Deque<ResponsePromise> _bodies = new ArrayDeque<ResponsePromise>();
+  /** Finished since their content was last given back to the budget */
+  private final List<ResponsePromise> _finished = new ArrayList<ResponsePromise>();
+
+  public AsyncRequestDispatcher(AsyncRequestHandler handler)
+  {
+    _handler = handler;
+  }
+
+  /** @return The handler to go below the HTTP decoding */
+  public ChannelUpstreamHandler getResetHandler()
+  {
+    return _resetHandler;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    if (!(e.getMessage() instanceof HttpRequest))
+    {
+      super.messageReceived(ctx, e);
+      return;
+    }
+
+    _ctx = ctx;
+    _budget = ctx.getPipeline().get(ContentBudgetHandler.class);
+    HttpRequest request = (HttpRequest) e.getMessage();
+    String streamIdHeader = request.headers().get(SPDY_STREAM_ID);
+    int streamId = streamIdHeader == null ? 0 : Integer.parseInt(streamIdHeader);
+
+    ResponsePromise promise = new ResponsePromise(this, ctx.getChannel(), streamId, request);
+    if (_budget != null)
+    {
+      _budget.hold(streamId, promise);
+    }
+    synchronized (this)
+    {
+      if (streamId == 0)
+      {
+        _queue.add(promise);
+      }
+      else
+      {
+        _streams.put(streamId, promise);
+      }
+    }
+
+    try
+    {
+      _handler.handle(request, promise);
+    }
+    catch (Exception ex)
+    {
+      promise.setFailure(ex);
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    List<ResponsePromise> abandoned;
+    synchronized (this)
+    {
+      abandoned = new ArrayList<ResponsePromise>(_streams.values());
+      abandoned.addAll(_queue);
+      if (_writing != null)
+      {
+        abandoned.add(_writing);
+      }
+      abandoned.addAll(_bodies);
+    }
+    for (ResponsePromise promise : abandoned)
+    {
+      cancel(promise, new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    Channels.close(ctx.getChannel());
+    if (isRoutine(e.getCause()))
+    {
+      LOG.debug("Connection lost", e.getCause());
+    }
+    else
+    {
+      LOG.error(e);
+    }
+  }
+
+  /** @return Whether it's just the client going away, e.g. a reset or a timeout */
+  private static boolean isRoutine(Throwable cause)
+  {
+    return cause instanceof ClosedChannelException
+        || cause instanceof IOException && !(cause instanceof SSLException)
+        || cause instanceof TimeoutException;
+  }
+
+  boolean respond(ResponsePromise promise, HttpResponse response)
+  {
+    synchronized (this)
+    {
+      if (promise.getResponse() != null || promise.isFinished())
+      {
+        return false;
+      }
+
+      if (promise.getStreamId() != 0)
+      {
+        HttpHeaders.setHeader(response, SPDY_STREAM_ID, promise.getStreamId());
+        HttpHeaders.setHeader(response, SPDY_STREAM_PRIORITY, SpdyHttpHeaders.getPriority(promise.getRequest()));
+        _queue.add(promise);
+      }
+      promise.setResponseHead(response);
+      if (!response.isChunked())
+      {
+        promise.setEnded();
+      }
+    }
+    flush();
+    return true;
+  }
+
+  ChannelFuture write(ResponsePromise promise, ChannelBuffer content, boolean last)
+  {
+    Channel channel = promise.getChannel();
+    ChannelFuture future = Channels.future(channel);
+    synchronized (this)
+    {
+      if (promise.getCancelCause() != null)
+      {
+        return Channels.failedFuture(channel, promise.getCancelCause());
+      }
+      if (promise.getResponse() == null || promise.isEnded())
+      {
+        throw new IllegalStateException("No chunked response to write to");
+      }
+
+      int streamId = promise.getStreamId();
+      if (last)
+      {
+        promise.getBody().add(new DownstreamMessageEvent(channel, future, streamId == 0
+            ? HttpChunk.LAST_CHUNK
+            : new StreamHttpChunk(streamId, ChannelBuffers.EMPTY_BUFFER, true), null));
+        promise.setEnded();
+      }
+      else if (content.readable())
+      {
+        promise.getBody().add(new DownstreamMessageEvent(channel, future, streamId == 0
+            ? new DefaultHttpChunk(content)
+            : new StreamHttpChunk(streamId, content, false), null));
+      }
+      else
+      {
+        // An empty chunk would be taken for the last
+        return Channels.succeededFuture(channel);
+      }
+    }
+    flush();
+    return future;
+  }
+
+  boolean fail(ResponsePromise promise, Throwable cause)
+  {
+    HttpResponse error = null;
+    synchronized (this)
+    {
+      if (promise.isEnded() || promise.isFinished())
+      {
+        return false;
+      }
+
+      if (promise.getResponse() == null)
+      {
+        error = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        HttpHeaders.setContentLength(error, 0);
+      }
+      else
+      {
+        // Too late for a status, so end the stream, or for HTTP/1.1 the connection
+        Channel channel = promise.getChannel();
+        promise.getBody().add(promise.getStreamId() == 0
+                                  ? new DownstreamChannelStateEvent(channel, Channels.future(channel),
+                                                                    ChannelState.OPEN, Boolean.FALSE)
+                                  : new DownstreamMessageEvent(channel, Channels.future(channel),
+                                                               resetFrame(promise), null));
+        promise.setEnded();
+      }
+    }
+
+    HttpRequest request = promise.getRequest();
+    LOG.warn("Failed " + request.getMethod() + " " + request.getUri() + " (streamId=" + promise.getStreamId() + ")",
+             cause);
+    if (error != null)
+    {
+      return respond(promise, error);
+    }
+    flush();
+    return true;
+  }
+
+  /** Drops the rest of a response, and tells whoever's producing it */
+  private void cancel(ResponsePromise promise, Throwable cause)
+  {
+    List<ChannelEvent> dropped;
+    List<ResponsePromise.CancellationListener> listeners;
+    synchronized (this)
+    {
+      if (promise.isFinished())
+      {
+        return;
+      }
+      finished(promise);
+      promise.setCancelCause(cause);
+      _queue.remove(promise);
+      if (_writing == promise)
+      {
+        _writing = null;
+      }
+      _bodies.remove(promise);
+      dropped = new ArrayList<ChannelEvent>(promise.getBody());
+      promise.getBody().clear();
+      listeners = new ArrayList<ResponsePromise.CancellationListener>(promise.getListeners());
+      promise.getListeners().clear();
+    }
+
+    releaseFinished();
+    for (ChannelEvent e : dropped)
+    {
+      e.getFuture().setFailure(cause);
+    }
+    for (ResponsePromise.CancellationListener listener : listeners)
+    {
+      try
+      {
+        listener.cancelled(promise, cause);
+      }
+      catch (Exception e)
+      {
+        LOG.warn("Cancellation listener failed", e);
+      }
+    }
+  }
+
+  /** Passes on whatever may be written now */
+  private void flush()
+  {
+    ChannelHandlerContext ctx = _ctx;
+    _writeLock.lock();
+    try
+    {
+      ChannelEvent e;
+      while ((e = nextWrite()) != null)
+      {
+        ctx.sendDownstream(e);
+      }
+    }
+    finally
+    {
+      _writeLock.unlock();
+    }
+    releaseFinished();
+  }
+
+  /** Gives back the content of requests whose responses have finished, outside the lock */
+  private void releaseFinished()
+  {
+    ContentBudgetHandler budget = _budget;
+    List<ResponsePromise> finished;
+    synchronized (this)
+    {
+      if (_finished.isEmpty())
+      {
+        return;
+      }
+      finished = new ArrayList<ResponsePromise>(_finished);
+      _finished.clear();
+    }
+    if (budget != null)
+    {
+      for (ResponsePromise promise : finished)
+      {
+        budget.release(promise.getChannel().getPipeline(), promise);
+      }
+    }
+  }
+
+  /** @return The next response head or piece of body that may be written */
+  private synchronized ChannelEvent nextWrite()
+  {
+    if (_writing != null)
+    {
+      // Nothing else may go until the rest of this body has
+      ChannelEvent e = _writing.getBody().poll();
+      if (e != null && _writing.isEnded() && _writing.getBody().isEmpty())
+      {
+        finished(_writing);
+        _writing = null;
+      }
+      return e;
+    }
+
+    ResponsePromise promise = _queue.peek();
+    if (promise != null && promise.getResponse() != null)
+    {
+      _queue.poll();
+      if (!promise.getResponse().isChunked())
+      {
+        finished(promise);
+      }
+      else if (promise.getStreamId() == 0)
+      {
+        _writing = promise;
+      }
+      else
+      {
+        _bodies.add(promise);
+      }
+      Channel channel = promise.getChannel();
+      return new DownstreamMessageEvent(channel, Channels.future(channel), promise.getResponse(), null);
+    }
+    // For HTTP/1.1, the next in line may not be ready, and there are no other bodies
+    return nextBodyWrite();
+  }
+
+  /** @return The next piece of the first SPDY / HTTP/2 body that has one, which then goes to the back; guarded by this */
+  private ChannelEvent nextBodyWrite()
+  {
+    for (int i = _bodies.size(); i > 0; i--)
+    {
+      ResponsePromise promise = _bodies.poll();
+      ChannelEvent e = promise.getBody().poll();
+      if (e != null && promise.isEnded() && promise.getBody().isEmpty())
+      {
+        finished(promise);
+      }
+      else
+      {
+        _bodies.add(promise);
+      }
+      if (e != null)
+      {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /** Guarded by this */
+  private void finished(ResponsePromise promise)
+  {
+    promise.setFinished();
+    _finished.add(promise);
+    if (promise.getStreamId() != 0)
+    {
+      _streams.remove(promise.getStreamId());
+    }
+  }
+
+  private static Object resetFrame(ResponsePromise promise)
+  {
+    if (promise.getChannel().getPipeline().get(SpdySessionHandler.class) != null)
+    {
+      return new DefaultSpdyRstStreamFrame(promise.getStreamId(), SpdyStreamStatus.INTERNAL_ERROR);
+    }
+    return Http2Frame.rstStream(promise.getStreamId(), Http2Exception.INTERNAL_ERROR);
+  }
+
+  /** Cancels the promises of streams the client resets */
+  private class ResetHandler extends SimpleChannelUpstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      Object msg = e.getMessage();
+      if (msg instanceof SpdyRstStreamFrame)
+      {
+        reset(((SpdyRstStreamFrame) msg).getStreamId());
+      }
+      else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM)
+      {
+        reset(((Http2Frame) msg).getStreamId());
+      }
+      super.messageReceived(ctx, e);
+    }
+
+    private void reset(int streamId)
+    {
+      ResponsePromise promise;
+      synchronized (AsyncRequestDispatcher.this)
+      {
+        promise = _streams.get(streamId);
+      }
+      if (promise != null)
+      {
+        cancel(promise, new IOException("Stream reset by peer"));
+        // Whatever was waiting behind its body may go now
+        flush();
+      }
+    }
+  }
+}
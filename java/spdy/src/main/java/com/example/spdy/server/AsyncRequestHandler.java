@@ -0,0 +1,21 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Answers whole requests, now or later.
+ *
+ * Called on the channel's I/O thread, so anything slow should be handed off elsewhere,
+ * with the response given to the {@link ResponsePromise} from whichever thread has it.
+ * Its stream ID and priority are filled in, and it's written as soon as it may be.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public interface AsyncRequestHandler
+{
+  /**
+   * @param request The whole request, content included
+   * @param response To complete with the response, or a failure (which the client sees as a 500)
+   */
+  void handle(HttpRequest request, ResponsePromise response) throws Exception;
+}
@@ -0,0 +1,55 @@
+package com.example.spdy.server;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dummy streaming handler that says how many bytes it was sent, without keeping any of them
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ByteCountingHandler implements StreamingRequestHandler
+{
+  private static final Logger LOG = Logger.getLogger(ByteCountingHandler.class);
+
+  private final Map<RequestStream, Long> _counts = new ConcurrentHashMap<RequestStream, Long>();
+
+  @Override
+  public void requestReceived(RequestStream stream, HttpRequest request) throws Exception
+  {
+    _counts.put(stream, 0L);
+  }
+
+  @Override
+  public void contentReceived(RequestStream stream, ChannelBuffer content) throws Exception
+  {
+    _counts.put(stream, _counts.get(stream) + content.readableBytes());
+  }
+
+  @Override
+  public void requestComplete(RequestStream stream) throws Exception
+  {
+    long count = _counts.remove(stream);
+    HttpRequest request = stream.getRequest();
+    LOG.info(request.getMethod() + " " + request.getUri() + " (streamId=" + stream.getStreamId()
+                 + ", bytes=" + count + ")");
+
+    DefaultHttpResponse httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    byte[] content = ("Received " + count + " bytes").getBytes();
+    httpResponse.setContent(ChannelBuffers.wrappedBuffer(content));
+    HttpHeaders.setContentLength(httpResponse, content.length);
+    stream.respond(httpResponse);
+  }
+
+  @Override
+  public void requestAborted(RequestStream stream, Throwable cause)
+  {
+    _counts.remove(stream);
+    LOG.info("Aborted " + stream.getRequest().getUri() + " (streamId=" + stream.getStreamId() + "): " + cause);
+  }
+}
@@ -0,0 +1,102 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compressed variants of cacheable responses, shared by all connections, so that hot
+ * content is only compressed once per encoding.
+ *
+ * An entry is keyed by encoding, host and URI, and only served if the response being
+ * written has exactly the content it was compressed from. Least recently used entries
+ * are evicted once the cache holds more than its limit.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class CompressionCache
+{
+  private final long _maxBytes;
+
+  // Guarded by this
+  private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long _bytes;
+  private long _hits;
+  private long _misses;
+
+  /** @param maxBytes Most bytes, original and compressed, held at once */
+  public CompressionCache(long maxBytes)
+  {
+    _maxBytes = maxBytes;
+  }
+
+  /** @return The compressed variant of {@code content}, or null if we don't have it */
+  public synchronized ChannelBuffer get(String key, ChannelBuffer content)
+  {
+    Entry entry = _entries.get(key);
+    if (entry == null || !entry._content.equals(content))
+    {
+      _misses++;
+      return null;
+    }
+    _hits++;
+    return entry._compressed.duplicate();
+  }
+
+  public synchronized void put(String key, ChannelBuffer content, ChannelBuffer compressed)
+  {
+    Entry entry = new Entry(ChannelBuffers.copiedBuffer(content), ChannelBuffers.copiedBuffer(compressed));
+    if (entry.size() > _maxBytes)
+    {
+      return;
+    }
+
+    Entry previous = _entries.put(key, entry);
+    if (previous != null)
+    {
+      _bytes -= previous.size();
+    }
+    _bytes += entry.size();
+
+    while (_bytes > _maxBytes)
+    {
+      Map.Entry<String, Entry> eldest = _entries.entrySet().iterator().next();
+      _entries.remove(eldest.getKey());
+      _bytes -= eldest.getValue().size();
+    }
+  }
+
+  public synchronized long getBytes()
+  {
+    return _bytes;
+  }
+
+  public synchronized long getHits()
+  {
+    return _hits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return _misses;
+  }
+
+  private static class Entry
+  {
+    final ChannelBuffer _content;
+    final ChannelBuffer _compressed;
+
+    Entry(ChannelBuffer content, ChannelBuffer compressed)
+    {
+      _content = content;
+      _compressed = compressed;
+    }
+
+    long size()
+    {
+      return _content.readableBytes() + _compressed.readableBytes();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.example.spdy.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit on the number of requests the server handles at once, after the
+ * Gradient algorithm.
+ *
+ * Each finished request's latency is compared against a long-term average: while they
+ * agree the limit creeps up, and as latency grows past it (i.e. requests are queueing
+ * somewhere) the limit is cut in proportion. Requests over the limit are shed.
+ *
+ * It starts out generous, so a cold server takes its first burst, and is brought down by
+ * the latency that burst causes.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ConcurrencyLimit
+{
+  /** How much worse than average latency may get before we back off */
+  private static final double TOLERANCE = 1.5;
+  /** How far each sample moves the limit toward its new value */
+  private static final double SMOOTHING = 0.2;
+  /** Headroom allowed over the limit the gradient alone would give */
+  private static final int QUEUE_SIZE = 4;
+  /** Number of samples the long-term average latency is taken over */
+  private static final int LONG_WINDOW = 600;
+
+  private final int _minLimit;
+  private final int _maxLimit;
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final AtomicLong _shedRequests = new AtomicLong();
+  private volatile int _limit;
+
+  // Guarded by this
+  private double _estimatedLimit;
+  private double _longRttNanos;
+
+  /**
+   * @param minLimit The limit never goes below this
+   * @param initialLimit The limit starts here (or at maxLimit if 0)
+   * @param maxLimit The limit never goes above this
+   */
+  public ConcurrencyLimit(int minLimit, int initialLimit, int maxLimit)
+  {
+    _minLimit = minLimit;
+    _maxLimit = maxLimit;
+    _estimatedLimit = initialLimit <= 0 ? maxLimit : Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    _limit = (int) _estimatedLimit;
+  }
+
+  /** @return Whether a request may go ahead, in which case it must later be released */
+  public boolean tryAcquire()
+  {
+    while (true)
+    {
+      int inFlight = _inFlight.get();
+      if (inFlight >= _limit)
+      {
+        _shedRequests.incrementAndGet();
+        return false;
+      }
+      if (_inFlight.compareAndSet(inFlight, inFlight + 1))
+      {
+        return true;
+      }
+    }
+  }
+
+  /** Releases a request that completed after {@code rttNanos}, and adjusts the limit */
+  public void release(long rttNanos)
+  {
+    int inFlight = _inFlight.getAndDecrement();
+    if (rttNanos > 0)
+    {
+      sample(rttNanos, inFlight);
+    }
+  }
+
+  /** Releases a request that didn't complete, so says nothing about latency */
+  public void release()
+  {
+    _inFlight.decrementAndGet();
+  }
+
+  private synchronized void sample(long rttNanos, int inFlight)
+  {
+    if (_longRttNanos == 0)
+    {
+      _longRttNanos = rttNanos;
+    }
+    else
+    {
+      _longRttNanos += (rttNanos - _longRttNanos) / LONG_WINDOW;
+    }
+
+    if (_longRttNanos / rttNanos > 2)
+    {
+      // Latency has dropped well below the average, e.g. after a spike: catch up faster
+      _longRttNanos *= 0.95;
+    }
+
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * _longRttNanos / rttNanos));
+    if (gradient == 1.0 && inFlight < _estimatedLimit / 2)
+    {
+      // Not using the limit we have, so good latency says nothing about raising it (bad still lowers it)
+      return;
+    }
+
+    double newLimit = _estimatedLimit * gradient + QUEUE_SIZE;
+    newLimit = _estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    _estimatedLimit = Math.max(_minLimit, Math.min(_maxLimit, newLimit));
+    _limit = (int) _estimatedLimit;
+  }
+
+  public int getLimit()
+  {
+    return _limit;
+  }
+
+  public int getInFlight()
+  {
+    return _inFlight.get();
+  }
+
+  public long getShedRequests()
+  {
+    return _shedRequests.get();
+  }
+}
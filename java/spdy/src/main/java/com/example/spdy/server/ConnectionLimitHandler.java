@@ -0,0 +1,65 @@
+package com.example.spdy.server;
+
+import com.example.spdy.transport.Transport;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+
+import java.net.InetAddress;
+
+/**
+ * Closes a newly accepted connection, before reading anything from it, if it would
+ * go over the {@link ConnectionLimits}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ConnectionLimitHandler extends SimpleChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(ConnectionLimitHandler.class);
+
+  private final ConnectionLimits _limits;
+
+  /** The address we counted this connection against, if any */
+  private volatile InetAddress _address;
+  /** When the connection was accepted, from {@link System#nanoTime()} */
+  private volatile long _connectedNanos;
+
+  public ConnectionLimitHandler(ConnectionLimits limits)
+  {
+    _limits = limits;
+  }
+
+  @Override
+  public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    _connectedNanos = System.nanoTime();
+    InetAddress address = Transport.getRemoteInetAddress(ctx.getChannel());
+    if (_limits.acquire(ctx.getChannel(), address))
+    {
+      _address = address;
+      super.channelConnected(ctx, e);
+    }
+    else
+    {
+      LOG.warn("Too many connections, refusing " + ctx.getChannel().getRemoteAddress());
+      Channels.close(ctx.getChannel());
+    }
+  }
+
+  /** @return When the connection was accepted, from {@link System#nanoTime()}, or 0 if it hasn't been yet */
+  public long getConnectedNanos()
+  {
+    return _connectedNanos;
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    InetAddress address = _address;
+    if (address != null)
+    {
+      _address = null;
+      _limits.release(address);
+    }
+    super.channelClosed(ctx, e);
+  }
+}
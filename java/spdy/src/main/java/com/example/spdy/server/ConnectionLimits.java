@@ -0,0 +1,88 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts open connections, in total and per remote address, against their limits,
+ * and keeps track of them so they can be drained on shutdown.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ConnectionLimits
+{
+  private final int _maxConnections;
+  private final int _maxConnectionsPerAddress;
+  private final ChannelGroup _channels = new DefaultChannelGroup("server-connections");
+
+  // Guarded by this
+  private final Map<InetAddress, Integer> _connectionsPerAddress = new HashMap<InetAddress, Integer>();
+  private int _connections;
+  private long _rejectedConnections;
+
+  /**
+   * @param maxConnections Most connections open at once (0 for no limit)
+   * @param maxConnectionsPerAddress Most connections open at once from one address (0 for no limit)
+   */
+  public ConnectionLimits(int maxConnections, int maxConnectionsPerAddress)
+  {
+    _maxConnections = maxConnections;
+    _maxConnectionsPerAddress = maxConnectionsPerAddress;
+  }
+
+  /** @return Whether {@code channel} may stay open, in which case it must later be released */
+  public synchronized boolean acquire(Channel channel, InetAddress address)
+  {
+    Integer count = _connectionsPerAddress.get(address);
+    if (count == null)
+    {
+      count = 0;
+    }
+
+    if ((_maxConnections > 0 && _connections >= _maxConnections)
+            || (_maxConnectionsPerAddress > 0 && count >= _maxConnectionsPerAddress))
+    {
+      _rejectedConnections++;
+      return false;
+    }
+
+    _connections++;
+    _connectionsPerAddress.put(address, count + 1);
+    _channels.add(channel); // removed again on close
+    return true;
+  }
+
+  public synchronized void release(InetAddress address)
+  {
+    Integer count = _connectionsPerAddress.remove(address);
+    if (count != null)
+    {
+      _connections--;
+      if (count > 1)
+      {
+        _connectionsPerAddress.put(address, count - 1);
+      }
+    }
+  }
+
+  /** @return The open connections */
+  public ChannelGroup getChannels()
+  {
+    return _channels;
+  }
+
+  public synchronized int getConnections()
+  {
+    return _connections;
+  }
+
+  public synchronized long getRejectedConnections()
+  {
+    return _rejectedConnections;
+  }
+}
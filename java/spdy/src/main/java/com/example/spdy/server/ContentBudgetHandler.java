@@ -0,0 +1,397 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.*;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Accounts for request content against a {@link MemoryBudget} on its way to be
+ * aggregated, and stops taking new requests while the budget is spent.
+ *
+ * Goes just before the aggregating stage (HttpChunkAggregator, SpdyHttpDecoder or
+ * Http2HttpCodec), and its {@link #getReleaseHandler() release handler} just after it,
+ * to give the memory back once the whole request has been handled. A handler that's still
+ * using the request after that, e.g. to answer it later, {@link #hold holds} on to it.
+ *
+ * When no more can be admitted, new SPDY / HTTP/2 streams with a body are refused with
+ * REFUSED_STREAM, and the senders of those already admitted have to wait until there's
+ * room: HTTP/1.1 connections stop reading, and SPDY / HTTP/2 streams have their DATA held
+ * here and their WINDOW_UPDATEs held back (see {@link WindowUpdateGate}). A request that
+ * outgrows the per-stream limit, or its connection's with nothing to wait for, gets 413
+ * (HTTP/1.1) or is cancelled.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ContentBudgetHandler extends SimpleChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(ContentBudgetHandler.class);
+
+  private final MemoryBudget _budget;
+  private final MemoryBudget.Connection _connection;
+  private final ChannelUpstreamHandler _releaseHandler = new ReleaseHandler();
+
+  // All of the below are only touched by the I/O thread
+  /** Events read while the budget was spent: HTTP/1.1 ones, or the DATA of suspended streams */
+  private final Queue<MessageEvent> _held = new ArrayDeque<MessageEvent>();
+  /** SPDY / HTTP/2 streams whose WINDOW_UPDATEs are held back meanwhile */
+  private final Set<Integer> _suspended = new HashSet<Integer>();
+  /** Whether an HTTP/1.1 request was rejected, so the rest is thrown away until the connection closes */
+  private boolean _rejectingHttp;
+
+  public ContentBudgetHandler(MemoryBudget budget)
+  {
+    _budget = budget;
+    _connection = budget.newConnection();
+  }
+
+  /** @return The handler to go after the aggregating stage */
+  public ChannelUpstreamHandler getReleaseHandler()
+  {
+    return _releaseHandler;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+
+    if (msg instanceof HttpRequest || msg instanceof HttpChunk)
+    {
+      if (_rejectingHttp)
+      {
+        return;
+      }
+      if (!_held.isEmpty() || !_connection.canAdmit())
+      {
+        holdHttp(ctx, e);
+      }
+      else
+      {
+        receivedHttp(ctx, e);
+      }
+    }
+    else if (msg instanceof SpdySynStreamFrame)
+    {
+      receivedSynStream(ctx, e, (SpdySynStreamFrame) msg);
+    }
+    else if (msg instanceof SpdyDataFrame)
+    {
+      SpdyDataFrame frame = (SpdyDataFrame) msg;
+      if (!receivedData(ctx, e, frame.getStreamId(), frame.getData().readableBytes()))
+      {
+        // Tell the session, then the decoder, to forget about the stream
+        LOG.warn("Cancelled SPDY stream " + frame.getStreamId() + ", over its memory budget");
+        Channels.write(ctx, Channels.future(ctx.getChannel()),
+                       new DefaultSpdyRstStreamFrame(frame.getStreamId(), SpdyStreamStatus.CANCEL));
+        Channels.fireMessageReceived(ctx, new DefaultSpdyRstStreamFrame(frame.getStreamId(), SpdyStreamStatus.CANCEL));
+      }
+    }
+    else if (msg instanceof SpdyHeadersFrame && _suspended.contains(((SpdyHeadersFrame) msg).getStreamId()))
+    {
+      // Trailers, which mustn't overtake the DATA held before them
+      _held.add(e);
+    }
+    else if (msg instanceof SpdyRstStreamFrame)
+    {
+      forget(ctx.getPipeline(), ((SpdyRstStreamFrame) msg).getStreamId());
+      ctx.sendUpstream(e);
+    }
+    else if (msg instanceof Http2Frame)
+    {
+      receivedHttp2Frame(ctx, e, (Http2Frame) msg);
+    }
+    else
+    {
+      ctx.sendUpstream(e);
+    }
+  }
+
+  private void receivedHttp(ChannelHandlerContext ctx, MessageEvent e)
+  {
+    Object msg = e.getMessage();
+    if (msg instanceof HttpRequest)
+    {
+      _connection.admit(0);
+    }
+
+    int bytes = (msg instanceof HttpRequest ? ((HttpRequest) msg).getContent() : ((HttpChunk) msg).getContent())
+        .readableBytes();
+    if (_connection.reserve(0, bytes))
+    {
+      ctx.sendUpstream(e);
+    }
+    else
+    {
+      _rejectingHttp = true;
+      _held.clear();
+      LOG.warn("Rejected request from " + ctx.getChannel().getRemoteAddress() + ", over its memory budget");
+      HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                                                       HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+      HttpHeaders.setContentLength(response, 0);
+      HttpHeaders.setKeepAlive(response, false);
+      ChannelFuture future = Channels.future(ctx.getChannel());
+      future.addListener(ChannelFutureListener.CLOSE);
+      Channels.write(ctx, future, response);
+    }
+  }
+
+  /** Stops reading, and queues what's already been read, until the budget has room */
+  private void holdHttp(ChannelHandlerContext ctx, MessageEvent e)
+  {
+    _held.add(e);
+    if (_held.size() == 1)
+    {
+      if (e.getMessage() instanceof HttpRequest)
+      {
+        _connection.refused();
+      }
+      ctx.getChannel().setReadable(false);
+      waitForBudget(ctx);
+    }
+  }
+
+  /**
+   * Accounts for a stream's DATA, and passes it on, or while the budget is spent holds it
+   * and the stream's WINDOW_UPDATEs back until there's room
+   *
+   * @return False if the stream is to be cancelled
+   */
+  private boolean receivedData(ChannelHandlerContext ctx, MessageEvent e, int streamId, int bytes)
+  {
+    if (!_connection.reserve(streamId, bytes))
+    {
+      return false;
+    }
+    if (_connection.canAdmit() && !_suspended.contains(streamId))
+    {
+      ctx.sendUpstream(e);
+      return true;
+    }
+
+    _held.add(e);
+    if (_suspended.add(streamId))
+    {
+      WindowUpdateGate gate = ctx.getPipeline().get(WindowUpdateGate.class);
+      if (gate != null)
+      {
+        gate.suspend(streamId);
+      }
+    }
+    if (_held.size() == 1)
+    {
+      waitForBudget(ctx);
+    }
+    return true;
+  }
+
+  /** Forgets a stream that's been reset or handled, with any credit held back for it */
+  private void forget(ChannelPipeline pipeline, int streamId)
+  {
+    _connection.release(streamId);
+    if (_suspended.remove(streamId))
+    {
+      WindowUpdateGate gate = pipeline.get(WindowUpdateGate.class);
+      if (gate != null)
+      {
+        gate.release(streamId);
+      }
+    }
+  }
+
+  private void waitForBudget(final ChannelHandlerContext ctx)
+  {
+    _connection.whenAvailable(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (ctx.getChannel().isOpen())
+        {
+          ctx.getPipeline().execute(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              releaseHeld(ctx);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /** Passes on what was held, but holds a new HTTP/1.1 request back again if there's still no room */
+  private void releaseHeld(ChannelHandlerContext ctx)
+  {
+    while (!_held.isEmpty())
+    {
+      Object msg = _held.peek().getMessage();
+      if (msg instanceof HttpRequest && !_connection.canAdmit())
+      {
+        waitForBudget(ctx);
+        return;
+      }
+      if (msg instanceof HttpRequest || msg instanceof HttpChunk)
+      {
+        receivedHttp(ctx, _held.poll());
+      }
+      else
+      {
+        // Already accounted for
+        ctx.sendUpstream(_held.poll());
+      }
+    }
+
+    if (_suspended.isEmpty())
+    {
+      ctx.getChannel().setReadable(true);
+      return;
+    }
+    WindowUpdateGate gate = ctx.getPipeline().get(WindowUpdateGate.class);
+    for (Integer streamId : _suspended)
+    {
+      if (gate != null)
+      {
+        gate.resume(streamId);
+      }
+    }
+    _suspended.clear();
+  }
+
+  private void receivedSynStream(ChannelHandlerContext ctx, MessageEvent e, SpdySynStreamFrame frame)
+  {
+    if (frame.isLast())
+    {
+      // Nothing to buffer
+      ctx.sendUpstream(e);
+    }
+    else if (_connection.canAdmit())
+    {
+      _connection.admit(frame.getStreamId());
+      ctx.sendUpstream(e);
+    }
+    else
+    {
+      LOG.debug("Refused SPDY stream " + frame.getStreamId() + ", out of memory budget");
+      _connection.refused();
+      Channels.write(ctx, Channels.future(ctx.getChannel()),
+                     new DefaultSpdyRstStreamFrame(frame.getStreamId(), SpdyStreamStatus.REFUSED_STREAM));
+    }
+  }
+
+  private void receivedHttp2Frame(ChannelHandlerContext ctx, MessageEvent e, Http2Frame frame) throws Exception
+  {
+    int streamId = frame.getStreamId();
+    switch (frame.getType())
+    {
+      case Http2Frame.HEADERS:
+        if (_suspended.contains(streamId))
+        {
+          // Trailers, which mustn't overtake the DATA held before them
+          _held.add(e);
+        }
+        else if (frame.isEndStream() || frame.hasFlag(Http2Frame.FLAG_DISCARD) || _connection.isAdmitted(streamId))
+        {
+          ctx.sendUpstream(e);
+        }
+        else if (_connection.canAdmit())
+        {
+          _connection.admit(streamId);
+          ctx.sendUpstream(e);
+        }
+        else
+        {
+          // The header block still has to be decoded, to keep HPACK in sync
+          LOG.debug("Refused HTTP/2 stream " + streamId + ", out of memory budget");
+          _connection.refused();
+          Http2Frame discard = new Http2Frame(frame.getType(), frame.getFlags() | Http2Frame.FLAG_DISCARD, streamId,
+                                              frame.getPayload(), frame.getLength());
+          Channels.fireMessageReceived(ctx, discard, e.getRemoteAddress());
+          Channels.fireExceptionCaught(ctx.getChannel(), new Http2Exception(Http2Exception.REFUSED_STREAM, streamId,
+                                                                            "Out of memory budget"));
+        }
+        break;
+
+      case Http2Frame.DATA:
+        if (!receivedData(ctx, e, streamId, frame.getPayload().readableBytes()))
+        {
+          throw new Http2Exception(Http2Exception.CANCEL, streamId, "Content over its memory budget");
+        }
+        break;
+
+      case Http2Frame.RST_STREAM:
+        forget(ctx.getPipeline(), streamId);
+        ctx.sendUpstream(e);
+        break;
+
+      default:
+        ctx.sendUpstream(e);
+    }
+  }
+
+  /**
+   * Keeps a request's content accounted for after the release handler has seen it, until
+   * {@link #release(ChannelPipeline, Object)}. Called on the I/O thread, as the request passes.
+   */
+  public void hold(int streamId, Object owner)
+  {
+    _connection.hold(streamId, owner);
+  }
+
+  /** Gives back what was held for {@code owner}; may be called from any thread */
+  public void release(ChannelPipeline pipeline, final Object owner)
+  {
+    pipeline.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _connection.releaseHeld(owner);
+      }
+    });
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    _held.clear();
+    _suspended.clear();
+    _connection.releaseAll();
+    super.channelClosed(ctx, e);
+  }
+
+  /** Gives back a request's memory once it's been handled */
+  private class ReleaseHandler extends SimpleChannelUpstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      if (!(e.getMessage() instanceof HttpRequest))
+      {
+        ctx.sendUpstream(e);
+        return;
+      }
+
+      String streamIdHeader = ((HttpRequest) e.getMessage()).headers().get(SPDY_STREAM_ID);
+      try
+      {
+        ctx.sendUpstream(e);
+      }
+      finally
+      {
+        forget(ctx.getPipeline(), streamIdHeader == null ? 0 : Integer.parseInt(streamIdHeader));
+      }
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response content with gzip or deflate, whichever the request's
+ * {@code Accept-Encoding} prefers, for HTTP/1.1, SPDY and HTTP/2 alike.
+ *
+ * Only whole (not chunked) responses at least the minimum size, of a type worth
+ * compressing, are compressed. The compressed variants of cacheable responses are kept
+ * in a {@link CompressionCache}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ContentCompressionHandler extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler
+{
+  private static final String GZIP = "gzip";
+  private static final String DEFLATE = "deflate";
+
+  private final int _level;
+  private final int _minSize;
+  private final CompressionCache _cache;
+
+  /** What we need to know about each request to compress its response, guarded by this */
+  private final Map<Integer, Request> _requests = new HashMap<Integer, Request>();
+  /** HTTP/1.1 requests awaiting responses, in order, guarded by this */
+  private final LinkedList<Request> _http1Requests = new LinkedList<Request>();
+
+  /**
+   * @param level Deflate level, 1 (fastest) to 9 (smallest)
+   * @param minSize Smallest content worth compressing
+   * @param cache Where to keep compressed variants, or null to compress every time
+   */
+  public ContentCompressionHandler(int level, int minSize, CompressionCache cache)
+  {
+    _level = level;
+    _minSize = minSize;
+    _cache = cache;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    if (e.getMessage() instanceof HttpRequest)
+    {
+      HttpRequest request = (HttpRequest) e.getMessage();
+      Request info = new Request(request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING),
+                                 HttpHeaders.getHost(request, "") + request.getUri());
+      String streamId = request.headers().get(SPDY_STREAM_ID);
+      synchronized (this)
+      {
+        if (streamId == null)
+        {
+          _http1Requests.add(info);
+        }
+        else
+        {
+          _requests.put(Integer.parseInt(streamId), info);
+        }
+      }
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof HttpResponse)
+    {
+      HttpResponse response = (HttpResponse) ((MessageEvent) e).getMessage();
+      if (response.getStatus().getCode() != HttpResponseStatus.CONTINUE.getCode())
+      {
+        Request request = takeRequest(response);
+        if (request != null)
+        {
+          compress(response, request);
+        }
+      }
+    }
+    ctx.sendDownstream(e);
+  }
+
+  private synchronized Request takeRequest(HttpResponse response)
+  {
+    String streamId = response.headers().get(SPDY_STREAM_ID);
+    return streamId == null ? _http1Requests.poll() : _requests.remove(Integer.parseInt(streamId));
+  }
+
+  private void compress(HttpResponse response, Request request) throws IOException
+  {
+    ChannelBuffer content = response.getContent();
+    int status = response.getStatus().getCode();
+    if (response.isChunked()
+            || content.readableBytes() < _minSize
+            || status < 200 || status == 204 || status == 304
+            || response.headers().contains(HttpHeaders.Names.CONTENT_ENCODING)
+            || !isCompressible(response.headers().get(HttpHeaders.Names.CONTENT_TYPE)))
+    {
+      return;
+    }
+
+    response.headers().add(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+    String encoding = selectEncoding(request._acceptEncoding);
+    if (encoding == null)
+    {
+      return;
+    }
+
+    String key = encoding + " " + request._uri;
+    boolean cacheable = _cache != null && isCacheable(response);
+    ChannelBuffer compressed = cacheable ? _cache.get(key, content) : null;
+    if (compressed == null)
+    {
+      compressed = compress(content, encoding);
+      if (cacheable)
+      {
+        _cache.put(key, content, compressed);
+      }
+    }
+
+    response.setContent(compressed);
+    response.headers().set(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+    HttpHeaders.setContentLength(response, compressed.readableBytes());
+  }
+
+  private ChannelBuffer compress(ChannelBuffer content, String encoding) throws IOException
+  {
+    ChannelBufferOutputStream bytes = new ChannelBufferOutputStream(
+            ChannelBuffers.dynamicBuffer(content.readableBytes() / 2 + 64));
+    Deflater deflater = null;
+    OutputStream out;
+    if (GZIP.equals(encoding))
+    {
+      out = new GZIPOutputStream(bytes)
+      {
+        {
+          def.setLevel(_level);
+        }
+      };
+    }
+    else
+    {
+      deflater = new Deflater(_level);
+      out = new DeflaterOutputStream(bytes, deflater);
+    }
+
+    try
+    {
+      content.getBytes(content.readerIndex(), out, content.readableBytes());
+      out.close();
+    }
+    finally
+    {
+      if (deflater != null)
+      {
+        deflater.end();
+      }
+    }
+    return bytes.buffer();
+  }
+
+  /** @return gzip or deflate, by the client's preference, or null if it wants neither */
+  private static String selectEncoding(String acceptEncoding)
+  {
+    if (acceptEncoding == null)
+    {
+      return null;
+    }
+
+    float gzipQ = -1;
+    float deflateQ = -1;
+    float starQ = -1;
+    for (String coding : acceptEncoding.split(","))
+    {
+      String name = coding.trim();
+      float q = 1.0f;
+      int semicolon = name.indexOf(';');
+      if (semicolon >= 0)
+      {
+        String param = name.substring(semicolon + 1).trim();
+        name = name.substring(0, semicolon).trim();
+        if (param.startsWith("q="))
+        {
+          try
+          {
+            q = Float.parseFloat(param.substring(2));
+          }
+          catch (NumberFormatException ex)
+          {
+            q = 0;
+          }
+        }
+      }
+
+      if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name))
+      {
+        gzipQ = q;
+      }
+      else if (DEFLATE.equalsIgnoreCase(name))
+      {
+        deflateQ = q;
+      }
+      else if ("*".equals(name))
+      {
+        starQ = q;
+      }
+    }
+
+    if (gzipQ < 0)
+    {
+      gzipQ = starQ;
+    }
+    if (deflateQ < 0)
+    {
+      deflateQ = starQ;
+    }
+
+    if (gzipQ > 0 && gzipQ >= deflateQ)
+    {
+      return GZIP;
+    }
+    return deflateQ > 0 ? DEFLATE : null;
+  }
+
+  private static boolean isCompressible(String contentType)
+  {
+    if (contentType == null)
+    {
+      return true;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/")
+            || type.contains("json")
+            || type.contains("xml")
+            || type.contains("javascript");
+  }
+
+  private static boolean isCacheable(HttpResponse response)
+  {
+    if (response.getStatus().getCode() != HttpResponseStatus.OK.getCode()
+            || response.headers().contains(HttpHeaders.Names.SET_COOKIE))
+    {
+      return false;
+    }
+    String cacheControl = response.headers().get(HttpHeaders.Names.CACHE_CONTROL);
+    return cacheControl == null
+            || !(cacheControl.contains(HttpHeaders.Values.NO_STORE)
+                         || cacheControl.contains(HttpHeaders.Values.PRIVATE)
+                         || cacheControl.contains(HttpHeaders.Values.NO_CACHE));
+  }
+
+  private static class Request
+  {
+    final String _acceptEncoding;
+    final String _uri;
+
+    Request(String acceptEncoding, String uri)
+    {
+      _acceptEncoding = acceptEncoding;
+      _uri = uri;
+    }
+  }
+}
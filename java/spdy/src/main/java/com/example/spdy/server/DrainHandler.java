@@ -0,0 +1,124 @@
+package com.example.spdy.server;
+
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2SessionHandler;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyGoAwayFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+
+/**
+ * Closes a connection gracefully, once the requests it has in flight are done.
+ *
+ * Once {@link #drain()} is called, a SPDY or HTTP/2 session gets a GOAWAY naming the
+ * last stream that reached us, and newer streams are refused so the client can retry
+ * them elsewhere. HTTP/1.1 responses get {@code Connection: close}, and requests
+ * pipelined behind them are refused. When nothing is
+ * left in flight, the connection is closed.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class DrainHandler extends RequestTrackingHandler implements LifeCycleAwareChannelHandler
+{
+  private static final Logger LOG = Logger.getLogger(DrainHandler.class);
+
+  private volatile ChannelHandlerContext _ctx;
+  private volatile boolean _draining;
+  /** Highest stream ID (or HTTP/1.1 request number) we've let through, only touched by the I/O thread */
+  private int _lastStreamId;
+
+  /** Starts draining the connection; may be called from any thread */
+  public void drain()
+  {
+    final ChannelHandlerContext ctx = _ctx;
+    if (ctx == null)
+    {
+      return;
+    }
+
+    ctx.getPipeline().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _draining = true;
+
+        ChannelPipeline pipeline = ctx.getPipeline();
+        Channel channel = ctx.getChannel();
+        ChannelHandlerContext spdySession = pipeline.getContext(SpdySessionHandler.class);
+        if (spdySession != null)
+        {
+          // Below the session handler, which only sends GOAWAY itself on close
+          Channels.write(spdySession, Channels.future(channel), new DefaultSpdyGoAwayFrame(_lastStreamId));
+        }
+        else if (pipeline.get(Http2SessionHandler.class) != null)
+        {
+          // The session handler ignores new streams from now on
+          Channels.write(ctx, Channels.future(channel), Http2Frame.goAway(_lastStreamId, Http2Exception.NO_ERROR));
+        }
+
+        closeIfIdle(channel);
+      }
+    });
+  }
+
+  @Override
+  protected boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    if (_draining && streamId > _lastStreamId)
+    {
+      // Newer than our GOAWAY
+      LOG.debug("Refusing stream " + streamId + " while draining");
+      return false;
+    }
+    _lastStreamId = Math.max(_lastStreamId, streamId);
+    return true;
+  }
+
+  @Override
+  protected void requestFinished(Channel channel, int streamId, boolean responded)
+  {
+    if (_draining)
+    {
+      closeIfIdle(channel);
+    }
+  }
+
+  @Override
+  protected void writingResponse(HttpResponse response, boolean http1)
+  {
+    if (_draining && http1)
+    {
+      HttpHeaders.setKeepAlive(response, false);
+    }
+  }
+
+  private void closeIfIdle(Channel channel)
+  {
+    if (getInFlight() == 0 && channel.isOpen())
+    {
+      Channels.close(channel);
+    }
+  }
+
+  @Override
+  public void beforeAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = ctx;
+  }
+
+  @Override
+  public void afterAdd(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void beforeRemove(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void afterRemove(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = null;
+  }
+}
@@ -4,7 +4,6 @@ import static com.example.spdy.api.Constants.*;
 
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 
 /**
@@ -12,39 +11,21 @@ import org.jboss.netty.handler.codec.http.*;
  *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
-public class HelloWorldHandler extends SimpleChannelUpstreamHandler
+public class HelloWorldHandler implements AsyncRequestHandler
 {
   private static final Logger LOG = Logger.getLogger(HelloWorldHandler.class);
 
   @Override
-  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  public void handle(HttpRequest httpRequest, ResponsePromise response) throws Exception
   {
-    // Request
-    HttpRequest httpRequest = (HttpRequest) e.getMessage();
-
-    // Response
     DefaultHttpResponse httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
     byte[] content = "Hello, World!".getBytes();
     httpResponse.setContent(ChannelBuffers.wrappedBuffer(content));
     HttpHeaders.setContentLength(httpResponse, content.length);
 
-    // SPDY parts
-    String streamId = HttpHeaders.getHeader(httpRequest, SPDY_STREAM_ID);
-    if (streamId != null)
-    {
-      HttpHeaders.addHeader(httpResponse, SPDY_STREAM_ID, streamId);
-      HttpHeaders.addHeader(httpResponse, SPDY_STREAM_PRIORITY, 0);
-    }
-
-    LOG.info(httpRequest.getMethod() + " " + httpRequest.getUri() + " (streamId=" + streamId + ")");
-
-    Channels.write(ctx.getChannel(), httpResponse);
-  }
+    LOG.info(httpRequest.getMethod() + " " + httpRequest.getUri() + " (streamId="
+                 + HttpHeaders.getHeader(httpRequest, SPDY_STREAM_ID) + ")");
 
-  @Override
-  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
-  {
-    Channels.close(ctx.getChannel());
-    LOG.error(e);
+    response.setResponse(httpResponse);
   }
 }
@@ -0,0 +1,93 @@
+package com.example.spdy.server;
+
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2SessionHandler;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyPingFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelUpstreamHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.handler.timeout.WriteTimeoutException;
+
+/**
+ * Closes connections that have gone quiet, as reported by an {@link IdleStateHandler}
+ * in front of it.
+ *
+ * SPDY and HTTP/2 sessions are given a chance first: the first time one is idle we
+ * send a PING, and only if it's still silent the next time is it closed. Connections
+ * whose reads we've suspended ourselves aren't held against the peer.
+ *
+ * Also closes connections whose writes time out.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class IdleConnectionHandler extends IdleStateAwareChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(IdleConnectionHandler.class);
+
+  private volatile boolean _pingOutstanding;
+  private volatile int _lastPingId;
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    _pingOutstanding = false;
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception
+  {
+    Channel channel = ctx.getChannel();
+    if (e.getState() != IdleState.READER_IDLE || !channel.isReadable())
+    {
+      return;
+    }
+
+    ChannelPipeline pipeline = ctx.getPipeline();
+    boolean spdy = pipeline.get(SpdySessionHandler.class) != null;
+    boolean http2 = pipeline.get(Http2SessionHandler.class) != null;
+
+    if ((spdy || http2) && !_pingOutstanding)
+    {
+      LOG.debug("Nothing from " + channel.getRemoteAddress() + " for a while, sending PING");
+      _pingOutstanding = true;
+      if (spdy)
+      {
+        // Ours must be even
+        _lastPingId += 2;
+        Channels.write(channel, new DefaultSpdyPingFrame(_lastPingId));
+      }
+      else
+      {
+        ChannelBuffer opaqueData = ChannelBuffers.buffer(8);
+        opaqueData.writeLong(System.nanoTime());
+        Channels.write(channel, Http2Frame.ping(opaqueData, false));
+      }
+    }
+    else
+    {
+      LOG.info("Closing idle connection from " + channel.getRemoteAddress());
+      Channels.close(channel);
+    }
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    if (e.getCause() instanceof WriteTimeoutException)
+    {
+      LOG.info("Write to " + ctx.getChannel().getRemoteAddress() + " timed out, closing");
+      Channels.close(ctx.getChannel());
+    }
+    else
+    {
+      super.exceptionCaught(ctx, e);
+    }
+  }
+}
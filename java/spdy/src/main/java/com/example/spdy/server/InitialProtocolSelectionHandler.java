@@ -1,26 +1,32 @@
 package com.example.spdy.server;
 
+import com.example.spdy.npn.ProtocolNegotiator;
 import com.example.spdy.npn.SimpleServerProvider;
-import org.eclipse.jetty.npn.NextProtoNego;
+import com.example.spdy.ssl.HandshakeOffloadHandler;
+import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
-import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Determines whether to use a plain-text- (i.e. HTTP), or SSL-based
- * protocol (i.e. HTTPS, SPDY).
+ * Determines whether to use a plain-text- (i.e. HTTP, SPDY, h2c), or SSL-based
+ * protocol (i.e. HTTPS, SPDY, h2).
  *
  * If the first few readable bytes are ASCII, and match a declared HTTP method,
- * we assume that the client is speaking HTTP.
+ * we assume that the client is speaking HTTP. If they are a spdy/3 control frame,
+ * the client is speaking plain-text SPDY (e.g. trusted traffic inside the datacenter).
+ * If they are the HTTP/2 connection preface, the client is speaking h2c with prior knowledge.
+ * If they are a TLS record header, we set up SSL and let ALPN (or NPN) pick the protocol.
+ * See {@link ProtocolSniffer}.
  *
- * It will not be the case that the first bytes are printable characters if SSL used.
+ * A first segment that is too short to decide on is held until more bytes arrive,
+ * and a client that sends nothing at all is disconnected after the sniff timeout.
  *
  * Thanks for this nice little hack, Antony Curtis.
  *
@@ -28,93 +34,138 @@ import java.util.List;
  */
 public class InitialProtocolSelectionHandler extends SimpleChannelUpstreamHandler
 {
-  // Some HTTP methods
-  private static final String[] HTTP_METHODS = {
-      "OPTIONS",
-      "GET",
-      "HEAD",
-      "POST",
-      "PUT",
-      "DELETE",
-      "TRACE",
-      "CONNECT",
-      "PATCH"
-  }; // TODO: More if necessary
-
-  // Figure out the longest HTTP method name
-  private static final int MAX_HTTP_METHOD_LENGTH;
-  static
+  private static final Logger LOG = Logger.getLogger(InitialProtocolSelectionHandler.class);
+
+  private final ServerPipelineFactory _pipelineFactory;
+  private final List<ChannelHandler> _finalHandlers;
+  private final long _sniffTimeoutMillis;
+
+  /** Bytes received so far, only used if the first segment was too short to decide on */
+  private ChannelBuffer _cumulation;
+  /** Closes the channel if the client never says anything */
+  private volatile Timeout _sniffTimeout;
+
+  public InitialProtocolSelectionHandler(ServerPipelineFactory pipelineFactory, List<ChannelHandler> finalHandlers)
+  {
+    _pipelineFactory = pipelineFactory;
+    _finalHandlers = finalHandlers;
+    _sniffTimeoutMillis = pipelineFactory.getConfig().getSniffTimeoutMillis();
+  }
+
+  @Override
+  public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
   {
-    int max = 0;
-    for (String method : HTTP_METHODS)
+    if (_sniffTimeoutMillis > 0)
     {
-      if (method.length() > max)
-        max = method.length();
+      final Channel channel = ctx.getChannel();
+      _sniffTimeout = _pipelineFactory.getTimer().newTimeout(new TimerTask()
+      {
+        @Override
+        public void run(Timeout timeout) throws Exception
+        {
+          if (!timeout.isCancelled() && channel.isOpen())
+          {
+            LOG.warn("No protocol preface from " + channel.getRemoteAddress() + " after "
+                         + _sniffTimeoutMillis + "ms, closing");
+            Channels.close(channel);
+          }
+        }
+      }, _sniffTimeoutMillis, TimeUnit.MILLISECONDS);
     }
-    MAX_HTTP_METHOD_LENGTH = max;
-  }
 
-  private final SSLContext _context;
-  private final List<ChannelHandler> _finalHandlers;
+    super.channelConnected(ctx, e);
+  }
 
-  public InitialProtocolSelectionHandler(SSLContext context, List<ChannelHandler> finalHandlers)
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
   {
-    _context = context;
-    _finalHandlers = finalHandlers;
+    cancelSniffTimeout();
+    _cumulation = null;
+    super.channelClosed(ctx, e);
   }
 
   @Override
   public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
   {
     ChannelBuffer buf = (ChannelBuffer) e.getMessage();
-
-    ChannelPipeline pipeline = ctx.getPipeline();
-    if (shouldUseHttp(buf))
+    if (_cumulation != null)
     {
-      // Simple HTTP processing pipeline
-      pipeline.addLast("httpRequestDecoder", new HttpRequestDecoder());
-      pipeline.addLast("httpChunkAggregator", new HttpChunkAggregator(1024 * 1024));
-      pipeline.addLast("httpResponseEncoder", new HttpResponseEncoder());
-      for (ChannelHandler h : _finalHandlers)
-      {
-        pipeline.addLast(h.getClass().getSimpleName(), h);
-      }
+      _cumulation.writeBytes(buf);
+      buf = _cumulation;
     }
-    else
+
+    ChannelPipeline pipeline = ctx.getPipeline();
+    switch (ProtocolSniffer.sniff(buf))
     {
-      // SSL
-      SSLEngine engine = _context.createSSLEngine();
-      engine.setUseClientMode(false);
+      case NEED_MORE_DATA:
+        if (_cumulation == null)
+        {
+          _cumulation = ChannelBuffers.dynamicBuffer(ProtocolSniffer.MAX_PREFACE_LENGTH,
+                                                     ctx.getChannel().getConfig().getBufferFactory());
+          _cumulation.writeBytes(buf);
+        }
+        return;
+
+      case HTTP:
+        // Simple HTTP processing pipeline
+        _pipelineFactory.addHttpHandlers(pipeline, _finalHandlers);
+        break;
+
+      case SPDY:
+        // Plain-text SPDY, no SSL or NPN
+        LOG.info("Chose plain-text spdy/3");
+        _pipelineFactory.addSpdyHandlers(pipeline, _finalHandlers);
+        break;
 
-      // NPN
-      NextProtoNego.put(engine, new SimpleServerProvider());
-      NextProtoNego.debug = true;
+      case HTTP2:
+        // h2c with prior knowledge, the preface is checked again by the frame decoder
+        LOG.info("Chose plain-text h2c");
+        _pipelineFactory.addHttp2Handlers(pipeline, _finalHandlers);
+        break;
 
-      // Initial pipeline state
-      pipeline.addLast("sslHandler", new SslHandler(engine));
-      pipeline.addLast("protocolSelectionHandler", new SecureServerProtocolSelectionHandler(_finalHandlers));
+      case TLS:
+        // SSL
+        SSLEngine engine = _pipelineFactory.createSslEngine();
+
+        // ALPN or NPN
+        ProtocolNegotiator.getInstance().register(engine, new SimpleServerProvider());
+
+        // Initial pipeline state (handshake runs on the handshake executor, not this worker)
+        pipeline.addLast("handshakeOffloadHandler", new HandshakeOffloadHandler(_pipelineFactory.getHandshakeExecutor()));
+        pipeline.addLast("sslHandler", _pipelineFactory.createSslHandler(engine));
+        _pipelineFactory.addTlsTimingHandlers(pipeline);
+        pipeline.addLast("protocolSelectionHandler", new SecureServerProtocolSelectionHandler(_pipelineFactory, _finalHandlers));
+        break;
+
+      default:
+        LOG.warn("Unrecognized protocol preface from " + ctx.getChannel().getRemoteAddress() + ", closing");
+        cancelSniffTimeout();
+        _cumulation = null;
+        Channels.close(ctx.getChannel());
+        return;
     }
 
+    cancelSniffTimeout();
     pipeline.remove(this);
-    ctx.sendUpstream(e);
+
+    if (buf == _cumulation)
+    {
+      _cumulation = null;
+      Channels.fireMessageReceived(ctx, buf, e.getRemoteAddress());
+    }
+    else
+    {
+      ctx.sendUpstream(e);
+    }
   }
 
-  /** @return true if the first few bytes are an HTTP method in ASCII */
-  private static boolean shouldUseHttp(ChannelBuffer buf)
+  private void cancelSniffTimeout()
   {
-    byte[] firstBytes = new byte[MAX_HTTP_METHOD_LENGTH];
-    buf.readBytes(firstBytes);
-    buf.resetReaderIndex();
-    String s = new String(firstBytes);
-
-    for (String method : HTTP_METHODS)
+    Timeout timeout = _sniffTimeout;
+    if (timeout != null)
     {
-      if (s.startsWith(method))
-      {
-        return true;
-      }
+      timeout.cancel();
+      _sniffTimeout = null;
     }
-
-    return false;
   }
 }
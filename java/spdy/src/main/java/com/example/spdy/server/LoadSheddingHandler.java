@@ -0,0 +1,87 @@
+package com.example.spdy.server;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Admits requests against a {@link ConcurrencyLimit} shared by all connections, feeding
+ * it the time each one took to answer, and sheds the rest as soon as they arrive.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class LoadSheddingHandler extends RequestTrackingHandler
+{
+  private static final Logger LOG = Logger.getLogger(LoadSheddingHandler.class);
+
+  private final ConcurrencyLimit _limit;
+
+  /** When each admitted request started, guarded by this */
+  private final Map<Integer, Long> _startNanos = new HashMap<Integer, Long>();
+
+  public LoadSheddingHandler(ConcurrencyLimit limit)
+  {
+    _limit = limit;
+  }
+
+  @Override
+  protected boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    if (!_limit.tryAcquire())
+    {
+      LOG.debug("Over the concurrency limit of " + _limit.getLimit() + ", shedding stream " + streamId
+                        + " from " + ctx.getChannel().getRemoteAddress());
+      return false;
+    }
+
+    synchronized (this)
+    {
+      _startNanos.put(streamId, System.nanoTime());
+    }
+    return true;
+  }
+
+  @Override
+  protected void requestFinished(Channel channel, int streamId, boolean responded)
+  {
+    Long startNanos;
+    synchronized (this)
+    {
+      startNanos = _startNanos.remove(streamId);
+    }
+
+    if (startNanos == null)
+    {
+      return; // released on close
+    }
+    else if (responded)
+    {
+      _limit.release(System.nanoTime() - startNanos);
+    }
+    else
+    {
+      _limit.release();
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    // Whatever was still in flight won't be answered now
+    int abandoned;
+    synchronized (this)
+    {
+      abandoned = _startNanos.size();
+      _startNanos.clear();
+    }
+    for (int i = 0; i < abandoned; i++)
+    {
+      _limit.release();
+    }
+    super.channelClosed(ctx, e);
+  }
+}
@@ -0,0 +1,255 @@
+package com.example.spdy.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for request content buffered by the server, process-wide, per connection and
+ * per stream.
+ *
+ * Bytes that have already been read are always accounted for, even past a limit, since
+ * they're in the heap either way. The limits instead decide whether new requests are
+ * admitted, when the senders of those admitted must wait (see {@link ContentBudgetHandler}),
+ * and when one request has grown too big.
+ *
+ * Once a limit's been hit, only handlers giving back what they {@link Connection#hold hold}
+ * can free memory, as everyone else's senders wait too. If they hold nothing, waiting
+ * wouldn't help, so the stream taking it over the limit is cut off instead.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class MemoryBudget
+{
+  private final long _maxBytes;
+  private final long _maxConnectionBytes;
+  private final long _maxStreamBytes;
+
+  private final AtomicLong _usedBytes = new AtomicLong();
+  /** What handlers are holding on to, of the above */
+  private final AtomicLong _heldBytes = new AtomicLong();
+  private final AtomicLong _refusedRequests = new AtomicLong();
+  /** Run once usage drops below the limit */
+  private final Queue<Runnable> _waiters = new ConcurrentLinkedQueue<Runnable>();
+
+  public MemoryBudget(long maxBytes, long maxConnectionBytes, long maxStreamBytes)
+  {
+    _maxBytes = maxBytes;
+    _maxConnectionBytes = maxConnectionBytes;
+    _maxStreamBytes = maxStreamBytes;
+  }
+
+  /** @return A budget for one connection's streams, only to be used by its I/O thread */
+  public Connection newConnection()
+  {
+    return new Connection();
+  }
+
+  public boolean isExhausted()
+  {
+    return _usedBytes.get() >= _maxBytes;
+  }
+
+  /** Runs {@code waiter} (on whichever thread frees the memory) once the budget isn't exhausted */
+  public void whenAvailable(Runnable waiter)
+  {
+    _waiters.add(waiter);
+    if (!isExhausted())
+    {
+      runWaiters();
+    }
+  }
+
+  private void release(long bytes)
+  {
+    if (_usedBytes.addAndGet(-bytes) < _maxBytes && !_waiters.isEmpty())
+    {
+      runWaiters();
+    }
+  }
+
+  private void runWaiters()
+  {
+    Runnable waiter;
+    while (!isExhausted() && (waiter = _waiters.poll()) != null)
+    {
+      waiter.run();
+    }
+  }
+
+  public long getUsedBytes()
+  {
+    return _usedBytes.get();
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public long getMaxStreamBytes()
+  {
+    return _maxStreamBytes;
+  }
+
+  /** @return How many requests were refused or cut off for want of memory */
+  public long getRefusedRequests()
+  {
+    return _refusedRequests.get();
+  }
+
+  /**
+   * The streams of one connection. HTTP/1.1 requests are stream 0.
+   */
+  public class Connection
+  {
+    private final Map<Integer, Long> _streams = new HashMap<Integer, Long>();
+    /** Content of requests handed on but still in use, by who's using it */
+    private final Map<Object, Long> _held = new HashMap<Object, Long>();
+    private long _usedBytes;
+    /** Run once the connection is back under its limit */
+    private Runnable _waiter;
+
+    /** @return Whether a new request may start buffering, or more content be read, i.e. no limit has been hit */
+    public boolean canAdmit()
+    {
+      return !isExhausted() && _usedBytes < _maxConnectionBytes;
+    }
+
+    /**
+     * Runs {@code waiter}, on whichever thread frees the memory, once no limit has been
+     * hit: the connection's own, once its handlers give back what they hold, and the
+     * process-wide one. Straight away if a stream is under way with nothing held to wait for,
+     * so its next content is cut off.
+     */
+    public void whenAvailable(Runnable waiter)
+    {
+      if (_usedBytes >= _maxConnectionBytes && !_held.isEmpty())
+      {
+        _waiter = waiter;
+      }
+      else if (_usedBytes >= _maxConnectionBytes || isExhausted() && _heldBytes.get() == 0 && !_streams.isEmpty())
+      {
+        waiter.run();
+      }
+      else
+      {
+        MemoryBudget.this.whenAvailable(waiter);
+      }
+    }
+
+    /** Starts accounting for a stream, which must later be released */
+    public void admit(int streamId)
+    {
+      if (!_streams.containsKey(streamId))
+      {
+        _streams.put(streamId, 0L);
+      }
+    }
+
+    public boolean isAdmitted(int streamId)
+    {
+      return _streams.containsKey(streamId);
+    }
+
+    /**
+     * Accounts for more of an admitted stream's content, even past the connection or
+     * process-wide limit; see {@link #canAdmit()} for whether to read more.
+     *
+     * @return False if the stream wasn't admitted, or, having released it, if it's now over
+     *         the per-stream limit, or over the connection's or process-wide one with nothing
+     *         held to wait for
+     */
+    public boolean reserve(int streamId, int bytes)
+    {
+      Long streamBytes = _streams.get(streamId);
+      if (streamBytes == null)
+      {
+        return false;
+      }
+      if (streamBytes + bytes > _maxStreamBytes
+          || _usedBytes + bytes > _maxConnectionBytes && _held.isEmpty()
+          || MemoryBudget.this._usedBytes.get() + bytes > _maxBytes && _heldBytes.get() == 0)
+      {
+        release(streamId);
+        refused();
+        return false;
+      }
+      _streams.put(streamId, streamBytes + bytes);
+      _usedBytes += bytes;
+      MemoryBudget.this._usedBytes.addAndGet(bytes);
+      return true;
+    }
+
+    /** Stops accounting for a stream, once its content has been handled or thrown away */
+    public void release(int streamId)
+    {
+      Long streamBytes = _streams.remove(streamId);
+      if (streamBytes != null && streamBytes > 0)
+      {
+        _usedBytes -= streamBytes;
+        MemoryBudget.this.release(streamBytes);
+        released();
+      }
+    }
+
+    /**
+     * Keeps accounting for a stream's content while {@code owner} still uses it, but frees
+     * its stream ID (HTTP/1.1's 0 in particular) for the next request.
+     */
+    public void hold(int streamId, Object owner)
+    {
+      Long streamBytes = _streams.remove(streamId);
+      if (streamBytes != null && streamBytes > 0)
+      {
+        _held.put(owner, streamBytes);
+        _heldBytes.addAndGet(streamBytes);
+      }
+    }
+
+    /** Stops accounting for what {@link #hold(int, Object)} kept for {@code owner} */
+    public void releaseHeld(Object owner)
+    {
+      Long heldBytes = _held.remove(owner);
+      if (heldBytes != null)
+      {
+        _heldBytes.addAndGet(-heldBytes);
+        _usedBytes -= heldBytes;
+        MemoryBudget.this.release(heldBytes);
+        released();
+      }
+    }
+
+    /** Wakes the waiter once it has nothing more to wait for from this connection */
+    private void released()
+    {
+      if (_waiter != null && (_usedBytes < _maxConnectionBytes || _held.isEmpty()))
+      {
+        Runnable waiter = _waiter;
+        _waiter = null;
+        MemoryBudget.this.whenAvailable(waiter);
+      }
+    }
+
+    public void releaseAll()
+    {
+      _waiter = null;
+      for (Integer streamId : _streams.keySet().toArray(new Integer[_streams.size()]))
+      {
+        release(streamId);
+      }
+      for (Object owner : _held.keySet().toArray())
+      {
+        releaseHeld(owner);
+      }
+    }
+
+    /** Counts a request that was refused */
+    public void refused()
+    {
+      _refusedRequests.incrementAndGet();
+    }
+  }
+}
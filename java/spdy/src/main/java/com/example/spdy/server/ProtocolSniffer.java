@@ -0,0 +1,215 @@
+package com.example.spdy.server;
+
+import com.example.spdy.http2.Http2Frame;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Classifies the first bytes a client sends on a new connection.
+ *
+ * Bytes are compared in place (via {@link ChannelBuffer#getByte(int)}), so sniffing
+ * neither moves the reader index nor allocates. If the readable bytes are a prefix of
+ * something we recognize, the answer is {@link Result#NEED_MORE_DATA} and the caller
+ * should try again once more bytes arrive.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public final class ProtocolSniffer
+{
+  /** What the start of a connection looks like */
+  public enum Result
+  {
+    /** A TLS record header, or an SSLv2-compatible ClientHello */
+    TLS,
+    /** A plain-text HTTP/1.x request line */
+    HTTP,
+    /** The HTTP/2 client connection preface, i.e. h2c with prior knowledge */
+    HTTP2,
+    /** A plain-text spdy/3 SYN_STREAM or SETTINGS control frame */
+    SPDY,
+    /** The readable bytes are a prefix of something we recognize */
+    NEED_MORE_DATA,
+    /** Nothing we recognize */
+    UNKNOWN
+  }
+
+  private enum Match
+  {
+    YES,
+    MAYBE,
+    NO
+  }
+
+  // Some HTTP methods, including the separating space so "GETX" is not a match
+  private static final byte[][] HTTP_METHODS = {
+      ascii("OPTIONS "),
+      ascii("GET "),
+      ascii("HEAD "),
+      ascii("POST "),
+      ascii("PUT "),
+      ascii("DELETE "),
+      ascii("TRACE "),
+      ascii("CONNECT "),
+      ascii("PATCH ")
+  }; // TODO: More if necessary
+
+  // TLS record header: content type (handshake), then protocol version major
+  private static final int TLS_HANDSHAKE = 0x16;
+  private static final int TLS_MAJOR_VERSION = 0x03;
+  private static final int TLS_HEADER_LENGTH = 3;
+
+  // spdy/3 control frame header: control bit and version, then frame type
+  private static final int SPDY_CONTROL_BIT = 0x80;
+  private static final int SPDY_VERSION = 0x03;
+  private static final int SPDY_SYN_STREAM = 0x01;
+  private static final int SPDY_SETTINGS = 0x04;
+  private static final int SPDY_HEADER_LENGTH = 4;
+
+  // SSLv2-compatible ClientHello: two-byte length with the high bit set, then message type
+  private static final int SSL2_CLIENT_HELLO = 0x01;
+  private static final int SSL2_HEADER_LENGTH = 4;
+
+  /** The most bytes {@link #sniff(ChannelBuffer)} will ever need to decide */
+  public static final int MAX_PREFACE_LENGTH;
+  static
+  {
+    int max = Math.max(TLS_HEADER_LENGTH, Math.max(SPDY_HEADER_LENGTH, SSL2_HEADER_LENGTH));
+    max = Math.max(max, Http2Frame.CONNECTION_PREFACE.length);
+    for (byte[] method : HTTP_METHODS)
+    {
+      max = Math.max(max, method.length);
+    }
+    MAX_PREFACE_LENGTH = max;
+  }
+
+  private ProtocolSniffer() {}
+
+  /** @return What the readable bytes of buf look like; buf is not modified */
+  public static Result sniff(ChannelBuffer buf)
+  {
+    int offset = buf.readerIndex();
+    int readable = buf.readableBytes();
+    if (readable == 0)
+    {
+      return Result.NEED_MORE_DATA;
+    }
+
+    boolean maybe = false;
+
+    switch (matchSpdy(buf, offset, readable))
+    {
+      case YES:
+        return Result.SPDY;
+      case MAYBE:
+        maybe = true;
+    }
+
+    switch (matchTls(buf, offset, readable))
+    {
+      case YES:
+        return Result.TLS;
+      case MAYBE:
+        maybe = true;
+    }
+
+    switch (matchPrefix(buf, offset, readable, Http2Frame.CONNECTION_PREFACE))
+    {
+      case YES:
+        return Result.HTTP2;
+      case MAYBE:
+        maybe = true;
+    }
+
+    for (byte[] method : HTTP_METHODS)
+    {
+      switch (matchPrefix(buf, offset, readable, method))
+      {
+        case YES:
+          return Result.HTTP;
+        case MAYBE:
+          maybe = true;
+      }
+    }
+
+    return maybe ? Result.NEED_MORE_DATA : Result.UNKNOWN;
+  }
+
+  private static Match matchSpdy(ChannelBuffer buf, int offset, int readable)
+  {
+    if (buf.getUnsignedByte(offset) != SPDY_CONTROL_BIT)
+    {
+      return Match.NO;
+    }
+    if (readable < 2)
+    {
+      return Match.MAYBE;
+    }
+    if (buf.getUnsignedByte(offset + 1) != SPDY_VERSION)
+    {
+      return Match.NO;
+    }
+    if (readable < 3)
+    {
+      return Match.MAYBE;
+    }
+    if (buf.getUnsignedByte(offset + 2) != 0)
+    {
+      return Match.NO;
+    }
+    if (readable < SPDY_HEADER_LENGTH)
+    {
+      return Match.MAYBE;
+    }
+
+    int type = buf.getUnsignedByte(offset + 3);
+    return type == SPDY_SYN_STREAM || type == SPDY_SETTINGS ? Match.YES : Match.NO;
+  }
+
+  private static Match matchTls(ChannelBuffer buf, int offset, int readable)
+  {
+    int first = buf.getUnsignedByte(offset);
+
+    if (first == TLS_HANDSHAKE)
+    {
+      if (readable < TLS_HEADER_LENGTH)
+      {
+        return readable < 2 || buf.getUnsignedByte(offset + 1) == TLS_MAJOR_VERSION ? Match.MAYBE : Match.NO;
+      }
+      return buf.getUnsignedByte(offset + 1) == TLS_MAJOR_VERSION ? Match.YES : Match.NO;
+    }
+
+    if ((first & 0x80) != 0)
+    {
+      if (readable < SSL2_HEADER_LENGTH)
+      {
+        return readable < 3 || buf.getUnsignedByte(offset + 2) == SSL2_CLIENT_HELLO ? Match.MAYBE : Match.NO;
+      }
+      return buf.getUnsignedByte(offset + 2) == SSL2_CLIENT_HELLO
+          && buf.getUnsignedByte(offset + 3) == TLS_MAJOR_VERSION ? Match.YES : Match.NO;
+    }
+
+    return Match.NO;
+  }
+
+  private static Match matchPrefix(ChannelBuffer buf, int offset, int readable, byte[] token)
+  {
+    int length = Math.min(readable, token.length);
+    for (int i = 0; i < length; i++)
+    {
+      if (buf.getByte(offset + i) != token[i])
+      {
+        return Match.NO;
+      }
+    }
+    return length == token.length ? Match.YES : Match.MAYBE;
+  }
+
+  private static byte[] ascii(String s)
+  {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+}
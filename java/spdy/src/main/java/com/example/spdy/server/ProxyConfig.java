@@ -0,0 +1,113 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.client.ClientConfig;
+
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * Tunables for a {@link ProxyHandler}.
+ *
+ * Defaults live in {@link com.example.spdy.api.Constants}, and each may be overridden
+ * by the matching system property via {@link #fromSystemProperties()}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ProxyConfig
+{
+  /** The backend requests are forwarded to */
+  private URI _upstreamUri;
+  /** How many multiplexed connections to keep open to it */
+  private int _upstreamConnections = DEFAULT_PROXY_CONNECTIONS;
+  /** How long the backend may take to answer before the client gets a 504 (0 to wait forever) */
+  private long _timeoutMillis = DEFAULT_PROXY_TIMEOUT_MILLIS;
+  /** What each connection's health check GETs */
+  private String _healthCheckPath = DEFAULT_PROXY_HEALTH_CHECK_PATH;
+  /** How often each connection is health checked */
+  private long _healthCheckMillis = DEFAULT_PROXY_HEALTH_CHECK_MILLIS;
+  /** How the connections are made; only SPDY and HTTP/2 are offered, as they must multiplex */
+  private ClientConfig _clientConfig = newClientConfig(false);
+
+  public static ProxyConfig fromSystemProperties()
+  {
+    ProxyConfig config = new ProxyConfig();
+    String upstream = System.getProperty(PROP_PROXY_UPSTREAM);
+    config.setUpstreamUri(upstream == null ? null : URI.create(upstream));
+    config.setUpstreamConnections(Integer.getInteger(PROP_PROXY_CONNECTIONS, DEFAULT_PROXY_CONNECTIONS));
+    config.setTimeoutMillis(Long.getLong(PROP_PROXY_TIMEOUT_MILLIS, DEFAULT_PROXY_TIMEOUT_MILLIS));
+    config.setHealthCheckPath(System.getProperty(PROP_PROXY_HEALTH_CHECK_PATH, DEFAULT_PROXY_HEALTH_CHECK_PATH));
+    config.setHealthCheckMillis(Long.getLong(PROP_PROXY_HEALTH_CHECK_MILLIS, DEFAULT_PROXY_HEALTH_CHECK_MILLIS));
+    config.setClientConfig(newClientConfig(Boolean.getBoolean(PROP_PROXY_PLAINTEXT_SPDY)));
+    return config;
+  }
+
+  private static ClientConfig newClientConfig(boolean plaintextSpdy)
+  {
+    ClientConfig clientConfig = new ClientConfig();
+    clientConfig.setProtocols(Arrays.asList(SPDY_3, HTTP_2));
+    clientConfig.setPlaintextSpdy(plaintextSpdy);
+    return clientConfig;
+  }
+
+  public URI getUpstreamUri()
+  {
+    return _upstreamUri;
+  }
+
+  public void setUpstreamUri(URI upstreamUri)
+  {
+    _upstreamUri = upstreamUri;
+  }
+
+  public int getUpstreamConnections()
+  {
+    return _upstreamConnections;
+  }
+
+  public void setUpstreamConnections(int upstreamConnections)
+  {
+    _upstreamConnections = upstreamConnections;
+  }
+
+  public long getTimeoutMillis()
+  {
+    return _timeoutMillis;
+  }
+
+  public void setTimeoutMillis(long timeoutMillis)
+  {
+    _timeoutMillis = timeoutMillis;
+  }
+
+  public String getHealthCheckPath()
+  {
+    return _healthCheckPath;
+  }
+
+  public void setHealthCheckPath(String healthCheckPath)
+  {
+    _healthCheckPath = healthCheckPath;
+  }
+
+  public long getHealthCheckMillis()
+  {
+    return _healthCheckMillis;
+  }
+
+  public void setHealthCheckMillis(long healthCheckMillis)
+  {
+    _healthCheckMillis = healthCheckMillis;
+  }
+
+  public ClientConfig getClientConfig()
+  {
+    return _clientConfig;
+  }
+
+  public void setClientConfig(ClientConfig clientConfig)
+  {
+    _clientConfig = clientConfig;
+  }
+}
@@ -0,0 +1,622 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.Client;
+import com.example.spdy.client.ResponseStream;
+import com.example.spdy.client.StreamScheduler;
+import com.example.spdy.client.StreamingResponseHandler;
+import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.SpdyHttpHeaders;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards requests to a backend over a few multiplexed SPDY (or HTTP/2) connections, so
+ * however many clients connect, over whichever protocol, the backend only sees those few.
+ *
+ * Each connection is a {@link Client}. A request goes to the healthy one with the fewest
+ * requests in flight. Past the backend's stream limit requests wait in the client's
+ * queue, most urgent first. The request's priority goes with it, as does its
+ * {@code traceparent}, which by now names the server's own span. Hop-by-hop headers don't.
+ *
+ * Bodies are streamed both ways, neither being held whole: the request's as it arrives,
+ * and the response's as the backend sends it. Each side is suspended while what it sent
+ * last waits for the other's flow control window, so a slow reader holds back the writer
+ * rather than filling memory. A client that resets its stream or goes away has the
+ * backend's stream reset too.
+ *
+ * Every connection is health checked, off the I/O threads, which is also when a dropped
+ * one is reopened; until it passes, it's left alone. A connection that closes, can't be
+ * made, or is going away (GOAWAY) fails its check early, but a backend resetting or
+ * refusing one stream only fails that request. With no connection to use the client
+ * gets a 503, if the backend fails a 502, and if it's too slow to start answering once it
+ * has the whole request a 504.
+ * If the backend fails once its response has started, the client's stream is reset.
+ *
+ * Call {@link #releaseExternalResources()} when done with it.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ProxyHandler implements StreamingRequestHandler, ExternalResourceReleasable
+{
+  private static final Logger LOG = Logger.getLogger(ProxyHandler.class);
+
+  /** Headers that only mean something for one connection (as well as any that Connection names) */
+  private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList(
+          "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection",
+          "te", "trailer", "transfer-encoding", "upgrade"));
+  private static final String SPDY_HEADER_PREFIX = "x-spdy-";
+  private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+  private final ProxyConfig _config;
+  private final List<Upstream> _upstreams;
+  private final Timer _timer;
+  private final ScheduledExecutorService _healthChecker;
+  /** Where the search for the least busy connection starts, so ties are spread around */
+  private final AtomicInteger _next = new AtomicInteger();
+  /** Requests being forwarded, until both their body and their response are done with */
+  private final ConcurrentMap<RequestStream, Exchange> _exchanges = new ConcurrentHashMap<RequestStream, Exchange>();
+
+  /** Health checks, and so connecting, start straight away; until they pass, clients get a 503 */
+  public ProxyHandler(ProxyConfig config)
+  {
+    if (config.getUpstreamUri() == null)
+    {
+      throw new IllegalArgumentException("No upstream to proxy to");
+    }
+
+    _config = config;
+    _timer = new HashedWheelTimer();
+    _healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "proxy-health-check");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    _upstreams = new ArrayList<Upstream>();
+    for (int i = 0; i < config.getUpstreamConnections(); i++)
+    {
+      final Upstream upstream = new Upstream(i, new Client(config.getUpstreamUri(), config.getClientConfig()));
+      _upstreams.add(upstream);
+      _healthChecker.scheduleWithFixedDelay(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          upstream.check();
+        }
+      }, 0, config.getHealthCheckMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void requestReceived(RequestStream stream, HttpRequest request) throws Exception
+  {
+    Upstream upstream = choose();
+    if (upstream == null)
+    {
+      stream.respond(error(HttpResponseStatus.SERVICE_UNAVAILABLE));
+      return;
+    }
+
+    Exchange exchange = new Exchange(stream, upstream);
+    upstream.getInFlight().incrementAndGet();
+    _exchanges.put(stream, exchange);
+    try
+    {
+      exchange.setUpstreamStream(upstream.getClient().stream(forward(request, stream.getChannel()), exchange));
+    }
+    catch (Exception e)
+    {
+      exchange.end();
+      upstream.setUnhealthy("request failed", e);
+      stream.respond(error(HttpResponseStatus.BAD_GATEWAY));
+    }
+  }
+
+  @Override
+  public void contentReceived(RequestStream stream, ChannelBuffer content) throws Exception
+  {
+    Exchange exchange = _exchanges.get(stream);
+    if (exchange != null)
+    {
+      exchange.forward(content);
+    }
+  }
+
+  @Override
+  public void requestComplete(RequestStream stream) throws Exception
+  {
+    Exchange exchange = _exchanges.get(stream);
+    if (exchange != null)
+    {
+      exchange.requestComplete();
+    }
+  }
+
+  @Override
+  public void requestAborted(RequestStream stream, Throwable cause)
+  {
+    Exchange exchange = _exchanges.get(stream);
+    if (exchange != null)
+    {
+      exchange.cancel();
+    }
+  }
+
+  /** @return The healthy connection with the fewest requests in flight, or null if none are */
+  private Upstream choose()
+  {
+    int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+    Upstream best = null;
+    for (int i = 0; i < _upstreams.size(); i++)
+    {
+      Upstream upstream = _upstreams.get((start + i) % _upstreams.size());
+      if (upstream.isAvailable()
+          && (best == null || upstream.getInFlight().get() < best.getInFlight().get()))
+      {
+        best = upstream;
+      }
+    }
+    return best;
+  }
+
+  /** @return A copy of the request to send the backend */
+  private HttpRequest forward(HttpRequest request, Channel channel)
+  {
+    HttpRequest forwarded = new DefaultHttpRequest(HttpVersion.HTTP_1_1, request.getMethod(), request.getUri());
+    copyHeaders(request, forwarded);
+
+    // Its priority, from the SYN_STREAM if it came over SPDY, for the stream to the backend
+    if (request.headers().contains(SpdyHttpHeaders.Names.PRIORITY))
+    {
+      forwarded.headers().set(SPDY_STREAM_PRIORITY, SpdyHttpHeaders.getPriority(request));
+    }
+    else if (request.headers().contains(SPDY_STREAM_PRIORITY))
+    {
+      forwarded.headers().set(SPDY_STREAM_PRIORITY, request.headers().get(SPDY_STREAM_PRIORITY));
+    }
+
+    if (!forwarded.headers().contains(HttpHeaders.Names.HOST))
+    {
+      HttpHeaders.setHost(forwarded, _config.getUpstreamUri().getHost());
+    }
+
+    SocketAddress remoteAddress = channel.getRemoteAddress();
+    if (remoteAddress instanceof InetSocketAddress && ((InetSocketAddress) remoteAddress).getAddress() != null)
+    {
+      String address = ((InetSocketAddress) remoteAddress).getAddress().getHostAddress();
+      String forwardedFor = request.headers().get(X_FORWARDED_FOR);
+      forwarded.headers().set(X_FORWARDED_FOR, forwardedFor == null ? address : forwardedFor + ", " + address);
+    }
+
+    // The server has already told an HTTP/1.1 client to go ahead
+    forwarded.headers().remove(HttpHeaders.Names.EXPECT);
+    return forwarded;
+  }
+
+  /** @return A copy of the backend's response to send the client: whole, or just the head of a chunked one */
+  private static HttpResponse backward(HttpResponse upstreamResponse)
+  {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, upstreamResponse.getStatus());
+    copyHeaders(upstreamResponse, response);
+    if (upstreamResponse.isChunked())
+    {
+      response.setChunked(true);
+    }
+    else
+    {
+      response.setContent(upstreamResponse.getContent());
+      if (!HttpHeaders.isContentLengthSet(response))
+      {
+        HttpHeaders.setContentLength(response, upstreamResponse.getContent().readableBytes());
+      }
+    }
+    return response;
+  }
+
+  /** Copies all but the hop-by-hop headers, and those carrying SPDY stream details */
+  private static void copyHeaders(HttpMessage from, HttpMessage to)
+  {
+    Set<String> skipped = new HashSet<String>(HOP_BY_HOP);
+    for (String connection : from.headers().getAll(HttpHeaders.Names.CONNECTION))
+    {
+      for (String name : connection.split(","))
+      {
+        skipped.add(name.trim().toLowerCase(Locale.ENGLISH));
+      }
+    }
+
+    for (Map.Entry<String, String> header : from.headers())
+    {
+      String name = header.getKey().toLowerCase(Locale.ENGLISH);
+      if (!skipped.contains(name) && !name.startsWith(SPDY_HEADER_PREFIX))
+      {
+        to.headers().add(header.getKey(), header.getValue());
+      }
+    }
+  }
+
+  private static HttpResponse error(HttpResponseStatus status)
+  {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+    HttpHeaders.setContentLength(response, 0);
+    return response;
+  }
+
+  @Override
+  public void releaseExternalResources()
+  {
+    _healthChecker.shutdownNow();
+    _timer.stop();
+    for (Upstream upstream : _upstreams)
+    {
+      upstream.getClient().shutdown();
+    }
+  }
+
+  /** @return Whether the request failed because its connection did, rather than just its stream */
+  private static boolean isConnectionFailure(ResponseStream stream, Throwable cause)
+  {
+    Channel channel = stream.getChannel();
+    StreamScheduler scheduler = channel.getPipeline().get(StreamScheduler.class);
+    return cause instanceof ClosedChannelException
+        || cause instanceof ConnectException
+        || !channel.isConnected()
+        || scheduler != null && scheduler.isGoingAway();
+  }
+
+  /** One request on its way to the backend, and its response on its way back */
+  private class Exchange implements StreamingResponseHandler
+  {
+    private final RequestStream _downstream;
+    private final Upstream _upstream;
+    private final AtomicBoolean _ended = new AtomicBoolean();
+    private volatile ResponseStream _upstreamStream;
+    private volatile Timeout _timeout;
+    /** The latest write each way, which once sent lets the other side send more */
+    private volatile ChannelFuture _lastUpstreamWrite;
+    private volatile ChannelFuture _lastDownstreamWrite;
+
+    /** Whether the backend's response came whole, rather than as a head and chunks; only touched by its I/O thread */
+    private boolean _whole;
+
+    // All of the below are guarded by this
+    /** Whether the client has been sent a response, or at least its head */
+    private boolean _answered;
+    private boolean _requestDone;
+    private boolean _responseDone;
+
+    Exchange(RequestStream downstream, Upstream upstream)
+    {
+      _downstream = downstream;
+      _upstream = upstream;
+    }
+
+    void setUpstreamStream(ResponseStream upstreamStream)
+    {
+      _upstreamStream = upstreamStream;
+    }
+
+    /** Gives the backend until the timeout to start answering, from now */
+    private void startTimeout()
+    {
+      if (_config.getTimeoutMillis() <= 0)
+      {
+        return;
+      }
+      synchronized (this)
+      {
+        if (_answered || _ended.get())
+        {
+          return;
+        }
+      }
+      _timeout = _timer.newTimeout(new TimerTask()
+      {
+        @Override
+        public void run(Timeout timeout) throws Exception
+        {
+          if (!_ended.get() && answer())
+          {
+            HttpRequest request = _downstream.getRequest();
+            LOG.warn("Upstream " + _upstream + " took over " + _config.getTimeoutMillis() + "ms to answer "
+                         + request.getMethod() + " " + request.getUri());
+            _upstreamStream.cancel();
+            _downstream.respond(error(HttpResponseStatus.GATEWAY_TIMEOUT));
+            end();
+          }
+        }
+      }, _config.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Passes on the next piece of the request's body, holding the rest back until it's been sent */
+    void forward(ChannelBuffer content)
+    {
+      ChannelFuture written = _upstreamStream.write(ChannelBuffers.copiedBuffer(content));
+      _lastUpstreamWrite = written;
+      if (!written.isDone())
+      {
+        _downstream.suspend();
+        written.addListener(new ChannelFutureListener()
+        {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception
+          {
+            if (future == _lastUpstreamWrite)
+            {
+              _downstream.resume();
+            }
+          }
+        });
+      }
+    }
+
+    /** Ends the request's body, from when the backend has the whole request to answer */
+    void requestComplete()
+    {
+      _upstreamStream.finish();
+      startTimeout();
+      synchronized (this)
+      {
+        _requestDone = true;
+        if (!_responseDone)
+        {
+          return;
+        }
+      }
+      end();
+    }
+
+    /** The client went away, so the backend needn't carry on */
+    void cancel()
+    {
+      ResponseStream upstreamStream = _upstreamStream;
+      if (upstreamStream != null)
+      {
+        upstreamStream.cancel();
+      }
+      end();
+    }
+
+    @Override
+    public void responseReceived(ResponseStream stream, HttpResponse response) throws Exception
+    {
+      if (_ended.get() || !answer())
+      {
+        return;
+      }
+      cancelTimeout();
+      _whole = !response.isChunked();
+      _downstream.respond(backward(response));
+    }
+
+    @Override
+    public void contentReceived(ResponseStream stream, ChannelBuffer content) throws Exception
+    {
+      if (_whole || _ended.get())
+      {
+        return;
+      }
+      ChannelFuture written = _downstream.write(ChannelBuffers.copiedBuffer(content));
+      _lastDownstreamWrite = written;
+      if (!written.isDone())
+      {
+        final ResponseStream upstreamStream = stream;
+        upstreamStream.suspend();
+        written.addListener(new ChannelFutureListener()
+        {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception
+          {
+            if (future == _lastDownstreamWrite)
+            {
+              upstreamStream.resume();
+            }
+          }
+        });
+      }
+    }
+
+    @Override
+    public void responseComplete(ResponseStream stream) throws Exception
+    {
+      if (_ended.get())
+      {
+        return;
+      }
+      if (!_whole)
+      {
+        _downstream.finish();
+      }
+      synchronized (this)
+      {
+        _responseDone = true;
+        if (!_requestDone)
+        {
+          // Keep passing on the request's body, so the backend's stream closes
+          return;
+        }
+      }
+      end();
+    }
+
+    @Override
+    public void responseFailed(ResponseStream stream, Throwable cause)
+    {
+      if (_ended.get())
+      {
+        return;
+      }
+      if (isConnectionFailure(stream, cause))
+      {
+        _upstream.setUnhealthy("connection failed", cause);
+      }
+      else
+      {
+        LOG.debug("Upstream " + _upstream + " failed stream " + stream.getStreamId(), cause);
+      }
+      if (answer())
+      {
+        cancelTimeout();
+        _downstream.respond(error(HttpResponseStatus.BAD_GATEWAY));
+      }
+      else if (!_downstream.isResponded())
+      {
+        // Too late for an error status
+        _downstream.reset();
+      }
+      end();
+    }
+
+    /** @return Whether it's up to the caller to answer the client, i.e. no one else has */
+    private synchronized boolean answer()
+    {
+      if (_answered)
+      {
+        return false;
+      }
+      _answered = true;
+      return true;
+    }
+
+    private void cancelTimeout()
+    {
+      Timeout timeout = _timeout;
+      if (timeout != null)
+      {
+        timeout.cancel();
+      }
+    }
+
+    /** Forgets the exchange, once */
+    void end()
+    {
+      if (_ended.compareAndSet(false, true))
+      {
+        cancelTimeout();
+        _exchanges.remove(_downstream, this);
+        _upstream.getInFlight().decrementAndGet();
+      }
+    }
+  }
+
+  /** One connection to the backend */
+  private class Upstream
+  {
+    private final int _index;
+    private final Client _client;
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private volatile boolean _healthy;
+    /** Guarded by this */
+    private boolean _checked;
+
+    Upstream(int index, Client client)
+    {
+      _index = index;
+      _client = client;
+    }
+
+    Client getClient()
+    {
+      return _client;
+    }
+
+    AtomicInteger getInFlight()
+    {
+      return _inFlight;
+    }
+
+    /** @return Whether it passed its last health check, and is still connected */
+    boolean isAvailable()
+    {
+      return _healthy && _client.isConnected();
+    }
+
+    /** GETs the health check path, connecting first if need be */
+    void check()
+    {
+      HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, _config.getHealthCheckPath());
+      HttpHeaders.setHost(request, _config.getUpstreamUri().getHost());
+      try
+      {
+        HttpResponse response = _client.execute(request).get(_config.getHealthCheckMillis(), TimeUnit.MILLISECONDS);
+        if (response == null)
+        {
+          setUnhealthy("health check timed out", null);
+        }
+        else if (response.getStatus().getCode() >= 500)
+        {
+          setUnhealthy("health check got " + response.getStatus(), null);
+        }
+        else if (!_client.isConnected())
+        {
+          setUnhealthy("connection doesn't multiplex", null);
+        }
+        else
+        {
+          setHealthy(true, null, null);
+        }
+      }
+      catch (Exception e)
+      {
+        setUnhealthy("health check failed", e instanceof ExecutionException ? e.getCause() : e);
+      }
+    }
+
+    /** Leaves it alone until it next passes a health check */
+    void setUnhealthy(String reason, Throwable cause)
+    {
+      setHealthy(false, reason, cause);
+    }
+
+    /** Logs only the changes */
+    private synchronized void setHealthy(boolean healthy, String reason, Throwable cause)
+    {
+      if (_checked && _healthy == healthy)
+      {
+        return;
+      }
+      _checked = true;
+      _healthy = healthy;
+      if (healthy)
+      {
+        LOG.info("Upstream " + this + " is healthy");
+      }
+      else
+      {
+        LOG.warn("Upstream " + this + " is unhealthy: " + reason, cause);
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return _config.getUpstreamUri() + " #" + _index;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.example.spdy.server;
+
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.transport.Transport;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.spdy.SpdyDataFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySynStreamFrame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Refuses requests from clients over their {@link RateLimiter} limits, with a 429 for
+ * HTTP/1.1 or REFUSED_STREAM for SPDY and HTTP/2, and charges them for the request
+ * content they send.
+ *
+ * Clients are told apart by remote address, or by the value of a header if one is
+ * configured and the request has it. HTTP/2 header blocks aren't decoded yet at this
+ * point, so HTTP/2 clients are always told apart by address.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RateLimitHandler extends RequestTrackingHandler
+{
+  private static final Logger LOG = Logger.getLogger(RateLimitHandler.class);
+  private static final HttpResponseStatus TOO_MANY_REQUESTS = new HttpResponseStatus(429, "Too Many Requests");
+
+  private final RateLimiter _limiter;
+  private final String _keyHeader;
+
+  /** The client each admitted stream is charged to, guarded by this */
+  private final Map<Integer, String> _clients = new HashMap<Integer, String>();
+
+  /**
+   * @param keyHeader Header that identifies the client, or null to go by remote address
+   */
+  public RateLimitHandler(RateLimiter limiter, String keyHeader)
+  {
+    _limiter = limiter;
+    _keyHeader = keyHeader;
+  }
+
+  @Override
+  protected boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    String client = getClient(ctx.getChannel(), request);
+    boolean admitted = _limiter.tryAcquire(client);
+
+    // HTTP/1.1 bodies that fit in one read arrive inside the request rather than as chunks
+    if (request instanceof HttpRequest && ((HttpRequest) request).getContent().readable())
+    {
+      _limiter.consume(client, ((HttpRequest) request).getContent().readableBytes());
+    }
+
+    if (!admitted)
+    {
+      LOG.debug("Client " + client + " is over its rate limit, refusing stream " + streamId);
+      return false;
+    }
+
+    synchronized (this)
+    {
+      _clients.put(streamId, client);
+    }
+    return true;
+  }
+
+  @Override
+  protected void requestFinished(Channel channel, int streamId, boolean responded)
+  {
+    synchronized (this)
+    {
+      _clients.remove(streamId);
+    }
+  }
+
+  @Override
+  protected HttpResponseStatus getRefusalStatus()
+  {
+    return TOO_MANY_REQUESTS;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+    int streamId = -1;
+    int bytes = 0;
+
+    if (msg instanceof HttpChunk)
+    {
+      streamId = getHttpRequestId();
+      bytes = ((HttpChunk) msg).getContent().readableBytes();
+    }
+    else if (msg instanceof SpdyDataFrame)
+    {
+      streamId = ((SpdyDataFrame) msg).getStreamId();
+      bytes = ((SpdyDataFrame) msg).getData().readableBytes();
+    }
+    else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.DATA)
+    {
+      streamId = ((Http2Frame) msg).getStreamId();
+      bytes = ((Http2Frame) msg).getLength();
+    }
+
+    if (bytes > 0)
+    {
+      String client;
+      synchronized (this)
+      {
+        client = _clients.get(streamId);
+      }
+      _limiter.consume(client == null ? getClient(ctx.getChannel(), null) : client, bytes);
+    }
+
+    super.messageReceived(ctx, e);
+  }
+
+  private String getClient(Channel channel, Object request)
+  {
+    if (_keyHeader != null)
+    {
+      String key = null;
+      if (request instanceof HttpRequest)
+      {
+        key = ((HttpRequest) request).headers().get(_keyHeader);
+      }
+      else if (request instanceof SpdySynStreamFrame)
+      {
+        key = ((SpdySynStreamFrame) request).headers().get(_keyHeader.toLowerCase());
+      }
+      if (key != null)
+      {
+        return key;
+      }
+    }
+    return Transport.getRemoteInetAddress(channel).getHostAddress();
+  }
+}
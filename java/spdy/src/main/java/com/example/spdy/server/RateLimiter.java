@@ -0,0 +1,164 @@
+package com.example.spdy.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for requests and request bytes, one pair per client.
+ *
+ * Clients are spread over a fixed number of stripes, each its own lock and table, so
+ * that two connections only contend if their clients hash together. Each stripe holds
+ * a bounded number of clients in least recently used order, and drops the eldest once
+ * it's over its share or its buckets have had time to refill (after which forgetting
+ * it changes nothing).
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RateLimiter
+{
+  private static final int STRIPES = 64;
+
+  private final double _requestsPerNano;
+  private final double _requestBurst;
+  private final double _bytesPerNano;
+  private final double _byteBurst;
+  /** How long an idle client takes to refill both its buckets */
+  private final long _refillNanos;
+  private final Stripe[] _stripes;
+  private final AtomicLong _limitedRequests = new AtomicLong();
+
+  /**
+   * @param requestsPerSecond Requests each client may make per second, on average (0 for no limit)
+   * @param requestBurst Requests each client may make at once
+   * @param bytesPerSecond Request bytes each client may send per second, on average (0 for no limit)
+   * @param byteBurst Request bytes each client may send at once
+   * @param maxClients Most clients tracked at once
+   */
+  public RateLimiter(double requestsPerSecond, int requestBurst, long bytesPerSecond, long byteBurst, int maxClients)
+  {
+    _requestsPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    _requestBurst = Math.max(1, requestBurst);
+    _bytesPerNano = (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+    _byteBurst = Math.max(1, byteBurst);
+    _refillNanos = (long) Math.max(_requestsPerNano > 0 ? _requestBurst / _requestsPerNano : 0,
+                                   _bytesPerNano > 0 ? 2 * _byteBurst / _bytesPerNano : 0);
+
+    _stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++)
+    {
+      _stripes[i] = new Stripe(Math.max(1, maxClients / STRIPES));
+    }
+  }
+
+  /** @return Whether {@code client} may start another request */
+  public boolean tryAcquire(String client)
+  {
+    Stripe stripe = stripe(client);
+    synchronized (stripe)
+    {
+      Buckets buckets = stripe.get(client, System.nanoTime());
+      if ((_requestsPerNano > 0 && buckets._requests < 1) || (_bytesPerNano > 0 && buckets._bytes < 0))
+      {
+        _limitedRequests.incrementAndGet();
+        return false;
+      }
+      buckets._requests--;
+      return true;
+    }
+  }
+
+  /** Charges {@code bytes} of request content to {@code client}, which may run its bucket into debt */
+  public void consume(String client, long bytes)
+  {
+    if (_bytesPerNano == 0)
+    {
+      return;
+    }
+
+    Stripe stripe = stripe(client);
+    synchronized (stripe)
+    {
+      Buckets buckets = stripe.get(client, System.nanoTime());
+      buckets._bytes = Math.max(-_byteBurst, buckets._bytes - bytes);
+    }
+  }
+
+  private Stripe stripe(String client)
+  {
+    int hash = client.hashCode();
+    hash ^= (hash >>> 16);
+    return _stripes[hash & (STRIPES - 1)];
+  }
+
+  /** @return How many requests have been refused for going over a limit */
+  public long getLimitedRequests()
+  {
+    return _limitedRequests.get();
+  }
+
+  /** @return How many clients are being tracked */
+  public int getClients()
+  {
+    int clients = 0;
+    for (Stripe stripe : _stripes)
+    {
+      synchronized (stripe)
+      {
+        clients += stripe.size();
+      }
+    }
+    return clients;
+  }
+
+  /** A client's buckets, guarded by its stripe */
+  private static class Buckets
+  {
+    double _requests;
+    double _bytes;
+    long _lastRefillNanos;
+  }
+
+  private class Stripe extends LinkedHashMap<String, Buckets>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int _maxClients;
+    private long _nowNanos;
+
+    Stripe(int maxClients)
+    {
+      super(16, 0.75f, true);
+      _maxClients = maxClients;
+    }
+
+    /** @return The client's buckets, topped up to {@code nowNanos} */
+    Buckets get(String client, long nowNanos)
+    {
+      _nowNanos = nowNanos;
+      Buckets buckets = get(client);
+      if (buckets == null)
+      {
+        buckets = new Buckets();
+        buckets._requests = _requestBurst;
+        buckets._bytes = _byteBurst;
+        buckets._lastRefillNanos = nowNanos;
+        put(client, buckets);
+        return buckets;
+      }
+
+      long elapsed = nowNanos - buckets._lastRefillNanos;
+      buckets._requests = Math.min(_requestBurst, buckets._requests + elapsed * _requestsPerNano);
+      buckets._bytes = Math.min(_byteBurst, buckets._bytes + elapsed * _bytesPerNano);
+      buckets._lastRefillNanos = nowNanos;
+      return buckets;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Buckets> eldest)
+    {
+      return size() > _maxClients || _nowNanos - eldest.getValue()._lastRefillNanos >= _refillNanos;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import org.jboss.netty.handler.codec.spdy.SpdyHttpHeaders;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+import org.jboss.netty.handler.codec.spdy.SpdyStreamStatus;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * One request being streamed to a {@link StreamingRequestHandler}.
+ *
+ * Suspending a stream stops the peer from sending more of it: for SPDY and HTTP/2 we
+ * hold back its WINDOW_UPDATEs (see {@link WindowUpdateGate}), and for HTTP/1.1 we
+ * stop reading the channel. Whatever was already in flight is queued here, which is
+ * at most one flow control window.
+ *
+ * The response may be written whole, or as a chunked head followed by its body a piece
+ * at a time, from any thread. Over SPDY and HTTP/2 the pieces are tagged with the stream
+ * ID, so the bodies of several responses on a connection can be written at once. The
+ * futures complete as each piece is written, flow control permitting, so a producer can
+ * wait on them to keep pace with the client. Over HTTP/1.1 the response to a pipelined
+ * request waits, here, for those to the requests before it.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RequestStream
+{
+  private final StreamingRequestDispatcher _dispatcher;
+  private final Channel _channel;
+  private final int _streamId;
+  private final HttpRequest _request;
+  private final WindowUpdateGate _gate;
+
+  /** Chunks that arrived while suspended, only touched by the I/O thread */
+  private final Queue<HttpChunk> _pending = new ArrayDeque<HttpChunk>();
+  private final Queue<MessageEvent> _held = new ArrayDeque<MessageEvent>();
+  private volatile boolean _suspended;
+  /** Whether the whole response has been written, or the stream reset */
+  private volatile boolean _responded;
+
+  private final Runnable _drain = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      _dispatcher.drain(RequestStream.this);
+    }
+  };
+
+  RequestStream(StreamingRequestDispatcher dispatcher,
+                Channel channel,
+                int streamId,
+                HttpRequest request,
+                WindowUpdateGate gate)
+  {
+    _dispatcher = dispatcher;
+    _channel = channel;
+    _streamId = streamId;
+    _request = request;
+    _gate = gate;
+  }
+
+  public Channel getChannel()
+  {
+    return _channel;
+  }
+
+  /** @return The SPDY / HTTP/2 stream ID, or 0 for HTTP/1.1 */
+  public int getStreamId()
+  {
+    return _streamId;
+  }
+
+  public HttpRequest getRequest()
+  {
+    return _request;
+  }
+
+  public boolean isSuspended()
+  {
+    return _suspended;
+  }
+
+  /** Stops delivery of the body, and asks the peer to stop sending it, until {@link #resume()} */
+  public void suspend()
+  {
+    if (_suspended)
+    {
+      return;
+    }
+    _suspended = true;
+    if (_gate != null)
+    {
+      _gate.suspend(_streamId);
+    }
+    else
+    {
+      _channel.setReadable(false);
+    }
+  }
+
+  /** Delivers anything queued while suspended, and lets the peer send again. May be called from any thread. */
+  public void resume()
+  {
+    if (!_suspended)
+    {
+      return;
+    }
+    _suspended = false;
+    _channel.getPipeline().execute(_drain);
+    if (_gate != null)
+    {
+      _gate.resume(_streamId);
+    }
+    else
+    {
+      _channel.setReadable(true);
+    }
+  }
+
+  /** Writes a response for this request, tagged with its stream ID: a whole one, or the head of a chunked one */
+  public ChannelFuture respond(HttpResponse response)
+  {
+    if (_streamId != 0)
+    {
+      HttpHeaders.setHeader(response, SPDY_STREAM_ID, _streamId);
+      HttpHeaders.setHeader(response, SPDY_STREAM_PRIORITY, SpdyHttpHeaders.getPriority(_request));
+    }
+    if (!response.isChunked())
+    {
+      responded();
+    }
+    return send(response);
+  }
+
+  /** Writes the next piece of a chunked response's body */
+  public ChannelFuture write(ChannelBuffer content)
+  {
+    if (!content.readable())
+    {
+      // An empty chunk would be taken for the last
+      return Channels.succeededFuture(_channel);
+    }
+    return send(_streamId == 0
+        ? new DefaultHttpChunk(content)
+        : new StreamHttpChunk(_streamId, content, false));
+  }
+
+  /** Ends a chunked response's body */
+  public ChannelFuture finish()
+  {
+    responded();
+    return send(_streamId == 0
+        ? HttpChunk.LAST_CHUNK
+        : new StreamHttpChunk(_streamId, ChannelBuffers.EMPTY_BUFFER, true));
+  }
+
+  /**
+   * Abandons the response once it's too late for an error status: resets the stream, or
+   * for HTTP/1.1 closes the connection. The rest of the request's body is dropped.
+   */
+  public ChannelFuture reset()
+  {
+    responded();
+    _channel.getPipeline().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _dispatcher.forget(RequestStream.this);
+      }
+    });
+
+    if (_streamId == 0)
+    {
+      return Channels.close(_channel);
+    }
+    Object frame = _channel.getPipeline().get(SpdySessionHandler.class) != null
+        ? new DefaultSpdyRstStreamFrame(_streamId, SpdyStreamStatus.INTERNAL_ERROR)
+        : Http2Frame.rstStream(_streamId, Http2Exception.INTERNAL_ERROR);
+    return Channels.write(_channel, frame);
+  }
+
+  /** @return Whether the whole response has been written, or the stream reset */
+  public boolean isResponded()
+  {
+    return _responded;
+  }
+
+  /** HTTP/1.1 streams are done with once their response's last piece is written, in turn */
+  private void responded()
+  {
+    _responded = true;
+    if (_streamId != 0)
+    {
+      _dispatcher.responded(this);
+    }
+  }
+
+  /** Writes a piece of the response, which for HTTP/1.1 waits for the responses to earlier requests */
+  private ChannelFuture send(Object msg)
+  {
+    return _streamId == 0 ? _dispatcher.write(this, msg) : Channels.write(_channel, msg);
+  }
+
+  Queue<HttpChunk> getPending()
+  {
+    return _pending;
+  }
+
+  /** Pieces of an HTTP/1.1 response waiting for the responses to earlier requests, guarded by the dispatcher */
+  Queue<MessageEvent> getHeld()
+  {
+    return _held;
+  }
+
+  /** Forgets any withheld flow control credit once the body is done with */
+  void release()
+  {
+    if (_gate != null)
+    {
+      _gate.release(_streamId);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.http2.Http2Frame;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.spdy.SpdySynStreamFrame;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each request from its first frame until its response has been written, and logs
+ * the ones slower than {@link ServerConfig#getSlowRequestMillis()} with where the time went:
+ *
+ * <ul>
+ *   <li>decode: from the first frame to the whole request reaching the final handler (aggregation included)</li>
+ *   <li>handler: from there to the response being written</li>
+ *   <li>write: from there to the last of it being flushed, encoding and encryption included</li>
+ *   <li>tls: how much of that the connection spent encrypting (see {@link TlsTimingHandler})</li>
+ * </ul>
+ *
+ * Goes with the admission handlers, so refused requests aren't traced, and its
+ * {@link #getDispatchHandler() dispatch handler} just before the final handlers. That also
+ * continues the caller's W3C trace, replacing the request's {@code traceparent} with our
+ * own span, and answers with a {@code traceresponse}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class RequestTracingHandler extends RequestTrackingHandler
+{
+  private static final Logger LOG = Logger.getLogger(RequestTracingHandler.class);
+  private static final Logger SLOW_LOG = Logger.getLogger(RequestTracingHandler.class.getName() + ".slow");
+
+  private final long _slowRequestNanos;
+  private final ChannelHandler _dispatchHandler = new DispatchHandler();
+
+  /** Requests in flight, in stream (or HTTP/1.1 request number) order, guarded by this */
+  private final Map<Integer, Span> _spans = new TreeMap<Integer, Span>();
+
+  public RequestTracingHandler(long slowRequestMillis)
+  {
+    _slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(slowRequestMillis);
+  }
+
+  /** @return The handler to go just before the final handlers */
+  public ChannelHandler getDispatchHandler()
+  {
+    return _dispatchHandler;
+  }
+
+  @Override
+  protected boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    ChannelPipeline pipeline = ctx.getPipeline();
+    ConnectionLimitHandler connection = pipeline.get(ConnectionLimitHandler.class);
+    Span span = new Span(getProtocol(request), streamId,
+                         connection == null ? 0 : connection.getConnectedNanos(),
+                         pipeline.get(TlsTimingHandler.class));
+    synchronized (this)
+    {
+      _spans.put(streamId, span);
+    }
+    return true;
+  }
+
+  @Override
+  protected void requestFinished(Channel channel, int streamId, boolean responded)
+  {
+    Span span;
+    synchronized (this)
+    {
+      span = _spans.remove(streamId);
+    }
+    if (span == null)
+    {
+      return;
+    }
+
+    span.finish(responded);
+    if (span.getTotalNanos() >= _slowRequestNanos)
+    {
+      SLOW_LOG.warn(span + " from " + channel.getRemoteAddress());
+    }
+    else if (LOG.isDebugEnabled())
+    {
+      LOG.debug(span + " from " + channel.getRemoteAddress());
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    synchronized (this)
+    {
+      _spans.clear();
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * @param streamIdHeader The message's stream ID, or null for HTTP/1.1, whose requests reach the
+   *                       final handlers, and are answered, in the order they came
+   * @param dispatching Whether it's for a request, rather than a response
+   */
+  private synchronized Span getSpan(String streamIdHeader, boolean dispatching)
+  {
+    if (streamIdHeader != null)
+    {
+      return _spans.get(Integer.parseInt(streamIdHeader));
+    }
+    for (Span span : _spans.values())
+    {
+      if (dispatching ? !span.isDispatched() : !span.isResponding())
+      {
+        return span;
+      }
+    }
+    return null;
+  }
+
+  private static String getProtocol(Object request)
+  {
+    if (request instanceof SpdySynStreamFrame)
+    {
+      return SPDY_3;
+    }
+    else if (request instanceof Http2Frame)
+    {
+      return HTTP_2;
+    }
+    return HTTP_1_1;
+  }
+
+  /** Stamps when the request reaches the final handlers, and when they answer */
+  private class DispatchHandler extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      if (e.getMessage() instanceof HttpRequest)
+      {
+        HttpRequest request = (HttpRequest) e.getMessage();
+        Span span = getSpan(request.headers().get(SPDY_STREAM_ID), true);
+        if (span != null && span.dispatch(request))
+        {
+          request.headers().set(TraceContext.TRACEPARENT, span.getTrace().toTraceparent());
+        }
+      }
+      super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof HttpResponse)
+      {
+        HttpResponse response = (HttpResponse) ((MessageEvent) e).getMessage();
+        if (response.getStatus().getCode() != HttpResponseStatus.CONTINUE.getCode())
+        {
+          Span span = getSpan(response.headers().get(SPDY_STREAM_ID), false);
+          if (span != null && span.respond())
+          {
+            response.headers().set(TraceContext.TRACERESPONSE, span.getTrace().toTraceparent());
+          }
+        }
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+
+  /** One request's timestamps, from {@link System#nanoTime()} */
+  private static class Span
+  {
+    private final String _protocol;
+    private final int _streamId;
+    private final long _startNanos = System.nanoTime();
+    private final long _connectedNanos;
+    private final TlsTimingHandler _tlsTimer;
+
+    private volatile String _method;
+    private volatile String _uri;
+    private volatile TraceContext _trace;
+    private volatile long _dispatchedNanos;
+    private volatile long _respondingNanos;
+    private volatile long _encryptStartNanos;
+    private volatile long _finishedNanos;
+    private volatile long _encryptNanos;
+    private volatile boolean _responded;
+
+    Span(String protocol, int streamId, long connectedNanos, TlsTimingHandler tlsTimer)
+    {
+      _protocol = protocol;
+      _streamId = streamId;
+      _connectedNanos = connectedNanos;
+      _tlsTimer = tlsTimer;
+    }
+
+    /** @return False if it's already been dispatched */
+    boolean dispatch(HttpRequest request)
+    {
+      if (_dispatchedNanos != 0)
+      {
+        return false;
+      }
+      _dispatchedNanos = System.nanoTime();
+      _method = request.getMethod().getName();
+      _uri = request.getUri();
+      _trace = TraceContext.fromTraceparent(request.headers().get(TraceContext.TRACEPARENT));
+      return true;
+    }
+
+    boolean isDispatched()
+    {
+      return _dispatchedNanos != 0;
+    }
+
+    boolean isResponding()
+    {
+      return _respondingNanos != 0;
+    }
+
+    /** @return False if this isn't the request's response, or it wasn't dispatched */
+    boolean respond()
+    {
+      if (_respondingNanos != 0 || _trace == null)
+      {
+        return false;
+      }
+      _respondingNanos = System.nanoTime();
+      if (_tlsTimer != null)
+      {
+        _encryptStartNanos = _tlsTimer.getEncryptNanos();
+      }
+      return true;
+    }
+
+    void finish(boolean responded)
+    {
+      _finishedNanos = System.nanoTime();
+      _responded = responded;
+      if (_tlsTimer != null && _respondingNanos != 0)
+      {
+        _encryptNanos = _tlsTimer.getEncryptNanos() - _encryptStartNanos;
+      }
+    }
+
+    TraceContext getTrace()
+    {
+      return _trace;
+    }
+
+    long getTotalNanos()
+    {
+      return _finishedNanos - _startNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+      TraceContext trace = _trace;
+      return String.format("%s %s (%s stream %d, connection %dms old) %s after %dus:"
+                               + " decode=%dus handler=%dus write=%dus tls=%s trace=%s parent=%s",
+                           _method == null ? "-" : _method,
+                           _uri == null ? "-" : _uri,
+                           _protocol,
+                           _streamId,
+                           _connectedNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_startNanos - _connectedNanos),
+                           _responded ? "responded" : "reset",
+                           micros(_startNanos, _finishedNanos),
+                           micros(_startNanos, _dispatchedNanos),
+                           micros(_dispatchedNanos, _respondingNanos),
+                           micros(_respondingNanos, _finishedNanos),
+                           _tlsTimer == null ? "-" : TimeUnit.NANOSECONDS.toMicros(_encryptNanos) + "us",
+                           trace == null ? "-" : trace.getTraceId(),
+                           trace == null || trace.getParentId() == null ? "-" : trace.getParentId());
+    }
+
+    /** @return Micros from one timestamp to the other, or 0 if either didn't happen */
+    private static long micros(long fromNanos, long toNanos)
+    {
+      if (fromNanos == 0 || toNanos == 0)
+      {
+        return 0;
+      }
+      return TimeUnit.NANOSECONDS.toMicros(Math.max(0, toNanos - fromNanos));
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.http2.Http2Exception;
+import com.example.spdy.http2.Http2Frame;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.*;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Follows each request from its first frame (or, for HTTP/1.1, its head) until its
+ * response has been written or its stream reset, and lets subclasses turn new ones away.
+ *
+ * Sits just above the protocol codec, below any aggregation, so that a refused request
+ * costs next to nothing: HTTP/1.1 gets a 503 (by default) and the connection is closed,
+ * SPDY and HTTP/2 streams get REFUSED_STREAM, which tells the client it's safe to retry.
+ *
+ * HTTP/1.1 requests are numbered in the order they arrive on the connection, from 1, and
+ * that number stands in for the stream ID. Responses come back in the same order, so a
+ * pipelined request is tracked like any other. A refused one is answered once the
+ * requests ahead of it have been, and everything after it is thrown away.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public abstract class RequestTrackingHandler extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler
+{
+  /** Streams in flight (for HTTP/1.1, request numbers), guarded by this */
+  private final Set<Integer> _streams = new HashSet<Integer>();
+  /** HTTP/1.1 requests let through whose response hasn't started, in order, guarded by this */
+  private final Queue<Integer> _awaitingResponse = new ArrayDeque<Integer>();
+  /** Stream of the chunked response being written, unless its chunks say, guarded by this */
+  private int _chunkedStreamId;
+  /** Where a refused HTTP/1.1 request's 503 is to go, once those ahead of it are answered, guarded by this */
+  private ChannelHandlerContext _refusalCtx;
+  /** Number of the latest HTTP/1.1 request, only touched by the I/O thread */
+  private int _httpRequestId;
+  /** Whether an HTTP/1.1 request was refused, so the rest is thrown away, only touched by the I/O thread */
+  private boolean _discardingHttp;
+
+  /**
+   * Called on the I/O thread when a request starts.
+   *
+   * @param streamId The SPDY or HTTP/2 stream ID, or for HTTP/1.1 the request's number on its connection
+   * @param request The {@link HttpRequest}, {@link SpdySynStreamFrame} or HTTP/2 HEADERS {@link Http2Frame}
+   * @return Whether to let it through
+   */
+  protected abstract boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request);
+
+  /**
+   * Called when a request that was let through is done with.
+   *
+   * @param responded Whether a response was written, rather than the stream being reset
+   */
+  protected abstract void requestFinished(Channel channel, int streamId, boolean responded);
+
+  /** @return How many requests are in flight */
+  public synchronized int getInFlight()
+  {
+    return _streams.size();
+  }
+
+  /** @return The number of the latest HTTP/1.1 request, whose body is what's arriving; only on the I/O thread */
+  protected int getHttpRequestId()
+  {
+    return _httpRequestId;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+
+    if (msg instanceof HttpRequest || msg instanceof HttpChunk)
+    {
+      // Trailers come as an HttpChunkTrailer, the last of the request's chunks
+      if (_discardingHttp)
+      {
+        return;
+      }
+      if (msg instanceof HttpRequest && !startHttp(ctx, msg))
+      {
+        _discardingHttp = true;
+        return;
+      }
+    }
+    else if (msg instanceof SpdySynStreamFrame)
+    {
+      int streamId = ((SpdySynStreamFrame) msg).getStreamId();
+      if (!start(ctx, streamId, msg))
+      {
+        Channels.write(ctx, Channels.future(ctx.getChannel()),
+                       new DefaultSpdyRstStreamFrame(streamId, SpdyStreamStatus.REFUSED_STREAM));
+        return;
+      }
+    }
+    else if (msg instanceof SpdyRstStreamFrame)
+    {
+      finish(ctx.getChannel(), ((SpdyRstStreamFrame) msg).getStreamId(), false);
+    }
+    else if (msg instanceof Http2Frame)
+    {
+      Http2Frame frame = (Http2Frame) msg;
+      int streamId = frame.getStreamId();
+      // A stream's second HEADERS carries its trailers
+      if (frame.getType() == Http2Frame.HEADERS && !frame.hasFlag(Http2Frame.FLAG_DISCARD) && !isInFlight(streamId)
+          && !start(ctx, streamId, msg))
+      {
+        // The header block still has to be decoded, to keep HPACK in sync
+        Http2Frame discard = new Http2Frame(frame.getType(), frame.getFlags() | Http2Frame.FLAG_DISCARD, streamId,
+                                            frame.getPayload(), frame.getLength());
+        Channels.fireMessageReceived(ctx, discard, e.getRemoteAddress());
+        Channels.fireExceptionCaught(ctx.getChannel(),
+                                     new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Stream refused"));
+        return;
+      }
+      else if (frame.getType() == Http2Frame.RST_STREAM)
+      {
+        finish(ctx.getChannel(), streamId, false);
+      }
+    }
+
+    ctx.sendUpstream(e);
+  }
+
+  private synchronized boolean isInFlight(int streamId)
+  {
+    return _streams.contains(streamId);
+  }
+
+  /** @return False if the request was refused */
+  private boolean start(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    if (!requestStarted(ctx, streamId, request))
+    {
+      return false;
+    }
+    synchronized (this)
+    {
+      _streams.add(streamId);
+    }
+    return true;
+  }
+
+  /** Numbers an HTTP/1.1 request and starts it, or refuses it once those ahead of it are answered */
+  private boolean startHttp(ChannelHandlerContext ctx, Object request)
+  {
+    int requestId = ++_httpRequestId;
+    if (start(ctx, requestId, request))
+    {
+      synchronized (this)
+      {
+        _awaitingResponse.add(requestId);
+      }
+      return true;
+    }
+
+    synchronized (this)
+    {
+      if (!_streams.isEmpty())
+      {
+        // Written out of turn, it would end up in the middle of another response
+        _refusalCtx = ctx;
+        return false;
+      }
+    }
+    refuseHttp(ctx);
+    return false;
+  }
+
+  /** Answers a refused HTTP/1.1 request, and closes the connection */
+  private void refuseHttp(ChannelHandlerContext ctx)
+  {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, getRefusalStatus());
+    HttpHeaders.setContentLength(response, 0);
+    HttpHeaders.setKeepAlive(response, false);
+    ChannelFuture future = Channels.future(ctx.getChannel());
+    future.addListener(ChannelFutureListener.CLOSE);
+    Channels.write(ctx, future, response);
+  }
+
+  private void finish(Channel channel, int streamId, boolean responded)
+  {
+    ChannelHandlerContext refusalCtx = null;
+    synchronized (this)
+    {
+      if (!_streams.remove(streamId))
+      {
+        return;
+      }
+      if (_streams.isEmpty())
+      {
+        refusalCtx = _refusalCtx;
+        _refusalCtx = null;
+      }
+    }
+    if (refusalCtx != null)
+    {
+      refuseHttp(refusalCtx);
+    }
+    requestFinished(channel, streamId, responded);
+  }
+
+  /** @return The number of the HTTP/1.1 request whose response is starting, or -1 if it isn't one we let through */
+  private synchronized int respondingHttp()
+  {
+    Integer requestId = _awaitingResponse.poll();
+    return requestId == null ? -1 : requestId;
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (!(e instanceof MessageEvent))
+    {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    Object msg = ((MessageEvent) e).getMessage();
+    int streamId = -1;
+    boolean responded = true;
+
+    if (msg instanceof HttpResponse)
+    {
+      HttpResponse response = (HttpResponse) msg;
+      String streamIdHeader = response.headers().get(SPDY_STREAM_ID);
+      if (response.getStatus().getCode() != HttpResponseStatus.CONTINUE.getCode())
+      {
+        // HTTP/1.1 responses go in the order their requests came
+        int responseStreamId = streamIdHeader == null ? respondingHttp() : Integer.parseInt(streamIdHeader);
+        if (response.isChunked())
+        {
+          synchronized (this)
+          {
+            _chunkedStreamId = responseStreamId;
+          }
+        }
+        else
+        {
+          streamId = responseStreamId;
+        }
+      }
+      writingResponse(response, streamIdHeader == null);
+    }
+    else if (msg instanceof StreamHttpChunk && ((StreamHttpChunk) msg).isLast())
+    {
+      streamId = ((StreamHttpChunk) msg).getStreamId();
+    }
+    else if (msg instanceof HttpChunk && ((HttpChunk) msg).isLast())
+    {
+      synchronized (this)
+      {
+        streamId = _chunkedStreamId;
+      }
+    }
+    else if (msg instanceof SpdyRstStreamFrame)
+    {
+      streamId = ((SpdyRstStreamFrame) msg).getStreamId();
+      responded = false;
+    }
+    else if (msg instanceof Http2Frame)
+    {
+      Http2Frame frame = (Http2Frame) msg;
+      if (frame.getType() == Http2Frame.RST_STREAM)
+      {
+        streamId = frame.getStreamId();
+        responded = false;
+      }
+      else if ((frame.getType() == Http2Frame.HEADERS || frame.getType() == Http2Frame.DATA) && frame.isEndStream())
+      {
+        streamId = frame.getStreamId();
+      }
+    }
+
+    if (streamId >= 0)
+    {
+      final int finishedStreamId = streamId;
+      final boolean finishedResponded = responded;
+      e.getFuture().addListener(new ChannelFutureListener()
+      {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception
+        {
+          finish(future.getChannel(), finishedStreamId, finishedResponded);
+        }
+      });
+    }
+    ctx.sendDownstream(e);
+  }
+
+  /** @return The status refused HTTP/1.1 requests get */
+  protected HttpResponseStatus getRefusalStatus()
+  {
+    return HttpResponseStatus.SERVICE_UNAVAILABLE;
+  }
+
+  /** Lets subclasses adjust a response's headers before it's written */
+  protected void writingResponse(HttpResponse response, boolean http1)
+  {
+    // NOP
+  }
+}
@@ -0,0 +1,183 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * The response to one request given to an {@link AsyncRequestHandler}, which may be
+ * completed from any thread.
+ *
+ * Either {@link #setResponse(HttpResponse) set} a whole response, or a chunked one
+ * followed by its body, a piece at a time with {@link #write(ChannelBuffer)} and then
+ * {@link #finish()}. The futures those return complete as each piece is written, so a
+ * producer can wait on them to keep pace with the client.
+ *
+ * If the client resets the stream or disconnects first, the promise is cancelled: its
+ * {@link CancellationListener}s are told, and anything more given to it is dropped.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ResponsePromise
+{
+  /** Told when a response is no longer wanted */
+  public interface CancellationListener
+  {
+    /** Called on the I/O thread, or straight away if the promise was already cancelled */
+    void cancelled(ResponsePromise promise, Throwable cause);
+  }
+
+  private final AsyncRequestDispatcher _dispatcher;
+  private final Channel _channel;
+  private final int _streamId;
+  private final HttpRequest _request;
+
+  // All of the below are guarded by the dispatcher
+  /** Writes of the body not yet passed on, ending with the last chunk or a reset */
+  private final Queue<ChannelEvent> _body = new ArrayDeque<ChannelEvent>();
+  private final List<CancellationListener> _listeners = new ArrayList<CancellationListener>();
+  private HttpResponse _response;
+  /** Whether nothing more will be added to the body */
+  private boolean _ended;
+  /** Whether the response has been completely passed on, or cancelled */
+  private boolean _finished;
+  private Throwable _cancelCause;
+
+  ResponsePromise(AsyncRequestDispatcher dispatcher, Channel channel, int streamId, HttpRequest request)
+  {
+    _dispatcher = dispatcher;
+    _channel = channel;
+    _streamId = streamId;
+    _request = request;
+  }
+
+  public Channel getChannel()
+  {
+    return _channel;
+  }
+
+  public HttpRequest getRequest()
+  {
+    return _request;
+  }
+
+  /** @return The SPDY / HTTP/2 stream ID, or 0 for HTTP/1.1 */
+  public int getStreamId()
+  {
+    return _streamId;
+  }
+
+  /**
+   * Completes the promise with a whole response, or the head of a chunked one.
+   *
+   * @return False if it was already completed or cancelled
+   */
+  public boolean setResponse(HttpResponse response)
+  {
+    return _dispatcher.respond(this, response);
+  }
+
+  /**
+   * Fails the request: the client gets a 500, or if a chunked response has started, its
+   * stream is reset (HTTP/1.1: the connection is closed).
+   *
+   * @return False if the response was already complete, or cancelled
+   */
+  public boolean setFailure(Throwable cause)
+  {
+    return _dispatcher.fail(this, cause);
+  }
+
+  /** Adds the next piece of a chunked response's body */
+  public ChannelFuture write(ChannelBuffer content)
+  {
+    return _dispatcher.write(this, content, false);
+  }
+
+  /** Ends a chunked response's body */
+  public ChannelFuture finish()
+  {
+    return _dispatcher.write(this, null, true);
+  }
+
+  public boolean isCancelled()
+  {
+    synchronized (_dispatcher)
+    {
+      return _cancelCause != null;
+    }
+  }
+
+  public void addCancellationListener(CancellationListener listener)
+  {
+    Throwable cause;
+    synchronized (_dispatcher)
+    {
+      cause = _cancelCause;
+      if (cause == null)
+      {
+        _listeners.add(listener);
+        return;
+      }
+    }
+    listener.cancelled(this, cause);
+  }
+
+  Queue<ChannelEvent> getBody()
+  {
+    return _body;
+  }
+
+  List<CancellationListener> getListeners()
+  {
+    return _listeners;
+  }
+
+  HttpResponse getResponse()
+  {
+    return _response;
+  }
+
+  void setResponseHead(HttpResponse response)
+  {
+    _response = response;
+  }
+
+  boolean isEnded()
+  {
+    return _ended;
+  }
+
+  void setEnded()
+  {
+    _ended = true;
+  }
+
+  boolean isFinished()
+  {
+    return _finished;
+  }
+
+  void setFinished()
+  {
+    _finished = true;
+  }
+
+  Throwable getCancelCause()
+  {
+    return _cancelCause;
+  }
+
+  void setCancelCause(Throwable cause)
+  {
+    _cancelCause = cause;
+  }
+}
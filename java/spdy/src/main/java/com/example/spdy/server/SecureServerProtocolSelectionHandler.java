@@ -2,14 +2,9 @@ package com.example.spdy.server;
 
 import static com.example.spdy.api.Constants.*;
 
-import com.example.spdy.npn.SimpleServerProvider;
+import com.example.spdy.npn.ProtocolNegotiator;
 import org.apache.log4j.Logger;
-import org.eclipse.jetty.npn.NextProtoNego;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
-import org.jboss.netty.handler.codec.spdy.*;
 import org.jboss.netty.handler.ssl.SslHandler;
 
 import java.util.List;
@@ -24,10 +19,13 @@ public class SecureServerProtocolSelectionHandler extends SimpleChannelUpstreamH
 {
   private static final Logger LOG = Logger.getLogger(SecureServerProtocolSelectionHandler.class);
 
+  private final ServerPipelineFactory _pipelineFactory;
   private final List<ChannelHandler> _finalHandlers;
 
-  public SecureServerProtocolSelectionHandler(List<ChannelHandler> finalHandlers)
+  public SecureServerProtocolSelectionHandler(ServerPipelineFactory pipelineFactory,
+                                              List<ChannelHandler> finalHandlers)
   {
+    _pipelineFactory = pipelineFactory;
     _finalHandlers = finalHandlers;
   }
 
@@ -35,38 +33,34 @@ public class SecureServerProtocolSelectionHandler extends SimpleChannelUpstreamH
   public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
   {
     SslHandler handler = ctx.getPipeline().get(SslHandler.class);
-    SimpleServerProvider provider = (SimpleServerProvider) NextProtoNego.get(handler.getEngine());
+    String protocol = ProtocolNegotiator.getInstance().getSelectedProtocol(handler.getEngine());
 
-    if (SPDY_3.equals(provider.getSelectedProtocol()))
+    if (HTTP_2.equals(protocol))
+    {
+      LOG.info("Chose h2");
+
+      ChannelPipeline pipeline = ctx.getPipeline();
+      _pipelineFactory.addHttp2Handlers(pipeline, _finalHandlers);
+
+      pipeline.remove(this);
+      ctx.sendUpstream(e);
+    }
+    else if (SPDY_3.equals(protocol))
     {
       LOG.info("Chose spdy/3");
 
       ChannelPipeline pipeline = ctx.getPipeline();
-      pipeline.addLast("spdyDecoder", new SpdyFrameDecoder(SpdyVersion.SPDY_3));
-      pipeline.addLast("spdyEncoder", new SpdyFrameEncoder(SpdyVersion.SPDY_3));
-      pipeline.addLast("spdySessionHandler", new SpdySessionHandler(SpdyVersion.SPDY_3, true));
-      pipeline.addLast("spdyHttpEncoder", new SpdyHttpEncoder(SpdyVersion.SPDY_3));
-      pipeline.addLast("spdyHttpDecoder", new SpdyHttpDecoder(SpdyVersion.SPDY_3, 1024 * 1024));
-      for (ChannelHandler h : _finalHandlers)
-      {
-        pipeline.addLast(h.getClass().getSimpleName(), h);
-      }
+      _pipelineFactory.addSpdyHandlers(pipeline, _finalHandlers);
 
       pipeline.remove(this);
       ctx.sendUpstream(e);
     }
-    else if (HTTP_1_1.equals(provider.getSelectedProtocol()))
+    else if (HTTP_1_1.equals(protocol))
     {
       LOG.info("Chose http/1.1");
 
       ChannelPipeline pipeline = ctx.getPipeline();
-      pipeline.addLast("httpRequestDecoder", new HttpRequestDecoder());
-      pipeline.addLast("httpChunkAggregator", new HttpChunkAggregator(1024 * 1024));
-      pipeline.addLast("httpResponseEncoder", new HttpResponseEncoder());
-      for (ChannelHandler h : _finalHandlers)
-      {
-        pipeline.addLast(h.getClass().getSimpleName(), h);
-      }
+      _pipelineFactory.addHttpHandlers(pipeline, _finalHandlers);
 
       pipeline.remove(this);
       ctx.sendUpstream(e);
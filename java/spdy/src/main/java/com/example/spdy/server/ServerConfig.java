@@ -0,0 +1,444 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+/**
+ * Tunables for the server pipeline.
+ *
+ * Defaults live in {@link com.example.spdy.api.Constants}, and each may be overridden
+ * by the matching system property via {@link #fromSystemProperties()}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ServerConfig
+{
+  /** How long a new connection may stay silent before we give up on it (0 to wait forever) */
+  private long _sniffTimeoutMillis = DEFAULT_SNIFF_TIMEOUT_MILLIS;
+  /** How long a connection may go without sending anything, before we PING it or close it (0 to wait forever) */
+  private long _readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+  /** How long a write may take before we close the connection (0 to wait forever) */
+  private long _writeTimeoutMillis = DEFAULT_WRITE_TIMEOUT_MILLIS;
+  /** How long a TLS handshake may take before we close the connection (0 to wait forever) */
+  private long _handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+  /** How long to wait, on shutdown, for requests in flight to finish */
+  private long _drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+  /** Most connections open at once (0 for no limit) */
+  private int _maxConnections = DEFAULT_MAX_CONNECTIONS;
+  /** Most connections open at once from one remote address (0 for no limit) */
+  private int _maxConnectionsPerAddress = DEFAULT_MAX_CONNECTIONS_PER_ADDRESS;
+  /** How many TLS handshake steps may run at once, off the NIO worker threads */
+  private int _handshakeThreads = DEFAULT_HANDSHAKE_THREADS;
+  /** How many TLS handshake steps may wait for a thread before new ones are refused */
+  private int _handshakeQueueSize = DEFAULT_HANDSHAKE_QUEUE_SIZE;
+  /** How much request content may be buffered, in total, before new requests are turned away */
+  private long _maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+  /** How much request content one connection may buffer before its new requests are turned away */
+  private long _maxConnectionBufferedBytes = DEFAULT_MAX_CONNECTION_BUFFERED_BYTES;
+  /** Largest request body we'll aggregate */
+  private int _maxStreamBufferedBytes = DEFAULT_MAX_STREAM_BUFFERED_BYTES;
+  /** Fewest requests in flight the adaptive limit will shed at */
+  private int _minConcurrencyLimit = DEFAULT_MIN_CONCURRENCY_LIMIT;
+  /** Requests in flight the adaptive limit starts out allowing (0 for the most it allows) */
+  private int _initialConcurrencyLimit = DEFAULT_INITIAL_CONCURRENCY_LIMIT;
+  /** Most requests in flight the adaptive limit will allow (0 to never shed load) */
+  private int _maxConcurrencyLimit = DEFAULT_MAX_CONCURRENCY_LIMIT;
+  /** Requests each client may make per second, on average (0 for no limit) */
+  private double _clientRequestsPerSecond = DEFAULT_CLIENT_REQUESTS_PER_SECOND;
+  /** Requests each client may make in a burst */
+  private int _clientRequestBurst = DEFAULT_CLIENT_REQUEST_BURST;
+  /** Request bytes each client may send per second, on average (0 for no limit) */
+  private long _clientBytesPerSecond = DEFAULT_CLIENT_BYTES_PER_SECOND;
+  /** Request bytes each client may send in a burst */
+  private long _clientByteBurst = DEFAULT_CLIENT_BYTE_BURST;
+  /** Most clients whose rates are tracked at once */
+  private int _maxRateLimitedClients = DEFAULT_MAX_RATE_LIMITED_CLIENTS;
+  /** Header that identifies a client for rate limiting, or null to go by remote address */
+  private String _rateLimitKeyHeader;
+  /** Deflate level responses are compressed at, 1 (fastest) to 9 (smallest), or 0 not to compress */
+  private int _compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+  /** Smallest response content worth compressing */
+  private int _minCompressSize = DEFAULT_MIN_COMPRESS_SIZE;
+  /** Most bytes of compressed responses to cache (0 not to cache) */
+  private long _compressionCacheBytes = DEFAULT_COMPRESSION_CACHE_BYTES;
+  /** Most bytes of SPDY or HTTP/2 frames to gather into one write, i.e. one TLS record (0 not to gather them) */
+  private int _writeCoalescingBytes = DEFAULT_WRITE_COALESCING_BYTES;
+  /** SETTINGS_MAX_CONCURRENT_STREAMS we send SPDY and HTTP/2 clients */
+  private int _maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+  /** SETTINGS_INITIAL_WINDOW_SIZE we send SPDY and HTTP/2 clients, i.e. each stream's flow-control window */
+  private int _initialWindowSize = DEFAULT_INITIAL_WINDOW_SIZE;
+  /** Flow-control window for a whole HTTP/2 connection */
+  private int _connectionWindowSize = DEFAULT_CONNECTION_WINDOW_SIZE;
+  /** Smallest the windows are shrunk to when memory is short */
+  private int _minWindowSize = DEFAULT_MIN_WINDOW_SIZE;
+  /** How often to check memory and resize the windows (0 never to resize them) */
+  private long _windowTuningMillis = DEFAULT_WINDOW_TUNING_MILLIS;
+  /** Whether to time each request's phases, and continue its W3C trace */
+  private boolean _requestTracing = DEFAULT_REQUEST_TRACING;
+  /** Traced requests that take at least this long are logged with their phases */
+  private long _slowRequestMillis = DEFAULT_SLOW_REQUEST_MILLIS;
+
+  /** @return A config with defaults overridden by any system properties that are set */
+  public static ServerConfig fromSystemProperties()
+  {
+    ServerConfig config = new ServerConfig();
+    config.setSniffTimeoutMillis(Long.getLong(PROP_SNIFF_TIMEOUT_MILLIS, DEFAULT_SNIFF_TIMEOUT_MILLIS));
+    config.setReadTimeoutMillis(Long.getLong(PROP_READ_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS));
+    config.setWriteTimeoutMillis(Long.getLong(PROP_WRITE_TIMEOUT_MILLIS, DEFAULT_WRITE_TIMEOUT_MILLIS));
+    config.setHandshakeTimeoutMillis(Long.getLong(PROP_HANDSHAKE_TIMEOUT_MILLIS, DEFAULT_HANDSHAKE_TIMEOUT_MILLIS));
+    config.setDrainTimeoutMillis(Long.getLong(PROP_DRAIN_TIMEOUT_MILLIS, DEFAULT_DRAIN_TIMEOUT_MILLIS));
+    config.setMaxConnections(Integer.getInteger(PROP_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+    config.setMaxConnectionsPerAddress(Integer.getInteger(PROP_MAX_CONNECTIONS_PER_ADDRESS,
+                                                          DEFAULT_MAX_CONNECTIONS_PER_ADDRESS));
+    config.setHandshakeThreads(Integer.getInteger(PROP_HANDSHAKE_THREADS, DEFAULT_HANDSHAKE_THREADS));
+    config.setHandshakeQueueSize(Integer.getInteger(PROP_HANDSHAKE_QUEUE_SIZE, DEFAULT_HANDSHAKE_QUEUE_SIZE));
+    config.setMaxBufferedBytes(Long.getLong(PROP_MAX_BUFFERED_BYTES, DEFAULT_MAX_BUFFERED_BYTES));
+    config.setMaxConnectionBufferedBytes(Long.getLong(PROP_MAX_CONNECTION_BUFFERED_BYTES,
+                                                      DEFAULT_MAX_CONNECTION_BUFFERED_BYTES));
+    config.setMaxStreamBufferedBytes(Integer.getInteger(PROP_MAX_STREAM_BUFFERED_BYTES,
+                                                        DEFAULT_MAX_STREAM_BUFFERED_BYTES));
+    config.setMinConcurrencyLimit(Integer.getInteger(PROP_MIN_CONCURRENCY_LIMIT, DEFAULT_MIN_CONCURRENCY_LIMIT));
+    config.setInitialConcurrencyLimit(Integer.getInteger(PROP_INITIAL_CONCURRENCY_LIMIT,
+                                                         DEFAULT_INITIAL_CONCURRENCY_LIMIT));
+    config.setMaxConcurrencyLimit(Integer.getInteger(PROP_MAX_CONCURRENCY_LIMIT, DEFAULT_MAX_CONCURRENCY_LIMIT));
+    config.setClientRequestsPerSecond(Double.parseDouble(
+            System.getProperty(PROP_CLIENT_REQUESTS_PER_SECOND, String.valueOf(DEFAULT_CLIENT_REQUESTS_PER_SECOND))));
+    config.setClientRequestBurst(Integer.getInteger(PROP_CLIENT_REQUEST_BURST, DEFAULT_CLIENT_REQUEST_BURST));
+    config.setClientBytesPerSecond(Long.getLong(PROP_CLIENT_BYTES_PER_SECOND, DEFAULT_CLIENT_BYTES_PER_SECOND));
+    config.setClientByteBurst(Long.getLong(PROP_CLIENT_BYTE_BURST, DEFAULT_CLIENT_BYTE_BURST));
+    config.setMaxRateLimitedClients(Integer.getInteger(PROP_MAX_RATE_LIMITED_CLIENTS, DEFAULT_MAX_RATE_LIMITED_CLIENTS));
+    config.setRateLimitKeyHeader(System.getProperty(PROP_RATE_LIMIT_KEY_HEADER));
+    config.setCompressionLevel(Integer.getInteger(PROP_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL));
+    config.setMinCompressSize(Integer.getInteger(PROP_MIN_COMPRESS_SIZE, DEFAULT_MIN_COMPRESS_SIZE));
+    config.setCompressionCacheBytes(Long.getLong(PROP_COMPRESSION_CACHE_BYTES, DEFAULT_COMPRESSION_CACHE_BYTES));
+    config.setWriteCoalescingBytes(Integer.getInteger(PROP_WRITE_COALESCING_BYTES, DEFAULT_WRITE_COALESCING_BYTES));
+    config.setMaxConcurrentStreams(Integer.getInteger(PROP_MAX_CONCURRENT_STREAMS, DEFAULT_MAX_CONCURRENT_STREAMS));
+    config.setInitialWindowSize(Integer.getInteger(PROP_INITIAL_WINDOW_SIZE, DEFAULT_INITIAL_WINDOW_SIZE));
+    config.setConnectionWindowSize(Integer.getInteger(PROP_CONNECTION_WINDOW_SIZE, DEFAULT_CONNECTION_WINDOW_SIZE));
+    config.setMinWindowSize(Integer.getInteger(PROP_MIN_WINDOW_SIZE, DEFAULT_MIN_WINDOW_SIZE));
+    config.setWindowTuningMillis(Long.getLong(PROP_WINDOW_TUNING_MILLIS, DEFAULT_WINDOW_TUNING_MILLIS));
+    config.setRequestTracing(Boolean.parseBoolean(
+            System.getProperty(PROP_REQUEST_TRACING, String.valueOf(DEFAULT_REQUEST_TRACING))));
+    config.setSlowRequestMillis(Long.getLong(PROP_SLOW_REQUEST_MILLIS, DEFAULT_SLOW_REQUEST_MILLIS));
+    return config;
+  }
+
+  public long getSniffTimeoutMillis()
+  {
+    return _sniffTimeoutMillis;
+  }
+
+  public void setSniffTimeoutMillis(long sniffTimeoutMillis)
+  {
+    _sniffTimeoutMillis = sniffTimeoutMillis;
+  }
+
+  public long getReadTimeoutMillis()
+  {
+    return _readTimeoutMillis;
+  }
+
+  public void setReadTimeoutMillis(long readTimeoutMillis)
+  {
+    _readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public long getWriteTimeoutMillis()
+  {
+    return _writeTimeoutMillis;
+  }
+
+  public void setWriteTimeoutMillis(long writeTimeoutMillis)
+  {
+    _writeTimeoutMillis = writeTimeoutMillis;
+  }
+
+  public long getHandshakeTimeoutMillis()
+  {
+    return _handshakeTimeoutMillis;
+  }
+
+  public void setHandshakeTimeoutMillis(long handshakeTimeoutMillis)
+  {
+    _handshakeTimeoutMillis = handshakeTimeoutMillis;
+  }
+
+  public long getDrainTimeoutMillis()
+  {
+    return _drainTimeoutMillis;
+  }
+
+  public void setDrainTimeoutMillis(long drainTimeoutMillis)
+  {
+    _drainTimeoutMillis = drainTimeoutMillis;
+  }
+
+  public int getMaxConnections()
+  {
+    return _maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections)
+  {
+    _maxConnections = maxConnections;
+  }
+
+  public int getMaxConnectionsPerAddress()
+  {
+    return _maxConnectionsPerAddress;
+  }
+
+  public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress)
+  {
+    _maxConnectionsPerAddress = maxConnectionsPerAddress;
+  }
+
+  public int getHandshakeThreads()
+  {
+    return _handshakeThreads;
+  }
+
+  public void setHandshakeThreads(int handshakeThreads)
+  {
+    _handshakeThreads = handshakeThreads;
+  }
+
+  public int getHandshakeQueueSize()
+  {
+    return _handshakeQueueSize;
+  }
+
+  public void setHandshakeQueueSize(int handshakeQueueSize)
+  {
+    _handshakeQueueSize = handshakeQueueSize;
+  }
+
+  public long getMaxBufferedBytes()
+  {
+    return _maxBufferedBytes;
+  }
+
+  public void setMaxBufferedBytes(long maxBufferedBytes)
+  {
+    _maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public long getMaxConnectionBufferedBytes()
+  {
+    return _maxConnectionBufferedBytes;
+  }
+
+  public void setMaxConnectionBufferedBytes(long maxConnectionBufferedBytes)
+  {
+    _maxConnectionBufferedBytes = maxConnectionBufferedBytes;
+  }
+
+  public int getMaxStreamBufferedBytes()
+  {
+    return _maxStreamBufferedBytes;
+  }
+
+  public void setMaxStreamBufferedBytes(int maxStreamBufferedBytes)
+  {
+    _maxStreamBufferedBytes = maxStreamBufferedBytes;
+  }
+
+  public int getMinConcurrencyLimit()
+  {
+    return _minConcurrencyLimit;
+  }
+
+  public void setMinConcurrencyLimit(int minConcurrencyLimit)
+  {
+    _minConcurrencyLimit = minConcurrencyLimit;
+  }
+
+  public int getInitialConcurrencyLimit()
+  {
+    return _initialConcurrencyLimit;
+  }
+
+  public void setInitialConcurrencyLimit(int initialConcurrencyLimit)
+  {
+    _initialConcurrencyLimit = initialConcurrencyLimit;
+  }
+
+  public int getMaxConcurrencyLimit()
+  {
+    return _maxConcurrencyLimit;
+  }
+
+  public void setMaxConcurrencyLimit(int maxConcurrencyLimit)
+  {
+    _maxConcurrencyLimit = maxConcurrencyLimit;
+  }
+
+  public double getClientRequestsPerSecond()
+  {
+    return _clientRequestsPerSecond;
+  }
+
+  public void setClientRequestsPerSecond(double clientRequestsPerSecond)
+  {
+    _clientRequestsPerSecond = clientRequestsPerSecond;
+  }
+
+  public int getClientRequestBurst()
+  {
+    return _clientRequestBurst;
+  }
+
+  public void setClientRequestBurst(int clientRequestBurst)
+  {
+    _clientRequestBurst = clientRequestBurst;
+  }
+
+  public long getClientBytesPerSecond()
+  {
+    return _clientBytesPerSecond;
+  }
+
+  public void setClientBytesPerSecond(long clientBytesPerSecond)
+  {
+    _clientBytesPerSecond = clientBytesPerSecond;
+  }
+
+  public long getClientByteBurst()
+  {
+    return _clientByteBurst;
+  }
+
+  public void setClientByteBurst(long clientByteBurst)
+  {
+    _clientByteBurst = clientByteBurst;
+  }
+
+  public int getMaxRateLimitedClients()
+  {
+    return _maxRateLimitedClients;
+  }
+
+  public void setMaxRateLimitedClients(int maxRateLimitedClients)
+  {
+    _maxRateLimitedClients = maxRateLimitedClients;
+  }
+
+  public String getRateLimitKeyHeader()
+  {
+    return _rateLimitKeyHeader;
+  }
+
+  public void setRateLimitKeyHeader(String rateLimitKeyHeader)
+  {
+    _rateLimitKeyHeader = rateLimitKeyHeader;
+  }
+
+  public int getCompressionLevel()
+  {
+    return _compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel)
+  {
+    _compressionLevel = compressionLevel;
+  }
+
+  public int getMinCompressSize()
+  {
+    return _minCompressSize;
+  }
+
+  public void setMinCompressSize(int minCompressSize)
+  {
+    _minCompressSize = minCompressSize;
+  }
+
+  public long getCompressionCacheBytes()
+  {
+    return _compressionCacheBytes;
+  }
+
+  public void setCompressionCacheBytes(long compressionCacheBytes)
+  {
+    _compressionCacheBytes = compressionCacheBytes;
+  }
+
+  public int getWriteCoalescingBytes()
+  {
+    return _writeCoalescingBytes;
+  }
+
+  public void setWriteCoalescingBytes(int writeCoalescingBytes)
+  {
+    _writeCoalescingBytes = writeCoalescingBytes;
+  }
+
+  public int getMaxConcurrentStreams()
+  {
+    return _maxConcurrentStreams;
+  }
+
+  public void setMaxConcurrentStreams(int maxConcurrentStreams)
+  {
+    _maxConcurrentStreams = maxConcurrentStreams;
+  }
+
+  public int getInitialWindowSize()
+  {
+    return _initialWindowSize;
+  }
+
+  public void setInitialWindowSize(int initialWindowSize)
+  {
+    _initialWindowSize = initialWindowSize;
+  }
+
+  public int getConnectionWindowSize()
+  {
+    return _connectionWindowSize;
+  }
+
+  public void setConnectionWindowSize(int connectionWindowSize)
+  {
+    _connectionWindowSize = connectionWindowSize;
+  }
+
+  public int getMinWindowSize()
+  {
+    return _minWindowSize;
+  }
+
+  public void setMinWindowSize(int minWindowSize)
+  {
+    _minWindowSize = minWindowSize;
+  }
+
+  public long getWindowTuningMillis()
+  {
+    return _windowTuningMillis;
+  }
+
+  public void setWindowTuningMillis(long windowTuningMillis)
+  {
+    _windowTuningMillis = windowTuningMillis;
+  }
+
+  public boolean isRequestTracing()
+  {
+    return _requestTracing;
+  }
+
+  public void setRequestTracing(boolean requestTracing)
+  {
+    _requestTracing = requestTracing;
+  }
+
+  public long getSlowRequestMillis()
+  {
+    return _slowRequestMillis;
+  }
+
+  public void setSlowRequestMillis(long slowRequestMillis)
+  {
+    _slowRequestMillis = slowRequestMillis;
+  }
+}
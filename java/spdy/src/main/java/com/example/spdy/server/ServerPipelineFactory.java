@@ -2,28 +2,111 @@ package com.example.spdy.server;
 
 import static com.example.spdy.api.Constants.*;
 
+import com.example.spdy.codec.StreamingSpdyHttpDecoder;
+import com.example.spdy.codec.StreamingSpdyHttpEncoder;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2FrameDecoder;
+import com.example.spdy.http2.Http2FrameEncoder;
+import com.example.spdy.http2.Http2HttpCodec;
+import com.example.spdy.http2.Http2SessionHandler;
+import com.example.spdy.ssl.HandshakeExecutor;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.spdy.*;
+import org.jboss.netty.handler.ssl.ImmediateExecutor;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.handler.timeout.WriteTimeoutHandler;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.security.KeyStore;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Configures server's SSL stuff and constructs initial state of pipeline.
  *
+ * Also knows how to build each protocol's handler stack once the protocol selection
+ * handlers have decided what the client speaks.
+ *
+ * Requests are aggregated, within the limits of a {@link MemoryBudget} shared by every
+ * connection, and answered by an {@link AsyncRequestHandler} ({@link HelloWorldHandler} by
+ * default), unless there's a {@link StreamingRequestHandler}, in which case bodies are
+ * streamed to it as they arrive.
+ * SPDY and HTTP/2 clients are told how many streams they may open, and how far ahead
+ * they may send, by the {@link SessionSettings}, which shrink their windows as the
+ * budget fills.
+ *
+ * Every connection counts against the {@link ConnectionLimits}, and is closed when it
+ * goes quiet (see {@link IdleConnectionHandler}) or its writes stall. Requests are
+ * traced, and slow ones logged, by a {@link RequestTracingHandler}.
+ *
+ * To shut down gracefully, stop accepting and then {@link #drain(long)} the open connections.
+ *
+ * Owns a timer shared by every channel's pipeline, so call
+ * {@link #releaseExternalResources()} when the server shuts down.
+ *
  * @author Greg Brandt (brandt.greg@gmail.com)
  */
-public class ServerPipelineFactory implements ChannelPipelineFactory
+public class ServerPipelineFactory implements ChannelPipelineFactory, ExternalResourceReleasable
 {
+  private static final Logger LOG = Logger.getLogger(ServerPipelineFactory.class);
+
   private final SSLContext _context;
+  private final ServerConfig _config;
+  private final Timer _timer;
+  private final HandshakeExecutor _handshakeExecutor;
+  private final AsyncRequestHandler _requestHandler;
+  private final StreamingRequestHandler _streamingHandler;
+  private final MemoryBudget _memoryBudget;
+  private final ConnectionLimits _connectionLimits;
+  private final ConcurrencyLimit _concurrencyLimit;
+  private final RateLimiter _rateLimiter;
+  private final CompressionCache _compressionCache;
+  private final SessionSettings _sessionSettings;
 
   public ServerPipelineFactory()
+  {
+    this(new ServerConfig());
+  }
+
+  public ServerPipelineFactory(ServerConfig config)
+  {
+    this(config, null);
+  }
+
+  /** @param streamingHandler Receives request bodies as they arrive, or null to aggregate them */
+  public ServerPipelineFactory(ServerConfig config, StreamingRequestHandler streamingHandler)
+  {
+    this(config, null, streamingHandler);
+  }
+
+  /**
+   * @param requestHandler
+   *  Answers aggregated requests, or null to say hello. Released along with this if it's
+   *  {@link ExternalResourceReleasable}.
+   * @param streamingHandler
+   *  Receives request bodies as they arrive, or null to aggregate them. Also released
+   *  along with this if it's {@link ExternalResourceReleasable}.
+   */
+  public ServerPipelineFactory(ServerConfig config,
+                               AsyncRequestHandler requestHandler,
+                               StreamingRequestHandler streamingHandler)
   {
     try
     {
@@ -39,6 +122,37 @@ public class ServerPipelineFactory implements ChannelPipelineFactory
     {
       throw new RuntimeException(e);
     }
+
+    _config = config;
+    _timer = new HashedWheelTimer();
+    _handshakeExecutor = new HandshakeExecutor("server-handshake",
+                                               config.getHandshakeThreads(),
+                                               config.getHandshakeQueueSize());
+    _requestHandler = requestHandler == null ? new HelloWorldHandler() : requestHandler;
+    _streamingHandler = streamingHandler;
+    _memoryBudget = new MemoryBudget(config.getMaxBufferedBytes(),
+                                     config.getMaxConnectionBufferedBytes(),
+                                     config.getMaxStreamBufferedBytes());
+    _connectionLimits = new ConnectionLimits(config.getMaxConnections(), config.getMaxConnectionsPerAddress());
+    _concurrencyLimit = config.getMaxConcurrencyLimit() > 0
+            ? new ConcurrencyLimit(config.getMinConcurrencyLimit(), config.getInitialConcurrencyLimit(),
+                                   config.getMaxConcurrencyLimit())
+            : null;
+    _rateLimiter = config.getClientRequestsPerSecond() > 0 || config.getClientBytesPerSecond() > 0
+            ? new RateLimiter(config.getClientRequestsPerSecond(), config.getClientRequestBurst(),
+                              config.getClientBytesPerSecond(), config.getClientByteBurst(),
+                              config.getMaxRateLimitedClients())
+            : null;
+    _compressionCache = config.getCompressionCacheBytes() > 0
+            ? new CompressionCache(config.getCompressionCacheBytes())
+            : null;
+    _sessionSettings = new SessionSettings(config.getMaxConcurrentStreams(), config.getInitialWindowSize(),
+                                           config.getConnectionWindowSize(), config.getMinWindowSize(),
+                                           _memoryBudget);
+    if (config.getWindowTuningMillis() > 0)
+    {
+      _sessionSettings.start(_timer, config.getWindowTuningMillis());
+    }
   }
 
   @Override
@@ -46,10 +160,305 @@ public class ServerPipelineFactory implements ChannelPipelineFactory
   {
     ChannelPipeline pipeline = Channels.pipeline();
 
+    // Timeouts and limits, nearest the socket
+    pipeline.addLast("connectionLimitHandler", new ConnectionLimitHandler(_connectionLimits));
+    if (_config.getWriteTimeoutMillis() > 0)
+    {
+      pipeline.addLast("writeTimeoutHandler",
+                       new WriteTimeoutHandler(_timer, _config.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS));
+    }
+    if (_config.getReadTimeoutMillis() > 0)
+    {
+      pipeline.addLast("idleStateHandler",
+                       new IdleStateHandler(_timer, _config.getReadTimeoutMillis(), 0, 0, TimeUnit.MILLISECONDS));
+    }
+    pipeline.addLast("idleConnectionHandler", new IdleConnectionHandler());
+
     List<ChannelHandler> finalHandlers = new ArrayList<ChannelHandler>();
-    finalHandlers.add(new HelloWorldHandler());
+    if (_streamingHandler == null)
+    {
+      finalHandlers.add(new AsyncRequestDispatcher(_requestHandler));
+    }
+    else
+    {
+      finalHandlers.add(new StreamingRequestDispatcher(_streamingHandler));
+    }
 
-    pipeline.addLast("sslSelectionHandler", new InitialProtocolSelectionHandler(_context, finalHandlers));
+    pipeline.addLast("sslSelectionHandler", new InitialProtocolSelectionHandler(this, finalHandlers));
     return pipeline;
   }
+
+  /** Adds the HTTP/1.1 codec stack followed by the final handlers */
+  public void addHttpHandlers(ChannelPipeline pipeline, List<ChannelHandler> finalHandlers)
+  {
+    pipeline.addLast("httpRequestDecoder", new HttpRequestDecoder());
+    pipeline.addLast("httpResponseEncoder", new HttpResponseEncoder());
+    pipeline.addLast("drainHandler", new DrainHandler());
+    addAdmissionHandlers(pipeline);
+    if (_streamingHandler == null)
+    {
+      ContentBudgetHandler budgetHandler = new ContentBudgetHandler(_memoryBudget);
+      pipeline.addLast("contentBudget", budgetHandler);
+      pipeline.addLast("httpChunkAggregator", new HttpChunkAggregator(_config.getMaxStreamBufferedBytes()));
+      pipeline.addLast("contentRelease", budgetHandler.getReleaseHandler());
+    }
+    addFinalHandlers(pipeline, finalHandlers);
+  }
+
+  /** Adds the spdy/3 codec and session stack followed by the final handlers */
+  public void addSpdyHandlers(ChannelPipeline pipeline, List<ChannelHandler> finalHandlers)
+  {
+    addWriteCoalescingHandler(pipeline);
+    pipeline.addLast("spdyDecoder", new SpdyFrameDecoder(SpdyVersion.SPDY_3));
+    pipeline.addLast("spdyEncoder", new SpdyFrameEncoder(SpdyVersion.SPDY_3));
+    pipeline.addLast("windowUpdateGate", new WindowUpdateGate(false));
+    pipeline.addLast("spdySessionHandler", new SpdySessionHandler(SpdyVersion.SPDY_3, true));
+    pipeline.addLast("spdyHttpEncoder", new StreamingSpdyHttpEncoder(SpdyVersion.SPDY_3));
+    pipeline.addLast("sessionSettings", _sessionSettings.newHandler(false));
+    pipeline.addLast("drainHandler", new DrainHandler());
+    addAdmissionHandlers(pipeline);
+    addResetHandler(pipeline, finalHandlers);
+    if (_streamingHandler == null)
+    {
+      ContentBudgetHandler budgetHandler = new ContentBudgetHandler(_memoryBudget);
+      pipeline.addLast("contentBudget", budgetHandler);
+      pipeline.addLast("spdyHttpDecoder", new SpdyHttpDecoder(SpdyVersion.SPDY_3, _config.getMaxStreamBufferedBytes()));
+      pipeline.addLast("contentRelease", budgetHandler.getReleaseHandler());
+    }
+    else
+    {
+      pipeline.addLast("spdyHttpDecoder", new StreamingSpdyHttpDecoder(SpdyVersion.SPDY_3));
+    }
+    addFinalHandlers(pipeline, finalHandlers);
+  }
+
+  /** Adds the HTTP/2 frame codec, session and HPACK/HTTP translation followed by the final handlers */
+  public void addHttp2Handlers(ChannelPipeline pipeline, List<ChannelHandler> finalHandlers)
+  {
+    addWriteCoalescingHandler(pipeline);
+    pipeline.addLast("http2Decoder", new Http2FrameDecoder(true, Http2Frame.DEFAULT_MAX_FRAME_SIZE, 64 * 1024));
+    pipeline.addLast("http2Encoder", new Http2FrameEncoder());
+    pipeline.addLast("windowUpdateGate", new WindowUpdateGate(true));
+    SessionSettingsHandler sessionSettings = _sessionSettings.newHandler(true);
+    pipeline.addLast("http2SessionHandler", new Http2SessionHandler(true, sessionSettings.getMaxConcurrentStreams(),
+                                                                    sessionSettings.getInitialWindowSize(), 16 * 1024,
+                                                                    sessionSettings.getConnectionWindowSize()));
+    pipeline.addLast("sessionSettings", sessionSettings);
+    pipeline.addLast("drainHandler", new DrainHandler());
+    addAdmissionHandlers(pipeline);
+    addResetHandler(pipeline, finalHandlers);
+    if (_streamingHandler == null)
+    {
+      ContentBudgetHandler budgetHandler = new ContentBudgetHandler(_memoryBudget);
+      pipeline.addLast("contentBudget", budgetHandler);
+      pipeline.addLast("http2HttpCodec", new Http2HttpCodec(true, _config.getMaxStreamBufferedBytes(), 16 * 1024));
+      pipeline.addLast("contentRelease", budgetHandler.getReleaseHandler());
+    }
+    else
+    {
+      pipeline.addLast("http2HttpCodec", new Http2HttpCodec(true, Integer.MAX_VALUE, 16 * 1024, true));
+    }
+    addFinalHandlers(pipeline, finalHandlers);
+  }
+
+  /** Gathers the frames written in one turn of the I/O thread into one write, ahead of encryption */
+  private void addWriteCoalescingHandler(ChannelPipeline pipeline)
+  {
+    if (_config.getWriteCoalescingBytes() > 0)
+    {
+      pipeline.addLast("writeCoalescer", new WriteCoalescingHandler(_config.getWriteCoalescingBytes()));
+    }
+  }
+
+  /**
+   * Refuses requests over the per-client rate limits or the concurrency limit, before they're
+   * aggregated, and traces the rest
+   */
+  private void addAdmissionHandlers(ChannelPipeline pipeline)
+  {
+    if (_rateLimiter != null)
+    {
+      pipeline.addLast("rateLimitHandler", new RateLimitHandler(_rateLimiter, _config.getRateLimitKeyHeader()));
+    }
+    if (_concurrencyLimit != null)
+    {
+      pipeline.addLast("loadSheddingHandler", new LoadSheddingHandler(_concurrencyLimit));
+    }
+    if (_config.isRequestTracing())
+    {
+      pipeline.addLast("requestTracingHandler", new RequestTracingHandler(_config.getSlowRequestMillis()));
+    }
+  }
+
+  /** Times how long a TLS connection's writes spend being encrypted, for request tracing */
+  public void addTlsTimingHandlers(ChannelPipeline pipeline)
+  {
+    if (_config.isRequestTracing())
+    {
+      TlsTimingHandler tlsTimer = new TlsTimingHandler();
+      pipeline.addBefore("sslHandler", "tlsSocketTimer", tlsTimer.getSocketTimer());
+      pipeline.addAfter("sslHandler", "tlsTimer", tlsTimer);
+    }
+  }
+
+  /** @return A new server-mode engine */
+  public SSLEngine createSslEngine()
+  {
+    SSLEngine engine = _context.createSSLEngine();
+    engine.setUseClientMode(false);
+    return engine;
+  }
+
+  /** @return A handler for {@code engine} that gives up on handshakes that take too long */
+  public SslHandler createSslHandler(SSLEngine engine)
+  {
+    SslHandler handler = new SslHandler(engine, SslHandler.getDefaultBufferPool(), false, ImmediateExecutor.INSTANCE,
+                                        _timer, _config.getHandshakeTimeoutMillis());
+    handler.setCloseOnSSLException(true);
+    return handler;
+  }
+
+  public ServerConfig getConfig()
+  {
+    return _config;
+  }
+
+  /** @return The timer shared by all of this factory's pipelines */
+  public Timer getTimer()
+  {
+    return _timer;
+  }
+
+  /** @return The count of open connections */
+  public ConnectionLimits getConnectionLimits()
+  {
+    return _connectionLimits;
+  }
+
+  /** @return The adaptive limit on requests in flight, or null if load isn't shed */
+  public ConcurrencyLimit getConcurrencyLimit()
+  {
+    return _concurrencyLimit;
+  }
+
+  /** @return The per-client rate limits, or null if clients aren't limited */
+  public RateLimiter getRateLimiter()
+  {
+    return _rateLimiter;
+  }
+
+  /** @return The cache of compressed responses, or null if they aren't cached */
+  public CompressionCache getCompressionCache()
+  {
+    return _compressionCache;
+  }
+
+  /** @return The SPDY and HTTP/2 SETTINGS, which may be changed while the server runs */
+  public SessionSettings getSessionSettings()
+  {
+    return _sessionSettings;
+  }
+
+  /** @return The accountant for aggregated request content, and its metrics */
+  public MemoryBudget getMemoryBudget()
+  {
+    return _memoryBudget;
+  }
+
+  /** @return The pool running TLS handshakes, and its metrics */
+  public HandshakeExecutor getHandshakeExecutor()
+  {
+    return _handshakeExecutor;
+  }
+
+  /** Lets the dispatcher see streams reset before the HTTP decoding swallows them */
+  private static void addResetHandler(ChannelPipeline pipeline, List<ChannelHandler> finalHandlers)
+  {
+    for (ChannelHandler h : finalHandlers)
+    {
+      if (h instanceof AsyncRequestDispatcher)
+      {
+        pipeline.addLast("asyncResets", ((AsyncRequestDispatcher) h).getResetHandler());
+      }
+      else if (h instanceof StreamingRequestDispatcher)
+      {
+        pipeline.addLast("streamingResets", ((StreamingRequestDispatcher) h).getResetHandler());
+      }
+    }
+  }
+
+  private void addFinalHandlers(ChannelPipeline pipeline, List<ChannelHandler> finalHandlers)
+  {
+    RequestTracingHandler tracingHandler = pipeline.get(RequestTracingHandler.class);
+    if (tracingHandler != null)
+    {
+      pipeline.addLast("requestDispatchTracer", tracingHandler.getDispatchHandler());
+    }
+    if (_config.getCompressionLevel() > 0)
+    {
+      pipeline.addLast("contentCompressor", new ContentCompressionHandler(_config.getCompressionLevel(),
+                                                                          _config.getMinCompressSize(),
+                                                                          _compressionCache));
+    }
+    for (ChannelHandler h : finalHandlers)
+    {
+      pipeline.addLast(h.getClass().getSimpleName(), h);
+    }
+  }
+
+  /**
+   * Asks every open connection to finish what it's doing and close, then closes any
+   * that haven't by the deadline. Stop accepting connections first.
+   *
+   * @return Whether every connection closed in time
+   */
+  public boolean drain(long timeoutMillis) throws InterruptedException
+  {
+    ChannelGroup channels = _connectionLimits.getChannels();
+    LOG.info("Draining " + channels.size() + " connections");
+
+    for (Channel channel : channels)
+    {
+      DrainHandler drainHandler = channel.getPipeline().get(DrainHandler.class);
+      if (drainHandler == null)
+      {
+        // Still working out the protocol, so nothing in flight
+        Channels.close(channel);
+      }
+      else
+      {
+        drainHandler.drain();
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!channels.isEmpty() && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(50);
+    }
+
+    if (channels.isEmpty())
+    {
+      return true;
+    }
+    LOG.warn("Closing " + channels.size() + " connections still busy after " + timeoutMillis + "ms");
+    channels.close().awaitUninterruptibly();
+    return false;
+  }
+
+  @Override
+  public void releaseExternalResources()
+  {
+    _sessionSettings.stop();
+    _timer.stop();
+    _handshakeExecutor.releaseExternalResources();
+    if (_requestHandler instanceof ExternalResourceReleasable)
+    {
+      ((ExternalResourceReleasable) _requestHandler).releaseExternalResources();
+    }
+    if (_streamingHandler instanceof ExternalResourceReleasable)
+    {
+      ((ExternalResourceReleasable) _streamingHandler).releaseExternalResources();
+    }
+  }
 }
@@ -0,0 +1,187 @@
+package com.example.spdy.server;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SETTINGS the server gives SPDY and HTTP/2 clients: how many streams each may have
+ * open, and the flow-control windows of each stream and (HTTP/2 only) of the connection.
+ *
+ * The windows cap how much a client may send ahead of us, so bigger ones mean more
+ * throughput per connection and smaller ones less memory. Once {@link #start(Timer, long)
+ * started}, they're halved as the {@link MemoryBudget} fills: at half of it, again at
+ * three quarters, and so on, down to a minimum. Every open session is sent the new ones,
+ * as are sessions whenever the settings are changed by hand.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class SessionSettings
+{
+  private static final Logger LOG = Logger.getLogger(SessionSettings.class);
+
+  private final MemoryBudget _memoryBudget;
+  private final int _minWindowSize;
+  private final Set<SessionSettingsHandler> _sessions =
+      Collections.newSetFromMap(new ConcurrentHashMap<SessionSettingsHandler, Boolean>());
+
+  // Guarded by this
+  private int _maxConcurrentStreams;
+  private int _initialWindowSize;
+  private int _connectionWindowSize;
+  /** How many times the windows are halved, for memory */
+  private int _shift;
+
+  private volatile boolean _stopped;
+
+  public SessionSettings(int maxConcurrentStreams, int initialWindowSize, int connectionWindowSize,
+                         int minWindowSize, MemoryBudget memoryBudget)
+  {
+    _maxConcurrentStreams = maxConcurrentStreams;
+    _initialWindowSize = initialWindowSize;
+    _connectionWindowSize = connectionWindowSize;
+    _minWindowSize = minWindowSize;
+    _memoryBudget = memoryBudget;
+  }
+
+  /** @return A handler for one session, to go above its session handler */
+  public SessionSettingsHandler newHandler(boolean http2)
+  {
+    return new SessionSettingsHandler(this, http2);
+  }
+
+  /** Checks memory every {@code intervalMillis}, and resizes the windows if it's running short */
+  public void start(final Timer timer, final long intervalMillis)
+  {
+    timer.newTimeout(new TimerTask()
+    {
+      @Override
+      public void run(Timeout timeout) throws Exception
+      {
+        if (_stopped)
+        {
+          return;
+        }
+        try
+        {
+          tune();
+        }
+        finally
+        {
+          timer.newTimeout(this, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+    }, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop()
+  {
+    _stopped = true;
+  }
+
+  /** Resizes the windows for how full the memory budget is */
+  void tune()
+  {
+    double usage = (double) _memoryBudget.getUsedBytes() / _memoryBudget.getMaxBytes();
+    int shift = 0;
+    for (double threshold = 0.5; usage >= threshold && shift < 30; threshold += (1 - threshold) / 2)
+    {
+      shift++;
+    }
+
+    synchronized (this)
+    {
+      if (shift == _shift)
+      {
+        return;
+      }
+      _shift = shift;
+    }
+    LOG.info("Memory budget " + Math.round(usage * 100) + "% used, windows now "
+                 + getInitialWindowSize() + " per stream and " + getConnectionWindowSize() + " per connection");
+    updateSessions();
+  }
+
+  /** @return SETTINGS_MAX_CONCURRENT_STREAMS */
+  public synchronized int getMaxConcurrentStreams()
+  {
+    return _maxConcurrentStreams;
+  }
+
+  /** @return SETTINGS_INITIAL_WINDOW_SIZE, i.e. each stream's window, as shrunk for memory */
+  public synchronized int getInitialWindowSize()
+  {
+    return shrink(_initialWindowSize);
+  }
+
+  /** @return The HTTP/2 connection window, as shrunk for memory */
+  public synchronized int getConnectionWindowSize()
+  {
+    return shrink(_connectionWindowSize);
+  }
+
+  public void setMaxConcurrentStreams(int maxConcurrentStreams)
+  {
+    synchronized (this)
+    {
+      _maxConcurrentStreams = maxConcurrentStreams;
+    }
+    updateSessions();
+  }
+
+  /** Sets the stream window to use when memory isn't short */
+  public void setInitialWindowSize(int initialWindowSize)
+  {
+    synchronized (this)
+    {
+      _initialWindowSize = initialWindowSize;
+    }
+    updateSessions();
+  }
+
+  /** Sets the connection window to use when memory isn't short */
+  public void setConnectionWindowSize(int connectionWindowSize)
+  {
+    synchronized (this)
+    {
+      _connectionWindowSize = connectionWindowSize;
+    }
+    updateSessions();
+  }
+
+  /** @return How many sessions are open */
+  public int getSessionCount()
+  {
+    return _sessions.size();
+  }
+
+  void register(SessionSettingsHandler session)
+  {
+    _sessions.add(session);
+  }
+
+  void unregister(SessionSettingsHandler session)
+  {
+    _sessions.remove(session);
+  }
+
+  private void updateSessions()
+  {
+    for (SessionSettingsHandler session : _sessions)
+    {
+      session.update();
+    }
+  }
+
+  /** Guarded by this */
+  private int shrink(int windowSize)
+  {
+    return windowSize <= _minWindowSize ? windowSize : Math.max(_minWindowSize, windowSize >> _shift);
+  }
+}
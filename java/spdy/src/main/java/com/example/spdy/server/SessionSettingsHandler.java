@@ -0,0 +1,234 @@
+package com.example.spdy.server;
+
+import com.example.spdy.http2.Http2Frame;
+import com.example.spdy.http2.Http2SessionHandler;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdySettingsFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySessionHandler;
+import org.jboss.netty.handler.codec.spdy.SpdySettingsFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps one SPDY or HTTP/2 session's SETTINGS in line with the server's
+ * {@link SessionSettings}.
+ *
+ * Goes above the session handler, which applies our SETTINGS as they pass it on their
+ * way out, and for SPDY above the HTTP encoder too, to see responses go by. A SPDY
+ * session is sent them as soon as this is added; an HTTP/2 one starts out with them in
+ * its preface, so is only sent changes.
+ *
+ * Netty's SPDY session handler would refuse streams over the limit in a way that fails
+ * the whole session if the client has already sent some of their DATA, so for SPDY the
+ * limit goes around it, and streams over it are refused here instead. Nor does it send
+ * DATA held back by a stream window that a peer's SETTINGS then grows, so an open SPDY
+ * session's window is only ever shrunk; it's new sessions that get a bigger one.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class SessionSettingsHandler extends RequestTrackingHandler implements LifeCycleAwareChannelHandler
+{
+  private static final Logger LOG = Logger.getLogger(SessionSettingsHandler.class);
+
+  private final SessionSettings _settings;
+  private final boolean _http2;
+  private volatile ChannelHandlerContext _ctx;
+
+  // What the client has been sent, only touched by the I/O thread
+  private volatile int _maxConcurrentStreams = -1;
+  private int _initialWindowSize = -1;
+  private int _connectionWindowSize = -1;
+
+  SessionSettingsHandler(SessionSettings settings, boolean http2)
+  {
+    _settings = settings;
+    _http2 = http2;
+    if (http2)
+    {
+      _maxConcurrentStreams = settings.getMaxConcurrentStreams();
+      _initialWindowSize = settings.getInitialWindowSize();
+      _connectionWindowSize = settings.getConnectionWindowSize();
+    }
+  }
+
+  /** @return What the HTTP/2 session handler should start out with */
+  public int getMaxConcurrentStreams()
+  {
+    return _maxConcurrentStreams;
+  }
+
+  /** @return What the HTTP/2 session handler should start out with */
+  public int getInitialWindowSize()
+  {
+    return _initialWindowSize;
+  }
+
+  /** @return What the HTTP/2 session handler should start out with */
+  public int getConnectionWindowSize()
+  {
+    return _connectionWindowSize;
+  }
+
+  @Override
+  protected boolean requestStarted(ChannelHandlerContext ctx, int streamId, Object request)
+  {
+    if (_http2 || _maxConcurrentStreams < 0 || getInFlight() < _maxConcurrentStreams)
+    {
+      return true;
+    }
+    LOG.debug("Refusing stream " + streamId + ", " + _maxConcurrentStreams + " already open");
+    return false;
+  }
+
+  @Override
+  protected void requestFinished(Channel channel, int streamId, boolean responded)
+  {
+    // NOP
+  }
+
+  /** Sends the client whatever settings have changed; may be called from any thread */
+  public void update()
+  {
+    final ChannelHandlerContext ctx = _ctx;
+    if (ctx == null)
+    {
+      return;
+    }
+
+    ctx.getPipeline().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (ctx.getChannel() != null && ctx.getChannel().isConnected())
+        {
+          sendSettings(ctx);
+        }
+      }
+    });
+  }
+
+  private void sendSettings(ChannelHandlerContext ctx)
+  {
+    int maxConcurrentStreams = _settings.getMaxConcurrentStreams();
+    int initialWindowSize = _settings.getInitialWindowSize();
+    int connectionWindowSize = _settings.getConnectionWindowSize();
+
+    if (_http2)
+    {
+      List<Integer> changed = new ArrayList<Integer>();
+      if (maxConcurrentStreams != _maxConcurrentStreams)
+      {
+        changed.add(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS);
+        changed.add(maxConcurrentStreams);
+      }
+      if (initialWindowSize != _initialWindowSize)
+      {
+        changed.add(Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE);
+        changed.add(initialWindowSize);
+      }
+      if (!changed.isEmpty())
+      {
+        Channels.write(ctx, Channels.future(ctx.getChannel()), http2Settings(changed));
+      }
+    }
+    else
+    {
+      if (maxConcurrentStreams != _maxConcurrentStreams)
+      {
+        // Below the session handler, which would otherwise enforce it too
+        ChannelHandlerContext session = ctx.getPipeline().getContext(SpdySessionHandler.class);
+        if (session != null)
+        {
+          Channels.write(session, Channels.future(ctx.getChannel()),
+                         spdySettings(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams));
+        }
+      }
+      if (_initialWindowSize < 0 || initialWindowSize < _initialWindowSize)
+      {
+        Channels.write(ctx, Channels.future(ctx.getChannel()),
+                       spdySettings(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize));
+      }
+      else
+      {
+        // Only ever shrunk once open, see above
+        initialWindowSize = _initialWindowSize;
+      }
+    }
+    _maxConcurrentStreams = maxConcurrentStreams;
+    _initialWindowSize = initialWindowSize;
+
+    // spdy/3 has no connection window
+    if (_http2 && connectionWindowSize != _connectionWindowSize)
+    {
+      _connectionWindowSize = connectionWindowSize;
+      Http2SessionHandler session = ctx.getPipeline().get(Http2SessionHandler.class);
+      if (session != null)
+      {
+        session.setConnectionReceiveWindow(connectionWindowSize);
+      }
+    }
+  }
+
+  private static Http2Frame http2Settings(List<Integer> settings)
+  {
+    int[] values = new int[settings.size()];
+    for (int i = 0; i < values.length; i++)
+    {
+      values[i] = settings.get(i);
+    }
+    return Http2Frame.settings(values);
+  }
+
+  private static SpdySettingsFrame spdySettings(int id, int value)
+  {
+    SpdySettingsFrame frame = new DefaultSpdySettingsFrame();
+    frame.setValue(id, value);
+    return frame;
+  }
+
+  @Override
+  public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    sendSettings(ctx);
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    _settings.unregister(this);
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void beforeAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    _ctx = ctx;
+  }
+
+  @Override
+  public void afterAdd(ChannelHandlerContext ctx) throws Exception
+  {
+    _settings.register(this);
+
+    // Usually added once the protocol is known, i.e. well after channelConnected. If the pipeline
+    // isn't attached to a channel yet, channelConnected is still to come and will send them.
+    if (ctx.getChannel() != null && ctx.getChannel().isConnected())
+    {
+      sendSettings(ctx);
+    }
+  }
+
+  @Override
+  public void beforeRemove(ChannelHandlerContext ctx) throws Exception {}
+
+  @Override
+  public void afterRemove(ChannelHandlerContext ctx) throws Exception
+  {
+    _settings.unregister(this);
+    _ctx = null;
+  }
+}
@@ -0,0 +1,328 @@
+package com.example.spdy.server;
+
+import static com.example.spdy.api.Constants.*;
+
+import com.example.spdy.api.StreamHttpChunk;
+import com.example.spdy.codec.WindowUpdateGate;
+import com.example.spdy.http2.Http2Frame;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.spdy.SpdyRstStreamFrame;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands request heads and body chunks to a {@link StreamingRequestHandler} as they
+ * arrive, instead of aggregating whole requests.
+ *
+ * Expects {@link HttpRequest}s followed by {@link HttpChunk}s: plain ones from
+ * {@link HttpRequestDecoder}, or {@link StreamHttpChunk}s (which say which stream they're
+ * for) from the SPDY and HTTP/2 decoders.
+ *
+ * Its {@link #getResetHandler() reset handler} goes below the HTTP decoding, which
+ * swallows resets of streams whose body has all arrived, and aborts a stream reset
+ * before its response has been written. The connection closing aborts them all.
+ *
+ * Responses to pipelined HTTP/1.1 requests are written in the order the requests came,
+ * each held back until those before it have been written in full.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamingRequestDispatcher extends SimpleChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(StreamingRequestDispatcher.class);
+
+  private final StreamingRequestHandler _handler;
+  private final ChannelUpstreamHandler _resetHandler = new ResetHandler();
+
+  /** Requests whose body hasn't all been delivered yet, only touched by the I/O thread */
+  private final Map<Integer, RequestStream> _streams = new HashMap<Integer, RequestStream>();
+  /** SPDY and HTTP/2 requests whose response hasn't all been written yet */
+  private final ConcurrentMap<Integer, RequestStream> _responding = new ConcurrentHashMap<Integer, RequestStream>();
+  /** HTTP/1.1 requests whose response hasn't all been written yet, in the order they came; guarded by itself */
+  private final Queue<RequestStream> _pipelined = new ArrayDeque<RequestStream>();
+
+  public StreamingRequestDispatcher(StreamingRequestHandler handler)
+  {
+    _handler = handler;
+  }
+
+  /** @return The handler to go below the HTTP decoding */
+  public ChannelUpstreamHandler getResetHandler()
+  {
+    return _resetHandler;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    Object msg = e.getMessage();
+
+    if (msg instanceof HttpRequest)
+    {
+      HttpRequest request = (HttpRequest) msg;
+      String streamIdHeader = request.headers().get(SPDY_STREAM_ID);
+      int streamId = streamIdHeader == null ? 0 : Integer.parseInt(streamIdHeader);
+
+      RequestStream stream = new RequestStream(this, ctx.getChannel(), streamId, request,
+                                               ctx.getPipeline().get(WindowUpdateGate.class));
+      if (streamId == 0)
+      {
+        synchronized (_pipelined)
+        {
+          _pipelined.add(stream);
+        }
+        if (HttpHeaders.is100ContinueExpected(request))
+        {
+          write(stream, new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+      }
+      else
+      {
+        _responding.put(streamId, stream);
+      }
+      _handler.requestReceived(stream, request);
+
+      if (request.isChunked())
+      {
+        _streams.put(streamId, stream);
+      }
+      else
+      {
+        // Small enough to have come in one piece
+        if (request.getContent().readable())
+        {
+          _handler.contentReceived(stream, request.getContent());
+        }
+        _handler.requestComplete(stream);
+      }
+    }
+    else if (msg instanceof HttpChunk)
+    {
+      int streamId = msg instanceof StreamHttpChunk ? ((StreamHttpChunk) msg).getStreamId() : 0;
+      RequestStream stream = _streams.get(streamId);
+      if (stream == null)
+      {
+        return;
+      }
+
+      if (stream.isSuspended() || !stream.getPending().isEmpty())
+      {
+        stream.getPending().add((HttpChunk) msg);
+      }
+      else
+      {
+        deliver(stream, (HttpChunk) msg);
+      }
+    }
+    else if (msg instanceof SpdyRstStreamFrame || msg instanceof Http2Frame)
+    {
+      // A reset the decoders passed up, which the reset handler has already seen
+    }
+    else
+    {
+      super.messageReceived(ctx, e);
+    }
+  }
+
+  /** Delivers whatever queued up while the stream was suspended, on the I/O thread */
+  void drain(RequestStream stream)
+  {
+    try
+    {
+      HttpChunk chunk;
+      while (!stream.isSuspended() && (chunk = stream.getPending().poll()) != null)
+      {
+        deliver(stream, chunk);
+      }
+    }
+    catch (Exception e)
+    {
+      Channels.fireExceptionCaught(stream.getChannel(), e);
+    }
+  }
+
+  private void deliver(RequestStream stream, HttpChunk chunk) throws Exception
+  {
+    if (chunk.getContent().readable())
+    {
+      _handler.contentReceived(stream, chunk.getContent());
+    }
+    if (chunk.isLast())
+    {
+      _streams.remove(stream.getStreamId());
+      stream.getPending().clear();
+      stream.release();
+      _handler.requestComplete(stream);
+    }
+  }
+
+  /** Aborts a stream whose body is still arriving, or whose response is still being written */
+  private void abort(int streamId, Throwable cause)
+  {
+    RequestStream stream = _streams.remove(streamId);
+    RequestStream responding = _responding.remove(streamId);
+    if (stream == null)
+    {
+      stream = responding;
+    }
+    if (stream != null)
+    {
+      abort(stream, cause);
+    }
+  }
+
+  private void abort(RequestStream stream, Throwable cause)
+  {
+    stream.getPending().clear();
+    stream.release();
+    _handler.requestAborted(stream, cause);
+  }
+
+  /** Its whole response has been written, or the stream reset; only for SPDY and HTTP/2 */
+  void responded(RequestStream stream)
+  {
+    _responding.remove(stream.getStreamId(), stream);
+  }
+
+  /**
+   * Writes the next piece of an HTTP/1.1 response, or holds it back until the responses to
+   * the requests before it have been written. Its last piece lets the next response go.
+   */
+  ChannelFuture write(RequestStream stream, Object msg)
+  {
+    Channel channel = stream.getChannel();
+    MessageEvent e = new DownstreamMessageEvent(channel, Channels.future(channel), msg, null);
+    synchronized (_pipelined)
+    {
+      if (_pipelined.peek() == stream && stream.getHeld().isEmpty())
+      {
+        channel.getPipeline().sendDownstream(e);
+        if (isLast(msg))
+        {
+          _pipelined.poll();
+          writeHeld();
+        }
+        return e.getFuture();
+      }
+      if (_pipelined.contains(stream))
+      {
+        stream.getHeld().add(e);
+        return e.getFuture();
+      }
+    }
+    // Already written in full, or the connection has closed
+    return Channels.failedFuture(channel, new ClosedChannelException());
+  }
+
+  /** Writes what's been held back of the responses next in line, while they end; guarded by _pipelined */
+  private void writeHeld()
+  {
+    RequestStream stream;
+    while ((stream = _pipelined.peek()) != null)
+    {
+      MessageEvent e = stream.getHeld().poll();
+      if (e == null)
+      {
+        // Still being written
+        return;
+      }
+      stream.getChannel().getPipeline().sendDownstream(e);
+      // Looking again, as a write completing may have written more in the meantime
+      if (isLast(e.getMessage()) && _pipelined.peek() == stream)
+      {
+        _pipelined.poll();
+      }
+    }
+  }
+
+  /** @return Whether it's the last piece of an HTTP/1.1 response, rather than its head or an interim 100 Continue */
+  private static boolean isLast(Object msg)
+  {
+    if (msg instanceof HttpResponse)
+    {
+      HttpResponse response = (HttpResponse) msg;
+      return !response.isChunked() && response.getStatus().getCode() >= 200;
+    }
+    return ((HttpChunk) msg).isLast();
+  }
+
+  /** Drops the rest of the body of a stream we reset, on the I/O thread */
+  void forget(RequestStream stream)
+  {
+    if (_streams.get(stream.getStreamId()) == stream)
+    {
+      _streams.remove(stream.getStreamId());
+      stream.getPending().clear();
+      stream.release();
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    Set<RequestStream> streams = new LinkedHashSet<RequestStream>(_streams.values());
+    streams.addAll(_responding.values());
+    _streams.clear();
+    _responding.clear();
+    List<MessageEvent> held = new ArrayList<MessageEvent>();
+    synchronized (_pipelined)
+    {
+      for (RequestStream stream : _pipelined)
+      {
+        streams.add(stream);
+        held.addAll(stream.getHeld());
+        stream.getHeld().clear();
+      }
+      _pipelined.clear();
+    }
+
+    for (MessageEvent write : held)
+    {
+      write.getFuture().setFailure(new ClosedChannelException());
+    }
+    for (RequestStream stream : streams)
+    {
+      abort(stream, new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    Channels.close(ctx.getChannel());
+    LOG.error(e);
+  }
+
+  /** Aborts the streams the client resets */
+  private class ResetHandler extends SimpleChannelUpstreamHandler
+  {
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+    {
+      Object msg = e.getMessage();
+      if (msg instanceof SpdyRstStreamFrame)
+      {
+        abort(((SpdyRstStreamFrame) msg).getStreamId(), new IOException("Stream reset by peer"));
+      }
+      else if (msg instanceof Http2Frame && ((Http2Frame) msg).getType() == Http2Frame.RST_STREAM)
+      {
+        abort(((Http2Frame) msg).getStreamId(), new IOException("Stream reset by peer"));
+      }
+      super.messageReceived(ctx, e);
+    }
+  }
+}
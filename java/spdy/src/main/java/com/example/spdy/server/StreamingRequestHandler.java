@@ -0,0 +1,35 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Receives a request's head as soon as it arrives, then its body a chunk at a time.
+ *
+ * Callbacks for one request happen in order, on the channel's I/O thread. To stop the
+ * body for a while (e.g. while a chunk is written somewhere slow), call
+ * {@link RequestStream#suspend()} and later {@link RequestStream#resume()}.
+ *
+ * The response is written through the {@link RequestStream}, whole or a piece at a
+ * time, and may start before the request's body has all arrived.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public interface StreamingRequestHandler
+{
+  /** The request line and headers have arrived; the content of {@code request} is empty */
+  void requestReceived(RequestStream stream, HttpRequest request) throws Exception;
+
+  /** The next piece of the body, only valid for the duration of the call */
+  void contentReceived(RequestStream stream, ChannelBuffer content) throws Exception;
+
+  /** The whole body has been received */
+  void requestComplete(RequestStream stream) throws Exception;
+
+  /**
+   * The stream was reset, or the connection closed, before the request's body or its
+   * response was complete. So this may come after {@link #requestComplete}, but not once
+   * the whole response has been written.
+   */
+  void requestAborted(RequestStream stream, Throwable cause);
+}
@@ -0,0 +1,94 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds up how long a connection's writes spend being encrypted.
+ *
+ * Goes just above the SslHandler, with its {@link #getSocketTimer()} just below. The time
+ * from a write entering the SslHandler until a record leaves it (or from one record's
+ * socket write returning until the next leaves) is encryption, and is counted as each
+ * record reaches the socket timer, i.e. before the write can complete. It's the
+ * connection's total, so requests compare it before and after.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class TlsTimingHandler implements ChannelDownstreamHandler
+{
+  /** When the current thread's encryption started, or 0 if it isn't encrypting a write */
+  private static final ThreadLocal<long[]> ENCRYPT_START = new ThreadLocal<long[]>()
+  {
+    @Override
+    protected long[] initialValue()
+    {
+      return new long[1];
+    }
+  };
+
+  private final AtomicLong _encryptNanos = new AtomicLong();
+
+  private final ChannelDownstreamHandler _socketTimer = new ChannelDownstreamHandler()
+  {
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      long[] encryptStart = ENCRYPT_START.get();
+      if (!(e instanceof MessageEvent) || encryptStart[0] == 0)
+      {
+        ctx.sendDownstream(e);
+        return;
+      }
+
+      _encryptNanos.addAndGet(System.nanoTime() - encryptStart[0]);
+      try
+      {
+        ctx.sendDownstream(e);
+      }
+      finally
+      {
+        // Anything after this is encrypting the write's next record
+        encryptStart[0] = System.nanoTime();
+      }
+    }
+  };
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (!(e instanceof MessageEvent))
+    {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    long[] encryptStart = ENCRYPT_START.get();
+    long outerStart = encryptStart[0];
+    encryptStart[0] = System.nanoTime();
+    try
+    {
+      ctx.sendDownstream(e);
+    }
+    finally
+    {
+      _encryptNanos.addAndGet(System.nanoTime() - encryptStart[0]);
+      encryptStart[0] = outerStart;
+    }
+  }
+
+  /** @return Goes just below the SslHandler */
+  public ChannelDownstreamHandler getSocketTimer()
+  {
+    return _socketTimer;
+  }
+
+  /** @return Time this connection has spent encrypting writes, so far */
+  public long getEncryptNanos()
+  {
+    return _encryptNanos.get();
+  }
+}
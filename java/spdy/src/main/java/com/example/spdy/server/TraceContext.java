@@ -0,0 +1,129 @@
+package com.example.spdy.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A W3C Trace Context ({@code traceparent}) for the server's span of one request: the
+ * caller's trace, if it sent one, continued with a new span ID of our own.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class TraceContext
+{
+  public static final String TRACEPARENT = "traceparent";
+  public static final String TRACERESPONSE = "traceresponse";
+
+  private static final String VERSION = "00";
+  private static final String SAMPLED = "01";
+
+  private final String _traceId;
+  private final String _parentId;
+  private final String _spanId;
+  private final String _flags;
+
+  private TraceContext(String traceId, String parentId, String flags)
+  {
+    _traceId = traceId;
+    _parentId = parentId;
+    _spanId = randomHex(16);
+    _flags = flags;
+  }
+
+  /**
+   * @param traceparent
+   *  The request's {@code traceparent} header, or null
+   * @return
+   *  A child of the caller's span, or the root of a new trace if there was no valid traceparent
+   */
+  public static TraceContext fromTraceparent(String traceparent)
+  {
+    // version-traceid-parentid-flags, and later versions may add more after
+    if (traceparent != null
+        && traceparent.length() >= 55
+        && (traceparent.length() == 55 || traceparent.charAt(55) == '-')
+        && traceparent.charAt(2) == '-' && traceparent.charAt(35) == '-' && traceparent.charAt(52) == '-')
+    {
+      String version = traceparent.substring(0, 2);
+      String traceId = traceparent.substring(3, 35);
+      String parentId = traceparent.substring(36, 52);
+      String flags = traceparent.substring(53, 55);
+      if (isHex(version) && !"ff".equals(version)
+          && (traceparent.length() == 55 || !VERSION.equals(version))
+          && isHex(traceId) && !isZero(traceId)
+          && isHex(parentId) && !isZero(parentId)
+          && isHex(flags))
+      {
+        return new TraceContext(traceId, parentId, flags);
+      }
+    }
+    return new TraceContext(randomHex(32), null, SAMPLED);
+  }
+
+  public String getTraceId()
+  {
+    return _traceId;
+  }
+
+  /** @return The caller's span, or null if we started the trace */
+  public String getParentId()
+  {
+    return _parentId;
+  }
+
+  public String getSpanId()
+  {
+    return _spanId;
+  }
+
+  /** @return The {@code traceparent} for anything done on this request's behalf, with our span as the parent */
+  public String toTraceparent()
+  {
+    return VERSION + "-" + _traceId + "-" + _spanId + "-" + _flags;
+  }
+
+  @Override
+  public String toString()
+  {
+    return toTraceparent();
+  }
+
+  private static String randomHex(int digits)
+  {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder hex = new StringBuilder(digits);
+    while (hex.length() < digits)
+    {
+      long bits = random.nextLong();
+      if (bits != 0)
+      {
+        hex.append(String.format("%016x", bits));
+      }
+    }
+    return hex.toString();
+  }
+
+  private static boolean isHex(String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isZero(String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      if (s.charAt(i) != '0')
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
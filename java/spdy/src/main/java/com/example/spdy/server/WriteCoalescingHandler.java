@@ -0,0 +1,149 @@
+package com.example.spdy.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gathers the encoded frames written within one turn of the I/O thread into a single
+ * write, so that below it {@link org.jboss.netty.handler.ssl.SslHandler} encrypts them as
+ * one TLS record rather than one per frame (and plain connections make fewer syscalls).
+ *
+ * A batch goes out as soon as it reaches the record size, and otherwise at the end of
+ * the current turn, so a lone frame isn't held back waiting for company.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class WriteCoalescingHandler extends SimpleChannelDownstreamHandler
+{
+  private final int _maxBytes;
+
+  // Guarded by this
+  private final List<MessageEvent> _pending = new ArrayList<MessageEvent>();
+  private int _pendingBytes;
+  private boolean _flushScheduled;
+
+  /** @param maxBytes Size at which a batch is written without waiting for the turn to end */
+  public WriteCoalescingHandler(int maxBytes)
+  {
+    _maxBytes = maxBytes;
+  }
+
+  @Override
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer)
+    {
+      writeRequested(ctx, (MessageEvent) e);
+    }
+    else
+    {
+      // Anything else (e.g. a close) must not overtake what we're holding
+      synchronized (this)
+      {
+        flush(ctx);
+        ctx.sendDownstream(e);
+      }
+    }
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    boolean scheduleFlush = false;
+    synchronized (this)
+    {
+      _pending.add(e);
+      _pendingBytes += ((ChannelBuffer) e.getMessage()).readableBytes();
+      if (_pendingBytes >= _maxBytes)
+      {
+        flush(ctx);
+      }
+      else if (!_flushScheduled)
+      {
+        _flushScheduled = true;
+        scheduleFlush = true;
+      }
+    }
+
+    if (scheduleFlush)
+    {
+      Runnable task = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          synchronized (WriteCoalescingHandler.this)
+          {
+            _flushScheduled = false;
+            flush(ctx);
+          }
+        }
+      };
+
+      Channel channel = ctx.getChannel();
+      if (channel instanceof NioSocketChannel)
+      {
+        // Queued behind the rest of this turn, even when we're on the I/O thread already
+        ((NioSocketChannel) channel).getWorker().executeInIoThread(task, true);
+      }
+      else
+      {
+        ctx.getPipeline().execute(task);
+      }
+    }
+  }
+
+  /** Writes everything pending as one buffer; call with this held */
+  private void flush(ChannelHandlerContext ctx)
+  {
+    if (_pending.isEmpty())
+    {
+      return;
+    }
+
+    // Cleared first, as completing a write can lead straight back here (e.g. to close)
+    List<MessageEvent> batch = new ArrayList<MessageEvent>(_pending);
+    _pending.clear();
+    _pendingBytes = 0;
+
+    if (batch.size() == 1)
+    {
+      ctx.sendDownstream(batch.get(0));
+      return;
+    }
+
+    ChannelBuffer[] buffers = new ChannelBuffer[batch.size()];
+    final ChannelFuture[] futures = new ChannelFuture[batch.size()];
+    for (int i = 0; i < buffers.length; i++)
+    {
+      buffers[i] = (ChannelBuffer) batch.get(i).getMessage();
+      futures[i] = batch.get(i).getFuture();
+    }
+
+    ChannelFuture future = Channels.future(ctx.getChannel());
+    future.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        for (ChannelFuture f : futures)
+        {
+          if (future.isSuccess())
+          {
+            f.setSuccess();
+          }
+          else
+          {
+            f.setFailure(future.getCause());
+          }
+        }
+      }
+    });
+    Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(buffers), batch.get(0).getRemoteAddress());
+  }
+}
@@ -0,0 +1,211 @@
+package com.example.spdy.ssl;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dedicated, bounded pool for TLS handshake work.
+ *
+ * Key exchange and certificate processing are expensive, and if they run on a NIO
+ * worker thread every other connection on that selector waits. At most
+ * maxConcurrentHandshakes handshake steps run at once, up to maxQueuedHandshakes
+ * more wait their turn, and anything beyond that is rejected so the connection
+ * fails fast instead of piling up during a reconnect storm.
+ *
+ * Also keeps handshake metrics: time spent queued, handshake duration, and counts.
+ *
+ * @see com.example.spdy.ssl.HandshakeOffloadHandler
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HandshakeExecutor implements Executor, ExternalResourceReleasable
+{
+  private static final Logger LOG = Logger.getLogger(HandshakeExecutor.class);
+
+  private final ThreadPoolExecutor _executor;
+
+  // Metrics
+  private final AtomicInteger _activeHandshakes = new AtomicInteger();
+  private final AtomicLong _completedHandshakes = new AtomicLong();
+  private final AtomicLong _failedHandshakes = new AtomicLong();
+  private final AtomicLong _totalHandshakeNanos = new AtomicLong();
+  private final AtomicLong _maxHandshakeNanos = new AtomicLong();
+  private final AtomicLong _executedTasks = new AtomicLong();
+  private final AtomicLong _rejectedTasks = new AtomicLong();
+  private final AtomicLong _totalQueueNanos = new AtomicLong();
+  private final AtomicLong _maxQueueNanos = new AtomicLong();
+
+  public HandshakeExecutor(final String name, int maxConcurrentHandshakes, int maxQueuedHandshakes)
+  {
+    _executor = new ThreadPoolExecutor(maxConcurrentHandshakes,
+                                       maxConcurrentHandshakes,
+                                       60, TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(maxQueuedHandshakes),
+                                       new ThreadFactory()
+                                       {
+                                         private final AtomicInteger _count = new AtomicInteger();
+
+                                         @Override
+                                         public Thread newThread(Runnable r)
+                                         {
+                                           Thread thread = new Thread(r, name + "-" + _count.incrementAndGet());
+                                           thread.setDaemon(true);
+                                           return thread;
+                                         }
+                                       });
+    _executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs a handshake step on the pool.
+   *
+   * @throws RejectedExecutionException
+   *  If the queue is full
+   */
+  @Override
+  public void execute(final Runnable task)
+  {
+    final long enqueued = System.nanoTime();
+
+    try
+    {
+      _executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          long queued = System.nanoTime() - enqueued;
+          _executedTasks.incrementAndGet();
+          _totalQueueNanos.addAndGet(queued);
+          updateMax(_maxQueueNanos, queued);
+          task.run();
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      _rejectedTasks.incrementAndGet();
+      throw e;
+    }
+  }
+
+  /** Counts a handshake as active until its future completes, then records its duration */
+  public void track(ChannelFuture handshakeFuture)
+  {
+    final long started = System.nanoTime();
+    _activeHandshakes.incrementAndGet();
+
+    handshakeFuture.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        _activeHandshakes.decrementAndGet();
+        if (future.isSuccess())
+        {
+          long duration = System.nanoTime() - started;
+          _completedHandshakes.incrementAndGet();
+          _totalHandshakeNanos.addAndGet(duration);
+          updateMax(_maxHandshakeNanos, duration);
+        }
+        else
+        {
+          _failedHandshakes.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  /** @return Handshakes started but not yet finished */
+  public int getActiveHandshakes()
+  {
+    return _activeHandshakes.get();
+  }
+
+  public long getCompletedHandshakes()
+  {
+    return _completedHandshakes.get();
+  }
+
+  public long getFailedHandshakes()
+  {
+    return _failedHandshakes.get();
+  }
+
+  /** @return Handshake steps turned away because the queue was full */
+  public long getRejectedTasks()
+  {
+    return _rejectedTasks.get();
+  }
+
+  /** @return Handshake steps waiting for a thread right now */
+  public int getQueuedTasks()
+  {
+    return _executor.getQueue().size();
+  }
+
+  public long getMeanHandshakeMicros()
+  {
+    return mean(_totalHandshakeNanos, _completedHandshakes) / 1000;
+  }
+
+  public long getMaxHandshakeMicros()
+  {
+    return _maxHandshakeNanos.get() / 1000;
+  }
+
+  public long getMeanQueueMicros()
+  {
+    return mean(_totalQueueNanos, _executedTasks) / 1000;
+  }
+
+  public long getMaxQueueMicros()
+  {
+    return _maxQueueNanos.get() / 1000;
+  }
+
+  @Override
+  public void releaseExternalResources()
+  {
+    _executor.shutdownNow();
+    LOG.info("Released handshake executor " + this);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "handshakes(active=" + getActiveHandshakes()
+        + ", completed=" + getCompletedHandshakes()
+        + ", failed=" + getFailedHandshakes()
+        + ", meanMicros=" + getMeanHandshakeMicros()
+        + ", maxMicros=" + getMaxHandshakeMicros()
+        + ") tasks(queued=" + getQueuedTasks()
+        + ", rejected=" + getRejectedTasks()
+        + ", meanQueueMicros=" + getMeanQueueMicros()
+        + ", maxQueueMicros=" + getMaxQueueMicros()
+        + ")";
+  }
+
+  private static long mean(AtomicLong total, AtomicLong count)
+  {
+    long n = count.get();
+    return n == 0 ? 0 : total.get() / n;
+  }
+
+  private static void updateMax(AtomicLong max, long value)
+  {
+    long current;
+    while (value > (current = max.get()))
+    {
+      if (max.compareAndSet(current, value))
+      {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.example.spdy.ssl;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sits in front of the {@link SslHandler} and runs it on a {@link HandshakeExecutor}
+ * until the handshake is done.
+ *
+ * Netty's SslHandler runs SSLEngine delegated tasks while holding its handshake lock,
+ * and its unwrap loop goes straight back for that lock, so handing it an executor
+ * alone does not free the worker thread. Instead, upstream events are queued here and
+ * replayed in order on the handshake pool, and reads are suspended while a message is
+ * in flight so nothing can overtake it. Once the handshake completes the queue is
+ * drained, reads resume, and this handler removes itself.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HandshakeOffloadHandler implements ChannelUpstreamHandler
+{
+  private static final Logger LOG = Logger.getLogger(HandshakeOffloadHandler.class);
+
+  private final HandshakeExecutor _executor;
+
+  // Guarded by _queue
+  private final Queue<ChannelEvent> _queue = new LinkedList<ChannelEvent>();
+  private boolean _draining;
+  private boolean _offloading = true;
+  private boolean _readSuspended;
+
+  private ChannelFuture _handshakeFuture;
+
+  public HandshakeOffloadHandler(HandshakeExecutor executor)
+  {
+    _executor = executor;
+  }
+
+  @Override
+  public void handleUpstream(final ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+  {
+    synchronized (_queue)
+    {
+      if (_offloading || _draining)
+      {
+        _queue.add(e);
+
+        if (e instanceof MessageEvent && !_readSuspended)
+        {
+          _readSuspended = true;
+          ctx.getChannel().setReadable(false);
+        }
+
+        if (!_draining)
+        {
+          _draining = true;
+          submitDrain(ctx);
+        }
+        return;
+      }
+    }
+
+    ctx.sendUpstream(e);
+  }
+
+  private void submitDrain(final ChannelHandlerContext ctx)
+  {
+    try
+    {
+      _executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          drain(ctx);
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      LOG.warn("Too many pending handshakes, closing " + ctx.getChannel());
+      synchronized (_queue)
+      {
+        _queue.clear();
+        _draining = false;
+      }
+      Channels.close(ctx.getChannel());
+    }
+  }
+
+  private void drain(ChannelHandlerContext ctx)
+  {
+    // Not before a client channel is connected, or the ClientHello can't be written
+    if (_handshakeFuture == null && ctx.getChannel().isConnected())
+    {
+      SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
+      _handshakeFuture = sslHandler.handshake();
+      _executor.track(_handshakeFuture);
+    }
+
+    boolean resumeReads;
+    boolean done;
+    for (;;)
+    {
+      ChannelEvent e;
+      synchronized (_queue)
+      {
+        if (_handshakeFuture != null && _handshakeFuture.isDone())
+        {
+          _offloading = false;
+        }
+
+        e = _queue.poll();
+        if (e == null)
+        {
+          _draining = false;
+          resumeReads = _readSuspended;
+          _readSuspended = false;
+          done = !_offloading;
+          break;
+        }
+      }
+
+      ctx.sendUpstream(e);
+    }
+
+    if (done && ctx.getPipeline().getContext(this) != null)
+    {
+      ctx.getPipeline().remove(this);
+    }
+
+    if (resumeReads && ctx.getChannel().isOpen())
+    {
+      ctx.getChannel().setReadable(true);
+    }
+  }
+}
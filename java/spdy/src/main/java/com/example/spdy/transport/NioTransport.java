@@ -0,0 +1,53 @@
+package com.example.spdy.transport;
+
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.Executors;
+
+/**
+ * Netty's NIO transport, over whichever selector the JDK provides; on Linux, that's
+ * epoll (level-triggered).
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class NioTransport extends Transport
+{
+  private final int _ioThreads;
+
+  /** @param ioThreads How many threads do the I/O, each with its own selector */
+  public NioTransport(int ioThreads)
+  {
+    _ioThreads = ioThreads;
+  }
+
+  @Override
+  public ServerSocketChannelFactory newServerChannelFactory()
+  {
+    return new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), 1,
+                                             new NioWorkerPool(Executors.newCachedThreadPool(), _ioThreads));
+  }
+
+  @Override
+  public ClientSocketChannelFactory newClientChannelFactory()
+  {
+    return new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool(),
+                                             1, _ioThreads);
+  }
+
+  /** @return Whether the JDK's selectors are backed by epoll */
+  public boolean isEpoll()
+  {
+    return SelectorProvider.provider().getClass().getName().contains("EPoll");
+  }
+
+  @Override
+  public String getName()
+  {
+    return isEpoll() ? "nio (epoll)" : NIO;
+  }
+}
@@ -0,0 +1,88 @@
+package com.example.spdy.transport;
+
+import static com.example.spdy.api.Constants.*;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ServerChannelFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Where the server and client get their channels from, so that the transport can be
+ * chosen (or swapped) without touching the pipelines above it.
+ *
+ * Netty 3 has no native transport, so for sockets there's only NIO, which on Linux runs
+ * over the JDK's epoll selector. Netty 4's native epoll transport would need the whole
+ * stack ported; if that happens, it fits in here as another subclass.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public abstract class Transport
+{
+  public static final String NIO = "nio";
+  public static final String LOCAL = "local";
+
+  /** @return A new factory for server channels, which owns its threads */
+  public abstract ServerChannelFactory newServerChannelFactory();
+
+  /** @return A new factory for client channels, which owns its threads */
+  public abstract ChannelFactory newClientChannelFactory();
+
+  public abstract String getName();
+
+  /** @return Where a server on this transport listens, for the given port */
+  public SocketAddress getLocalAddress(int port)
+  {
+    return new InetSocketAddress(port);
+  }
+
+  /** @return Where a client on this transport finds the server at the given host and port */
+  public SocketAddress getRemoteAddress(String host, int port)
+  {
+    return new InetSocketAddress(host, port);
+  }
+
+  /** @return The address a channel's peer connected from, with in-VM peers counted as loopback */
+  public static InetAddress getRemoteInetAddress(Channel channel)
+  {
+    SocketAddress address = channel.getRemoteAddress();
+    if (address instanceof InetSocketAddress)
+    {
+      return ((InetSocketAddress) address).getAddress();
+    }
+    return InetAddress.getLoopbackAddress();
+  }
+
+  /** @return The transport named by the {@code transport} system property (NIO by default) */
+  public static Transport fromSystemProperties()
+  {
+    return forName(System.getProperty(PROP_TRANSPORT, NIO),
+                   Integer.getInteger(PROP_IO_THREADS, DEFAULT_IO_THREADS));
+  }
+
+  /**
+   * @param name {@link #NIO}, or {@link #LOCAL} for in-VM channels (server and client in the same VM)
+   * @param ioThreads How many threads do the I/O
+   */
+  public static Transport forName(String name, int ioThreads)
+  {
+    if (LOCAL.equals(name))
+    {
+      return new LocalTransport();
+    }
+    if (NIO.equals(name))
+    {
+      return new NioTransport(ioThreads);
+    }
+    throw new IllegalArgumentException("Unknown transport " + name);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getName();
+  }
+}
@@ -0,0 +1,124 @@
+package com.example.spdy.client;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdyDataFrame;
+import org.jboss.netty.handler.codec.spdy.DefaultSpdySettingsFrame;
+import org.jboss.netty.handler.codec.spdy.SpdySettingsFrame;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class StreamSchedulerTest
+{
+  private StreamScheduler _scheduler;
+  private DecoderEmbedder<Object> _embedder;
+
+  @Before
+  public void setUp()
+  {
+    _scheduler = new StreamScheduler();
+    _embedder = new DecoderEmbedder<Object>(_scheduler);
+  }
+
+  @Test
+  public void testHeldBackPastServerLimit() throws Exception
+  {
+    setMaxConcurrentStreams(1);
+    Writer first = submit(0);
+    Writer second = submit(0);
+    assertEquals(1, first._streamId);
+    assertEquals(0, second._streamId);
+    assertEquals(1, _scheduler.getOpenCount());
+    assertEquals(1, _scheduler.getPendingCount());
+
+    // The first finishing lets the second go
+    DefaultSpdyDataFrame last = new DefaultSpdyDataFrame(1);
+    last.setLast(true);
+    _embedder.offer(last);
+    assertEquals(3, second._streamId);
+    assertEquals(0, _scheduler.getPendingCount());
+  }
+
+  @Test
+  public void testMostUrgentSentFirst() throws Exception
+  {
+    setMaxConcurrentStreams(1);
+    submit(0);
+    Writer low = submit(7);
+    Writer high = submit(2);
+
+    DefaultSpdyDataFrame last = new DefaultSpdyDataFrame(1);
+    last.setLast(true);
+    _embedder.offer(last);
+    assertEquals(3, high._streamId);
+    assertEquals(0, low._streamId);
+  }
+
+  @Test
+  public void testClosingFailsOpenAndPendingStreams() throws Exception
+  {
+    setMaxConcurrentStreams(1);
+    Writer open = submit(0);
+    Writer pending = submit(0);
+
+    _embedder.finish();
+    assertTrue(open._failure instanceof ClosedChannelException);
+    assertTrue(pending._failure instanceof ClosedChannelException);
+    assertEquals(0, _scheduler.getOpenCount());
+    assertEquals(0, _scheduler.getPendingCount());
+
+    // As does anything submitted later
+    Writer late = submit(0);
+    assertEquals(0, late._streamId);
+    assertTrue(late._failure instanceof ClosedChannelException);
+  }
+
+  private void setMaxConcurrentStreams(int maxConcurrentStreams)
+  {
+    SpdySettingsFrame settings = new DefaultSpdySettingsFrame();
+    settings.setValue(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+    _embedder.offer(settings);
+  }
+
+  private Writer submit(int priority)
+  {
+    Writer writer = new Writer(_embedder.getPipeline().getChannel());
+    _scheduler.submit(priority, writer);
+    return writer;
+  }
+
+  /** Records what it's told, its writes never completing */
+  private static class Writer implements StreamScheduler.StreamWriter
+  {
+    private final Channel _channel;
+    private int _streamId;
+    private Throwable _failure;
+
+    Writer(Channel channel)
+    {
+      _channel = channel;
+    }
+
+    @Override
+    public ChannelFuture write(int streamId) throws Exception
+    {
+      _streamId = streamId;
+      return Channels.future(_channel);
+    }
+
+    @Override
+    public void fail(Throwable cause)
+    {
+      _failure = cause;
+    }
+  }
+}
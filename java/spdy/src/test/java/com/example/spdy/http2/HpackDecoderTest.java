@@ -0,0 +1,142 @@
+package com.example.spdy.http2;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Decodes the header block sequences of RFC 7541, Appendix C.4 and C.6, each against one
+ * decoder so that the dynamic table (and, in C.6, its evictions) carries from block to block.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class HpackDecoderTest
+{
+  private static final int MAX_HEADER_LIST_SIZE = 16384;
+
+  @Test
+  public void testRequestsWithHuffman() throws Exception
+  {
+    HpackDecoder decoder = new HpackDecoder(4096, MAX_HEADER_LIST_SIZE);
+
+    // C.4.1
+    assertHeaders(decoder.decode(1, hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")),
+                  ":method", "GET",
+                  ":scheme", "http",
+                  ":path", "/",
+                  ":authority", "www.example.com");
+
+    // C.4.2
+    assertHeaders(decoder.decode(3, hex("828684be5886a8eb10649cbf")),
+                  ":method", "GET",
+                  ":scheme", "http",
+                  ":path", "/",
+                  ":authority", "www.example.com",
+                  "cache-control", "no-cache");
+
+    // C.4.3
+    assertHeaders(decoder.decode(5, hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")),
+                  ":method", "GET",
+                  ":scheme", "https",
+                  ":path", "/index.html",
+                  ":authority", "www.example.com",
+                  "custom-key", "custom-value");
+  }
+
+  @Test
+  public void testResponsesWithHuffman() throws Exception
+  {
+    // C.6 uses a 256-byte table, so entries are evicted along the way
+    HpackDecoder decoder = new HpackDecoder(256, MAX_HEADER_LIST_SIZE);
+
+    // C.6.1
+    assertHeaders(decoder.decode(1, hex("488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                                            + "6e919d29ad171863c78f0b97c8e9ae82ae43d3")),
+                  ":status", "302",
+                  "cache-control", "private",
+                  "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                  "location", "https://www.example.com");
+
+    // C.6.2
+    assertHeaders(decoder.decode(3, hex("4883640effc1c0bf")),
+                  ":status", "307",
+                  "cache-control", "private",
+                  "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                  "location", "https://www.example.com");
+
+    // C.6.3
+    assertHeaders(decoder.decode(5, hex("88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7"
+                                            + "821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c0"
+                                            + "03ed4ee5b1063d5007")),
+                  ":status", "200",
+                  "cache-control", "private",
+                  "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                  "location", "https://www.example.com",
+                  "content-encoding", "gzip",
+                  "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+  }
+
+  @Test
+  public void testEncoderRoundTrip() throws Exception
+  {
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+
+    // Twice, so the second block is read back from the dynamic table
+    for (int streamId = 1; streamId <= 3; streamId += 2)
+    {
+      ChannelBuffer block = ChannelBuffers.dynamicBuffer();
+      encoder.begin(block);
+      encoder.encode(block, ":method", "POST");
+      encoder.encode(block, ":path", "/upload");
+      encoder.encode(block, "x-request-id", "abc123");
+      encoder.encode(block, "cookie", "secret");
+
+      assertHeaders(decoder.decode(streamId, block),
+                    ":method", "POST",
+                    ":path", "/upload",
+                    "x-request-id", "abc123",
+                    "cookie", "secret");
+    }
+  }
+
+  @Test
+  public void testTableSizeAboveLimit() throws Exception
+  {
+    HpackDecoder decoder = new HpackDecoder(256, MAX_HEADER_LIST_SIZE);
+    try
+    {
+      decoder.decode(1, hex("3fe11f")); // Size update to 4096
+      fail("Table size update beyond our limit was accepted");
+    }
+    catch (Http2Exception e)
+    {
+      assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+      assertTrue(e.isConnectionError());
+    }
+  }
+
+  private static void assertHeaders(List<HpackHeader> headers, String... expected)
+  {
+    assertEquals(headers.toString(), expected.length / 2, headers.size());
+    for (int i = 0; i < headers.size(); i++)
+    {
+      assertEquals(expected[2 * i], headers.get(i).getName());
+      assertEquals(expected[2 * i + 1], headers.get(i).getValue());
+    }
+  }
+
+  private static ChannelBuffer hex(String hex)
+  {
+    ChannelBuffer buffer = ChannelBuffers.buffer(hex.length() / 2);
+    for (int i = 0; i < hex.length(); i += 2)
+    {
+      buffer.writeByte(Integer.parseInt(hex.substring(i, i + 2), 16));
+    }
+    return buffer;
+  }
+}
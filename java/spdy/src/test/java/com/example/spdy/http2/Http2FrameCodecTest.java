@@ -0,0 +1,188 @@
+package com.example.spdy.http2;
+
+import static com.example.spdy.http2.Http2Frame.*;
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes frames with {@link Http2FrameEncoder} and reads them back with {@link Http2FrameDecoder}.
+ *
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class Http2FrameCodecTest
+{
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Http2FrameEncoder _encoder = new Http2FrameEncoder();
+
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+    wire.writeBytes(CONNECTION_PREFACE);
+    wire.writeBytes(encode(settings(SETTINGS_MAX_CONCURRENT_STREAMS, 100, SETTINGS_INITIAL_WINDOW_SIZE, 1 << 20)));
+    wire.writeBytes(encode(headers(1, text("header block"), false)));
+    wire.writeBytes(encode(data(1, text("hello"), true)));
+    wire.writeBytes(encode(windowUpdate(0, 4096)));
+    wire.writeBytes(encode(rstStream(3, Http2Exception.CANCEL)));
+    wire.writeBytes(encode(ping(ChannelBuffers.wrappedBuffer(new byte[8]), true)));
+    wire.writeBytes(encode(goAway(7, Http2Exception.ENHANCE_YOUR_CALM)));
+    wire.writeBytes(encode(settingsAck()));
+
+    Http2FrameDecoder decoder = new Http2FrameDecoder(true, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+
+    Http2Frame settings = decode(decoder, wire);
+    assertEquals(SETTINGS, settings.getType());
+    assertFalse(settings.hasFlag(FLAG_ACK));
+    assertEquals(100, settings.getSetting(SETTINGS_MAX_CONCURRENT_STREAMS));
+    assertEquals(1 << 20, settings.getSetting(SETTINGS_INITIAL_WINDOW_SIZE));
+    assertEquals(-1, settings.getSetting(SETTINGS_MAX_FRAME_SIZE));
+
+    Http2Frame headers = decode(decoder, wire);
+    assertEquals(HEADERS, headers.getType());
+    assertEquals(1, headers.getStreamId());
+    assertTrue(headers.hasFlag(FLAG_END_HEADERS));
+    assertFalse(headers.hasFlag(FLAG_END_STREAM));
+    assertEquals("header block", headers.getPayload().toString(UTF_8));
+
+    Http2Frame data = decode(decoder, wire);
+    assertEquals(DATA, data.getType());
+    assertEquals(1, data.getStreamId());
+    assertTrue(data.hasFlag(FLAG_END_STREAM));
+    assertEquals("hello", data.getPayload().toString(UTF_8));
+    assertEquals(5, data.getLength());
+
+    Http2Frame windowUpdate = decode(decoder, wire);
+    assertEquals(WINDOW_UPDATE, windowUpdate.getType());
+    assertEquals(0, windowUpdate.getStreamId());
+    assertEquals(4096, windowUpdate.getWindowIncrement());
+
+    Http2Frame rstStream = decode(decoder, wire);
+    assertEquals(RST_STREAM, rstStream.getType());
+    assertEquals(3, rstStream.getStreamId());
+    assertEquals(Http2Exception.CANCEL, rstStream.getErrorCode());
+
+    Http2Frame ping = decode(decoder, wire);
+    assertEquals(PING, ping.getType());
+    assertTrue(ping.hasFlag(FLAG_ACK));
+    assertEquals(8, ping.getPayload().readableBytes());
+
+    Http2Frame goAway = decode(decoder, wire);
+    assertEquals(GOAWAY, goAway.getType());
+    assertEquals(7, goAway.getLastStreamId());
+    assertEquals(Http2Exception.ENHANCE_YOUR_CALM, goAway.getErrorCode());
+
+    Http2Frame ack = decode(decoder, wire);
+    assertEquals(SETTINGS, ack.getType());
+    assertTrue(ack.hasFlag(FLAG_ACK));
+
+    assertFalse(wire.readable());
+  }
+
+  @Test
+  public void testPartialFrames() throws Exception
+  {
+    ChannelBuffer frame = encode(data(5, text("split across reads"), false));
+    Http2FrameDecoder decoder = new Http2FrameDecoder(false, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+
+    ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+    while (frame.readableBytes() > 1)
+    {
+      wire.writeBytes(frame, 1);
+      assertNull(decoder.decode(null, null, wire));
+    }
+    wire.writeBytes(frame);
+
+    Http2Frame data = decode(decoder, wire);
+    assertEquals(5, data.getStreamId());
+    assertEquals("split across reads", data.getPayload().toString(UTF_8));
+  }
+
+  @Test
+  public void testContinuationAndPadding() throws Exception
+  {
+    ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+    wire.writeBytes(encode(new Http2Frame(HEADERS, FLAG_END_STREAM | FLAG_PADDED, 1, padded(text("first "), 3))));
+    wire.writeBytes(encode(new Http2Frame(CONTINUATION, 0, 1, text("second "))));
+    wire.writeBytes(encode(new Http2Frame(CONTINUATION, FLAG_END_HEADERS, 1, text("third"))));
+    wire.writeBytes(encode(new Http2Frame(DATA, FLAG_PADDED, 1, padded(text("body"), 10))));
+
+    Http2FrameDecoder decoder = new Http2FrameDecoder(false, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+
+    Http2Frame headers = decode(decoder, wire);
+    assertEquals(HEADERS, headers.getType());
+    assertTrue(headers.hasFlag(FLAG_END_STREAM));
+    assertTrue(headers.hasFlag(FLAG_END_HEADERS));
+    assertEquals("first second third", headers.getPayload().toString(UTF_8));
+
+    Http2Frame data = decode(decoder, wire);
+    assertEquals("body", data.getPayload().toString(UTF_8));
+    assertEquals(1 + 4 + 10, data.getLength()); // Padding still counts towards flow control
+  }
+
+  @Test
+  public void testInterleavedContinuation() throws Exception
+  {
+    ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+    wire.writeBytes(encode(new Http2Frame(HEADERS, 0, 1, text("first"))));
+    wire.writeBytes(encode(data(3, text("not a continuation"), false)));
+
+    try
+    {
+      new Http2FrameDecoder(false, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE).decode(null, null, wire);
+      fail("DATA between HEADERS and CONTINUATION was accepted");
+    }
+    catch (Http2Exception e)
+    {
+      assertEquals(Http2Exception.PROTOCOL_ERROR, e.getErrorCode());
+      assertTrue(e.isConnectionError());
+    }
+  }
+
+  @Test
+  public void testFrameTooLarge() throws Exception
+  {
+    ChannelBuffer wire = encode(data(1, ChannelBuffers.wrappedBuffer(new byte[DEFAULT_MAX_FRAME_SIZE + 1]), false));
+    try
+    {
+      new Http2FrameDecoder(false, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE).decode(null, null, wire);
+      fail("Oversized frame was accepted");
+    }
+    catch (Http2Exception e)
+    {
+      assertEquals(Http2Exception.FRAME_SIZE_ERROR, e.getErrorCode());
+    }
+  }
+
+  private ChannelBuffer encode(Http2Frame frame) throws Exception
+  {
+    return (ChannelBuffer) _encoder.encode(null, null, frame);
+  }
+
+  private static Http2Frame decode(Http2FrameDecoder decoder, ChannelBuffer wire) throws Exception
+  {
+    Http2Frame frame = (Http2Frame) decoder.decode(null, null, wire);
+    assertNotNull(frame);
+    return frame;
+  }
+
+  /** @return The payload of a padded frame: pad length, the content, then that much padding */
+  private static ChannelBuffer padded(ChannelBuffer content, int padding)
+  {
+    ChannelBuffer payload = ChannelBuffers.buffer(1 + content.readableBytes() + padding);
+    payload.writeByte(padding);
+    payload.writeBytes(content);
+    payload.writeZero(padding);
+    return payload;
+  }
+
+  private static ChannelBuffer text(String s)
+  {
+    return ChannelBuffers.copiedBuffer(s, UTF_8);
+  }
+}
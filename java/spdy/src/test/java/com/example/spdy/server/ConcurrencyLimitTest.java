@@ -0,0 +1,72 @@
+package com.example.spdy.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class ConcurrencyLimitTest
+{
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void testColdBurstIsAdmitted()
+  {
+    ConcurrencyLimit limit = new ConcurrencyLimit(20, 0, 1000);
+    assertEquals(1000, limit.getLimit());
+    for (int i = 0; i < 500; i++)
+    {
+      assertTrue(limit.tryAcquire());
+    }
+    assertEquals(0, limit.getShedRequests());
+  }
+
+  @Test
+  public void testInitialLimitIsClamped()
+  {
+    assertEquals(200, new ConcurrencyLimit(20, 200, 1000).getLimit());
+    assertEquals(20, new ConcurrencyLimit(20, 5, 1000).getLimit());
+    assertEquals(1000, new ConcurrencyLimit(20, 5000, 1000).getLimit());
+  }
+
+  @Test
+  public void testLatencyBringsLimitDown()
+  {
+    ConcurrencyLimit limit = new ConcurrencyLimit(20, 0, 1000);
+
+    // A few requests at the usual latency, far below the limit, leave it alone
+    for (int i = 0; i < 100; i++)
+    {
+      assertTrue(limit.tryAcquire());
+      limit.release(FAST);
+    }
+    assertEquals(1000, limit.getLimit());
+
+    // Then latency climbs, even though the limit is far from used
+    for (int i = 0; i < 100; i++)
+    {
+      assertTrue(limit.tryAcquire());
+      limit.release(SLOW);
+    }
+    assertTrue("Limit is " + limit.getLimit(), limit.getLimit() < 100);
+
+    // And down at the floor it sheds
+    for (int i = 0; i < 100; i++)
+    {
+      assertTrue(limit.tryAcquire());
+      limit.release(SLOW);
+    }
+    assertEquals(20, limit.getLimit());
+    for (int i = 0; i < 20; i++)
+    {
+      assertTrue(limit.tryAcquire());
+    }
+    assertFalse(limit.tryAcquire());
+    assertEquals(1, limit.getShedRequests());
+  }
+}
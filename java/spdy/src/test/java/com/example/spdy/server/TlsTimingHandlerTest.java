@@ -0,0 +1,133 @@
+package com.example.spdy.server;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Greg Brandt (brandt.greg@gmail.com)
+ */
+public class TlsTimingHandlerTest
+{
+  private static final long ENCRYPT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /** The socket completes writes straight away, as NIO often does, while the write is still on its way down */
+  @Test
+  public void testCountedBeforeWriteCompletes() throws Exception
+  {
+    final TlsTimingHandler tlsTimer = new TlsTimingHandler();
+    EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+            new CompletingSocket(), tlsTimer.getSocketTimer(), new SlowEncryption(2), tlsTimer);
+
+    final AtomicLong encryptNanosWhenWritten = new AtomicLong(-1);
+    ChannelFuture future = Channels.future(embedder.getPipeline().getChannel());
+    future.addListener(new ChannelFutureListener()
+    {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception
+      {
+        encryptNanosWhenWritten.set(tlsTimer.getEncryptNanos());
+      }
+    });
+    embedder.getPipeline().sendDownstream(new DownstreamMessageEvent(
+            future.getChannel(), future, ChannelBuffers.wrappedBuffer(new byte[100]), null));
+
+    assertTrue(future.isSuccess());
+    assertEquals(2, embedder.pollAll().length);
+    assertTrue("Only " + encryptNanosWhenWritten.get() + "ns counted by the time the write completed",
+               encryptNanosWhenWritten.get() >= 2 * ENCRYPT_NANOS);
+    assertTrue(tlsTimer.getEncryptNanos() >= 2 * ENCRYPT_NANOS);
+  }
+
+  @Test
+  public void testSocketTimeNotCounted() throws Exception
+  {
+    TlsTimingHandler tlsTimer = new TlsTimingHandler();
+    EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+            new SlowSocket(), tlsTimer.getSocketTimer(), new SlowEncryption(1), tlsTimer);
+
+    long start = System.nanoTime();
+    embedder.offer(ChannelBuffers.wrappedBuffer(new byte[100]));
+    long elapsed = System.nanoTime() - start;
+
+    assertTrue(tlsTimer.getEncryptNanos() >= ENCRYPT_NANOS);
+    assertTrue(tlsTimer.getEncryptNanos() < elapsed - 10 * ENCRYPT_NANOS);
+  }
+
+  /** Takes a while over each of {@code records} records it writes for every message */
+  private static class SlowEncryption implements ChannelDownstreamHandler
+  {
+    private final int _records;
+
+    SlowEncryption(int records)
+    {
+      _records = records;
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      if (!(e instanceof MessageEvent))
+      {
+        ctx.sendDownstream(e);
+        return;
+      }
+
+      for (int i = 0; i < _records; i++)
+      {
+        spin(ENCRYPT_NANOS);
+        ChannelFuture future = i == _records - 1 ? e.getFuture() : Channels.future(e.getChannel());
+        Channels.write(ctx, future, ((MessageEvent) e).getMessage());
+      }
+    }
+  }
+
+  private static class CompletingSocket implements ChannelDownstreamHandler
+  {
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      ctx.sendDownstream(e);
+      if (e instanceof MessageEvent)
+      {
+        e.getFuture().setSuccess();
+      }
+    }
+  }
+
+  private static class SlowSocket implements ChannelDownstreamHandler
+  {
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception
+    {
+      if (e instanceof MessageEvent)
+      {
+        spin(20 * ENCRYPT_NANOS);
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+
+  private static void spin(long nanos)
+  {
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end)
+    {
+      // Busy, like encryption
+    }
+  }
+}